@@ -0,0 +1,139 @@
+package ch.retaxo.sumania.api.claim;
+
+import ch.retaxo.sumania.models.Claim;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Claim lookups through the {@link ClaimIndex} against the scan over all claims that ClaimAPI used before.
+ * Claims are laid out on a grid like marker claims with the default radius of 16. Half of the probed
+ * locations are inside a claim, the other half are anywhere in the claimed area.
+ * Run with: mvn -P jmh test-compile exec:exec -Djmh.include=ClaimLookupBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ClaimLookupBenchmark {
+
+    private static final String WORLD = "world";
+    private static final int RADIUS = 16;
+    private static final int SPACING = 48;
+    private static final int PROBES = 1024;
+    
+    @Param({"100", "10000", "100000"})
+    public int claimCount;
+    
+    private final Map<String, Claim> claims = new HashMap<>();
+    private final ClaimIndex index = new ClaimIndex();
+    private final int[][] probes = new int[PROBES][];
+    private final int[][] markers = new int[PROBES][];
+    private int next;
+    
+    @Setup(Level.Trial)
+    public void setUp() {
+        int side = (int) Math.ceil(Math.sqrt(claimCount));
+        
+        for (int i = 0; i < claimCount; i++) {
+            int markerX = (i % side) * SPACING;
+            int markerZ = (i / side) * SPACING;
+            
+            Claim claim = new Claim(UUID.randomUUID().toString(), UUID.randomUUID(), WORLD,
+                    markerX - RADIUS, 64 - RADIUS, markerZ - RADIUS,
+                    markerX + RADIUS, 64 + RADIUS, markerZ + RADIUS,
+                    markerX, 64, markerZ, new HashMap<>(), 0);
+            
+            claims.put(claim.getId(), claim);
+            index.add(claim);
+        }
+        
+        Random random = new Random(42);
+        Claim[] all = claims.values().toArray(new Claim[0]);
+        int extent = side * SPACING;
+        
+        for (int i = 0; i < PROBES; i++) {
+            Claim claim = all[random.nextInt(all.length)];
+            
+            if (i % 2 == 0) {
+                probes[i] = new int[] {
+                        claim.getMarkerX() + random.nextInt(2 * RADIUS + 1) - RADIUS,
+                        64,
+                        claim.getMarkerZ() + random.nextInt(2 * RADIUS + 1) - RADIUS};
+            } else {
+                probes[i] = new int[] {random.nextInt(extent) - RADIUS, 64, random.nextInt(extent) - RADIUS};
+            }
+            
+            markers[i] = new int[] {claim.getMarkerX(), claim.getMarkerY(), claim.getMarkerZ()};
+        }
+    }
+    
+    @Benchmark
+    public Claim getClaimAtIndexed() {
+        int[] probe = nextProbe(probes);
+        return index.getClaimAt(WORLD, probe[0], probe[1], probe[2]);
+    }
+    
+    @Benchmark
+    public Claim getClaimAtScan() {
+        int[] probe = nextProbe(probes);
+        
+        for (Claim claim : claims.values()) {
+            if (claim.getWorldName().equals(WORLD)) {
+                if (claim.contains(probe[0], probe[1], probe[2])) {
+                    return claim;
+                }
+            }
+        }
+        
+        return null;
+    }
+    
+    @Benchmark
+    public Claim getClaimByMarkerIndexed() {
+        int[] marker = nextProbe(markers);
+        return index.getClaimByMarker(WORLD, marker[0], marker[1], marker[2]);
+    }
+    
+    @Benchmark
+    public Claim getClaimByMarkerScan() {
+        int[] marker = nextProbe(markers);
+        
+        for (Claim claim : claims.values()) {
+            if (claim.getWorldName().equals(WORLD)) {
+                if (claim.isMarkerBlock(marker[0], marker[1], marker[2])) {
+                    return claim;
+                }
+            }
+        }
+        
+        return null;
+    }
+    
+    /**
+     * Get the next location to look up
+     * @param locations The locations
+     * @return The location
+     */
+    private int[] nextProbe(int[][] locations) {
+        next = (next + 1) & (PROBES - 1);
+        return locations[next];
+    }
+}
@@ -0,0 +1,106 @@
+package ch.retaxo.sumania.models;
+
+import org.bukkit.Bukkit;
+import org.bukkit.Material;
+import org.bukkit.enchantments.Enchantment;
+import org.bukkit.inventory.ItemStack;
+import org.bukkit.inventory.meta.ItemMeta;
+import org.bukkit.util.io.BukkitObjectOutputStream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.yaml.snakeyaml.external.biz.base64Coder.Base64Coder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Auction item decoding from the legacy Base64 object stream in item_data against Paper's binary
+ * format in item_blob, through {@link Auction#deserializeItemStack} and {@link Auction#decodeItem}.
+ * Both decoders go through the server's item codec, so the benchmark can't run in a forked JVM.
+ * Run it in-process on a Paper test server by calling {@link #run()}, e.g. from a scratch plugin.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(0)
+public class ItemDecodeBenchmark {
+
+    @Param({"PLAIN", "ENCHANTED"})
+    public String itemKind;
+    
+    private String legacyData;
+    private byte[] binaryData;
+    
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        if (Bukkit.getServer() == null) {
+            throw new IllegalStateException("The item decode benchmark needs a running Paper server, see ItemDecodeBenchmark#run.");
+        }
+        
+        ItemStack item = new ItemStack(Material.DIAMOND_SWORD);
+        
+        if (itemKind.equals("ENCHANTED")) {
+            ItemMeta meta = item.getItemMeta();
+            meta.setDisplayName("§6Klinge des Händlers");
+            
+            List<String> lore = new ArrayList<>();
+            lore.add("§7Verkauft im Auktionshaus");
+            lore.add("§7Seltenheit: §eEpisch");
+            meta.setLore(lore);
+            
+            meta.addEnchant(Enchantment.SHARPNESS, 5, true);
+            meta.addEnchant(Enchantment.UNBREAKING, 3, true);
+            meta.addEnchant(Enchantment.MENDING, 1, true);
+            item.setItemMeta(meta);
+        }
+        
+        // The format auctions were stored in before item_blob
+        try (ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+             BukkitObjectOutputStream dataOutput = new BukkitObjectOutputStream(outputStream)) {
+            
+            dataOutput.writeObject(item);
+            dataOutput.flush();
+            legacyData = Base64Coder.encodeLines(outputStream.toByteArray());
+        }
+        
+        binaryData = Auction.encodeItem(item);
+    }
+    
+    @Benchmark
+    public ItemStack decodeLegacy() throws IOException, ClassNotFoundException {
+        return Auction.deserializeItemStack(legacyData);
+    }
+    
+    @Benchmark
+    public ItemStack decodeBinary() {
+        return Auction.decodeItem(binaryData);
+    }
+    
+    /**
+     * Run the benchmark in the current JVM, which must be a running Paper server
+     * @throws RunnerException If the benchmark could not be run
+     */
+    public static void run() throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(ItemDecodeBenchmark.class.getSimpleName())
+                .build()).run();
+    }
+}
@@ -74,12 +74,37 @@ public final class Sumania extends JavaPlugin implements Listener {
     
     @Override
     public void onDisable() {
+        // Settle auction bids and cleanup auctions before the balances are written
+        if (api != null && api.getAuctionAPI() != null) {
+            api.getAuctionAPI().shutdown();
+        }
+        
+        // Store the deliveries the auctions left in the mailboxes
+        if (api != null && api.getMailboxAPI() != null) {
+            api.getMailboxAPI().shutdown();
+        }
+        
+        // Write pending balances before the configs are saved
+        if (api != null && api.getEconomyAPI() != null) {
+            api.getEconomyAPI().shutdown();
+        }
+        
+        // Write pending block journal entries
+        if (api != null && api.getClaimAPI() != null) {
+            api.getClaimAPI().shutdown();
+        }
+        
         // Save configs
         configManager.saveAllConfigs();
         
-        // Cleanup auctions
-        if (api != null && api.getAuctionAPI() != null) {
-            api.getAuctionAPI().shutdown();
+        // Release chunks held for random teleports
+        if (api != null && api.getRandomTeleportAPI() != null) {
+            api.getRandomTeleportAPI().shutdown();
+        }
+        
+        // Save shop trade volumes
+        if (api != null && api.getShopAPI() != null) {
+            api.getShopAPI().shutdown();
         }
         
         // Close database connection
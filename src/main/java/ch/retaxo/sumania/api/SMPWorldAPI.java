@@ -1,6 +1,7 @@
 package ch.retaxo.sumania.api;
 
 import ch.retaxo.sumania.Sumania;
+import ch.retaxo.sumania.api.teleport.TeleportCause;
 import ch.retaxo.sumania.models.SMPWorld;
 import org.bukkit.Bukkit;
 import org.bukkit.GameMode;
@@ -15,10 +16,8 @@ import org.bukkit.entity.Player;
 
 import java.io.File;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
-import java.util.UUID;
+import java.util.Locale;
 
 /**
  * API for SMP world management
@@ -28,10 +27,6 @@ public class SMPWorldAPI {
     private final Sumania plugin;
     private SMPWorld activeSMPWorld;
     
-    // Cache of player stats in SMP world
-    private final Map<UUID, Location> lastNonSMPLocations = new HashMap<>();
-    private final Map<UUID, GameMode> lastGameModes = new HashMap<>();
-    
     /**
      * Constructor
      * @param plugin The plugin instance
@@ -149,6 +144,7 @@ public class SMPWorldAPI {
         
         // Update active SMP world
         activeSMPWorld = new SMPWorld(worldName, world.getSpawnLocation(), 10000, true);
+        plugin.getAPI().getRandomTeleportAPI().clearPool();
         
         // Save to config
         saveWorldToConfig(activeSMPWorld);
@@ -225,8 +221,7 @@ public class SMPWorldAPI {
         
         // If not already in SMP world, store current location and gamemode
         if (!player.getWorld().equals(smpWorld)) {
-            lastNonSMPLocations.put(player.getUniqueId(), player.getLocation());
-            lastGameModes.put(player.getUniqueId(), player.getGameMode());
+            saveReturnPoint(player);
             
             // Set appropriate game mode
             FileConfiguration config = plugin.getConfigManager().getConfig("config.yml");
@@ -240,7 +235,7 @@ public class SMPWorldAPI {
         }
         
         // Teleport player to spawn
-        return plugin.getAPI().getTeleportAPI().teleport(player, spawnPoint);
+        return plugin.getAPI().getTeleportAPI().teleport(player, spawnPoint, TeleportCause.SMP);
     }
     
     /**
@@ -249,35 +244,136 @@ public class SMPWorldAPI {
      * @return True if the player was teleported successfully
      */
     public boolean teleportFromSMP(Player player) {
+        return teleportFromSMP(player, TeleportCause.SMP);
+    }
+    
+    /**
+     * Teleport a player out of the SMP world
+     * @param player The player to teleport
+     * @param cause The reason for the teleport
+     * @return True if the player was teleported successfully
+     */
+    public boolean teleportFromSMP(Player player, TeleportCause cause) {
         if (activeSMPWorld == null || !activeSMPWorld.exists() || 
             !player.getWorld().equals(activeSMPWorld.getWorld())) {
             return false;
         }
         
         // If we have a saved location, teleport back to it
-        if (lastNonSMPLocations.containsKey(player.getUniqueId())) {
-            Location lastLocation = lastNonSMPLocations.get(player.getUniqueId());
-            boolean success = plugin.getAPI().getTeleportAPI().teleport(player, lastLocation);
+        Location lastLocation = getReturnLocation(player);
+        
+        if (lastLocation != null) {
+            boolean success = plugin.getAPI().getTeleportAPI().teleport(player, lastLocation, cause);
             
             if (success) {
                 // Restore game mode
-                if (lastGameModes.containsKey(player.getUniqueId())) {
-                    player.setGameMode(lastGameModes.get(player.getUniqueId()));
+                GameMode lastGameMode = getReturnGameMode(player);
+                if (lastGameMode != null) {
+                    player.setGameMode(lastGameMode);
                 }
                 
-                // Remove from cache
-                lastNonSMPLocations.remove(player.getUniqueId());
-                lastGameModes.remove(player.getUniqueId());
+                // Remove the return point once it was used
+                clearReturnPoint(player);
             }
             
             return success;
         } else {
             // If no saved location, teleport to server spawn
             World mainWorld = Bukkit.getWorlds().get(0);
-            return plugin.getAPI().getTeleportAPI().teleport(player, mainWorld.getSpawnLocation());
+            return plugin.getAPI().getTeleportAPI().teleport(player, mainWorld.getSpawnLocation(), cause);
+        }
+    }
+    
+    /**
+     * Store the location and game mode a player had before entering the SMP world.
+     * Kept in data.yml, so the player still returns there after logging out inside the SMP world.
+     * @param player The player
+     */
+    private void saveReturnPoint(Player player) {
+        FileConfiguration data = plugin.getConfigManager().getConfig("data.yml");
+        Location location = player.getLocation();
+        String path = "smp-return." + player.getUniqueId();
+        
+        // Format location as string, with dots as decimal separators whatever the server locale is
+        String locationStr = String.format(
+                Locale.ROOT,
+                "%s,%f,%f,%f,%f,%f",
+                location.getWorld().getName(),
+                location.getX(),
+                location.getY(),
+                location.getZ(),
+                location.getYaw(),
+                location.getPitch()
+        );
+        
+        data.set(path + ".location", locationStr);
+        data.set(path + ".game-mode", player.getGameMode().name());
+        plugin.getConfigManager().saveConfig("data.yml");
+    }
+    
+    /**
+     * Get the location a player had before entering the SMP world
+     * @param player The player
+     * @return The location, or null if none is stored or its world is not loaded
+     */
+    private Location getReturnLocation(Player player) {
+        FileConfiguration data = plugin.getConfigManager().getConfig("data.yml");
+        String locationStr = data.getString("smp-return." + player.getUniqueId() + ".location");
+        
+        if (locationStr == null) {
+            return null;
+        }
+        
+        String[] parts = locationStr.split(",");
+        World world = parts.length == 6 ? Bukkit.getWorld(parts[0]) : null;
+        
+        if (world == null) {
+            return null;
+        }
+        
+        try {
+            return new Location(
+                    world,
+                    Double.parseDouble(parts[1]),
+                    Double.parseDouble(parts[2]),
+                    Double.parseDouble(parts[3]),
+                    Float.parseFloat(parts[4]),
+                    Float.parseFloat(parts[5])
+            );
+        } catch (NumberFormatException e) {
+            return null;
         }
     }
     
+    /**
+     * Get the game mode a player had before entering the SMP world
+     * @param player The player
+     * @return The game mode, or null if none is stored
+     */
+    private GameMode getReturnGameMode(Player player) {
+        FileConfiguration data = plugin.getConfigManager().getConfig("data.yml");
+        String gameMode = data.getString("smp-return." + player.getUniqueId() + ".game-mode");
+        
+        if (gameMode == null) {
+            return null;
+        }
+        
+        try {
+            return GameMode.valueOf(gameMode);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+    
+    /**
+     * Remove a player's stored return point
+     * @param player The player
+     */
+    private void clearReturnPoint(Player player) {
+        plugin.getConfigManager().getConfig("data.yml").set("smp-return." + player.getUniqueId(), null);
+        plugin.getConfigManager().saveConfig("data.yml");
+    }
+    
     /**
      * Reset the SMP world
      * @return True if the world was reset successfully
@@ -294,19 +390,12 @@ public class SMPWorldAPI {
             return false;
         }
         
-        // First teleport all players to the world spawn
-        Location spawnPoint = activeSMPWorld.getSpawnPoint();
-        if (spawnPoint == null) {
-            spawnPoint = world.getSpawnLocation();
-        }
-        
-        for (Player player : world.getPlayers()) {
-            plugin.getAPI().getTeleportAPI().teleport(player, spawnPoint);
-        }
+        // Pooled random teleport locations point into the old world
+        plugin.getAPI().getRandomTeleportAPI().clearPool();
         
-        // Then teleport all players out of the world
+        // Teleport all players out of the world right away, the world is unloaded next
         for (Player player : world.getPlayers()) {
-            teleportFromSMP(player);
+            teleportFromSMP(player, TeleportCause.SMP_RESET);
         }
         
         // Unload the world
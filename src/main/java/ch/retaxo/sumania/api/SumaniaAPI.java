@@ -3,7 +3,12 @@ package ch.retaxo.sumania.api;
 import ch.retaxo.sumania.Sumania;
 import ch.retaxo.sumania.api.auction.AuctionAPI;
 import ch.retaxo.sumania.api.economy.EconomyAPI;
+import ch.retaxo.sumania.api.leaderboard.LeaderboardAPI;
+import ch.retaxo.sumania.api.mailbox.MailboxAPI;
+import ch.retaxo.sumania.api.player.NameService;
 import ch.retaxo.sumania.api.player.PlayerAPI;
+import ch.retaxo.sumania.api.shop.ShopAPI;
+import ch.retaxo.sumania.api.teleport.RandomTeleportAPI;
 import ch.retaxo.sumania.api.teleport.TeleportAPI;
 import ch.retaxo.sumania.api.claim.ClaimAPI;
 import ch.retaxo.sumania.api.chat.ChatAPI;
@@ -14,13 +19,18 @@ import ch.retaxo.sumania.api.chat.ChatAPI;
 public class SumaniaAPI {
 
     private final Sumania plugin;
+    private final NameService nameService;
     private final EconomyAPI economyAPI;
     private final PlayerAPI playerAPI;
     private final TeleportAPI teleportAPI;
     private final ClaimAPI claimAPI;
     private final ChatAPI chatAPI;
     private final SMPWorldAPI smpWorldAPI;
+    private final RandomTeleportAPI randomTeleportAPI;
+    private final MailboxAPI mailboxAPI;
     private final AuctionAPI auctionAPI;
+    private final ShopAPI shopAPI;
+    private final LeaderboardAPI leaderboardAPI;
     
     /**
      * Constructor
@@ -28,13 +38,26 @@ public class SumaniaAPI {
      */
     public SumaniaAPI(Sumania plugin) {
         this.plugin = plugin;
+        this.nameService = new NameService(plugin);
         this.economyAPI = new EconomyAPI(plugin);
         this.playerAPI = new PlayerAPI(plugin);
         this.teleportAPI = new TeleportAPI(plugin);
         this.claimAPI = new ClaimAPI(plugin);
         this.chatAPI = new ChatAPI(plugin);
         this.smpWorldAPI = new SMPWorldAPI(plugin);
-        this.auctionAPI = new AuctionAPI(plugin);
+        this.randomTeleportAPI = new RandomTeleportAPI(plugin);
+        this.mailboxAPI = new MailboxAPI(plugin);
+        this.auctionAPI = new AuctionAPI(plugin, economyAPI, mailboxAPI);
+        this.shopAPI = new ShopAPI(plugin);
+        this.leaderboardAPI = new LeaderboardAPI(plugin, economyAPI);
+    }
+    
+    /**
+     * Get the name service
+     * @return The name service
+     */
+    public NameService getNameService() {
+        return nameService;
     }
     
     /**
@@ -85,6 +108,22 @@ public class SumaniaAPI {
         return smpWorldAPI;
     }
     
+    /**
+     * Get the random teleport API
+     * @return The random teleport API
+     */
+    public RandomTeleportAPI getRandomTeleportAPI() {
+        return randomTeleportAPI;
+    }
+    
+    /**
+     * Get the mailbox API
+     * @return The mailbox API
+     */
+    public MailboxAPI getMailboxAPI() {
+        return mailboxAPI;
+    }
+    
     /**
      * Get the auction API
      * @return The auction API
@@ -92,4 +131,20 @@ public class SumaniaAPI {
     public AuctionAPI getAuctionAPI() {
         return auctionAPI;
     }
+    
+    /**
+     * Get the shop API
+     * @return The shop API
+     */
+    public ShopAPI getShopAPI() {
+        return shopAPI;
+    }
+    
+    /**
+     * Get the leaderboard API
+     * @return The leaderboard API
+     */
+    public LeaderboardAPI getLeaderboardAPI() {
+        return leaderboardAPI;
+    }
 }
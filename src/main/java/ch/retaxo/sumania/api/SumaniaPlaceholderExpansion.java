@@ -1,6 +1,8 @@
 package ch.retaxo.sumania.api;
 
 import ch.retaxo.sumania.Sumania;
+import ch.retaxo.sumania.api.leaderboard.LeaderboardMetric;
+import ch.retaxo.sumania.api.leaderboard.RankIndex;
 import me.clip.placeholderapi.expansion.PlaceholderExpansion;
 import org.bukkit.OfflinePlayer;
 import org.bukkit.entity.Player;
@@ -154,6 +156,40 @@ public class SumaniaPlaceholderExpansion extends PlaceholderExpansion {
             return plugin.getAPI().getPlayerAPI().isBanned(player) ? "true" : "false";
         }
 
+        // %sumania_rank_balance%, %sumania_rank_kills%, %sumania_rank_deaths%
+        if (identifier.startsWith("rank_")) {
+            LeaderboardMetric metric = LeaderboardMetric.fromKey(identifier.substring("rank_".length()));
+
+            if (metric != null) {
+                int rank = plugin.getAPI().getLeaderboardAPI().getRank(metric, player.getUniqueId());
+                return rank > 0 ? String.valueOf(rank) : "-";
+            }
+        }
+
+        // %sumania_top_<balance|kills|deaths>_<rank>_<name|value>%
+        if (identifier.startsWith("top_")) {
+            String[] parts = identifier.split("_");
+            LeaderboardMetric metric = parts.length == 4 ? LeaderboardMetric.fromKey(parts[1]) : null;
+
+            if (metric != null) {
+                try {
+                    RankIndex.Entry entry = plugin.getAPI().getLeaderboardAPI().getEntry(metric, Integer.parseInt(parts[2]));
+
+                    if (entry == null) {
+                        return "-";
+                    }
+
+                    if (parts[3].equals("name")) {
+                        return plugin.getAPI().getNameService().getName(entry.getUuid(), "-");
+                    } else if (parts[3].equals("value")) {
+                        return plugin.getAPI().getLeaderboardAPI().formatValue(metric, entry.getScore());
+                    }
+                } catch (NumberFormatException e) {
+                    return null;
+                }
+            }
+        }
+
         // For online player-only placeholders
         if (onlinePlayer != null) {
             // Add any online-player specific placeholders here
@@ -1,20 +1,22 @@
 package ch.retaxo.sumania.api.auction;
 
 import ch.retaxo.sumania.Sumania;
+import ch.retaxo.sumania.api.economy.EconomyAPI;
+import ch.retaxo.sumania.api.mailbox.MailboxAPI;
 import ch.retaxo.sumania.models.Auction;
 import org.bukkit.Bukkit;
 import org.bukkit.Material;
-import org.bukkit.OfflinePlayer;
+import org.bukkit.configuration.ConfigurationSection;
+import org.bukkit.configuration.file.FileConfiguration;
 import org.bukkit.entity.Player;
 import org.bukkit.inventory.ItemStack;
-import org.bukkit.scheduler.BukkitTask;
 
 import java.io.IOException;
 import java.sql.*;
 import java.time.Instant;
 import java.time.temporal.ChronoUnit;
 import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
 
 /**
  * API for auction-related operations
@@ -22,30 +24,49 @@ import java.util.concurrent.ConcurrentHashMap;
 public class AuctionAPI {
 
     private final Sumania plugin;
-    private final Connection connection;
     private final String tablePrefix;
-    private final Map<Integer, Auction> cachedAuctions;
-    private BukkitTask cleanupTask;
+    private final AuctionBook auctionBook;
+    private final MailboxAPI mailboxAPI;
+    private final BidEngine bidEngine;
+    private final AuctionExpiryScheduler expiryScheduler;
+    private final PurchasePipeline purchases;
     
     // Category names and their default icons
     private final Map<String, Material> categories;
-
+    
     /**
      * Constructor
      * @param plugin The plugin instance
+     * @param economyAPI The economy API holding the balances
+     * @param mailboxAPI The mailbox API delivering items and proceeds
      */
-    public AuctionAPI(Sumania plugin) {
+    public AuctionAPI(Sumania plugin, EconomyAPI economyAPI, MailboxAPI mailboxAPI) {
         this.plugin = plugin;
-        this.connection = plugin.getConfigManager().getDbConnection();
         this.tablePrefix = plugin.getConfigManager().getTablePrefix();
-        this.cachedAuctions = new ConcurrentHashMap<>();
+        this.auctionBook = new AuctionBook();
+        this.mailboxAPI = mailboxAPI;
+        this.bidEngine = new BidEngine(plugin, auctionBook, mailboxAPI);
+        this.expiryScheduler = new AuctionExpiryScheduler(plugin, auctionBook, bidEngine, mailboxAPI);
+        this.purchases = new PurchasePipeline(economyAPI.getLedger(), plugin.getConfigManager().getConnectionPool(),
+                tablePrefix + "auctions", task -> Bukkit.getScheduler().runTask(plugin, task), new PurchaseSettler(), plugin.getLogger());
         this.categories = new HashMap<>();
         
         // Initialize default categories
         initializeCategories();
         
-        // Start cleanup task for expired auctions
-        startCleanupTask();
+        // Add the bidding and version columns to tables created before them
+        addMissingColumns();
+        
+        // Convert items stored in the legacy format
+        migrateItemData();
+        
+        // Load all auctions into memory and schedule their expiry
+        if (loadAuctions()) {
+            // Settle purchases and expiries the last shutdown could not confirm, from the rows just loaded
+            resumeHeldPurchases();
+            Bukkit.getScheduler().runTask(plugin, expiryScheduler::resumeHeldExpiries);
+            Bukkit.getScheduler().runTask(plugin, bidEngine::resumeHeldSettlements);
+        }
         
         // Run immediate cleanup of old auctions on server start
         Bukkit.getScheduler().runTaskAsynchronously(plugin, this::cleanupOldAuctions);
@@ -67,45 +88,228 @@ public class AuctionAPI {
     }
     
     /**
-     * Start the cleanup task for expired auctions
+     * Add the columns of newer versions to tables created before they existed
+     */
+    private void addMissingColumns() {
+        String table = tablePrefix + "auctions";
+        
+        try (Connection connection = plugin.getConfigManager().getDbConnection();
+             Statement statement = connection.createStatement()) {
+            if (!hasColumn(connection, table, "auction_type")) {
+                statement.executeUpdate("ALTER TABLE " + table + " ADD COLUMN auction_type VARCHAR(10) NOT NULL DEFAULT 'FIXED'");
+                statement.executeUpdate("ALTER TABLE " + table + " ADD COLUMN current_bid DOUBLE NULL");
+                statement.executeUpdate("ALTER TABLE " + table + " ADD COLUMN bidder_uuid VARCHAR(36) NULL");
+                plugin.getLogger().info("Added bidding columns to " + table);
+            }
+            
+            if (!hasColumn(connection, table, "version")) {
+                statement.executeUpdate("ALTER TABLE " + table + " ADD COLUMN version INTEGER NOT NULL DEFAULT 0");
+                plugin.getLogger().info("Added version column to " + table);
+            }
+        } catch (SQLException e) {
+            plugin.getLogger().severe("Error adding auction columns: " + e.getMessage());
+            e.printStackTrace();
+        }
+    }
+    
+    /**
+     * Check if a table has a column
+     * @param connection The database connection
+     * @param table The table name
+     * @param column The column name
+     * @return True if the column exists
+     * @throws SQLException If the metadata could not be read
      */
-    private void startCleanupTask() {
-        // Cancel existing task if it exists
-        if (cleanupTask != null && !cleanupTask.isCancelled()) {
-            cleanupTask.cancel();
+    private boolean hasColumn(Connection connection, String table, String column) throws SQLException {
+        try (ResultSet columns = connection.getMetaData().getColumns(null, null, table, column)) {
+            return columns.next();
         }
-        
-        // Run cleanup task every 15 minutes (20 ticks * 60 seconds * 15 minutes)
-        cleanupTask = Bukkit.getScheduler().runTaskTimerAsynchronously(plugin, this::checkExpiredAuctions, 20L * 60L, 20L * 60L * 15L);
     }
     
     /**
-     * Check for expired auctions and update their status
+     * Migrate items from the legacy Base64 object stream format (item_data)
+     * to Paper's binary item format (item_blob)
      */
-    private void checkExpiredAuctions() {
-        try {
-            // Get current time
-            Timestamp now = Timestamp.from(Instant.now());
+    private void migrateItemData() {
+        String table = tablePrefix + "auctions";
+        
+        try (Connection connection = plugin.getConfigManager().getDbConnection()) {
+            // Add the item_blob column to tables created before it existed
+            if (!hasColumn(connection, table, "item_blob")) {
+                String blobType = plugin.getConfigManager().getDbType().equalsIgnoreCase("mysql") ? "MEDIUMBLOB" : "BLOB";
+                connection.createStatement().executeUpdate("ALTER TABLE " + table + " ADD COLUMN item_blob " + blobType + " NULL");
+                plugin.getLogger().info("Added item_blob column to " + table);
+            }
+            
+            // Convert all rows that still use the legacy format in one transaction
+            String selectSql = "SELECT id, item_data FROM " + table + " WHERE item_blob IS NULL AND item_data IS NOT NULL AND item_data <> ''";
+            String updateSql = "UPDATE " + table + " SET item_blob = ?, item_data = '' WHERE id = ?";
             
-            // Update status of expired auctions
-            String sql = "UPDATE " + tablePrefix + "auctions SET status = ? WHERE end_time < ? AND status = ?";
+            connection.setAutoCommit(false);
+            
+            PreparedStatement selectStatement = connection.prepareStatement(selectSql);
+            PreparedStatement updateStatement = connection.prepareStatement(updateSql);
+            ResultSet result = selectStatement.executeQuery();
+            int migrated = 0;
+            
+            while (result.next()) {
+                int id = result.getInt("id");
+                
+                try {
+                    ItemStack item = Auction.deserializeItemStack(result.getString("item_data"));
+                    updateStatement.setBytes(1, Auction.encodeItem(item));
+                    updateStatement.setInt(2, id);
+                    updateStatement.addBatch();
+                    migrated++;
+                } catch (IOException | ClassNotFoundException | RuntimeException e) {
+                    plugin.getLogger().severe("Could not migrate item of auction " + id + ": " + e.getMessage());
+                }
+            }
+            
+            if (migrated > 0) {
+                updateStatement.executeBatch();
+                plugin.getLogger().info("Migrated " + migrated + " auction items to the binary item format");
+            }
+            
+            connection.commit();
+        } catch (SQLException e) {
+            plugin.getLogger().severe("Error migrating auction items: " + e.getMessage());
+            e.printStackTrace();
+        }
+    }
+    
+    /**
+     * Load all auctions from the database into the auction book
+     * @return True if the auctions were loaded
+     */
+    private boolean loadAuctions() {
+        auctionBook.clear();
+        boolean loaded = false;
+        
+        try (Connection connection = plugin.getConfigManager().getDbConnection()) {
+            String sql = "SELECT * FROM " + tablePrefix + "auctions";
             PreparedStatement statement = connection.prepareStatement(sql);
-            statement.setString(1, Auction.Status.EXPIRED.name());
-            statement.setTimestamp(2, now);
-            statement.setString(3, Auction.Status.ACTIVE.name());
-            int updated = statement.executeUpdate();
+            ResultSet result = statement.executeQuery();
+            List<Auction> undelivered = new ArrayList<>();
             
-            if (updated > 0) {
-                plugin.getLogger().info("Updated " + updated + " expired auctions");
-                // Clear cache as expired auctions have been updated
-                cachedAuctions.clear();
+            while (result.next()) {
+                try {
+                    Auction auction = createAuctionFromResultSet(result);
+                    auctionBook.add(auction);
+                    
+                    if (auction.getStatus() == Auction.Status.WON || auction.getStatus() == Auction.Status.EXPIRED) {
+                        undelivered.add(auction);
+                    }
+                } catch (IOException | ClassNotFoundException e) {
+                    plugin.getLogger().severe("Error loading auction " + result.getInt("id") + ": " + e.getMessage());
+                }
+            }
+            
+            loaded = true;
+            
+            if (!undelivered.isEmpty()) {
+                moveToMailboxes(connection, undelivered);
             }
         } catch (SQLException e) {
-            plugin.getLogger().severe("Error checking expired auctions: " + e.getMessage());
+            plugin.getLogger().severe("Error loading auctions: " + e.getMessage());
             e.printStackTrace();
         }
+        
+        // Auctions that ended while the server was offline expire on the first tick
+        expiryScheduler.rebuild(auctionBook.getActivePage(null, AuctionBook.Sort.END_TIME, 0, Integer.MAX_VALUE));
+        return loaded;
     }
-
+    
+    /**
+     * Block the auctions of purchases held by the last shutdown and settle them on the first tick.
+     * A purchase went through if its row is sold to the buyer at the version the purchase set,
+     * otherwise the reserved price is refunded.
+     */
+    private void resumeHeldPurchases() {
+        ConfigurationSection held = plugin.getConfigManager().getConfig("data.yml").getConfigurationSection("auction-purchases");
+        
+        if (held == null) {
+            return;
+        }
+        
+        List<PurchasePipeline.Purchase> resumed = new ArrayList<>();
+        
+        for (String key : held.getKeys(false)) {
+            Auction auction = null;
+            UUID buyerUuid = null;
+            
+            try {
+                auction = auctionBook.get(Integer.parseInt(key));
+                buyerUuid = UUID.fromString(held.getString(key + ".buyer", ""));
+            } catch (IllegalArgumentException e) {
+                // Reported below
+            }
+            
+            if (auction == null || buyerUuid == null) {
+                plugin.getLogger().severe("Could not settle the held purchase of auction " + key + ", it is kept in data.yml.");
+                continue;
+            }
+            
+            resumed.add(purchases.resume(auction, buyerUuid, EconomyAPI.toCents(held.getDouble(key + ".price")), held.getInt(key + ".version")));
+        }
+        
+        // Deliveries and refunds need the economy, which is only reachable once the plugin is enabled
+        Bukkit.getScheduler().runTask(plugin, () -> {
+            for (PurchasePipeline.Purchase purchase : resumed) {
+                plugin.getConfigManager().getConfig("data.yml").set("auction-purchases." + purchase.auction.getId(), null);
+                boolean won = purchases.settleResumed(purchase);
+                plugin.getLogger().info("Settled the held purchase of auction " + purchase.auction.getId() + (won ? ", it went through." : ", the price was refunded."));
+            }
+            
+            plugin.getConfigManager().saveConfig("data.yml");
+        });
+    }
+    
+    /**
+     * Move the items of won and expired auctions that were waiting to be picked up into the mailboxes.
+     * Won items go to the buyer and the auction counts as sold, expired items go back to the seller.
+     * @param connection The database connection
+     * @param auctions The won and expired auctions
+     * @throws SQLException If the auctions could not be updated
+     */
+    private void moveToMailboxes(Connection connection, List<Auction> auctions) throws SQLException {
+        String sql = "UPDATE " + tablePrefix + "auctions SET status = ?, version = version + 1 WHERE id = ? AND status = ?";
+        List<Auction> moved = new ArrayList<>();
+        
+        // Update the rows first, so a failed update doesn't deliver the items twice
+        try (PreparedStatement statement = connection.prepareStatement(sql)) {
+            for (Auction auction : auctions) {
+                if (auction.getItem() == null) {
+                    plugin.getLogger().severe("Could not move the item of auction " + auction.getId() + " to a mailbox.");
+                    continue;
+                }
+                
+                statement.setString(1, (auction.getStatus() == Auction.Status.WON ? Auction.Status.SOLD : Auction.Status.CANCELLED).name());
+                statement.setInt(2, auction.getId());
+                statement.setString(3, auction.getStatus().name());
+                statement.addBatch();
+                moved.add(auction);
+            }
+            
+            statement.executeBatch();
+        }
+        
+        for (Auction auction : moved) {
+            if (auction.getStatus() == Auction.Status.WON) {
+                mailboxAPI.deliverItem(auction.getBuyerUuid(), auction.getItem(), "auction_won");
+                auction.setStatus(Auction.Status.SOLD);
+            } else {
+                mailboxAPI.deliverItem(auction.getSellerUuid(), auction.getItem(), "auction_expired");
+                auction.setStatus(Auction.Status.CANCELLED);
+            }
+            
+            auction.setVersion(auction.getVersion() + 1);
+            auctionBook.update(auction);
+        }
+        
+        plugin.getLogger().info("Moved the items of " + moved.size() + " auctions to the mailboxes");
+    }
+    
     /**
      * Create a new auction
      * @param seller The seller
@@ -116,6 +320,20 @@ public class AuctionAPI {
      * @return The created auction ID, or -1 if failed
      */
     public int createAuction(Player seller, ItemStack item, double price, int durationHours, String category) {
+        return createAuction(seller, item, price, durationHours, category, false);
+    }
+    
+    /**
+     * Create a new auction
+     * @param seller The seller
+     * @param item The item to auction
+     * @param price The price, or the starting bid of a bidding auction
+     * @param durationHours The duration of the auction in hours
+     * @param category The category of the auction (can be null)
+     * @param bidding True to sell to the highest bidder instead of at a fixed price
+     * @return The created auction ID, or -1 if failed
+     */
+    public int createAuction(Player seller, ItemStack item, double price, int durationHours, String category, boolean bidding) {
         if (seller == null) {
             plugin.getLogger().severe("Failed to create auction: seller is null");
             return -1;
@@ -170,18 +388,17 @@ public class AuctionAPI {
         double listingFee = price * (listingFeePercent / 100.0);
         listingFee = Math.max(minListingFee, Math.min(maxListingFee, listingFee));
         
-        // Check if player has enough money for the listing fee
-        if (plugin.getConfigManager().getConfig("config.yml").getBoolean("economy.enabled", true)) {
-            if (!plugin.getAPI().getEconomyAPI().has(seller, listingFee)) {
-                seller.sendMessage(plugin.getConfigManager().getPrefix() + "§cDu hast nicht genug Geld, um die Gebühr von " + 
-                        listingFee + " " + plugin.getAPI().getEconomyAPI().getCurrencyName() + " zu bezahlen.");
-                return -1;
-            }
+        // Charge the listing fee before the auction exists, only if economy is enabled
+        boolean feeCharged = listingFee > 0 && plugin.getConfigManager().getConfig("config.yml").getBoolean("economy.enabled", true);
+        if (feeCharged && !plugin.getAPI().getEconomyAPI().tryWithdraw(seller, listingFee, "auction_fee")) {
+            seller.sendMessage(plugin.getConfigManager().getPrefix() + "§cDu hast nicht genug Geld, um die Gebühr von " + 
+                    listingFee + " " + plugin.getAPI().getEconomyAPI().getCurrencyName() + " zu bezahlen.");
+            return -1;
         }
         
-        try {
-            // Serialize item
-            String serializedItem = Auction.serializeItemStack(item);
+        try (Connection connection = plugin.getConfigManager().getDbConnection()) {
+            // Encode item
+            byte[] encodedItem = Auction.encodeItem(item);
             
             // Calculate end time
             Instant endTime = Instant.now().plus(durationHours, ChronoUnit.HOURS);
@@ -192,14 +409,16 @@ public class AuctionAPI {
             }
             
             // Create auction in database
-            String sql = "INSERT INTO " + tablePrefix + "auctions (seller_uuid, item_data, price, end_time, status, category) VALUES (?, ?, ?, ?, ?, ?)";
+            Auction.Type type = bidding ? Auction.Type.BID : Auction.Type.FIXED;
+            String sql = "INSERT INTO " + tablePrefix + "auctions (seller_uuid, item_data, item_blob, price, end_time, status, category, auction_type) VALUES (?, '', ?, ?, ?, ?, ?, ?)";
             PreparedStatement statement = connection.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS);
             statement.setString(1, seller.getUniqueId().toString());
-            statement.setString(2, serializedItem);
+            statement.setBytes(2, encodedItem);
             statement.setDouble(3, price);
             statement.setTimestamp(4, Timestamp.from(endTime));
             statement.setString(5, Auction.Status.ACTIVE.name());
             statement.setString(6, category);
+            statement.setString(7, type.name());
             statement.executeUpdate();
             
             // Get the generated auction ID
@@ -207,52 +426,52 @@ public class AuctionAPI {
             if (generatedKeys.next()) {
                 int auctionId = generatedKeys.getInt(1);
                 
+                // Add the auction to the auction book
+                Auction auction = new Auction(auctionId, seller.getUniqueId(), item.clone(), price,
+                        Instant.now(), endTime, Auction.Status.ACTIVE, category);
+                if (bidding) {
+                    auction.setBidding(0, null, endTime);
+                }
+                auctionBook.add(auction);
+                expiryScheduler.schedule(auction);
+                
                 // Take the item from the player
                 seller.getInventory().removeItem(item);
                 
-                // Charge listing fee
-                if (listingFee > 0) {
-                    // Only charge if economy is enabled
-                    if (plugin.getConfigManager().getConfig("config.yml").getBoolean("economy.enabled", true)) {
-                        plugin.getAPI().getEconomyAPI().withdraw(seller, listingFee);
-                    }
-                }
-                
                 return auctionId;
             }
-        } catch (SQLException | IOException e) {
+        } catch (SQLException e) {
             plugin.getLogger().severe("Error creating auction: " + e.getMessage());
             e.printStackTrace();
+            refundListingFee(seller, listingFee, feeCharged);
             seller.sendMessage(plugin.getConfigManager().getPrefix() + "§cEs ist ein Fehler bei der Erstellung der Auktion aufgetreten. Bitte versuche es erneut.");
             return -1;
         }
         
+        refundListingFee(seller, listingFee, feeCharged);
         seller.sendMessage(plugin.getConfigManager().getPrefix() + "§cEs ist ein unbekannter Fehler aufgetreten. Bitte versuche es erneut.");
         return -1;
     }
     
+    /**
+     * Give the listing fee back when the auction could not be created
+     * @param seller The seller
+     * @param listingFee The listing fee
+     * @param feeCharged True if the fee was charged
+     */
+    private void refundListingFee(Player seller, double listingFee, boolean feeCharged) {
+        if (feeCharged) {
+            plugin.getAPI().getEconomyAPI().deposit(seller, listingFee, "auction_fee_refund");
+        }
+    }
+    
     /**
      * Get the number of active auctions for a player
      * @param playerUuid The player's UUID
      * @return The number of active auctions
      */
     public int getActiveAuctionCount(UUID playerUuid) {
-        try {
-            String sql = "SELECT COUNT(*) FROM " + tablePrefix + "auctions WHERE seller_uuid = ? AND status = ?";
-            PreparedStatement statement = connection.prepareStatement(sql);
-            statement.setString(1, playerUuid.toString());
-            statement.setString(2, Auction.Status.ACTIVE.name());
-            ResultSet result = statement.executeQuery();
-            
-            if (result.next()) {
-                return result.getInt(1);
-            }
-        } catch (SQLException e) {
-            plugin.getLogger().severe("Error getting active auction count: " + e.getMessage());
-            e.printStackTrace();
-        }
-        
-        return 0;
+        return auctionBook.countActiveBySeller(playerUuid);
     }
     
     /**
@@ -261,89 +480,45 @@ public class AuctionAPI {
      * @return The auction, or null if not found
      */
     public Auction getAuction(int auctionId) {
-        // Check cache first
-        if (cachedAuctions.containsKey(auctionId)) {
-            return cachedAuctions.get(auctionId);
-        }
-        
-        try {
-            String sql = "SELECT * FROM " + tablePrefix + "auctions WHERE id = ?";
-            PreparedStatement statement = connection.prepareStatement(sql);
-            statement.setInt(1, auctionId);
-            ResultSet result = statement.executeQuery();
-            
-            if (result.next()) {
-                Auction auction = createAuctionFromResultSet(result);
-                
-                // Cache the auction
-                cachedAuctions.put(auctionId, auction);
-                
-                return auction;
-            }
-        } catch (SQLException | IOException | ClassNotFoundException e) {
-            plugin.getLogger().severe("Error getting auction: " + e.getMessage());
-            e.printStackTrace();
-        }
-        
-        return null;
+        return auctionBook.get(auctionId);
     }
     
     /**
      * Get all active auctions
-     * @return A list of all active auctions
+     * @return A list of all active auctions, ordered by end time
      */
     public List<Auction> getActiveAuctions() {
-        List<Auction> auctions = new ArrayList<>();
-        
-        try {
-            String sql = "SELECT * FROM " + tablePrefix + "auctions WHERE status = ? ORDER BY end_time ASC";
-            PreparedStatement statement = connection.prepareStatement(sql);
-            statement.setString(1, Auction.Status.ACTIVE.name());
-            ResultSet result = statement.executeQuery();
-            
-            while (result.next()) {
-                Auction auction = createAuctionFromResultSet(result);
-                auctions.add(auction);
-                
-                // Update cache
-                cachedAuctions.put(auction.getId(), auction);
-            }
-        } catch (SQLException | IOException | ClassNotFoundException e) {
-            plugin.getLogger().severe("Error getting active auctions: " + e.getMessage());
-            e.printStackTrace();
-        }
-        
-        return auctions;
+        return auctionBook.getActivePage(null, AuctionBook.Sort.END_TIME, 0, Integer.MAX_VALUE);
     }
     
     /**
      * Get active auctions by category
      * @param category The category
-     * @return A list of active auctions in the category
+     * @return A list of active auctions in the category, ordered by end time
      */
     public List<Auction> getAuctionsByCategory(String category) {
-        List<Auction> auctions = new ArrayList<>();
-        
-        try {
-            String sql = "SELECT * FROM " + tablePrefix + "auctions WHERE status = ? AND category = ? ORDER BY end_time ASC";
-            PreparedStatement statement = connection.prepareStatement(sql);
-            statement.setString(1, Auction.Status.ACTIVE.name());
-            statement.setString(2, category);
-            ResultSet result = statement.executeQuery();
-            
-            while (result.next()) {
-                Auction auction = createAuctionFromResultSet(result);
-                auctions.add(auction);
-                
-                // Update cache
-                cachedAuctions.put(auction.getId(), auction);
-            }
-        } catch (SQLException | IOException | ClassNotFoundException e) {
-            plugin.getLogger().severe("Error getting auctions by category: " + e.getMessage());
-            e.printStackTrace();
-        }
-        
-        return auctions;
+        return auctionBook.getActivePage(category, AuctionBook.Sort.END_TIME, 0, Integer.MAX_VALUE);
+    }
+    
+    /**
+     * Get a page of active auctions
+     * @param category The category, or null for all categories
+     * @param sort The sort order
+     * @param offset The index of the first auction
+     * @param limit The maximum number of auctions
+     * @return The auctions on the page
+     */
+    public List<Auction> getActiveAuctionPage(String category, AuctionBook.Sort sort, int offset, int limit) {
+        return auctionBook.getActivePage(category, sort, offset, limit);
+    }
+    
+    /**
+     * Count the active auctions
+     * @param category The category, or null for all categories
+     * @return The number of active auctions
+     */
+    public int countActiveAuctions(String category) {
+        return auctionBook.countActive(category);
     }
     
     /**
@@ -352,27 +527,7 @@ public class AuctionAPI {
      * @return A list of auctions by the seller
      */
     public List<Auction> getAuctionsBySeller(UUID sellerUuid) {
-        List<Auction> auctions = new ArrayList<>();
-        
-        try {
-            String sql = "SELECT * FROM " + tablePrefix + "auctions WHERE seller_uuid = ? ORDER BY status, end_time ASC";
-            PreparedStatement statement = connection.prepareStatement(sql);
-            statement.setString(1, sellerUuid.toString());
-            ResultSet result = statement.executeQuery();
-            
-            while (result.next()) {
-                Auction auction = createAuctionFromResultSet(result);
-                auctions.add(auction);
-                
-                // Update cache
-                cachedAuctions.put(auction.getId(), auction);
-            }
-        } catch (SQLException | IOException | ClassNotFoundException e) {
-            plugin.getLogger().severe("Error getting auctions by seller: " + e.getMessage());
-            e.printStackTrace();
-        }
-        
-        return auctions;
+        return auctionBook.getBySeller(sellerUuid);
     }
     
     /**
@@ -381,102 +536,109 @@ public class AuctionAPI {
      * @return A list of auctions purchased by the buyer
      */
     public List<Auction> getAuctionsByBuyer(UUID buyerUuid) {
-        List<Auction> auctions = new ArrayList<>();
-        
-        try {
-            String sql = "SELECT * FROM " + tablePrefix + "auctions WHERE buyer_uuid = ? AND status = ? ORDER BY end_time DESC";
-            PreparedStatement statement = connection.prepareStatement(sql);
-            statement.setString(1, buyerUuid.toString());
-            statement.setString(2, Auction.Status.SOLD.name());
-            ResultSet result = statement.executeQuery();
-            
-            while (result.next()) {
-                Auction auction = createAuctionFromResultSet(result);
-                auctions.add(auction);
-                
-                // Update cache
-                cachedAuctions.put(auction.getId(), auction);
-            }
-        } catch (SQLException | IOException | ClassNotFoundException e) {
-            plugin.getLogger().severe("Error getting auctions by buyer: " + e.getMessage());
-            e.printStackTrace();
-        }
-        
-        return auctions;
+        return auctionBook.getSoldToBuyer(buyerUuid);
     }
     
     /**
-     * Purchase an auction
+     * Purchase an auction. The price is reserved from the buyer first, then the auction row is won
+     * on the database executor with an update that only succeeds if the row still has the status and
+     * version the buyer saw. The seller is paid and the item delivered on the main thread afterwards,
+     * a lost race refunds the reserved price.
      * @param auction The auction to purchase
      * @param buyer The buyer
-     * @return True if the purchase was successful
+     * @param callback Called on the main thread with true if the purchase was successful
      */
-    public boolean purchaseAuction(Auction auction, Player buyer) {
-        if (auction == null || !auction.isActive()) {
+    public void purchaseAuction(Auction auction, Player buyer, Consumer<Boolean> callback) {
+        // Ended auctions can't be bought, even in the tick before the scheduler expires them
+        if (auction == null || !auction.isActive() || auction.isExpired()) {
             buyer.sendMessage(plugin.getConfigManager().getPrefix() + "§cDiese Auktion ist nicht mehr aktiv.");
-            return false;
+            callback.accept(false);
+            return;
         }
         
-        // Check if player has enough money
-        if (!plugin.getAPI().getEconomyAPI().has(buyer, auction.getPrice())) {
-            buyer.sendMessage(plugin.getConfigManager().getPrefix() + "§cDu hast nicht genug Geld, um diese Auktion zu kaufen.");
-            return false;
+        // Bidding auctions go to the highest bidder
+        if (auction.isBidding()) {
+            buyer.sendMessage(plugin.getConfigManager().getPrefix() + "§cAuf diese Auktion kann nur geboten werden.");
+            callback.accept(false);
+            return;
         }
         
         // Check if buyer is the seller
         if (auction.getSellerUuid().equals(buyer.getUniqueId())) {
             buyer.sendMessage(plugin.getConfigManager().getPrefix() + "§cDu kannst deine eigenen Auktionen nicht kaufen.");
-            return false;
+            callback.accept(false);
+            return;
+        }
+        
+        // Check if the item can be delivered
+        if (auction.getItem() == null) {
+            buyer.sendMessage(plugin.getConfigManager().getPrefix() + "§cDas Item dieser Auktion konnte nicht geladen werden. Bitte wende dich an einen Administrator.");
+            callback.accept(false);
+            return;
+        }
+        
+        // Concurrent buyers of the same auction are turned away without a query
+        if (!auction.beginPurchase()) {
+            buyer.sendMessage(plugin.getConfigManager().getPrefix() + "§cDiese Auktion wird gerade von einem anderen Spieler gekauft.");
+            callback.accept(false);
+            return;
         }
         
-        // Check if inventory has space
-        if (buyer.getInventory().firstEmpty() == -1) {
-            buyer.sendMessage(plugin.getConfigManager().getPrefix() + "§cDein Inventar ist voll. Bitte schaffe zuerst Platz.");
+        // Reserve the price so the buyer can't spend it while the row is claimed
+        if (!purchases.purchase(auction, buyer.getUniqueId(), EconomyAPI.toCents(auction.getPrice()), callback)) {
+            auction.endPurchase();
+            buyer.sendMessage(plugin.getConfigManager().getPrefix() + "§cDu hast nicht genug Geld, um diese Auktion zu kaufen.");
+            callback.accept(false);
+        }
+    }
+    
+    /**
+     * Bid on a bidding auction. The bid is taken from the bidder and refunded if someone bids more.
+     * @param auction The auction
+     * @param bidder The bidder
+     * @param amount The bid
+     * @return True if the bid is now the highest bid
+     */
+    public boolean placeBid(Auction auction, Player bidder, double amount) {
+        if (auction == null) {
+            bidder.sendMessage(plugin.getConfigManager().getPrefix() + "§cDiese Auktion ist nicht mehr aktiv.");
             return false;
         }
         
-        try {
-            // Update auction in database
-            String sql = "UPDATE " + tablePrefix + "auctions SET status = ?, buyer_uuid = ? WHERE id = ?";
-            PreparedStatement statement = connection.prepareStatement(sql);
-            statement.setString(1, Auction.Status.SOLD.name());
-            statement.setString(2, buyer.getUniqueId().toString());
-            statement.setInt(3, auction.getId());
-            int updated = statement.executeUpdate();
-            
-            if (updated > 0) {
-                // Transfer money
-                plugin.getAPI().getEconomyAPI().withdraw(buyer, auction.getPrice());
-                
-                // Pay the seller if they're online or in the database
-                OfflinePlayer seller = Bukkit.getOfflinePlayer(auction.getSellerUuid());
-                plugin.getAPI().getEconomyAPI().deposit(seller, auction.getPrice());
-                
-                // Give item to buyer
-                buyer.getInventory().addItem(auction.getItem());
-                
-                // Update auction object
-                auction.setStatus(Auction.Status.SOLD);
-                auction.setBuyerUuid(buyer.getUniqueId());
-                
-                // Update cache
-                cachedAuctions.put(auction.getId(), auction);
-                
-                // Notify seller if online
-                Player sellerPlayer = Bukkit.getPlayer(auction.getSellerUuid());
-                if (sellerPlayer != null && sellerPlayer.isOnline()) {
-                    sellerPlayer.sendMessage(plugin.getConfigManager().getPrefix() + "§aDeine Auktion für §e" + auction.getPrice() + " " + 
-                                            plugin.getAPI().getEconomyAPI().getCurrencyName() + "§a wurde von §e" + buyer.getName() + "§a gekauft!");
-                }
-                
+        String currency = plugin.getAPI().getEconomyAPI().getCurrencyName();
+        
+        switch (bidEngine.placeBid(bidder, auction, amount)) {
+            case PLACED:
+                bidder.sendMessage(plugin.getConfigManager().getPrefix() + "§aDu hast §e" + amount + " " + currency +
+                        "§a auf Auktion §e#" + auction.getId() + "§a geboten.");
                 return true;
-            }
-        } catch (SQLException e) {
-            plugin.getLogger().severe("Error purchasing auction: " + e.getMessage());
-            e.printStackTrace();
+            case NOT_BIDDING:
+                bidder.sendMessage(plugin.getConfigManager().getPrefix() + "§cAuf diese Auktion kann nicht geboten werden.");
+                return false;
+            case OWN_AUCTION:
+                bidder.sendMessage(plugin.getConfigManager().getPrefix() + "§cDu kannst nicht auf deine eigenen Auktionen bieten.");
+                return false;
+            case ENDED:
+                bidder.sendMessage(plugin.getConfigManager().getPrefix() + "§cDiese Auktion ist nicht mehr aktiv.");
+                return false;
+            case TOO_LOW:
+                bidder.sendMessage(plugin.getConfigManager().getPrefix() + "§cDein Gebot muss mindestens §e" +
+                        bidEngine.getMinimumBid(auction) + " " + currency + "§c betragen.");
+                return false;
+            case NOT_ENOUGH_MONEY:
+            default:
+                bidder.sendMessage(plugin.getConfigManager().getPrefix() + "§cDu hast nicht genug Geld für dieses Gebot.");
+                return false;
         }
-        
-        return false;
+    }
+    
+    /**
+     * Get the lowest bid an auction accepts right now
+     * @param auction The bidding auction
+     * @return The minimum bid
+     */
+    public double getMinimumBid(Auction auction) {
+        return bidEngine.getMinimumBid(auction);
     }
     
     /**
@@ -495,82 +657,46 @@ public class AuctionAPI {
             return false;
         }
         
-        // Check if inventory has space
-        if (player.getInventory().firstEmpty() == -1) {
+        // Check if the item can be returned
+        if (auction.getItem() == null) {
             return false;
         }
         
-        try {
-            // Update auction in database
-            String sql = "UPDATE " + tablePrefix + "auctions SET status = ? WHERE id = ?";
-            PreparedStatement statement = connection.prepareStatement(sql);
-            statement.setString(1, Auction.Status.CANCELLED.name());
-            statement.setInt(2, auction.getId());
-            int updated = statement.executeUpdate();
-            
-            if (updated > 0) {
-                // Return item to seller
-                player.getInventory().addItem(auction.getItem());
-                
-                // Update auction object
-                auction.setStatus(Auction.Status.CANCELLED);
-                
-                // Update cache
-                cachedAuctions.put(auction.getId(), auction);
-                
-                return true;
-            }
-        } catch (SQLException e) {
-            plugin.getLogger().severe("Error cancelling auction: " + e.getMessage());
-            e.printStackTrace();
-        }
-        
-        return false;
-    }
-    
-    /**
-     * Claim an expired auction's item
-     * @param auction The expired auction
-     * @param player The player trying to claim (must be the seller)
-     * @return True if the claim was successful
-     */
-    public boolean claimExpiredAuction(Auction auction, Player player) {
-        if (auction == null || auction.getStatus() != Auction.Status.EXPIRED) {
+        // A purchase or expiry is deciding the auction
+        if (auction.isPurchasePending()) {
             return false;
         }
         
-        // Check if player is the seller
-        if (!auction.getSellerUuid().equals(player.getUniqueId())) {
-            return false;
-        }
-        
-        // Check if inventory has space
-        if (player.getInventory().firstEmpty() == -1) {
+        // Stop bidding first so no bid can land on a cancelled auction
+        if (auction.isBidding() && !bidEngine.closeWithoutBids(auction)) {
+            player.sendMessage(plugin.getConfigManager().getPrefix() + "§cAuktionen mit Geboten können nicht abgebrochen werden.");
             return false;
         }
         
-        try {
-            // Update auction in database to mark it as claimed
-            String sql = "UPDATE " + tablePrefix + "auctions SET status = ? WHERE id = ?";
+        try (Connection connection = plugin.getConfigManager().getDbConnection()) {
+            // Update auction in database, only if no purchase claimed it first
+            String sql = "UPDATE " + tablePrefix + "auctions SET status = ?, version = version + 1 WHERE id = ? AND status = ?";
             PreparedStatement statement = connection.prepareStatement(sql);
             statement.setString(1, Auction.Status.CANCELLED.name());
             statement.setInt(2, auction.getId());
+            statement.setString(3, Auction.Status.ACTIVE.name());
             int updated = statement.executeUpdate();
             
             if (updated > 0) {
-                // Return item to seller
-                player.getInventory().addItem(auction.getItem());
+                // Return item to seller, what doesn't fit goes to the mailbox
+                mailboxAPI.deliverItem(player.getUniqueId(), auction.getItem(), "auction_cancelled");
                 
                 // Update auction object
                 auction.setStatus(Auction.Status.CANCELLED);
+                auction.setVersion(auction.getVersion() + 1);
                 
-                // Update cache
-                cachedAuctions.put(auction.getId(), auction);
+                // Update auction book
+                auctionBook.update(auction);
                 
                 return true;
             }
         } catch (SQLException e) {
-            plugin.getLogger().severe("Error claiming expired auction: " + e.getMessage());
+            plugin.getLogger().severe("Error cancelling auction: " + e.getMessage());
             e.printStackTrace();
         }
         
@@ -600,20 +726,39 @@ public class AuctionAPI {
         String buyerUuidStr = result.getString("buyer_uuid");
         UUID buyerUuid = buyerUuidStr != null ? UUID.fromString(buyerUuidStr) : null;
         
-        String itemData = result.getString("item_data");
-        ItemStack item = Auction.deserializeItemStack(itemData);
-        
         double price = result.getDouble("price");
         Instant createdTime = result.getTimestamp("created_time").toInstant();
         Instant endTime = result.getTimestamp("end_time").toInstant();
         Auction.Status status = Auction.Status.valueOf(result.getString("status"));
         String category = result.getString("category");
         
-        if (buyerUuid != null) {
-            return new Auction(id, sellerUuid, buyerUuid, item, price, createdTime, endTime, status, category);
+        Auction auction;
+        
+        // Items in the binary format are only decoded when the auction is rendered or delivered
+        byte[] itemBlob = result.getBytes("item_blob");
+        if (itemBlob != null) {
+            auction = new Auction(id, sellerUuid, buyerUuid, itemBlob, price, createdTime, endTime, status, category);
         } else {
-            return new Auction(id, sellerUuid, item, price, createdTime, endTime, status, category);
+            // Rows that could not be migrated still use the legacy format
+            ItemStack item = Auction.deserializeItemStack(result.getString("item_data"));
+            
+            if (buyerUuid != null) {
+                auction = new Auction(id, sellerUuid, buyerUuid, item, price, createdTime, endTime, status, category);
+            } else {
+                auction = new Auction(id, sellerUuid, item, price, createdTime, endTime, status, category);
+            }
+        }
+        
+        auction.setVersion(result.getInt("version"));
+        
+        // The end time of bidding auctions already includes any extension
+        if (Auction.Type.BID.name().equals(result.getString("auction_type"))) {
+            String bidderUuidStr = result.getString("bidder_uuid");
+            UUID bidderUuid = bidderUuidStr != null ? UUID.fromString(bidderUuidStr) : null;
+            auction.setBidding(bidderUuid != null ? EconomyAPI.toCents(result.getDouble("current_bid")) : 0, bidderUuid, endTime);
         }
+        
+        return auction;
     }
     
     /**
@@ -623,7 +768,7 @@ public class AuctionAPI {
         int expirationDays = plugin.getConfigManager().getConfig("config.yml").getInt("auction.expired-auctions-days", 7);
         Instant cutoffDate = Instant.now().minus(expirationDays, ChronoUnit.DAYS);
         
-        try {
+        try (Connection connection = plugin.getConfigManager().getDbConnection()) {
             // Delete old EXPIRED and CANCELLED auctions
             String sql = "DELETE FROM " + tablePrefix + "auctions WHERE status IN (?, ?) AND end_time < ?";
             PreparedStatement statement = connection.prepareStatement(sql);
@@ -640,11 +785,17 @@ public class AuctionAPI {
             int deletedSold = soldStatement.executeUpdate();
             
             int totalDeleted = deleted + deletedSold;
+            
+            // Drop the bids of deleted auctions
+            if (totalDeleted > 0) {
+                connection.createStatement().executeUpdate("DELETE FROM " + tablePrefix + "auction_bids WHERE auction_id NOT IN (SELECT id FROM " + tablePrefix + "auctions)");
+            }
+            
+            // Drop the same auctions from memory
+            auctionBook.removeFinishedEndedBefore(cutoffDate);
+            
             if (totalDeleted > 0) {
                 plugin.getLogger().info("Deleted " + totalDeleted + " old auctions");
-                
-                // Clear cache as auctions have been deleted
-                cachedAuctions.clear();
             }
         } catch (SQLException e) {
             plugin.getLogger().severe("Error cleaning up old auctions: " + e.getMessage());
@@ -653,22 +804,87 @@ public class AuctionAPI {
     }
     
     /**
-     * Clear the auction cache
+     * Reload the auction book from the database
      */
-    public void clearCache() {
-        cachedAuctions.clear();
+    public void reloadAuctions() {
+        // Save pending bids first, the reload reads them back
+        bidEngine.flush();
+        loadAuctions();
     }
     
     /**
      * Shutdown the API
      */
     public void shutdown() {
-        // Cancel cleanup task
-        if (cleanupTask != null && !cleanupTask.isCancelled()) {
-            cleanupTask.cancel();
+        // Cancel the expiry task
+        expiryScheduler.shutdown();
+        
+        // Settle purchases still waiting for their row, the scheduled settlements won't run anymore
+        purchases.shutdown();
+        
+        // Refund outbid players and save the remaining bids
+        bidEngine.shutdown();
+        
+        // Release the auction book
+        auctionBook.clear();
+    }
+    
+    /**
+     * Settles purchases for the purchase pipeline, on the main thread
+     */
+    private final class PurchaseSettler implements PurchasePipeline.Settler {
+        
+        @Override
+        public void sold(PurchasePipeline.Purchase purchase) {
+            Auction auction = purchase.auction;
+            double price = EconomyAPI.fromCents(purchase.price);
+            
+            // Pay the seller from the reserved price and hand over the item, through the mailbox if they are offline
+            mailboxAPI.deliverMoney(auction.getSellerUuid(), price, "auction_sale", purchase.buyerUuid);
+            mailboxAPI.deliverItem(purchase.buyerUuid, auction.getItem(), "auction_purchase");
+            
+            // Update auction book
+            auctionBook.update(auction);
+            
+            // Notify seller if online
+            Player sellerPlayer = Bukkit.getPlayer(auction.getSellerUuid());
+            if (sellerPlayer != null && sellerPlayer.isOnline()) {
+                sellerPlayer.sendMessage(plugin.getConfigManager().getPrefix() + "§aDeine Auktion für §e" + auction.getPrice() + " " + 
+                                        plugin.getAPI().getEconomyAPI().getCurrencyName() + "§a wurde von §e" + auction.getBuyerName() + "§a gekauft!");
+            }
         }
         
-        // Clear cache
-        clearCache();
+        @Override
+        public void refunded(PurchasePipeline.Purchase purchase) {
+            Auction auction = purchase.auction;
+            Player buyer = Bukkit.getPlayer(purchase.buyerUuid);
+            
+            if (buyer != null) {
+                buyer.sendMessage(plugin.getConfigManager().getPrefix() + "§cDiese Auktion ist nicht mehr verfügbar. Dein Geld wurde zurückerstattet.");
+            }
+            
+            // The scheduler skipped the auction while it was being claimed
+            if (auction.isActive() && auction.isExpired()) {
+                expiryScheduler.schedule(auction);
+            }
+        }
+        
+        @Override
+        public void held(PurchasePipeline.Purchase purchase) {
+            // Settled from the row at the next start, until then the auction stays blocked
+            FileConfiguration data = plugin.getConfigManager().getConfig("data.yml");
+            String path = "auction-purchases." + purchase.auction.getId();
+            data.set(path + ".buyer", purchase.buyerUuid.toString());
+            data.set(path + ".price", EconomyAPI.fromCents(purchase.price));
+            data.set(path + ".version", purchase.version);
+            plugin.getConfigManager().saveConfig("data.yml");
+            
+            plugin.getLogger().warning("The purchase of auction " + purchase.auction.getId() + " could not be confirmed, it is settled at the next start.");
+            
+            Player buyer = Bukkit.getPlayer(purchase.buyerUuid);
+            if (buyer != null) {
+                buyer.sendMessage(plugin.getConfigManager().getPrefix() + "§eDein Kauf konnte nicht bestätigt werden. Er wird nach dem nächsten Serverneustart abgeschlossen oder erstattet.");
+            }
+        }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,356 @@
+package ch.retaxo.sumania.api.auction;
+
+import ch.retaxo.sumania.models.Auction;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * In-memory book of all auctions, kept in sync with the database by {@link AuctionAPI}.
+ * Active auctions are held in sorted lists per view so that a page is a plain slice.
+ */
+public class AuctionBook {
+
+    /**
+     * Sort orders for active auction views
+     */
+    public enum Sort {
+        END_TIME,
+        PRICE
+    }
+    
+    private static final Comparator<Auction> BY_END_TIME = Comparator
+            .comparing(Auction::getEndTime)
+            .thenComparingInt(Auction::getId);
+    
+    private static final Comparator<Auction> BY_PRICE = Comparator
+            .comparingDouble(Auction::getPrice)
+            .thenComparing(Auction::getEndTime)
+            .thenComparingInt(Auction::getId);
+    
+    // Same order as the former "ORDER BY status, end_time" query
+    private static final Comparator<Auction> BY_STATUS_AND_END_TIME = Comparator
+            .comparing((Auction auction) -> auction.getStatus().name())
+            .thenComparing(BY_END_TIME);
+    
+    private final Map<Integer, Auction> auctionsById = new HashMap<>();
+    private final Map<UUID, List<Auction>> auctionsBySeller = new HashMap<>();
+    
+    // Indexes over active auctions only
+    private final List<Auction> activeByEndTime = new ArrayList<>();
+    private final List<Auction> activeByPrice = new ArrayList<>();
+    private final Map<String, List<Auction>> activeByCategoryEndTime = new HashMap<>();
+    private final Map<String, List<Auction>> activeByCategoryPrice = new HashMap<>();
+    private final Map<UUID, Integer> activeCountBySeller = new HashMap<>();
+    
+    /**
+     * Add an auction to the book
+     * @param auction The auction
+     */
+    public synchronized void add(Auction auction) {
+        Auction previous = auctionsById.put(auction.getId(), auction);
+        
+        if (previous != null) {
+            removeFromIndexes(previous);
+        }
+        
+        auctionsBySeller.computeIfAbsent(auction.getSellerUuid(), k -> new ArrayList<>()).add(auction);
+        
+        if (auction.isActive()) {
+            addActive(auction);
+        }
+    }
+    
+    /**
+     * Update the indexes after the status of an auction has changed
+     * @param auction The auction
+     */
+    public synchronized void update(Auction auction) {
+        if (auctionsById.get(auction.getId()) != auction) {
+            add(auction);
+            return;
+        }
+        
+        // Sort keys never change, only the membership of the active indexes does
+        boolean indexed = Collections.binarySearch(activeByEndTime, auction, BY_END_TIME) >= 0;
+        
+        if (indexed && !auction.isActive()) {
+            removeActive(auction);
+        } else if (!indexed && auction.isActive()) {
+            addActive(auction);
+        }
+    }
+    
+    /**
+     * Remove an auction from the book
+     * @param auctionId The auction ID
+     */
+    public synchronized void remove(int auctionId) {
+        Auction auction = auctionsById.remove(auctionId);
+        
+        if (auction != null) {
+            removeFromIndexes(auction);
+        }
+    }
+    
+    /**
+     * Remove all auctions from the book
+     */
+    public synchronized void clear() {
+        auctionsById.clear();
+        auctionsBySeller.clear();
+        activeByEndTime.clear();
+        activeByPrice.clear();
+        activeByCategoryEndTime.clear();
+        activeByCategoryPrice.clear();
+        activeCountBySeller.clear();
+    }
+    
+    /**
+     * Get an auction by its ID
+     * @param auctionId The auction ID
+     * @return The auction, or null if not found
+     */
+    public synchronized Auction get(int auctionId) {
+        return auctionsById.get(auctionId);
+    }
+    
+    /**
+     * Count the active auctions, optionally limited to a category
+     * @param category The category, or null for all categories
+     * @return The number of active auctions
+     */
+    public synchronized int countActive(String category) {
+        return getActiveView(category, Sort.END_TIME).size();
+    }
+    
+    /**
+     * Get a page of active auctions
+     * @param category The category, or null for all categories
+     * @param sort The sort order
+     * @param offset The index of the first auction
+     * @param limit The maximum number of auctions
+     * @return The auctions on the page
+     */
+    public synchronized List<Auction> getActivePage(String category, Sort sort, int offset, int limit) {
+        List<Auction> view = getActiveView(category, sort);
+        
+        if (offset < 0 || offset >= view.size() || limit <= 0) {
+            return new ArrayList<>();
+        }
+        
+        return new ArrayList<>(view.subList(offset, Math.min(view.size(), offset + limit)));
+    }
+    
+    /**
+     * Count the active auctions of a seller
+     * @param sellerUuid The seller's UUID
+     * @return The number of active auctions
+     */
+    public synchronized int countActiveBySeller(UUID sellerUuid) {
+        return activeCountBySeller.getOrDefault(sellerUuid, 0);
+    }
+    
+    /**
+     * Get all auctions of a seller, ordered by status and end time
+     * @param sellerUuid The seller's UUID
+     * @return The auctions of the seller
+     */
+    public synchronized List<Auction> getBySeller(UUID sellerUuid) {
+        List<Auction> auctions = new ArrayList<>(auctionsBySeller.getOrDefault(sellerUuid, Collections.emptyList()));
+        auctions.sort(BY_STATUS_AND_END_TIME);
+        return auctions;
+    }
+    
+    /**
+     * Get all auctions bought by a buyer, newest end time first
+     * @param buyerUuid The buyer's UUID
+     * @return The auctions bought by the buyer
+     */
+    public synchronized List<Auction> getSoldToBuyer(UUID buyerUuid) {
+        return getByBuyer(buyerUuid, Auction.Status.SOLD);
+    }
+    
+    /**
+     * Get all auctions of a buyer with the given status, newest end time first
+     * @param buyerUuid The buyer's UUID
+     * @param status The status
+     * @return The matching auctions
+     */
+    public synchronized List<Auction> getByBuyer(UUID buyerUuid, Auction.Status status) {
+        List<Auction> auctions = new ArrayList<>();
+        
+        for (Auction auction : auctionsById.values()) {
+            if (auction.getStatus() == status && buyerUuid.equals(auction.getBuyerUuid())) {
+                auctions.add(auction);
+            }
+        }
+        
+        auctions.sort(BY_END_TIME.reversed());
+        return auctions;
+    }
+    
+    /**
+     * Mark an active auction as ended without a buyer. Its item goes back to the seller,
+     * so it is cancelled like an expired auction the seller claimed.
+     * @param auction The auction
+     * @return True if the auction was active
+     */
+    public synchronized boolean expire(Auction auction) {
+        if (!auction.isActive()) {
+            return false;
+        }
+        
+        removeActive(auction);
+        auction.setStatus(Auction.Status.CANCELLED);
+        return true;
+    }
+    
+    /**
+     * Mark an active auction as sold to its highest bidder
+     * @param auction The auction
+     * @param buyerUuid The winning bidder
+     * @return True if the auction was active
+     */
+    public synchronized boolean award(Auction auction, UUID buyerUuid) {
+        if (!auction.isActive()) {
+            return false;
+        }
+        
+        removeActive(auction);
+        auction.setBuyerUuid(buyerUuid);
+        auction.setStatus(Auction.Status.SOLD);
+        return true;
+    }
+    
+    /**
+     * Remove finished auctions that ended before the given time, except won items not delivered yet
+     * @param cutoff The cutoff time
+     */
+    public synchronized void removeFinishedEndedBefore(Instant cutoff) {
+        Iterator<Auction> iterator = auctionsById.values().iterator();
+        
+        while (iterator.hasNext()) {
+            Auction auction = iterator.next();
+            
+            if (!auction.isActive() && auction.getStatus() != Auction.Status.WON && auction.getEndTime().isBefore(cutoff)) {
+                iterator.remove();
+                removeFromIndexes(auction);
+            }
+        }
+    }
+    
+    /**
+     * Get the active view for a category and sort order
+     * @param category The category, or null for all categories
+     * @param sort The sort order
+     * @return The sorted view
+     */
+    private List<Auction> getActiveView(String category, Sort sort) {
+        if (category == null) {
+            return sort == Sort.PRICE ? activeByPrice : activeByEndTime;
+        }
+        
+        Map<String, List<Auction>> views = sort == Sort.PRICE ? activeByCategoryPrice : activeByCategoryEndTime;
+        return views.getOrDefault(category, Collections.emptyList());
+    }
+    
+    /**
+     * Add an auction to the active indexes
+     * @param auction The auction
+     */
+    private void addActive(Auction auction) {
+        insertSorted(activeByEndTime, auction, BY_END_TIME);
+        insertSorted(activeByPrice, auction, BY_PRICE);
+        
+        String category = getCategoryKey(auction);
+        insertSorted(activeByCategoryEndTime.computeIfAbsent(category, k -> new ArrayList<>()), auction, BY_END_TIME);
+        insertSorted(activeByCategoryPrice.computeIfAbsent(category, k -> new ArrayList<>()), auction, BY_PRICE);
+        
+        activeCountBySeller.merge(auction.getSellerUuid(), 1, Integer::sum);
+    }
+    
+    /**
+     * Remove an auction from the active indexes
+     * @param auction The auction
+     */
+    private void removeActive(Auction auction) {
+        if (!removeSorted(activeByEndTime, auction, BY_END_TIME)) {
+            return;
+        }
+        
+        removeSorted(activeByPrice, auction, BY_PRICE);
+        
+        String category = getCategoryKey(auction);
+        removeSorted(activeByCategoryEndTime.getOrDefault(category, new ArrayList<>()), auction, BY_END_TIME);
+        removeSorted(activeByCategoryPrice.getOrDefault(category, new ArrayList<>()), auction, BY_PRICE);
+        
+        activeCountBySeller.computeIfPresent(auction.getSellerUuid(), (k, count) -> count > 1 ? count - 1 : null);
+    }
+    
+    /**
+     * Remove an auction from all indexes
+     * @param auction The auction
+     */
+    private void removeFromIndexes(Auction auction) {
+        removeActive(auction);
+        
+        List<Auction> sellerAuctions = auctionsBySeller.get(auction.getSellerUuid());
+        
+        if (sellerAuctions != null) {
+            sellerAuctions.remove(auction);
+            
+            if (sellerAuctions.isEmpty()) {
+                auctionsBySeller.remove(auction.getSellerUuid());
+            }
+        }
+    }
+    
+    /**
+     * Get the index key of an auction's category
+     * @param auction The auction
+     * @return The category key
+     */
+    private static String getCategoryKey(Auction auction) {
+        return auction.getCategory() != null ? auction.getCategory() : "misc";
+    }
+    
+    /**
+     * Insert an auction into a sorted list
+     * @param list The sorted list
+     * @param auction The auction
+     * @param comparator The order of the list
+     */
+    private static void insertSorted(List<Auction> list, Auction auction, Comparator<Auction> comparator) {
+        int index = Collections.binarySearch(list, auction, comparator);
+        
+        if (index < 0) {
+            list.add(-index - 1, auction);
+        }
+    }
+    
+    /**
+     * Remove an auction from a sorted list
+     * @param list The sorted list
+     * @param auction The auction
+     * @param comparator The order of the list
+     * @return True if the auction was removed
+     */
+    private static boolean removeSorted(List<Auction> list, Auction auction, Comparator<Auction> comparator) {
+        int index = Collections.binarySearch(list, auction, comparator);
+        
+        if (index < 0) {
+            return false;
+        }
+        
+        list.remove(index);
+        return true;
+    }
+}
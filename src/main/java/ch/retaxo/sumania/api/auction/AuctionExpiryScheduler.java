@@ -0,0 +1,389 @@
+package ch.retaxo.sumania.api.auction;
+
+import ch.retaxo.sumania.Sumania;
+import ch.retaxo.sumania.api.mailbox.MailboxAPI;
+import ch.retaxo.sumania.config.ConnectionPool;
+import ch.retaxo.sumania.models.Auction;
+import org.bukkit.Bukkit;
+import org.bukkit.configuration.ConfigurationSection;
+import org.bukkit.configuration.file.FileConfiguration;
+import org.bukkit.entity.Player;
+import org.bukkit.scheduler.BukkitTask;
+
+import java.sql.PreparedStatement;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Expires auctions at their end time and returns their items to the sellers through the mailbox.
+ * Active auctions sit in a min-heap by end time and a single task is scheduled for the earliest one.
+ * Auctions sold or cancelled before their end stay in the heap and are skipped when they come up.
+ * Heap entries keep the closing time they were added with. A bidding auction whose end was pushed back
+ * by a late bid is added again with its new closing time when its old entry comes up.
+ * Items are only returned for rows the expiry update changed, once the update has committed.
+ * Must only be used from the main thread.
+ */
+public class AuctionExpiryScheduler {
+
+    private static final Comparator<Entry> BY_CLOSING_TIME = Comparator
+            .comparing((Entry entry) -> entry.closingTime)
+            .thenComparingInt(entry -> entry.auction.getId());
+    private static final long RETRY_DELAY_TICKS = 1200L;
+    
+    private final Sumania plugin;
+    private final AuctionBook auctionBook;
+    private final BidEngine bidEngine;
+    private final MailboxAPI mailboxAPI;
+    private final String auctionsTable;
+    private final PriorityQueue<Entry> queue = new PriorityQueue<>(BY_CLOSING_TIME);
+    
+    // Expiry updates still running, with the auctions they expire
+    private final Map<CompletableFuture<int[]>, List<Auction>> pendingWrites = new HashMap<>();
+    
+    private BukkitTask task;
+    private Instant taskTime;
+    
+    /**
+     * Constructor
+     * @param plugin The plugin instance
+     * @param auctionBook The auction book holding the auctions
+     * @param bidEngine The bid engine closing bidding auctions
+     * @param mailboxAPI The mailbox API returning the items
+     */
+    public AuctionExpiryScheduler(Sumania plugin, AuctionBook auctionBook, BidEngine bidEngine, MailboxAPI mailboxAPI) {
+        this.plugin = plugin;
+        this.auctionBook = auctionBook;
+        this.bidEngine = bidEngine;
+        this.mailboxAPI = mailboxAPI;
+        this.auctionsTable = plugin.getConfigManager().getTablePrefix() + "auctions";
+    }
+    
+    /**
+     * Rebuild the heap from the active auctions, e.g. after loading them
+     * @param activeAuctions The active auctions
+     */
+    public void rebuild(List<Auction> activeAuctions) {
+        queue.clear();
+        
+        for (Auction auction : activeAuctions) {
+            queue.add(new Entry(auction));
+        }
+        
+        reschedule();
+    }
+    
+    /**
+     * Add a new active auction
+     * @param auction The auction
+     */
+    public void schedule(Auction auction) {
+        Entry entry = new Entry(auction);
+        queue.add(entry);
+        
+        // Only a new earliest auction moves the task
+        if (queue.peek() == entry) {
+            reschedule();
+        }
+    }
+    
+    /**
+     * Cancel the pending task and finish the expiry updates still running.
+     * Updates that don't answer in time are kept in data.yml and settled from the rows at the next start.
+     */
+    public void shutdown() {
+        if (task != null) {
+            task.cancel();
+            task = null;
+        }
+        
+        queue.clear();
+        
+        for (Map.Entry<CompletableFuture<int[]>, List<Auction>> write : new ArrayList<>(pendingWrites.entrySet())) {
+            try {
+                finishExpired(write.getKey(), write.getKey().get(5, TimeUnit.SECONDS));
+            } catch (Exception e) {
+                holdExpired(pendingWrites.remove(write.getKey()));
+            }
+        }
+    }
+    
+    /**
+     * Return the items of expiries the last shutdown could not confirm. An expiry went through
+     * if its row is cancelled at the version the update set, otherwise the row decides as usual.
+     */
+    public void resumeHeldExpiries() {
+        FileConfiguration data = plugin.getConfigManager().getConfig("data.yml");
+        ConfigurationSection held = data.getConfigurationSection("auction-expiries");
+        
+        if (held == null) {
+            return;
+        }
+        
+        List<Auction> expired = new ArrayList<>();
+        
+        for (String key : held.getKeys(false)) {
+            Auction auction = null;
+            try {
+                auction = auctionBook.get(Integer.parseInt(key));
+            } catch (NumberFormatException e) {
+                // Reported below
+            }
+            
+            if (auction == null) {
+                plugin.getLogger().severe("Could not settle the held expiry of auction " + key + ".");
+                continue;
+            }
+            
+            if (auction.getStatus() == Auction.Status.CANCELLED && auction.getVersion() == held.getInt(key)) {
+                expired.add(auction);
+            }
+        }
+        
+        data.set("auction-expiries", null);
+        plugin.getConfigManager().saveConfig("data.yml");
+        
+        returnItems(expired);
+    }
+    
+    /**
+     * Schedule the task for the earliest end time in the heap
+     */
+    private void reschedule() {
+        // Drop auctions that were sold or cancelled in the meantime
+        while (!queue.isEmpty() && !queue.peek().auction.isActive()) {
+            queue.poll();
+        }
+        
+        Entry next = queue.peek();
+        
+        if (next == null) {
+            cancelTask();
+            return;
+        }
+        
+        if (task != null && next.closingTime.equals(taskTime)) {
+            return;
+        }
+        
+        cancelTask();
+        
+        // Round up to the next tick so the auction has ended when the task runs
+        long delayMillis = Math.max(0, next.closingTime.toEpochMilli() - System.currentTimeMillis());
+        long delayTicks = Math.max(1, (delayMillis + 49) / 50);
+        
+        taskTime = next.closingTime;
+        task = plugin.getServer().getScheduler().runTaskLater(plugin, this::expireDue, delayTicks);
+    }
+    
+    /**
+     * Cancel the pending task
+     */
+    private void cancelTask() {
+        if (task != null) {
+            task.cancel();
+            task = null;
+            taskTime = null;
+        }
+    }
+    
+    /**
+     * Expire every auction that has ended and write them in one batch. The sellers get their items
+     * once the batch has committed. Bidding auctions with a bid go to their highest bidder instead.
+     */
+    private void expireDue() {
+        task = null;
+        taskTime = null;
+        
+        Instant now = Instant.now();
+        List<Auction> expired = new ArrayList<>();
+        List<Auction> won = new ArrayList<>();
+        
+        while (!queue.isEmpty() && !queue.peek().closingTime.isAfter(now)) {
+            Auction auction = queue.poll().auction;
+            
+            if (!auction.isActive()) {
+                continue;
+            }
+            
+            // A purchase claiming the row decides, it schedules the auction again if it fails
+            if (auction.isPurchasePending()) {
+                continue;
+            }
+            
+            if (auction.isBidding()) {
+                BidEngine.CloseResult result = bidEngine.close(auction, now);
+                
+                if (result == BidEngine.CloseResult.EXTENDED) {
+                    queue.add(new Entry(auction));
+                    continue;
+                }
+                
+                if (result == BidEngine.CloseResult.WON) {
+                    won.add(auction);
+                    continue;
+                }
+            }
+            
+            // Nobody may buy or cancel the auction while its row is updated
+            if (auction.beginPurchase()) {
+                expired.add(auction);
+            }
+        }
+        
+        if (!expired.isEmpty()) {
+            writeExpired(expired);
+        }
+        
+        for (Auction auction : won) {
+            bidEngine.settleWon(auction);
+        }
+        
+        reschedule();
+    }
+    
+    /**
+     * Mark expired auctions as cancelled in the database in a single batch and finish them on the main thread
+     * @param expired The expired auctions
+     */
+    private void writeExpired(List<Auction> expired) {
+        ConnectionPool pool = plugin.getConfigManager().getConnectionPool();
+        int[] ids = expired.stream().mapToInt(Auction::getId).toArray();
+        
+        CompletableFuture<int[]> write = pool.supplyAsync(connection -> {
+            connection.setAutoCommit(false);
+            
+            // Only rows still active, a purchase may have won the race
+            try (PreparedStatement statement = connection.prepareStatement(
+                    "UPDATE " + auctionsTable + " SET status = ?, version = version + 1 WHERE id = ? AND status = ?")) {
+                for (int id : ids) {
+                    statement.setString(1, Auction.Status.CANCELLED.name());
+                    statement.setInt(2, id);
+                    statement.setString(3, Auction.Status.ACTIVE.name());
+                    statement.addBatch();
+                }
+                
+                int[] updated = statement.executeBatch();
+                connection.commit();
+                return updated;
+            }
+        });
+        
+        pendingWrites.put(write, expired);
+        
+        write.whenComplete((updated, throwable) -> {
+            if (throwable != null) {
+                plugin.getLogger().severe("Error expiring auctions: " + throwable.getMessage());
+            }
+            
+            if (plugin.isEnabled()) {
+                Bukkit.getScheduler().runTask(plugin, () -> finishExpired(write, updated));
+            }
+        });
+    }
+    
+    /**
+     * Apply a finished expiry update. Only auctions whose row was changed are expired and get their
+     * item returned, a failed batch is tried again later. Must be called on the main thread.
+     * @param write The update
+     * @param updated The update count per auction, or null if the batch failed
+     */
+    private void finishExpired(CompletableFuture<int[]> write, int[] updated) {
+        // An update is only finished once, shutdown may have finished it already
+        List<Auction> expired = pendingWrites.remove(write);
+        
+        if (expired == null) {
+            return;
+        }
+        
+        List<Auction> returned = new ArrayList<>();
+        
+        for (int i = 0; i < expired.size(); i++) {
+            Auction auction = expired.get(i);
+            auction.endPurchase();
+            
+            if (updated == null) {
+                continue;
+            }
+            
+            if (updated[i] == 1) {
+                if (auctionBook.expire(auction)) {
+                    auction.setVersion(auction.getVersion() + 1);
+                    returned.add(auction);
+                }
+            } else {
+                plugin.getLogger().warning("Auction " + auction.getId() + " was no longer active when it expired, its row decides at the next start.");
+            }
+        }
+        
+        if (updated == null) {
+            // Nothing was committed, the auctions stay active until the retry
+            plugin.getServer().getScheduler().runTaskLater(plugin, () -> {
+                for (Auction auction : expired) {
+                    schedule(auction);
+                }
+            }, RETRY_DELAY_TICKS);
+            return;
+        }
+        
+        returnItems(returned);
+    }
+    
+    /**
+     * Keep the expiries whose update may or may not have committed, so the next start can settle them
+     * @param expired The expired auctions
+     */
+    private void holdExpired(List<Auction> expired) {
+        if (expired == null) {
+            return;
+        }
+        
+        FileConfiguration data = plugin.getConfigManager().getConfig("data.yml");
+        for (Auction auction : expired) {
+            data.set("auction-expiries." + auction.getId(), auction.getVersion() + 1);
+        }
+        plugin.getConfigManager().saveConfig("data.yml");
+        
+        plugin.getLogger().warning("The expiry of " + expired.size() + " auctions could not be confirmed, it is settled at the next start.");
+    }
+    
+    /**
+     * Return the items of expired auctions to their sellers and tell the online ones
+     * @param expired The expired auctions
+     */
+    private void returnItems(List<Auction> expired) {
+        for (Auction auction : expired) {
+            Player seller = Bukkit.getPlayer(auction.getSellerUuid());
+            
+            if (seller != null) {
+                seller.sendMessage(plugin.getConfigManager().getPrefix() + "§cDeine Auktion für §e" + auction.getPrice() + " " +
+                        plugin.getAPI().getEconomyAPI().getCurrencyName() + "§c ist abgelaufen. Das Item wird dir zurückgegeben.");
+            }
+            
+            if (auction.getItem() != null) {
+                mailboxAPI.deliverItem(auction.getSellerUuid(), auction.getItem(), "auction_expired");
+            } else {
+                plugin.getLogger().severe("Could not return the item of expired auction " + auction.getId() + ".");
+            }
+        }
+    }
+    
+    /**
+     * A heap entry, keyed by the closing time when it was added
+     */
+    private static final class Entry {
+        private final Auction auction;
+        private final Instant closingTime;
+        
+        private Entry(Auction auction) {
+            this.auction = auction;
+            this.closingTime = auction.getClosingTime();
+        }
+    }
+}
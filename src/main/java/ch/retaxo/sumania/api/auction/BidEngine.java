@@ -0,0 +1,609 @@
+package ch.retaxo.sumania.api.auction;
+
+import ch.retaxo.sumania.Sumania;
+import ch.retaxo.sumania.api.economy.EconomyAPI;
+import ch.retaxo.sumania.api.economy.Ledger;
+import ch.retaxo.sumania.api.mailbox.MailboxAPI;
+import ch.retaxo.sumania.config.ConnectionPool;
+import ch.retaxo.sumania.models.Auction;
+import org.bukkit.Bukkit;
+import org.bukkit.configuration.ConfigurationSection;
+import org.bukkit.configuration.file.FileConfiguration;
+import org.bukkit.entity.Player;
+import org.bukkit.scheduler.BukkitTask;
+
+import java.sql.PreparedStatement;
+import java.sql.Timestamp;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bid engine for bidding auctions.
+ * Every bidding auction holds an immutable {@link Auction.BidState} that bids replace with compare-and-set,
+ * so bids never block each other and concurrent bids on one auction simply retry against the new state.
+ * A bid is escrowed from the bidder's balance before it is placed. Refunds for outbid players and the
+ * database writes for placed bids are queued and settled in batches by a background task.
+ * A won auction is only delivered once its row was marked as sold.
+ */
+public class BidEngine {
+
+    /**
+     * Outcomes of placing a bid
+     */
+    public enum BidResult {
+        PLACED,
+        NOT_BIDDING,
+        OWN_AUCTION,
+        ENDED,
+        TOO_LOW,
+        NOT_ENOUGH_MONEY
+    }
+    
+    /**
+     * Outcomes of closing an auction at its end time
+     */
+    public enum CloseResult {
+        EXTENDED,
+        NO_BIDS,
+        WON
+    }
+    
+    private static final long RETRY_DELAY_TICKS = 1200L;
+    
+    private final Sumania plugin;
+    private final AuctionBook auctionBook;
+    private final MailboxAPI mailboxAPI;
+    private final String auctionsTable;
+    private final String bidsTable;
+    private final long minIncrement;
+    private final double minIncrementPercent;
+    private final Duration snipeWindow;
+    private final Duration snipeExtension;
+    
+    // Filled by bids from any thread, drained by the settlement task
+    private final Queue<Refund> refunds = new ConcurrentLinkedQueue<>();
+    private final Queue<PlacedBid> placedBids = new ConcurrentLinkedQueue<>();
+    
+    // Sold updates still running, with the auctions they settle. Only used on the main thread.
+    private final Map<CompletableFuture<Integer>, Auction> pendingSettlements = new HashMap<>();
+    
+    private CompletableFuture<Void> lastWrite = CompletableFuture.completedFuture(null);
+    private BukkitTask settlementTask;
+    
+    /**
+     * Constructor
+     * @param plugin The plugin instance
+     * @param auctionBook The auction book holding the auctions
+     * @param mailboxAPI The mailbox API delivering won items and proceeds
+     */
+    public BidEngine(Sumania plugin, AuctionBook auctionBook, MailboxAPI mailboxAPI) {
+        this.plugin = plugin;
+        this.auctionBook = auctionBook;
+        this.mailboxAPI = mailboxAPI;
+        this.auctionsTable = plugin.getConfigManager().getTablePrefix() + "auctions";
+        this.bidsTable = plugin.getConfigManager().getTablePrefix() + "auction_bids";
+        
+        FileConfiguration config = plugin.getConfigManager().getConfig("config.yml");
+        this.minIncrement = Math.max(1, EconomyAPI.toCents(config.getDouble("auction.bidding.min-increment", 1.0)));
+        this.minIncrementPercent = Math.max(0, config.getDouble("auction.bidding.min-increment-percent", 5.0));
+        this.snipeWindow = Duration.ofSeconds(Math.max(0, config.getLong("auction.bidding.anti-sniping-seconds", 30)));
+        this.snipeExtension = Duration.ofSeconds(Math.max(0, config.getLong("auction.bidding.extension-seconds", 30)));
+        
+        long intervalTicks = Math.max(1, config.getLong("auction.bidding.settlement-interval-ticks", 20));
+        settlementTask = plugin.getServer().getScheduler().runTaskTimerAsynchronously(
+                plugin,
+                this::settle,
+                intervalTicks,
+                intervalTicks
+        );
+    }
+    
+    /**
+     * Get the lowest bid the auction accepts right now
+     * @param auction The bidding auction
+     * @return The minimum bid
+     */
+    public double getMinimumBid(Auction auction) {
+        return EconomyAPI.fromCents(minimumBid(auction, auction.getBidState()));
+    }
+    
+    /**
+     * Place a bid. The amount is taken from the bidder right away and refunded once someone bids more.
+     * Can be called from any thread.
+     * @param bidder The bidder
+     * @param auction The auction
+     * @param amount The bid
+     * @return The outcome
+     */
+    public BidResult placeBid(Player bidder, Auction auction, double amount) {
+        Auction.BidState state = auction.getBidState();
+        
+        if (!auction.isBidding() || state == null) {
+            return BidResult.NOT_BIDDING;
+        }
+        
+        if (auction.getSellerUuid().equals(bidder.getUniqueId())) {
+            return BidResult.OWN_AUCTION;
+        }
+        
+        if (!auction.isActive() || !isOpen(state, Instant.now())) {
+            return BidResult.ENDED;
+        }
+        
+        long cents = EconomyAPI.toCents(amount);
+        
+        if (cents < minimumBid(auction, state)) {
+            return BidResult.TOO_LOW;
+        }
+        
+        // Escrow the bid before it can become the highest one
+        EconomyAPI economyAPI = plugin.getAPI().getEconomyAPI();
+        if (!economyAPI.tryWithdraw(bidder, EconomyAPI.fromCents(cents), "auction_bid")) {
+            return BidResult.NOT_ENOUGH_MONEY;
+        }
+        
+        while (true) {
+            Auction.BidState current = auction.getBidState();
+            Instant now = Instant.now();
+            
+            BidResult rejected = null;
+            if (!isOpen(current, now)) {
+                rejected = BidResult.ENDED;
+            } else if (cents < minimumBid(auction, current)) {
+                rejected = BidResult.TOO_LOW;
+            }
+            
+            if (rejected != null) {
+                // Another bid or the end won the race, the bidder gets the escrow back right away
+                economyAPI.deposit(bidder, EconomyAPI.fromCents(cents), "auction_bid_refund");
+                return rejected;
+            }
+            
+            // Bids in the final seconds push the end back so the other bidders can respond
+            Instant endTime = current.getEndTime();
+            Instant extendedTime = now.plus(snipeExtension);
+            if (now.plus(snipeWindow).isAfter(endTime) && extendedTime.isAfter(endTime)) {
+                endTime = extendedTime;
+            }
+            
+            Auction.BidState next = new Auction.BidState(cents, bidder.getUniqueId(), endTime, false);
+            
+            if (auction.compareAndSetBidState(current, next)) {
+                if (current.getBidder() != null) {
+                    refunds.add(new Refund(auction.getId(), current.getBidder(), current.getAmount()));
+                }
+                
+                placedBids.add(new PlacedBid(auction.getId(), bidder.getUniqueId(), cents, endTime, now));
+                return BidResult.PLACED;
+            }
+        }
+    }
+    
+    /**
+     * Close bidding once the end time has passed
+     * @param auction The bidding auction
+     * @param now The current time
+     * @return EXTENDED if a late bid moved the end, otherwise whether the auction has a winner
+     */
+    public CloseResult close(Auction auction, Instant now) {
+        while (true) {
+            Auction.BidState state = auction.getBidState();
+            
+            if (!state.isClosed() && state.getEndTime().isAfter(now)) {
+                return CloseResult.EXTENDED;
+            }
+            
+            if (state.isClosed() || auction.compareAndSetBidState(state, state.close())) {
+                return state.getBidder() != null ? CloseResult.WON : CloseResult.NO_BIDS;
+            }
+        }
+    }
+    
+    /**
+     * Close bidding for an auction nobody has bid on yet, e.g. before cancelling it
+     * @param auction The bidding auction
+     * @return False if the auction already has a bid
+     */
+    public boolean closeWithoutBids(Auction auction) {
+        while (true) {
+            Auction.BidState state = auction.getBidState();
+            
+            if (state.getBidder() != null) {
+                return false;
+            }
+            
+            if (state.isClosed() || auction.compareAndSetBidState(state, state.close())) {
+                return true;
+            }
+        }
+    }
+    
+    /**
+     * Hand a closed auction to its highest bidder. Must be called on the main thread.
+     * The row is marked as sold first, after the saved bids. Once that committed, the seller is paid
+     * from the escrow and the item and the proceeds go through the mailbox.
+     * @param auction The closed auction
+     */
+    public void settleWon(Auction auction) {
+        // Nobody may cancel the auction while its row is updated
+        if (!auction.isActive() || !auction.beginPurchase()) {
+            return;
+        }
+        
+        Auction.BidState state = auction.getBidState();
+        double price = EconomyAPI.fromCents(state.getAmount());
+        int auctionId = auction.getId();
+        
+        CompletableFuture<Integer> update = supply(connection -> {
+            try (PreparedStatement statement = connection.prepareStatement(
+                    "UPDATE " + auctionsTable + " SET status = ?, buyer_uuid = ?, current_bid = ?, bidder_uuid = ?, version = version + 1 WHERE id = ? AND status = ?")) {
+                statement.setString(1, Auction.Status.SOLD.name());
+                statement.setString(2, state.getBidder().toString());
+                statement.setDouble(3, price);
+                statement.setString(4, state.getBidder().toString());
+                statement.setInt(5, auctionId);
+                statement.setString(6, Auction.Status.ACTIVE.name());
+                return statement.executeUpdate();
+            }
+        });
+        
+        pendingSettlements.put(update, auction);
+        
+        update.whenComplete((updated, throwable) -> {
+            if (throwable != null) {
+                plugin.getLogger().severe("Error settling auction " + auctionId + ": " + throwable.getMessage());
+            }
+            
+            if (plugin.isEnabled()) {
+                Bukkit.getScheduler().runTask(plugin, () -> finishWon(update, updated));
+            }
+        });
+    }
+    
+    /**
+     * Deliver a won auction once its sold update finished. Must be called on the main thread.
+     * @param update The update
+     * @param updated The number of rows marked as sold, or null if the update failed
+     */
+    private void finishWon(CompletableFuture<Integer> update, Integer updated) {
+        // A settlement is only finished once, shutdown may have finished it already
+        Auction auction = pendingSettlements.remove(update);
+        
+        if (auction == null) {
+            return;
+        }
+        
+        auction.endPurchase();
+        
+        if (updated == null) {
+            // Nothing was committed, the escrow stays until the retry
+            plugin.getServer().getScheduler().runTaskLater(plugin, () -> settleWon(auction), RETRY_DELAY_TICKS);
+            return;
+        }
+        
+        if (updated != 1) {
+            plugin.getLogger().warning("Auction " + auction.getId() + " was no longer active when it was won, its row decides at the next start.");
+            return;
+        }
+        
+        Auction.BidState state = auction.getBidState();
+        if (auctionBook.award(auction, state.getBidder())) {
+            auction.setVersion(auction.getVersion() + 1);
+            deliverWon(auction);
+        }
+    }
+    
+    /**
+     * Pay the seller of a sold auction from the escrow and hand the item to the highest bidder
+     * @param auction The sold auction
+     */
+    private void deliverWon(Auction auction) {
+        Auction.BidState state = auction.getBidState();
+        EconomyAPI economyAPI = plugin.getAPI().getEconomyAPI();
+        double price = EconomyAPI.fromCents(state.getAmount());
+        mailboxAPI.deliverMoney(auction.getSellerUuid(), price, "auction_sale", state.getBidder());
+        
+        Player winner = Bukkit.getPlayer(state.getBidder());
+        if (winner != null) {
+            winner.sendMessage(plugin.getConfigManager().getPrefix() + "§aDu hast die Auktion für §e" + economyAPI.format(price) + "§a gewonnen!");
+        }
+        
+        if (auction.getItem() != null) {
+            mailboxAPI.deliverItem(state.getBidder(), auction.getItem(), "auction_won");
+        } else {
+            plugin.getLogger().severe("Could not deliver the item of won auction " + auction.getId() + ".");
+        }
+        
+        Player seller = Bukkit.getPlayer(auction.getSellerUuid());
+        if (seller != null) {
+            seller.sendMessage(plugin.getConfigManager().getPrefix() + "§aDeine Auktion wurde für §e" + economyAPI.format(price) + "§a an §e" + auction.getBuyerName() + "§a versteigert!");
+        }
+    }
+    
+    /**
+     * Deliver the auctions whose sold update the last shutdown could not confirm. A settlement went through
+     * if its row is sold to the highest bidder at the version the update set, otherwise the row decides as usual.
+     */
+    public void resumeHeldSettlements() {
+        FileConfiguration data = plugin.getConfigManager().getConfig("data.yml");
+        ConfigurationSection held = data.getConfigurationSection("auction-settlements");
+        
+        if (held == null) {
+            return;
+        }
+        
+        for (String key : held.getKeys(false)) {
+            Auction auction = null;
+            try {
+                auction = auctionBook.get(Integer.parseInt(key));
+            } catch (NumberFormatException e) {
+                // Reported below
+            }
+            
+            if (auction == null || auction.getBidState() == null) {
+                plugin.getLogger().severe("Could not settle the held settlement of auction " + key + ".");
+                continue;
+            }
+            
+            if (auction.getStatus() == Auction.Status.SOLD && auction.getVersion() == held.getInt(key)
+                    && auction.getBidState().getBidder() != null && auction.getBidState().getBidder().equals(auction.getBuyerUuid())) {
+                deliverWon(auction);
+            }
+        }
+        
+        data.set("auction-settlements", null);
+        plugin.getConfigManager().saveConfig("data.yml");
+    }
+    
+    /**
+     * Stop the settlement task and settle what is left
+     */
+    public void shutdown() {
+        if (settlementTask != null) {
+            settlementTask.cancel();
+            settlementTask = null;
+        }
+        
+        flush();
+        
+        // Settlements whose update doesn't answer in time are kept in data.yml and finished at the next start
+        FileConfiguration data = plugin.getConfigManager().getConfig("data.yml");
+        for (Map.Entry<CompletableFuture<Integer>, Auction> settlement : new ArrayList<>(pendingSettlements.entrySet())) {
+            try {
+                finishWon(settlement.getKey(), settlement.getKey().get(5, TimeUnit.SECONDS));
+            } catch (Exception e) {
+                Auction auction = pendingSettlements.remove(settlement.getKey());
+                data.set("auction-settlements." + auction.getId(), auction.getVersion() + 1);
+                plugin.getConfigManager().saveConfig("data.yml");
+                plugin.getLogger().warning("The settlement of auction " + auction.getId() + " could not be confirmed, it is finished at the next start.");
+            }
+        }
+    }
+    
+    /**
+     * Settle the queued refunds and bids now and wait until they are saved
+     */
+    public void flush() {
+        settle();
+        
+        CompletableFuture<Void> pending;
+        synchronized (this) {
+            pending = lastWrite;
+        }
+        
+        try {
+            pending.get(10, TimeUnit.SECONDS);
+        } catch (Exception e) {
+            plugin.getLogger().warning("Could not save the remaining auction bids.");
+        }
+    }
+    
+    /**
+     * Refund outbid players in one transaction and save the placed bids in one batch
+     */
+    private synchronized void settle() {
+        List<Refund> drainedRefunds = drain(refunds);
+        List<PlacedBid> drainedBids = drain(placedBids);
+        
+        if (!drainedRefunds.isEmpty()) {
+            EconomyAPI economyAPI = plugin.getAPI().getEconomyAPI();
+            Ledger.Transaction transaction = economyAPI.newTransaction("auction_bid_refund");
+            
+            for (Refund refund : drainedRefunds) {
+                transaction.credit(refund.bidder, refund.amount);
+            }
+            
+            // Credits only, this can't fail
+            economyAPI.commit(transaction);
+            
+            if (plugin.isEnabled()) {
+                Bukkit.getScheduler().runTask(plugin, () -> notifyOutbid(drainedRefunds));
+            }
+        }
+        
+        if (!drainedBids.isEmpty()) {
+            writeBids(drainedBids);
+        }
+    }
+    
+    /**
+     * Tell online players that they were outbid
+     * @param drainedRefunds The settled refunds
+     */
+    private void notifyOutbid(List<Refund> drainedRefunds) {
+        EconomyAPI economyAPI = plugin.getAPI().getEconomyAPI();
+        
+        for (Refund refund : drainedRefunds) {
+            Player player = Bukkit.getPlayer(refund.bidder);
+            
+            if (player != null) {
+                player.sendMessage(plugin.getConfigManager().getPrefix() + "§cDu wurdest bei Auktion §e#" + refund.auctionId +
+                        "§c überboten. §7Dein Gebot von §e" + economyAPI.format(EconomyAPI.fromCents(refund.amount)) + "§7 wurde zurückerstattet.");
+            }
+        }
+    }
+    
+    /**
+     * Save placed bids and the new highest bid of each auction in one transaction
+     * @param bids The placed bids
+     */
+    private void writeBids(List<PlacedBid> bids) {
+        // Bids only go up, so the highest bid per auction is also the latest state
+        Map<Integer, PlacedBid> highest = new HashMap<>();
+        for (PlacedBid bid : bids) {
+            highest.merge(bid.auctionId, bid, (a, b) -> a.amount >= b.amount ? a : b);
+        }
+        
+        write(connection -> {
+            connection.setAutoCommit(false);
+            
+            try (PreparedStatement insert = connection.prepareStatement(
+                    "INSERT INTO " + bidsTable + " (auction_id, bidder_uuid, amount, created_time) VALUES (?, ?, ?, ?)");
+                 PreparedStatement update = connection.prepareStatement(
+                    "UPDATE " + auctionsTable + " SET current_bid = ?, bidder_uuid = ?, end_time = ? WHERE id = ?")) {
+                for (PlacedBid bid : bids) {
+                    insert.setInt(1, bid.auctionId);
+                    insert.setString(2, bid.bidder.toString());
+                    insert.setDouble(3, EconomyAPI.fromCents(bid.amount));
+                    insert.setTimestamp(4, Timestamp.from(bid.time));
+                    insert.addBatch();
+                }
+                
+                for (PlacedBid bid : highest.values()) {
+                    update.setDouble(1, EconomyAPI.fromCents(bid.amount));
+                    update.setString(2, bid.bidder.toString());
+                    update.setTimestamp(3, Timestamp.from(bid.endTime));
+                    update.setInt(4, bid.auctionId);
+                    update.addBatch();
+                }
+                
+                insert.executeBatch();
+                update.executeBatch();
+            }
+            
+            connection.commit();
+        }, "Error saving auction bids");
+    }
+    
+    /**
+     * Run database work after the previous write
+     * @param task The database work
+     * @param error The message logged if it fails
+     */
+    private synchronized void write(ConnectionPool.SqlConsumer task, String error) {
+        ConnectionPool pool = plugin.getConfigManager().getConnectionPool();
+        
+        if (pool == null) {
+            return;
+        }
+        
+        lastWrite = lastWrite
+                .handle((result, throwable) -> null)
+                .thenCompose(ignored -> pool.runAsync(task))
+                .exceptionally(throwable -> {
+                    plugin.getLogger().severe(error + ": " + throwable.getMessage());
+                    return null;
+                });
+    }
+    
+    /**
+     * Run database work with a result after the previous write
+     * @param task The database work
+     * @param <T> The result type
+     * @return A future completing with the result
+     */
+    private synchronized <T> CompletableFuture<T> supply(ConnectionPool.SqlFunction<T> task) {
+        ConnectionPool pool = plugin.getConfigManager().getConnectionPool();
+        
+        CompletableFuture<T> result = lastWrite
+                .handle((ignored, throwable) -> null)
+                .thenCompose(ignored -> pool.supplyAsync(task));
+        lastWrite = result.handle((ignored, throwable) -> null);
+        return result;
+    }
+    
+    /**
+     * Get the lowest bid accepted in a bid state
+     * @param auction The auction
+     * @param state The bid state
+     * @return The minimum bid in cents
+     */
+    private long minimumBid(Auction auction, Auction.BidState state) {
+        if (state.getBidder() == null) {
+            return EconomyAPI.toCents(auction.getPrice());
+        }
+        
+        long increment = Math.max(minIncrement, Math.round(state.getAmount() * minIncrementPercent / 100.0));
+        return state.getAmount() + increment;
+    }
+    
+    /**
+     * Check if a bid state still takes bids
+     * @param state The bid state
+     * @param now The current time
+     * @return True if bidding is open
+     */
+    private static boolean isOpen(Auction.BidState state, Instant now) {
+        return !state.isClosed() && now.isBefore(state.getEndTime());
+    }
+    
+    /**
+     * Take everything from a queue
+     * @param queue The queue
+     * @param <T> The element type
+     * @return The drained elements
+     */
+    private static <T> List<T> drain(Queue<T> queue) {
+        List<T> drained = new ArrayList<>();
+        T element;
+        
+        while ((element = queue.poll()) != null) {
+            drained.add(element);
+        }
+        
+        return drained;
+    }
+    
+    /**
+     * An escrowed bid to give back
+     */
+    private static final class Refund {
+        private final int auctionId;
+        private final UUID bidder;
+        private final long amount;
+        
+        private Refund(int auctionId, UUID bidder, long amount) {
+            this.auctionId = auctionId;
+            this.bidder = bidder;
+            this.amount = amount;
+        }
+    }
+    
+    /**
+     * An accepted bid waiting to be saved
+     */
+    private static final class PlacedBid {
+        private final int auctionId;
+        private final UUID bidder;
+        private final long amount;
+        private final Instant endTime;
+        private final Instant time;
+        
+        private PlacedBid(int auctionId, UUID bidder, long amount, Instant endTime, Instant time) {
+            this.auctionId = auctionId;
+            this.bidder = bidder;
+            this.amount = amount;
+            this.endTime = endTime;
+            this.time = time;
+        }
+    }
+}
@@ -0,0 +1,258 @@
+package ch.retaxo.sumania.api.auction;
+
+import ch.retaxo.sumania.api.economy.Ledger;
+import ch.retaxo.sumania.config.ConnectionPool;
+import ch.retaxo.sumania.models.Auction;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.logging.Logger;
+
+/**
+ * Purchases of fixed-price auctions. The price is reserved from the buyer first, then the auction row
+ * is won on the database executor with an update that only succeeds if the row still has the status
+ * and version the buyer saw. Every purchase is settled exactly once on the main thread: a won row is
+ * handed to the {@link Settler}, a lost row refunds the reserved price, and a purchase whose update
+ * failed keeps the reserved price, because the update may have committed before the error.
+ * Uses no server classes, so the purchase path can be tested against a real database.
+ */
+class PurchasePipeline {
+
+    /**
+     * Settles purchases on the main thread
+     */
+    interface Settler {
+        
+        /**
+         * Pay the seller and deliver the item of a purchase that won its row
+         * @param purchase The purchase
+         */
+        void sold(Purchase purchase);
+        
+        /**
+         * Tell the buyer of a purchase that lost its row, the reserved price is already refunded
+         * @param purchase The purchase
+         */
+        void refunded(Purchase purchase);
+        
+        /**
+         * Keep a purchase whose update could not be confirmed until its row can be read again
+         * @param purchase The purchase
+         */
+        void held(Purchase purchase);
+    }
+    
+    private final Ledger ledger;
+    private final ConnectionPool pool;
+    private final String auctionsTable;
+    private final Executor mainThread;
+    private final Settler settler;
+    private final Logger logger;
+    private final Set<Purchase> pending = ConcurrentHashMap.newKeySet();
+    
+    /**
+     * Constructor
+     * @param ledger The ledger holding the balances
+     * @param pool The connection pool claiming the rows
+     * @param auctionsTable The auctions table
+     * @param mainThread Runs the settlements on the main thread
+     * @param settler Settles the purchases
+     * @param logger The logger for failed claims
+     */
+    PurchasePipeline(Ledger ledger, ConnectionPool pool, String auctionsTable, Executor mainThread, Settler settler, Logger logger) {
+        this.ledger = ledger;
+        this.pool = pool;
+        this.auctionsTable = auctionsTable;
+        this.mainThread = mainThread;
+        this.settler = settler;
+        this.logger = logger;
+    }
+    
+    /**
+     * Reserve the price from the buyer and claim the auction row. The caller must hold the auction's purchase gate.
+     * @param auction The auction
+     * @param buyerUuid The buyer's UUID
+     * @param price The price in cents
+     * @param callback Called on the main thread with true if the purchase was successful
+     * @return False if the buyer can't pay the price, nothing was started then
+     */
+    boolean purchase(Auction auction, UUID buyerUuid, long price, Consumer<Boolean> callback) {
+        // Reserve the price so the buyer can't spend it while the row is claimed
+        if (!ledger.commit(new Ledger.Transaction("auction_purchase").debit(buyerUuid, price).counterparty(buyerUuid, auction.getSellerUuid()))) {
+            return false;
+        }
+        
+        int auctionId = auction.getId();
+        int version = auction.getVersion();
+        
+        CompletableFuture<Boolean> claim = pool.supplyAsync(connection ->
+                claimRow(connection, auctionsTable, auctionId, buyerUuid, version));
+        
+        Purchase purchase = new Purchase(auction, buyerUuid, price, version + 1, claim, callback);
+        pending.add(purchase);
+        
+        claim.whenComplete((won, throwable) -> {
+            if (throwable != null) {
+                // The update may have committed before the error, only the row can tell
+                logger.severe("Error purchasing auction " + auctionId + ": " + throwable.getMessage());
+                mainThread.execute(() -> hold(purchase));
+                return;
+            }
+            
+            mainThread.execute(() -> finish(purchase, won == Boolean.TRUE));
+        });
+        
+        return true;
+    }
+    
+    /**
+     * Sell an auction row to a buyer, only if it is still active at the version the buyer saw
+     * @param connection The database connection
+     * @param auctionsTable The auctions table
+     * @param auctionId The auction ID
+     * @param buyerUuid The buyer's UUID
+     * @param version The version the buyer saw
+     * @return True if the buyer won the row
+     * @throws SQLException If the row could not be updated
+     */
+    static boolean claimRow(Connection connection, String auctionsTable, int auctionId, UUID buyerUuid, int version) throws SQLException {
+        try (PreparedStatement statement = connection.prepareStatement(
+                "UPDATE " + auctionsTable + " SET status = ?, buyer_uuid = ?, version = version + 1 WHERE id = ? AND status = ? AND version = ?")) {
+            statement.setString(1, Auction.Status.SOLD.name());
+            statement.setString(2, buyerUuid.toString());
+            statement.setInt(3, auctionId);
+            statement.setString(4, Auction.Status.ACTIVE.name());
+            statement.setInt(5, version);
+            return statement.executeUpdate() == 1;
+        }
+    }
+    
+    /**
+     * Take over a purchase held by the last shutdown. Its auction is blocked until {@link #settleResumed} runs.
+     * @param auction The auction loaded from its row
+     * @param buyerUuid The buyer's UUID
+     * @param price The reserved price in cents
+     * @param version The version the purchase's update set
+     * @return The purchase
+     */
+    Purchase resume(Auction auction, UUID buyerUuid, long price, int version) {
+        // Nobody may buy, cancel or expire the auction before it is settled
+        auction.beginPurchase();
+        
+        Purchase purchase = new Purchase(auction, buyerUuid, price, version, null, won -> {});
+        pending.add(purchase);
+        return purchase;
+    }
+    
+    /**
+     * Settle a resumed purchase from its row. It went through if the row is sold to the buyer at the version
+     * the purchase set, otherwise the reserved price is refunded. Must be called on the main thread.
+     * @param purchase The resumed purchase
+     * @return True if the purchase went through
+     */
+    boolean settleResumed(Purchase purchase) {
+        Auction auction = purchase.auction;
+        boolean won = auction.getStatus() == Auction.Status.SOLD
+                && purchase.buyerUuid.equals(auction.getBuyerUuid())
+                && auction.getVersion() == purchase.version;
+        
+        finish(purchase, won);
+        return won;
+    }
+    
+    /**
+     * Settle a purchase once its row was claimed or lost. Must be called on the main thread.
+     * @param purchase The purchase
+     * @param won True if the buyer won the auction row
+     */
+    private void finish(Purchase purchase, boolean won) {
+        // A purchase is only settled once, shutdown may have settled it already
+        if (!pending.remove(purchase)) {
+            return;
+        }
+        
+        Auction auction = purchase.auction;
+        auction.endPurchase();
+        
+        if (!won) {
+            // Somebody else bought, cancelled or expired the auction first
+            ledger.deposit(purchase.buyerUuid, purchase.price, "auction_purchase_refund");
+            settler.refunded(purchase);
+            purchase.callback.accept(false);
+            return;
+        }
+        
+        auction.setVersion(purchase.version);
+        auction.setBuyerUuid(purchase.buyerUuid);
+        auction.setStatus(Auction.Status.SOLD);
+        
+        settler.sold(purchase);
+        purchase.callback.accept(true);
+    }
+    
+    /**
+     * Keep the reserved price of a purchase whose row update may or may not have committed.
+     * The auction stays blocked. Must be called on the main thread.
+     * @param purchase The purchase
+     */
+    private void hold(Purchase purchase) {
+        // A purchase is only settled once, shutdown may have settled it already
+        if (!pending.remove(purchase)) {
+            return;
+        }
+        
+        settler.held(purchase);
+        purchase.callback.accept(false);
+    }
+    
+    /**
+     * Settle purchases still waiting for their row, the scheduled settlements won't run anymore.
+     * The update of a purchase that doesn't answer in time can still commit while the pool closes,
+     * so it is held. Must be called on the main thread.
+     */
+    void shutdown() {
+        for (Purchase purchase : new ArrayList<>(pending)) {
+            if (purchase.claim == null) {
+                continue;
+            }
+            
+            try {
+                finish(purchase, purchase.claim.get(5, TimeUnit.SECONDS));
+            } catch (Exception e) {
+                hold(purchase);
+            }
+        }
+    }
+    
+    /**
+     * A purchase waiting for its auction row to be claimed.
+     * Purchases held by the last shutdown have no claim, their row was already loaded.
+     */
+    static final class Purchase {
+        final Auction auction;
+        final UUID buyerUuid;
+        final long price;
+        final int version;
+        private final CompletableFuture<Boolean> claim;
+        private final Consumer<Boolean> callback;
+        
+        private Purchase(Auction auction, UUID buyerUuid, long price, int version,
+                         CompletableFuture<Boolean> claim, Consumer<Boolean> callback) {
+            this.auction = auction;
+            this.buyerUuid = buyerUuid;
+            this.price = price;
+            this.version = version;
+            this.claim = claim;
+            this.callback = callback;
+        }
+    }
+}
@@ -7,7 +7,6 @@ import org.bukkit.entity.Player;
 
 import java.util.HashMap;
 import java.util.Map;
-import java.util.UUID;
 
 /**
  * API for chat-related operations
@@ -16,7 +15,6 @@ public class ChatAPI {
 
     private final Sumania plugin;
     private boolean chatMuted = false;
-    private final Map<UUID, Long> chatCooldowns = new HashMap<>();
     
     /**
      * Constructor
@@ -96,7 +94,8 @@ public class ChatAPI {
         }
         
         int cooldown = 3; // Default cooldown in seconds
-        chatCooldowns.put(player.getUniqueId(), System.currentTimeMillis() + (cooldown * 1000L));
+        plugin.getAPI().getPlayerAPI().getSession(player)
+                .setChatCooldownEnd(System.currentTimeMillis() + (cooldown * 1000L));
     }
     
     /**
@@ -105,11 +104,7 @@ public class ChatAPI {
      * @return True if the player is in cooldown
      */
     private boolean isInCooldown(Player player) {
-        if (!chatCooldowns.containsKey(player.getUniqueId())) {
-            return false;
-        }
-        
-        return System.currentTimeMillis() < chatCooldowns.get(player.getUniqueId());
+        return System.currentTimeMillis() < plugin.getAPI().getPlayerAPI().getSession(player).getChatCooldownEnd();
     }
     
     /**
@@ -118,11 +113,7 @@ public class ChatAPI {
      * @return The time left in seconds
      */
     private int getCooldownTimeLeft(Player player) {
-        if (!chatCooldowns.containsKey(player.getUniqueId())) {
-            return 0;
-        }
-        
-        long timeLeft = chatCooldowns.get(player.getUniqueId()) - System.currentTimeMillis();
+        long timeLeft = plugin.getAPI().getPlayerAPI().getSession(player).getChatCooldownEnd() - System.currentTimeMillis();
         return Math.max(0, (int) (timeLeft / 1000));
     }
     
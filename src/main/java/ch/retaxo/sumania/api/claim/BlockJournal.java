@@ -0,0 +1,477 @@
+package ch.retaxo.sumania.api.claim;
+
+import ch.retaxo.sumania.Sumania;
+import ch.retaxo.sumania.config.ConnectionPool;
+import org.bukkit.block.Block;
+import org.bukkit.block.data.BlockData;
+import org.bukkit.configuration.file.FileConfiguration;
+import org.bukkit.entity.Player;
+import org.bukkit.scheduler.BukkitTask;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Journal of block changes inside claims, used to roll back griefing.
+ * Changes are kept as primitive records in a ring buffer, with block data, actors and worlds
+ * replaced by palette ids, and written to the claim_block_journal table in batches on the database executor.
+ * Recording and flushing only happen on the main thread.
+ */
+public class BlockJournal {
+
+    private final Sumania plugin;
+    
+    // Palettes, the ring buffer only stores their ids
+    private final Map<BlockData, Integer> blockDataIds = new HashMap<>();
+    private final List<String> blockDataPalette = new ArrayList<>();
+    private final Map<UUID, Integer> actorIds = new HashMap<>();
+    private final List<UUID> actorPalette = new ArrayList<>();
+    private final Map<String, Integer> worldIds = new HashMap<>();
+    private final List<String> worldPalette = new ArrayList<>();
+    
+    // Ring buffer, one record per index
+    private final int capacity;
+    private final long[] positions;
+    private final int[] worlds;
+    private final int[] oldData;
+    private final int[] newData;
+    private final int[] actors;
+    private final long[] times;
+    
+    // Next index to write and records not written to the database yet
+    private int head;
+    private int pending;
+    
+    // Batches are written one after another, so a query after the last write sees every record
+    private CompletableFuture<Void> lastWrite = CompletableFuture.completedFuture(null);
+    
+    // Records of failed batches, written again in front of the next batch. Only used by the writes, one at a time.
+    private final List<BlockChange> unwritten = new ArrayList<>();
+    private BukkitTask flushTask;
+    
+    /**
+     * Constructor
+     * @param plugin The plugin instance
+     */
+    public BlockJournal(Sumania plugin) {
+        this.plugin = plugin;
+        
+        FileConfiguration config = plugin.getConfigManager().getConfig("config.yml");
+        this.capacity = Math.max(64, config.getInt("protection.journal.buffer-size", 8192));
+        this.positions = new long[capacity];
+        this.worlds = new int[capacity];
+        this.oldData = new int[capacity];
+        this.newData = new int[capacity];
+        this.actors = new int[capacity];
+        this.times = new long[capacity];
+        
+        if (isEnabled()) {
+            long intervalTicks = Math.max(1, config.getLong("protection.journal.flush-interval", 10)) * 20L;
+            flushTask = plugin.getServer().getScheduler().runTaskTimer(plugin, this::flush, intervalTicks, intervalTicks);
+            
+            purgeOldRecords(config.getInt("protection.journal.retention-days", 30));
+        }
+    }
+    
+    /**
+     * Check if the journal is enabled
+     * @return True if block changes are recorded
+     */
+    public boolean isEnabled() {
+        return plugin.getConfigManager().getConfig("config.yml").getBoolean("protection.journal.enabled", true);
+    }
+    
+    /**
+     * Record a block change. The caller checks that the block is inside a claim.
+     * @param actor The player who changed the block
+     * @param block The block
+     * @param before The block data before the change
+     * @param after The block data after the change
+     */
+    public void record(Player actor, Block block, BlockData before, BlockData after) {
+        // The oldest records must be written before they are overwritten
+        if (pending == capacity) {
+            flush();
+        }
+        
+        positions[head] = pack(block.getX(), block.getY(), block.getZ());
+        worlds[head] = worldIds.computeIfAbsent(block.getWorld().getName(), name -> {
+            worldPalette.add(name);
+            return worldPalette.size() - 1;
+        });
+        oldData[head] = getBlockDataId(before);
+        newData[head] = getBlockDataId(after);
+        actors[head] = actorIds.computeIfAbsent(actor.getUniqueId(), uuid -> {
+            actorPalette.add(uuid);
+            return actorPalette.size() - 1;
+        });
+        times[head] = System.currentTimeMillis();
+        
+        head = (head + 1) % capacity;
+        pending++;
+    }
+    
+    /**
+     * Get the palette id of block data, adding it if it is new
+     * @param blockData The block data
+     * @return The palette id
+     */
+    private int getBlockDataId(BlockData blockData) {
+        Integer id = blockDataIds.get(blockData);
+        
+        if (id == null) {
+            id = blockDataPalette.size();
+            blockDataIds.put(blockData.clone(), id);
+            blockDataPalette.add(blockData.getAsString());
+        }
+        
+        return id;
+    }
+    
+    /**
+     * Copy all pending records into a batch and write it on the database executor.
+     * Records of a batch that could not be written are kept and written with the next batch.
+     */
+    public void flush() {
+        if (pending == 0) {
+            return;
+        }
+        
+        ConnectionPool pool = plugin.getConfigManager().getConnectionPool();
+        List<BlockChange> batch = drainPending();
+        
+        lastWrite = lastWrite
+                .handle((result, throwable) -> null)
+                .thenCompose(ignored -> {
+                    // Failed records go first, so the journal stays in the order of the changes
+                    unwritten.addAll(batch);
+                    List<BlockChange> records = new ArrayList<>(unwritten);
+                    
+                    return pool.runAsync(connection -> writeBatch(connection, records))
+                            .thenRun(() -> unwritten.subList(0, records.size()).clear());
+                })
+                .exceptionally(throwable -> {
+                    plugin.getLogger().severe("Failed to write block journal, " + unwritten.size() +
+                            " records are written with the next batch: " + throwable.getMessage());
+                    return null;
+                });
+    }
+    
+    /**
+     * Turn the pending records into block changes, oldest first
+     * @return The block changes
+     */
+    private List<BlockChange> drainPending() {
+        List<BlockChange> changes = new ArrayList<>(pending);
+        
+        for (int i = pending; i > 0; i--) {
+            changes.add(toChange(Math.floorMod(head - i, capacity)));
+        }
+        
+        pending = 0;
+        return changes;
+    }
+    
+    /**
+     * Expand a record of the ring buffer
+     * @param index The index in the ring buffer
+     * @return The block change
+     */
+    private BlockChange toChange(int index) {
+        long position = positions[index];
+        
+        return new BlockChange(
+                worldPalette.get(worlds[index]),
+                unpackX(position),
+                unpackY(position),
+                unpackZ(position),
+                actorPalette.get(actors[index]),
+                blockDataPalette.get(oldData[index]),
+                blockDataPalette.get(newData[index]),
+                times[index]
+        );
+    }
+    
+    /**
+     * Insert block changes in a single batch
+     * @param connection The database connection
+     * @param batch The block changes
+     */
+    private void writeBatch(Connection connection, List<BlockChange> batch) throws SQLException {
+        String sql = "INSERT INTO " + plugin.getConfigManager().getTablePrefix() + "claim_block_journal " +
+                "(world, x, y, z, actor, old_data, new_data, created_time) VALUES (?, ?, ?, ?, ?, ?, ?, ?)";
+        
+        connection.setAutoCommit(false);
+        
+        try (PreparedStatement stmt = connection.prepareStatement(sql)) {
+            for (BlockChange change : batch) {
+                stmt.setString(1, change.getWorldName());
+                stmt.setInt(2, change.getX());
+                stmt.setInt(3, change.getY());
+                stmt.setInt(4, change.getZ());
+                stmt.setString(5, change.getActor().toString());
+                stmt.setString(6, change.getOldData());
+                stmt.setString(7, change.getNewData());
+                stmt.setTimestamp(8, new Timestamp(change.getTime()));
+                stmt.addBatch();
+            }
+            
+            stmt.executeBatch();
+            connection.commit();
+        } catch (SQLException e) {
+            connection.rollback();
+            throw e;
+        } finally {
+            connection.setAutoCommit(true);
+        }
+    }
+    
+    /**
+     * Get all changes of a player since a point in time, newest first
+     * @param actor The player who made the changes
+     * @param since The earliest time in milliseconds
+     * @param callback Called on the main thread with the changes, or null if the journal could not be read
+     */
+    public void getChanges(UUID actor, long since, Consumer<List<BlockChange>> callback) {
+        ConnectionPool pool = plugin.getConfigManager().getConnectionPool();
+        
+        // Write what is pending first, then query after the last write
+        flush();
+        
+        lastWrite
+                .handle((result, throwable) -> null)
+                .thenCompose(ignored -> pool.supplyAsync(connection -> queryChanges(connection, actor, since)))
+                .whenComplete((changes, throwable) -> plugin.getServer().getScheduler().runTask(plugin, () -> {
+                    if (throwable != null) {
+                        plugin.getLogger().severe("Failed to read block journal: " + throwable.getMessage());
+                        callback.accept(null);
+                        return;
+                    }
+                    
+                    callback.accept(changes);
+                }));
+    }
+    
+    /**
+     * Query the changes of a player, newest first
+     * @param connection The database connection
+     * @param actor The player who made the changes
+     * @param since The earliest time in milliseconds
+     * @return The block changes
+     */
+    private List<BlockChange> queryChanges(Connection connection, UUID actor, long since) throws SQLException {
+        String sql = "SELECT world, x, y, z, old_data, new_data, created_time FROM " +
+                plugin.getConfigManager().getTablePrefix() + "claim_block_journal " +
+                "WHERE actor = ? AND created_time >= ? ORDER BY id DESC";
+        
+        List<BlockChange> changes = new ArrayList<>();
+        
+        try (PreparedStatement stmt = connection.prepareStatement(sql)) {
+            stmt.setString(1, actor.toString());
+            stmt.setTimestamp(2, new Timestamp(since));
+            
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    changes.add(new BlockChange(
+                            rs.getString("world"),
+                            rs.getInt("x"),
+                            rs.getInt("y"),
+                            rs.getInt("z"),
+                            actor,
+                            rs.getString("old_data"),
+                            rs.getString("new_data"),
+                            rs.getTimestamp("created_time").getTime()
+                    ));
+                }
+            }
+        }
+        
+        return changes;
+    }
+    
+    /**
+     * Delete records older than the retention period
+     * @param retentionDays The retention period in days, 0 or less keeps everything
+     */
+    private void purgeOldRecords(int retentionDays) {
+        ConnectionPool pool = plugin.getConfigManager().getConnectionPool();
+        
+        if (retentionDays <= 0) {
+            return;
+        }
+        
+        Timestamp cutoff = new Timestamp(System.currentTimeMillis() - TimeUnit.DAYS.toMillis(retentionDays));
+        String sql = "DELETE FROM " + plugin.getConfigManager().getTablePrefix() + "claim_block_journal WHERE created_time < ?";
+        
+        pool.runAsync(connection -> {
+            try (PreparedStatement stmt = connection.prepareStatement(sql)) {
+                stmt.setTimestamp(1, cutoff);
+                stmt.executeUpdate();
+            }
+        }).exceptionally(throwable -> {
+            plugin.getLogger().severe("Failed to purge block journal: " + throwable.getMessage());
+            return null;
+        });
+    }
+    
+    /**
+     * Stop the flush timer and write all pending records synchronously
+     */
+    public void shutdown() {
+        if (flushTask != null) {
+            flushTask.cancel();
+        }
+        
+        flush();
+        
+        try {
+            lastWrite.get(10, TimeUnit.SECONDS);
+        } catch (Exception e) {
+            plugin.getLogger().warning("Could not write the remaining block journal entries.");
+            return;
+        }
+        
+        if (!unwritten.isEmpty()) {
+            plugin.getLogger().warning("Could not write " + unwritten.size() + " block journal entries.");
+        }
+    }
+    
+    /**
+     * Pack block coordinates into a single value
+     * @param x The X coordinate
+     * @param y The Y coordinate
+     * @param z The Z coordinate
+     * @return The packed position
+     */
+    private static long pack(int x, int y, int z) {
+        return ((long) (x & 0x3FFFFFF) << 38) | ((long) (z & 0x3FFFFFF) << 12) | (y & 0xFFF);
+    }
+    
+    /**
+     * Get the X coordinate of a packed position
+     * @param position The packed position
+     * @return The X coordinate
+     */
+    private static int unpackX(long position) {
+        return (int) (position >> 38);
+    }
+    
+    /**
+     * Get the Y coordinate of a packed position
+     * @param position The packed position
+     * @return The Y coordinate
+     */
+    private static int unpackY(long position) {
+        return (int) (position << 52 >> 52);
+    }
+    
+    /**
+     * Get the Z coordinate of a packed position
+     * @param position The packed position
+     * @return The Z coordinate
+     */
+    private static int unpackZ(long position) {
+        return (int) (position << 26 >> 38);
+    }
+    
+    /**
+     * A block change read from the journal
+     */
+    public static final class BlockChange {
+        
+        private final String worldName;
+        private final int x;
+        private final int y;
+        private final int z;
+        private final UUID actor;
+        private final String oldData;
+        private final String newData;
+        private final long time;
+        
+        private BlockChange(String worldName, int x, int y, int z, UUID actor, String oldData, String newData, long time) {
+            this.worldName = worldName;
+            this.x = x;
+            this.y = y;
+            this.z = z;
+            this.actor = actor;
+            this.oldData = oldData;
+            this.newData = newData;
+            this.time = time;
+        }
+        
+        /**
+         * Get the world name
+         * @return The world name
+         */
+        public String getWorldName() {
+            return worldName;
+        }
+        
+        /**
+         * Get the X coordinate
+         * @return The X coordinate
+         */
+        public int getX() {
+            return x;
+        }
+        
+        /**
+         * Get the Y coordinate
+         * @return The Y coordinate
+         */
+        public int getY() {
+            return y;
+        }
+        
+        /**
+         * Get the Z coordinate
+         * @return The Z coordinate
+         */
+        public int getZ() {
+            return z;
+        }
+        
+        /**
+         * Get the player who changed the block
+         * @return The player UUID
+         */
+        public UUID getActor() {
+            return actor;
+        }
+        
+        /**
+         * Get the block data before the change
+         * @return The block data string
+         */
+        public String getOldData() {
+            return oldData;
+        }
+        
+        /**
+         * Get the block data after the change
+         * @return The block data string
+         */
+        public String getNewData() {
+            return newData;
+        }
+        
+        /**
+         * Get the time of the change
+         * @return The time in milliseconds
+         */
+        public long getTime() {
+            return time;
+        }
+    }
+}
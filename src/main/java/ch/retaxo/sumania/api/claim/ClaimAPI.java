@@ -2,12 +2,13 @@ package ch.retaxo.sumania.api.claim;
 
 import ch.retaxo.sumania.Sumania;
 import ch.retaxo.sumania.models.Claim;
-import org.bukkit.Bukkit;
+import ch.retaxo.sumania.models.ClaimFlag;
+import ch.retaxo.sumania.models.ClaimTrust;
 import org.bukkit.Location;
 import org.bukkit.Material;
 import org.bukkit.OfflinePlayer;
 import org.bukkit.block.Block;
-import org.bukkit.configuration.ConfigurationSection;
+import org.bukkit.block.data.BlockData;
 import org.bukkit.configuration.file.FileConfiguration;
 import org.bukkit.entity.Player;
 import org.bukkit.inventory.ItemStack;
@@ -28,97 +29,64 @@ public class ClaimAPI {
     private final Sumania plugin;
     private final Map<String, Claim> claims = new HashMap<>();
     
+    // Spatial and marker index of the claims
+    private final ClaimIndex index = new ClaimIndex();
+    
+    // Fires claim enter and leave events from player movement
+    private final ClaimPresenceTracker presenceTracker;
+    
+    // Block changes inside claims, for rollbacks
+    private final BlockJournal blockJournal;
+    
+    // Writes changed claims to the database
+    private final ClaimRepository repository;
+    
     /**
      * Constructor
      * @param plugin The plugin instance
      */
     public ClaimAPI(Sumania plugin) {
         this.plugin = plugin;
+        this.presenceTracker = new ClaimPresenceTracker(plugin);
+        this.blockJournal = new BlockJournal(plugin);
+        this.repository = new ClaimRepository(plugin);
         loadClaims();
     }
     
     /**
-     * Load all claims from the data file
+     * Write all pending claim changes and block journal entries
+     */
+    public void shutdown() {
+        repository.shutdown();
+        blockJournal.shutdown();
+    }
+    
+    /**
+     * Load all claims from the repository
      */
     private void loadClaims() {
-        FileConfiguration data = plugin.getConfigManager().getConfig("data.yml");
-        ConfigurationSection claimsSection = data.getConfigurationSection("claims");
-        
-        if (claimsSection != null) {
-            for (String claimId : claimsSection.getKeys(false)) {
-                ConfigurationSection claimSection = claimsSection.getConfigurationSection(claimId);
-                
-                if (claimSection != null) {
-                    UUID ownerUUID = UUID.fromString(claimSection.getString("owner"));
-                    String worldName = claimSection.getString("world");
-                    int minX = claimSection.getInt("min_x");
-                    int minY = claimSection.getInt("min_y");
-                    int minZ = claimSection.getInt("min_z");
-                    int maxX = claimSection.getInt("max_x");
-                    int maxY = claimSection.getInt("max_y");
-                    int maxZ = claimSection.getInt("max_z");
-                    int markerX = claimSection.getInt("marker_x");
-                    int markerY = claimSection.getInt("marker_y");
-                    int markerZ = claimSection.getInt("marker_z");
-                    
-                    List<UUID> trustedPlayers = new ArrayList<>();
-                    List<String> trustedPlayersStr = claimSection.getStringList("trusted_players");
-                    
-                    for (String uuidStr : trustedPlayersStr) {
-                        trustedPlayers.add(UUID.fromString(uuidStr));
-                    }
-                    
-                    Claim claim = new Claim(
-                            claimId,
-                            ownerUUID,
-                            worldName,
-                            minX, minY, minZ,
-                            maxX, maxY, maxZ,
-                            markerX, markerY, markerZ,
-                            trustedPlayers
-                    );
-                    
-                    claims.put(claimId, claim);
-                }
-            }
+        for (Claim claim : repository.loadClaims(getDefaultFlags())) {
+            claims.put(claim.getId(), claim);
+            indexClaim(claim);
         }
     }
     
     /**
-     * Save all claims to the data file
+     * Add a claim to the spatial and marker indexes
+     * @param claim The claim to index
      */
-    private void saveClaims() {
-        FileConfiguration data = plugin.getConfigManager().getConfig("data.yml");
-        
-        // Clear existing claims
-        data.set("claims", null);
-        
-        // Save each claim
-        for (Claim claim : claims.values()) {
-            String claimId = claim.getId();
-            String path = "claims." + claimId;
-            
-            data.set(path + ".owner", claim.getOwnerUUID().toString());
-            data.set(path + ".world", claim.getWorldName());
-            data.set(path + ".min_x", claim.getMinX());
-            data.set(path + ".min_y", claim.getMinY());
-            data.set(path + ".min_z", claim.getMinZ());
-            data.set(path + ".max_x", claim.getMaxX());
-            data.set(path + ".max_y", claim.getMaxY());
-            data.set(path + ".max_z", claim.getMaxZ());
-            data.set(path + ".marker_x", claim.getMarkerX());
-            data.set(path + ".marker_y", claim.getMarkerY());
-            data.set(path + ".marker_z", claim.getMarkerZ());
-            
-            List<String> trustedPlayersStr = new ArrayList<>();
-            for (UUID uuid : claim.getTrustedPlayers()) {
-                trustedPlayersStr.add(uuid.toString());
-            }
-            
-            data.set(path + ".trusted_players", trustedPlayersStr);
-        }
-        
-        plugin.getConfigManager().saveConfig("data.yml");
+    private void indexClaim(Claim claim) {
+        index.add(claim);
+        presenceTracker.invalidate(claim.getWorldName());
+    }
+    
+    /**
+     * Remove a claim from the spatial and marker indexes
+     * @param claim The claim to remove
+     */
+    private void unindexClaim(Claim claim) {
+        index.remove(claim);
+        presenceTracker.invalidate(claim.getWorldName());
     }
     
     /**
@@ -173,14 +141,10 @@ public class ClaimAPI {
         int maxY = Math.min(255, markerY + radius);
         int maxZ = markerZ + radius;
         
-        // Check if claim overlaps with existing claims
-        for (Claim existingClaim : claims.values()) {
-            if (existingClaim.getWorldName().equals(block.getWorld().getName())) {
-                if (existingClaim.overlaps(minX, minY, minZ, maxX, maxY, maxZ)) {
-                    plugin.getAPI().getPlayerAPI().sendMessage(player, "claim.claim-overlap");
-                    return null;
-                }
-            }
+        // Check if claim overlaps with existing claims in the affected chunks
+        if (index.overlapsAny(block.getWorld().getName(), minX, minY, minZ, maxX, maxY, maxZ)) {
+            plugin.getAPI().getPlayerAPI().sendMessage(player, "claim.claim-overlap");
+            return null;
         }
         
         // Generate claim ID
@@ -194,14 +158,16 @@ public class ClaimAPI {
                 minX, minY, minZ,
                 maxX, maxY, maxZ,
                 markerX, markerY, markerZ,
-                new ArrayList<>()
+                new HashMap<>(),
+                getDefaultFlags()
         );
         
-        // Add claim to map
+        // Add claim to map and indexes
         claims.put(claimId, claim);
+        indexClaim(claim);
         
-        // Save claims
-        saveClaims();
+        // Save claim
+        repository.saveClaim(claim);
         
         // Send success message
         plugin.getAPI().getPlayerAPI().sendMessage(player, "claim.claim-created");
@@ -217,7 +183,8 @@ public class ClaimAPI {
     public boolean deleteClaim(Claim claim) {
         if (claims.containsKey(claim.getId())) {
             claims.remove(claim.getId());
-            saveClaims();
+            unindexClaim(claim);
+            repository.deleteClaim(claim);
             return true;
         }
         
@@ -230,15 +197,39 @@ public class ClaimAPI {
      * @return The claim at the location, or null if no claim exists
      */
     public Claim getClaimAt(Location location) {
-        for (Claim claim : claims.values()) {
-            if (claim.getWorldName().equals(location.getWorld().getName())) {
-                if (claim.contains(location.getBlockX(), location.getBlockY(), location.getBlockZ())) {
-                    return claim;
-                }
-            }
-        }
-        
-        return null;
+        return getClaimAt(location.getWorld().getName(), location.getBlockX(), location.getBlockY(), location.getBlockZ());
+    }
+    
+    /**
+     * Get a claim at a block
+     * @param block The block
+     * @return The claim at the block, or null if no claim exists
+     */
+    public Claim getClaimAt(Block block) {
+        return getClaimAt(block.getWorld().getName(), block.getX(), block.getY(), block.getZ());
+    }
+    
+    /**
+     * Get a claim at block coordinates
+     * @param worldName The world name
+     * @param x The X coordinate
+     * @param y The Y coordinate
+     * @param z The Z coordinate
+     * @return The claim at the coordinates, or null if no claim exists
+     */
+    private Claim getClaimAt(String worldName, int x, int y, int z) {
+        return index.getClaimAt(worldName, x, y, z);
+    }
+    
+    /**
+     * Get the claims touching a chunk
+     * @param worldName The world name
+     * @param chunkX The chunk X coordinate
+     * @param chunkZ The chunk Z coordinate
+     * @return The claims, empty if there are none
+     */
+    List<Claim> getClaimsInChunk(String worldName, int chunkX, int chunkZ) {
+        return index.getClaimsInChunk(worldName, chunkX, chunkZ);
     }
     
     /**
@@ -247,15 +238,7 @@ public class ClaimAPI {
      * @return The claim, or null if not found
      */
     public Claim getClaimByMarker(Location location) {
-        for (Claim claim : claims.values()) {
-            if (claim.getWorldName().equals(location.getWorld().getName())) {
-                if (claim.isMarkerBlock(location.getBlockX(), location.getBlockY(), location.getBlockZ())) {
-                    return claim;
-                }
-            }
-        }
-        
-        return null;
+        return index.getClaimByMarker(location.getWorld().getName(), location.getBlockX(), location.getBlockY(), location.getBlockZ());
     }
     
     /**
@@ -282,37 +265,58 @@ public class ClaimAPI {
      * @return True if the player can build at the location
      */
     public boolean canBuild(Player player, Location location) {
+        return hasPermission(player, location, ClaimTrust.BUILD);
+    }
+    
+    /**
+     * Check if a player has a permission at a location. Constant time and allocation free,
+     * so it can be called from high frequency events.
+     * @param player The player
+     * @param location The location
+     * @param permission The required trust level
+     * @return True if there is no claim or the player has the permission in it
+     */
+    public boolean hasPermission(Player player, Location location, ClaimTrust permission) {
         Claim claim = getClaimAt(location);
-        
-        if (claim == null) {
-            return true; // No claim, so player can build
-        }
-        
-        if (claim.getOwnerUUID().equals(player.getUniqueId())) {
-            return true; // Player owns the claim
-        }
-        
-        if (claim.isTrusted(player.getUniqueId())) {
-            return true; // Player is trusted in the claim
-        }
-        
-        return false; // Player cannot build in this claim
+        return claim == null || claim.hasPermission(player.getUniqueId(), permission);
+    }
+    
+    /**
+     * Check if a flag allows something at a location
+     * @param location The location
+     * @param flag The flag
+     * @return True if there is no claim or the claim has the flag set
+     */
+    public boolean isAllowed(Location location, ClaimFlag flag) {
+        Claim claim = getClaimAt(location);
+        return claim == null || claim.hasFlag(flag);
     }
     
     /**
-     * Add a trusted player to a claim
+     * Add a trusted player to a claim with build trust
      * @param claim The claim
      * @param player The player to trust
      * @return True if the player was added successfully
      */
     public boolean addTrustedPlayer(Claim claim, OfflinePlayer player) {
-        if (!claim.isTrusted(player.getUniqueId())) {
-            claim.addTrustedPlayer(player.getUniqueId());
-            saveClaims();
-            return true;
+        return addTrustedPlayer(claim, player, ClaimTrust.BUILD);
+    }
+    
+    /**
+     * Trust a player on a claim, or change their trust level
+     * @param claim The claim
+     * @param player The player to trust
+     * @param trust The trust level
+     * @return True if the trust level changed
+     */
+    public boolean addTrustedPlayer(Claim claim, OfflinePlayer player, ClaimTrust trust) {
+        if (claim.getTrust(player.getUniqueId()) == trust) {
+            return false;
         }
         
-        return false;
+        claim.setTrust(player.getUniqueId(), trust);
+        repository.saveTrust(claim, player.getUniqueId());
+        return true;
     }
     
     /**
@@ -324,13 +328,41 @@ public class ClaimAPI {
     public boolean removeTrustedPlayer(Claim claim, OfflinePlayer player) {
         if (claim.isTrusted(player.getUniqueId())) {
             claim.removeTrustedPlayer(player.getUniqueId());
-            saveClaims();
+            repository.saveTrust(claim, player.getUniqueId());
             return true;
         }
         
         return false;
     }
     
+    /**
+     * Set or clear a flag of a claim
+     * @param claim The claim
+     * @param flag The flag
+     * @param value True to set the flag
+     */
+    public void setFlag(Claim claim, ClaimFlag flag, boolean value) {
+        claim.setFlag(flag, value);
+        repository.saveClaim(claim);
+    }
+    
+    /**
+     * Get the flag bits of new claims from the config
+     * @return The flag bits
+     */
+    public int getDefaultFlags() {
+        FileConfiguration config = plugin.getConfigManager().getConfig("config.yml");
+        int flags = 0;
+        
+        for (ClaimFlag flag : ClaimFlag.values()) {
+            if (config.getBoolean("protection.default-flags." + flag.getKey(), flag.getDefaultValue())) {
+                flags |= flag.getMask();
+            }
+        }
+        
+        return flags;
+    }
+    
     /**
      * Check if a player has reached their claim limit
      * @param player The player
@@ -431,8 +463,8 @@ public class ClaimAPI {
     public boolean buyClaimMarker(Player player) {
         double price = getClaimMarkerPrice();
         
-        // Check if player has enough money
-        if (plugin.getAPI().getEconomyAPI().getBalance(player) < price) {
+        // Take money from player, only if they have enough
+        if (!plugin.getAPI().getEconomyAPI().tryWithdraw(player, price, "claim_marker")) {
             Map<String, String> replacements = new HashMap<>();
             replacements.put("price", String.format("%.2f", price));
             
@@ -445,9 +477,6 @@ public class ClaimAPI {
             return false;
         }
         
-        // Take money from player
-        plugin.getAPI().getEconomyAPI().withdraw(player, price);
-        
         // Give claim marker item
         player.getInventory().addItem(createClaimMarkerItem());
         
@@ -464,6 +493,70 @@ public class ClaimAPI {
         return true;
     }
     
+    /**
+     * Get the bitmap of chunks containing any claim
+     * @return The claimed chunk map
+     */
+    public ClaimedChunkMap getClaimedChunks() {
+        return index.getClaimedChunks();
+    }
+    
+    /**
+     * Get the claim presence tracker
+     * @return The claim presence tracker
+     */
+    public ClaimPresenceTracker getPresenceTracker() {
+        return presenceTracker;
+    }
+    
+    /**
+     * Get the block change journal
+     * @return The block journal
+     */
+    public BlockJournal getBlockJournal() {
+        return blockJournal;
+    }
+    
+    /**
+     * Record a block change by a player if it happened inside a claim
+     * @param player The player who changed the block
+     * @param block The block
+     * @param before The block data before the change
+     * @param after The block data after the change
+     */
+    public void recordBlockChange(Player player, Block block, BlockData before, BlockData after) {
+        if (blockJournal.isEnabled() && getClaimAt(block) != null) {
+            blockJournal.record(player, block, before, after);
+        }
+    }
+    
+    /**
+     * Roll back the block changes of a player in the claims the executor may manage
+     * @param executor The player running the rollback
+     * @param target The player whose changes are undone
+     * @param since The earliest time in milliseconds
+     */
+    public void rollback(Player executor, OfflinePlayer target, long since) {
+        boolean admin = executor.hasPermission("sumania.claim.admin");
+        
+        blockJournal.getChanges(target.getUniqueId(), since, changes -> {
+            if (changes == null) {
+                plugin.getAPI().getPlayerAPI().sendMessage(executor, "claim.rollback-failed");
+                return;
+            }
+            
+            if (changes.isEmpty()) {
+                Map<String, String> replacements = new HashMap<>();
+                replacements.put("player", target.getName() != null ? target.getName() : target.getUniqueId().toString());
+                
+                plugin.getAPI().getPlayerAPI().sendMessage(executor, "claim.rollback-nothing", replacements);
+                return;
+            }
+            
+            new ClaimRollback(plugin, executor, admin, changes).start();
+        });
+    }
+    
     /**
      * Get the trusted players of a claim
      * @param claim The claim
@@ -471,7 +564,7 @@ public class ClaimAPI {
      */
     public List<String> getTrustedPlayerNames(Claim claim) {
         return claim.getTrustedPlayers().stream()
-                .map(uuid -> Bukkit.getOfflinePlayer(uuid).getName())
+                .map(uuid -> plugin.getAPI().getNameService().getName(uuid))
                 .filter(name -> name != null)
                 .collect(Collectors.toList());
     }
@@ -0,0 +1,182 @@
+package ch.retaxo.sumania.api.claim;
+
+import ch.retaxo.sumania.models.Claim;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Spatial index of the loaded claims. Claims are bucketed per world by the chunks they cover,
+ * marker blocks are keyed by their packed block position.
+ * Must only be used from the main thread.
+ */
+class ClaimIndex {
+
+    // World name -> chunk key -> claims touching that chunk
+    private final Map<String, Map<Long, List<Claim>>> chunkIndex = new HashMap<>();
+    
+    // Chunks touched by any claim, for a fast reject before the chunk index
+    private final ClaimedChunkMap claimedChunks = new ClaimedChunkMap();
+    
+    // World name -> block key -> claim
+    private final Map<String, Map<Long, Claim>> markerIndex = new HashMap<>();
+    
+    /**
+     * Add a claim
+     * @param claim The claim to add
+     */
+    void add(Claim claim) {
+        Map<Long, List<Claim>> worldChunks = chunkIndex.computeIfAbsent(claim.getWorldName(), k -> new HashMap<>());
+        
+        for (int chunkX = claim.getMinX() >> 4; chunkX <= claim.getMaxX() >> 4; chunkX++) {
+            for (int chunkZ = claim.getMinZ() >> 4; chunkZ <= claim.getMaxZ() >> 4; chunkZ++) {
+                worldChunks.computeIfAbsent(getChunkKey(chunkX, chunkZ), k -> new ArrayList<>(1)).add(claim);
+                claimedChunks.set(claim.getWorldName(), chunkX, chunkZ, true);
+            }
+        }
+        
+        markerIndex.computeIfAbsent(claim.getWorldName(), k -> new HashMap<>())
+                .put(getBlockKey(claim.getMarkerX(), claim.getMarkerY(), claim.getMarkerZ()), claim);
+    }
+    
+    /**
+     * Remove a claim
+     * @param claim The claim to remove
+     */
+    void remove(Claim claim) {
+        Map<Long, List<Claim>> worldChunks = chunkIndex.get(claim.getWorldName());
+        
+        if (worldChunks != null) {
+            for (int chunkX = claim.getMinX() >> 4; chunkX <= claim.getMaxX() >> 4; chunkX++) {
+                for (int chunkZ = claim.getMinZ() >> 4; chunkZ <= claim.getMaxZ() >> 4; chunkZ++) {
+                    long key = getChunkKey(chunkX, chunkZ);
+                    List<Claim> bucket = worldChunks.get(key);
+                    
+                    if (bucket != null) {
+                        bucket.remove(claim);
+                        
+                        if (bucket.isEmpty()) {
+                            worldChunks.remove(key);
+                            claimedChunks.set(claim.getWorldName(), chunkX, chunkZ, false);
+                        }
+                    }
+                }
+            }
+        }
+        
+        Map<Long, Claim> worldMarkers = markerIndex.get(claim.getWorldName());
+        
+        if (worldMarkers != null) {
+            worldMarkers.remove(getBlockKey(claim.getMarkerX(), claim.getMarkerY(), claim.getMarkerZ()));
+        }
+    }
+    
+    /**
+     * Get the claim containing block coordinates
+     * @param worldName The world name
+     * @param x The X coordinate
+     * @param y The Y coordinate
+     * @param z The Z coordinate
+     * @return The claim at the coordinates, or null if no claim exists
+     */
+    Claim getClaimAt(String worldName, int x, int y, int z) {
+        if (!claimedChunks.isClaimed(worldName, x >> 4, z >> 4)) {
+            return null;
+        }
+        
+        // Only claims overlapping this chunk can contain the location
+        for (Claim claim : getClaimsInChunk(worldName, x >> 4, z >> 4)) {
+            if (claim.contains(x, y, z)) {
+                return claim;
+            }
+        }
+        
+        return null;
+    }
+    
+    /**
+     * Get the claims touching a chunk
+     * @param worldName The world name
+     * @param chunkX The chunk X coordinate
+     * @param chunkZ The chunk Z coordinate
+     * @return The claims, empty if there are none
+     */
+    List<Claim> getClaimsInChunk(String worldName, int chunkX, int chunkZ) {
+        Map<Long, List<Claim>> worldChunks = chunkIndex.get(worldName);
+        List<Claim> bucket = worldChunks != null ? worldChunks.get(getChunkKey(chunkX, chunkZ)) : null;
+        
+        return bucket != null ? bucket : Collections.emptyList();
+    }
+    
+    /**
+     * Get the claim whose marker block is at block coordinates
+     * @param worldName The world name
+     * @param x The X coordinate
+     * @param y The Y coordinate
+     * @param z The Z coordinate
+     * @return The claim, or null if not found
+     */
+    Claim getClaimByMarker(String worldName, int x, int y, int z) {
+        Map<Long, Claim> worldMarkers = markerIndex.get(worldName);
+        
+        return worldMarkers != null ? worldMarkers.get(getBlockKey(x, y, z)) : null;
+    }
+    
+    /**
+     * Check if a box overlaps any claim
+     * @param worldName The world name
+     * @param minX The minimum X coordinate
+     * @param minY The minimum Y coordinate
+     * @param minZ The minimum Z coordinate
+     * @param maxX The maximum X coordinate
+     * @param maxY The maximum Y coordinate
+     * @param maxZ The maximum Z coordinate
+     * @return True if the box overlaps a claim
+     */
+    boolean overlapsAny(String worldName, int minX, int minY, int minZ, int maxX, int maxY, int maxZ) {
+        // Only claims in the affected chunks can overlap
+        for (int chunkX = minX >> 4; chunkX <= maxX >> 4; chunkX++) {
+            for (int chunkZ = minZ >> 4; chunkZ <= maxZ >> 4; chunkZ++) {
+                for (Claim claim : getClaimsInChunk(worldName, chunkX, chunkZ)) {
+                    if (claim.overlaps(minX, minY, minZ, maxX, maxY, maxZ)) {
+                        return true;
+                    }
+                }
+            }
+        }
+        
+        return false;
+    }
+    
+    /**
+     * Get the bitmap of chunks containing any claim
+     * @return The claimed chunk map
+     */
+    ClaimedChunkMap getClaimedChunks() {
+        return claimedChunks;
+    }
+    
+    /**
+     * Pack chunk coordinates into a single key
+     * @param chunkX The chunk X coordinate
+     * @param chunkZ The chunk Z coordinate
+     * @return The chunk key
+     */
+    private static long getChunkKey(int chunkX, int chunkZ) {
+        return ((long) chunkX << 32) | (chunkZ & 0xFFFFFFFFL);
+    }
+    
+    /**
+     * Pack block coordinates into a single key
+     * @param x The X coordinate
+     * @param y The Y coordinate
+     * @param z The Z coordinate
+     * @return The block key
+     */
+    private static long getBlockKey(int x, int y, int z) {
+        return ((long) (x & 0x3FFFFFF) << 38) | ((long) (z & 0x3FFFFFF) << 12) | (y & 0xFFF);
+    }
+}
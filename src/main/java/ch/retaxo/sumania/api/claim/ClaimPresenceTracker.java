@@ -0,0 +1,244 @@
+package ch.retaxo.sumania.api.claim;
+
+import ch.retaxo.sumania.Sumania;
+import ch.retaxo.sumania.api.player.PlayerSession;
+import ch.retaxo.sumania.events.claim.ClaimEnterEvent;
+import ch.retaxo.sumania.events.claim.ClaimLeaveEvent;
+import ch.retaxo.sumania.models.Claim;
+import org.bukkit.Bukkit;
+import org.bukkit.Location;
+import org.bukkit.World;
+import org.bukkit.entity.Player;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
+import org.bukkit.event.Listener;
+import org.bukkit.event.player.PlayerMoveEvent;
+import org.bukkit.event.player.PlayerTeleportEvent;
+
+import java.util.List;
+
+/**
+ * Tracks which claim each player is in and fires {@link ClaimEnterEvent} and {@link ClaimLeaveEvent}.
+ * Every player has a cached cell, a box inside one chunk in which the claim lookup cannot change.
+ * Moves inside the cell cost a few comparisons, the claim index is only asked when the cell is left.
+ */
+public class ClaimPresenceTracker implements Listener {
+
+    private final Sumania plugin;
+    
+    /**
+     * Constructor
+     * @param plugin The plugin instance
+     */
+    public ClaimPresenceTracker(Sumania plugin) {
+        this.plugin = plugin;
+    }
+    
+    /**
+     * Handle player move event
+     * @param event The event
+     */
+    @EventHandler(priority = EventPriority.HIGH, ignoreCancelled = true)
+    public void onPlayerMove(PlayerMoveEvent event) {
+        track(event);
+    }
+    
+    /**
+     * Handle player teleport event
+     * @param event The event
+     */
+    @EventHandler(priority = EventPriority.HIGH, ignoreCancelled = true)
+    public void onPlayerTeleport(PlayerTeleportEvent event) {
+        track(event);
+    }
+    
+    /**
+     * Update the claim of a player that moved
+     * @param event The move or teleport event
+     */
+    private void track(PlayerMoveEvent event) {
+        Player player = event.getPlayer();
+        Location to = event.getTo();
+        PlayerSession session = plugin.getAPI().getPlayerAPI().getSession(player);
+        Cell cell = session.getClaimCell();
+        
+        // Still inside the cached cell, nothing can have changed
+        if (cell != null && cell.contains(to)) {
+            return;
+        }
+        
+        Claim previousClaim = cell != null ? cell.claim : null;
+        Cell newCell = resolve(to);
+        
+        if (newCell.claim == previousClaim) {
+            session.setClaimCell(newCell);
+            return;
+        }
+        
+        if (newCell.claim != null) {
+            ClaimEnterEvent enterEvent = new ClaimEnterEvent(player, newCell.claim, previousClaim);
+            Bukkit.getPluginManager().callEvent(enterEvent);
+            
+            // Block the move, unless the player already stood inside (e.g. after joining)
+            if (enterEvent.isCancelled() && !newCell.claim.contains(
+                    event.getFrom().getBlockX(), event.getFrom().getBlockY(), event.getFrom().getBlockZ())) {
+                event.setCancelled(true);
+                return;
+            }
+        }
+        
+        session.setClaimCell(newCell);
+        
+        if (previousClaim != null) {
+            Bukkit.getPluginManager().callEvent(new ClaimLeaveEvent(player, previousClaim, newCell.claim));
+        }
+    }
+    
+    /**
+     * Find the claim at a location and the cell around it with the same result
+     * @param location The location
+     * @return The cell
+     */
+    private Cell resolve(Location location) {
+        World world = location.getWorld();
+        int x = location.getBlockX();
+        int y = location.getBlockY();
+        int z = location.getBlockZ();
+        int chunkMinX = (x >> 4) << 4;
+        int chunkMinZ = (z >> 4) << 4;
+        
+        // Start with the whole chunk column, claims are indexed per chunk
+        Cell cell = new Cell(world, null,
+                chunkMinX, Integer.MIN_VALUE, chunkMinZ,
+                chunkMinX + 15, Integer.MAX_VALUE, chunkMinZ + 15);
+        
+        List<Claim> claims = plugin.getAPI().getClaimAPI().getClaimsInChunk(world.getName(), x >> 4, z >> 4);
+        
+        if (claims.isEmpty()) {
+            return cell;
+        }
+        
+        // Inside a claim, the cell is the part of the claim in this chunk
+        for (Claim claim : claims) {
+            if (claim.contains(x, y, z)) {
+                cell.claim = claim;
+                cell.clamp(claim.getMinX(), claim.getMinY(), claim.getMinZ(),
+                        claim.getMaxX(), claim.getMaxY(), claim.getMaxZ());
+                return cell;
+            }
+        }
+        
+        // Outside, the cell is a cube closer than the nearest claim boundary
+        int nearest = Integer.MAX_VALUE;
+        for (Claim claim : claims) {
+            nearest = Math.min(nearest, distance(claim, x, y, z));
+        }
+        
+        int radius = nearest - 1;
+        cell.clamp(x - radius, y - radius, z - radius, x + radius, y + radius, z + radius);
+        
+        return cell;
+    }
+    
+    /**
+     * Get the Chebyshev distance from a block outside a claim to the claim
+     * @param claim The claim
+     * @param x The X coordinate
+     * @param y The Y coordinate
+     * @param z The Z coordinate
+     * @return The distance in blocks, at least 1
+     */
+    private static int distance(Claim claim, int x, int y, int z) {
+        int dx = Math.max(0, Math.max(claim.getMinX() - x, x - claim.getMaxX()));
+        int dy = Math.max(0, Math.max(claim.getMinY() - y, y - claim.getMaxY()));
+        int dz = Math.max(0, Math.max(claim.getMinZ() - z, z - claim.getMaxZ()));
+        
+        return Math.max(dx, Math.max(dy, dz));
+    }
+    
+    /**
+     * Force all players in a world to re-resolve their claim on the next move,
+     * e.g. after a claim was created or deleted there
+     * @param worldName The world name
+     */
+    void invalidate(String worldName) {
+        for (Player player : Bukkit.getOnlinePlayers()) {
+            if (!player.getWorld().getName().equals(worldName)) {
+                continue;
+            }
+            
+            PlayerSession session = plugin.getAPI().getPlayerAPI().findSession(player.getUniqueId());
+            Cell cell = session != null ? session.getClaimCell() : null;
+            
+            if (cell != null) {
+                cell.invalidate();
+            }
+        }
+    }
+    
+    /**
+     * A box in which the claim at every block is the same
+     */
+    public static final class Cell {
+        
+        private final World world;
+        private Claim claim;
+        private int minX, minY, minZ;
+        private int maxX, maxY, maxZ;
+        
+        private Cell(World world, Claim claim, int minX, int minY, int minZ, int maxX, int maxY, int maxZ) {
+            this.world = world;
+            this.claim = claim;
+            this.minX = minX;
+            this.minY = minY;
+            this.minZ = minZ;
+            this.maxX = maxX;
+            this.maxY = maxY;
+            this.maxZ = maxZ;
+        }
+        
+        /**
+         * Get the claim of this cell
+         * @return The claim, or null if the cell is outside of any claim
+         */
+        public Claim getClaim() {
+            return claim;
+        }
+        
+        /**
+         * Check if a location is inside this cell
+         * @param location The location
+         * @return True if the location is inside
+         */
+        private boolean contains(Location location) {
+            int x = location.getBlockX();
+            int y = location.getBlockY();
+            int z = location.getBlockZ();
+            
+            return location.getWorld() == world
+                    && x >= minX && x <= maxX
+                    && y >= minY && y <= maxY
+                    && z >= minZ && z <= maxZ;
+        }
+        
+        /**
+         * Shrink the cell to its intersection with a box
+         */
+        private void clamp(int minX, int minY, int minZ, int maxX, int maxY, int maxZ) {
+            this.minX = Math.max(this.minX, minX);
+            this.minY = Math.max(this.minY, minY);
+            this.minZ = Math.max(this.minZ, minZ);
+            this.maxX = Math.min(this.maxX, maxX);
+            this.maxY = Math.min(this.maxY, maxY);
+            this.maxZ = Math.min(this.maxZ, maxZ);
+        }
+        
+        /**
+         * Make the cell empty while keeping its claim, so the next move re-resolves
+         */
+        private void invalidate() {
+            minX = 1;
+            maxX = 0;
+        }
+    }
+}
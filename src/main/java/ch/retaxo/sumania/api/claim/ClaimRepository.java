@@ -0,0 +1,545 @@
+package ch.retaxo.sumania.api.claim;
+
+import ch.retaxo.sumania.Sumania;
+import ch.retaxo.sumania.config.ConnectionPool;
+import ch.retaxo.sumania.models.Claim;
+import ch.retaxo.sumania.models.ClaimTrust;
+import org.bukkit.configuration.ConfigurationSection;
+import org.bukkit.configuration.file.FileConfiguration;
+import org.bukkit.scheduler.BukkitTask;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Stores claims in the claims table and their trusted players in the claim_trust table.
+ * Changes only mark the affected claim or trust entry dirty. Dirty rows are written from the
+ * in-memory state in one batched transaction on the database executor, so an edit costs the same
+ * no matter how many claims exist. Claims from data.yml are migrated once on startup.
+ */
+public class ClaimRepository {
+
+    private static final long FLUSH_INTERVAL_TICKS = 20L;
+    
+    private final Sumania plugin;
+    private final String claimsTable;
+    private final String trustTable;
+    
+    // Changes since the last flush, main thread only
+    private final Set<Claim> dirtyClaims = new LinkedHashSet<>();
+    private final Set<String> deletedClaimIds = new LinkedHashSet<>();
+    private final Map<Claim, Set<UUID>> dirtyTrust = new LinkedHashMap<>();
+    
+    // Deleted claim IDs until their delete committed, so a failed older batch can't write them back
+    private final Set<String> uncommittedDeletes = new HashSet<>();
+    
+    // Batches are written one after another, in the order they were taken
+    private CompletableFuture<Void> lastWrite = CompletableFuture.completedFuture(null);
+    private BukkitTask flushTask;
+    
+    // Set if the claims could not be loaded from the database
+    private boolean readOnly;
+    
+    /**
+     * Constructor
+     * @param plugin The plugin instance
+     */
+    public ClaimRepository(Sumania plugin) {
+        this.plugin = plugin;
+        this.claimsTable = plugin.getConfigManager().getTablePrefix() + "claims";
+        this.trustTable = plugin.getConfigManager().getTablePrefix() + "claim_trust";
+        
+        flushTask = plugin.getServer().getScheduler().runTaskTimer(plugin, this::flush, FLUSH_INTERVAL_TICKS, FLUSH_INTERVAL_TICKS);
+    }
+    
+    /**
+     * Load all claims, migrating claims from data.yml first. Runs on the main thread during startup.
+     * @param defaultFlags The flags of claims saved before flags existed
+     * @return The claims
+     */
+    public List<Claim> loadClaims(int defaultFlags) {
+        try (Connection connection = plugin.getConfigManager().getDbConnection()) {
+            updateSchema(connection);
+            migrateLegacyClaims(connection, defaultFlags);
+            return queryClaims(connection);
+        } catch (SQLException e) {
+            // Keep the claims still in data.yml protected, but don't write changes next to claims that weren't loaded
+            plugin.getLogger().severe("Error loading claims: " + e.getMessage() + ". Claims are loaded from data.yml and changes will not be saved!");
+            e.printStackTrace();
+            readOnly = true;
+            return readLegacyClaims(defaultFlags);
+        }
+    }
+    
+    /**
+     * Add the columns of the claims table that were not used before
+     * @param connection The database connection
+     */
+    private void updateSchema(Connection connection) throws SQLException {
+        boolean hasClaimIdColumn;
+        try (ResultSet columns = connection.getMetaData().getColumns(null, null, claimsTable, "claim_id")) {
+            hasClaimIdColumn = columns.next();
+        }
+        
+        if (hasClaimIdColumn) {
+            return;
+        }
+        
+        // The table was created before claims were stored in it and is empty
+        try (Statement statement = connection.createStatement()) {
+            statement.executeUpdate("ALTER TABLE " + claimsTable + " ADD COLUMN claim_id VARCHAR(36) NULL");
+            statement.executeUpdate("ALTER TABLE " + claimsTable + " ADD COLUMN marker_x INTEGER NOT NULL DEFAULT 0");
+            statement.executeUpdate("ALTER TABLE " + claimsTable + " ADD COLUMN marker_y INTEGER NOT NULL DEFAULT 0");
+            statement.executeUpdate("ALTER TABLE " + claimsTable + " ADD COLUMN marker_z INTEGER NOT NULL DEFAULT 0");
+            statement.executeUpdate("ALTER TABLE " + claimsTable + " ADD COLUMN flags INTEGER NOT NULL DEFAULT 0");
+            statement.executeUpdate("CREATE UNIQUE INDEX idx_" + claimsTable + "_claim_id ON " + claimsTable + " (claim_id)");
+        }
+        
+        plugin.getLogger().info("Added claim columns to " + claimsTable);
+    }
+    
+    /**
+     * Move claims from data.yml into the database, then remove them from data.yml
+     * @param connection The database connection
+     * @param defaultFlags The flags of claims saved before flags existed
+     */
+    private void migrateLegacyClaims(Connection connection, int defaultFlags) throws SQLException {
+        List<Claim> legacyClaims = readLegacyClaims(defaultFlags);
+        
+        if (legacyClaims.isEmpty()) {
+            return;
+        }
+        
+        connection.setAutoCommit(false);
+        
+        try {
+            try (PreparedStatement claimStmt = connection.prepareStatement(getReplaceClaimSql());
+                 PreparedStatement trustStmt = connection.prepareStatement(getReplaceTrustSql())) {
+                for (Claim claim : legacyClaims) {
+                    bindClaim(claimStmt, new ClaimRow(claim));
+                    claimStmt.addBatch();
+                    
+                    for (UUID uuid : claim.getTrustedPlayers()) {
+                        bindTrust(trustStmt, claim.getId(), uuid, claim.getTrust(uuid));
+                        trustStmt.addBatch();
+                    }
+                }
+                
+                claimStmt.executeBatch();
+                trustStmt.executeBatch();
+            }
+            
+            connection.commit();
+        } catch (SQLException e) {
+            connection.rollback();
+            throw e;
+        } finally {
+            connection.setAutoCommit(true);
+        }
+        
+        // Only drop the YAML copy once the database has the claims
+        plugin.getConfigManager().getConfig("data.yml").set("claims", null);
+        plugin.getConfigManager().saveConfig("data.yml");
+        
+        plugin.getLogger().info("Migrated " + legacyClaims.size() + " claims from data.yml to the database");
+    }
+    
+    /**
+     * Read the claims stored in data.yml
+     * @param defaultFlags The flags of claims saved before flags existed
+     * @return The claims
+     */
+    private List<Claim> readLegacyClaims(int defaultFlags) {
+        FileConfiguration data = plugin.getConfigManager().getConfig("data.yml");
+        ConfigurationSection claimsSection = data.getConfigurationSection("claims");
+        List<Claim> legacyClaims = new ArrayList<>();
+        
+        if (claimsSection == null) {
+            return legacyClaims;
+        }
+        
+        for (String claimId : claimsSection.getKeys(false)) {
+            ConfigurationSection claimSection = claimsSection.getConfigurationSection(claimId);
+            
+            if (claimSection == null) {
+                continue;
+            }
+            
+            Map<UUID, ClaimTrust> trustedPlayers = new HashMap<>();
+            
+            // Players trusted before trust levels existed could build
+            for (String uuidStr : claimSection.getStringList("trusted_players")) {
+                trustedPlayers.put(UUID.fromString(uuidStr), ClaimTrust.BUILD);
+            }
+            
+            ConfigurationSection trustSection = claimSection.getConfigurationSection("trust");
+            if (trustSection != null) {
+                for (String uuidStr : trustSection.getKeys(false)) {
+                    ClaimTrust trust = ClaimTrust.fromKey(trustSection.getString(uuidStr, ""));
+                    
+                    if (trust != null) {
+                        trustedPlayers.put(UUID.fromString(uuidStr), trust);
+                    }
+                }
+            }
+            
+            legacyClaims.add(new Claim(
+                    claimId,
+                    UUID.fromString(claimSection.getString("owner")),
+                    claimSection.getString("world"),
+                    claimSection.getInt("min_x"), claimSection.getInt("min_y"), claimSection.getInt("min_z"),
+                    claimSection.getInt("max_x"), claimSection.getInt("max_y"), claimSection.getInt("max_z"),
+                    claimSection.getInt("marker_x"), claimSection.getInt("marker_y"), claimSection.getInt("marker_z"),
+                    trustedPlayers,
+                    claimSection.getInt("flags", defaultFlags)
+            ));
+        }
+        
+        return legacyClaims;
+    }
+    
+    /**
+     * Query all claims and their trusted players
+     * @param connection The database connection
+     * @return The claims
+     */
+    private List<Claim> queryClaims(Connection connection) throws SQLException {
+        // Trusted players first, grouped by claim
+        Map<String, Map<UUID, ClaimTrust>> trustByClaim = new HashMap<>();
+        
+        try (PreparedStatement stmt = connection.prepareStatement("SELECT claim_id, uuid, trust FROM " + trustTable);
+             ResultSet rs = stmt.executeQuery()) {
+            while (rs.next()) {
+                ClaimTrust trust = ClaimTrust.fromKey(rs.getString("trust"));
+                
+                if (trust != null) {
+                    trustByClaim.computeIfAbsent(rs.getString("claim_id"), k -> new HashMap<>())
+                            .put(UUID.fromString(rs.getString("uuid")), trust);
+                }
+            }
+        }
+        
+        List<Claim> loadedClaims = new ArrayList<>();
+        String sql = "SELECT claim_id, uuid, world, x1, y1, z1, x2, y2, z2, marker_x, marker_y, marker_z, flags " +
+                "FROM " + claimsTable + " WHERE claim_id IS NOT NULL";
+        
+        try (PreparedStatement stmt = connection.prepareStatement(sql);
+             ResultSet rs = stmt.executeQuery()) {
+            while (rs.next()) {
+                String claimId = rs.getString("claim_id");
+                
+                loadedClaims.add(new Claim(
+                        claimId,
+                        UUID.fromString(rs.getString("uuid")),
+                        rs.getString("world"),
+                        rs.getInt("x1"), rs.getInt("y1"), rs.getInt("z1"),
+                        rs.getInt("x2"), rs.getInt("y2"), rs.getInt("z2"),
+                        rs.getInt("marker_x"), rs.getInt("marker_y"), rs.getInt("marker_z"),
+                        trustByClaim.getOrDefault(claimId, new HashMap<>()),
+                        rs.getInt("flags")
+                ));
+            }
+        }
+        
+        plugin.getLogger().info("Loaded " + loadedClaims.size() + " claims from the database");
+        return loadedClaims;
+    }
+    
+    /**
+     * Mark a claim row as changed, e.g. after it was created or its flags changed
+     * @param claim The claim
+     */
+    public void saveClaim(Claim claim) {
+        dirtyClaims.add(claim);
+    }
+    
+    /**
+     * Mark a claim as deleted, together with its trusted players
+     * @param claim The claim
+     */
+    public void deleteClaim(Claim claim) {
+        dirtyClaims.remove(claim);
+        dirtyTrust.remove(claim);
+        deletedClaimIds.add(claim.getId());
+        uncommittedDeletes.add(claim.getId());
+    }
+    
+    /**
+     * Mark the trust entry of a player on a claim as changed
+     * @param claim The claim
+     * @param playerUUID The player UUID
+     */
+    public void saveTrust(Claim claim, UUID playerUUID) {
+        dirtyTrust.computeIfAbsent(claim, k -> new LinkedHashSet<>()).add(playerUUID);
+    }
+    
+    /**
+     * Take all changes as a batch and write it on the database executor
+     */
+    public void flush() {
+        ConnectionPool pool = plugin.getConfigManager().getConnectionPool();
+        
+        if (readOnly || (dirtyClaims.isEmpty() && deletedClaimIds.isEmpty() && dirtyTrust.isEmpty())) {
+            return;
+        }
+        
+        Batch batch = takeBatch();
+        
+        lastWrite = lastWrite
+                .handle((result, throwable) -> null)
+                .thenCompose(ignored -> pool.runAsync(connection -> writeBatch(connection, batch)))
+                .handle((result, throwable) -> {
+                    if (throwable != null) {
+                        plugin.getLogger().severe("Failed to save claims: " + throwable.getMessage());
+                    }
+                    
+                    // Tasks can't be scheduled while the plugin shuts down
+                    if (plugin.isEnabled()) {
+                        if (throwable != null) {
+                            // Mark the changes dirty again for the next flush
+                            plugin.getServer().getScheduler().runTask(plugin, () -> requeue(batch));
+                        } else {
+                            plugin.getServer().getScheduler().runTask(plugin, () -> batch.deletedClaimIds.forEach(uncommittedDeletes::remove));
+                        }
+                    }
+                    
+                    return null;
+                });
+    }
+    
+    /**
+     * Snapshot the dirty rows from the in-memory claims. Must run on the main thread.
+     * @return The batch
+     */
+    private Batch takeBatch() {
+        Batch batch = new Batch();
+        
+        for (Claim claim : dirtyClaims) {
+            batch.claims.add(claim);
+            batch.claimRows.add(new ClaimRow(claim));
+        }
+        
+        batch.deletedClaimIds.addAll(deletedClaimIds);
+        
+        for (Map.Entry<Claim, Set<UUID>> entry : dirtyTrust.entrySet()) {
+            Claim claim = entry.getKey();
+            
+            for (UUID uuid : entry.getValue()) {
+                batch.trustClaims.add(claim);
+                batch.trustPlayers.add(uuid);
+                batch.trustLevels.add(claim.getTrust(uuid));
+            }
+        }
+        
+        dirtyClaims.clear();
+        deletedClaimIds.clear();
+        dirtyTrust.clear();
+        return batch;
+    }
+    
+    /**
+     * Mark the changes of a failed batch dirty again, unless they were superseded.
+     * Claims deleted since are skipped even if a later batch already committed their delete.
+     * @param batch The batch
+     */
+    private void requeue(Batch batch) {
+        for (Claim claim : batch.claims) {
+            if (!uncommittedDeletes.contains(claim.getId())) {
+                dirtyClaims.add(claim);
+            }
+        }
+        
+        deletedClaimIds.addAll(batch.deletedClaimIds);
+        
+        for (int i = 0; i < batch.trustClaims.size(); i++) {
+            Claim claim = batch.trustClaims.get(i);
+            
+            if (!uncommittedDeletes.contains(claim.getId())) {
+                saveTrust(claim, batch.trustPlayers.get(i));
+            }
+        }
+    }
+    
+    /**
+     * Write a batch in one transaction
+     * @param connection The database connection
+     * @param batch The batch
+     */
+    private void writeBatch(Connection connection, Batch batch) throws SQLException {
+        connection.setAutoCommit(false);
+        
+        try {
+            if (!batch.deletedClaimIds.isEmpty()) {
+                try (PreparedStatement claimStmt = connection.prepareStatement("DELETE FROM " + claimsTable + " WHERE claim_id = ?");
+                     PreparedStatement trustStmt = connection.prepareStatement("DELETE FROM " + trustTable + " WHERE claim_id = ?")) {
+                    for (String claimId : batch.deletedClaimIds) {
+                        claimStmt.setString(1, claimId);
+                        claimStmt.addBatch();
+                        trustStmt.setString(1, claimId);
+                        trustStmt.addBatch();
+                    }
+                    
+                    claimStmt.executeBatch();
+                    trustStmt.executeBatch();
+                }
+            }
+            
+            if (!batch.claimRows.isEmpty()) {
+                try (PreparedStatement stmt = connection.prepareStatement(getReplaceClaimSql())) {
+                    for (ClaimRow row : batch.claimRows) {
+                        bindClaim(stmt, row);
+                        stmt.addBatch();
+                    }
+                    
+                    stmt.executeBatch();
+                }
+            }
+            
+            if (!batch.trustClaims.isEmpty()) {
+                try (PreparedStatement replaceStmt = connection.prepareStatement(getReplaceTrustSql());
+                     PreparedStatement deleteStmt = connection.prepareStatement(
+                             "DELETE FROM " + trustTable + " WHERE claim_id = ? AND uuid = ?")) {
+                    for (int i = 0; i < batch.trustClaims.size(); i++) {
+                        String claimId = batch.trustClaims.get(i).getId();
+                        UUID uuid = batch.trustPlayers.get(i);
+                        ClaimTrust trust = batch.trustLevels.get(i);
+                        
+                        if (trust != null) {
+                            bindTrust(replaceStmt, claimId, uuid, trust);
+                            replaceStmt.addBatch();
+                        } else {
+                            deleteStmt.setString(1, claimId);
+                            deleteStmt.setString(2, uuid.toString());
+                            deleteStmt.addBatch();
+                        }
+                    }
+                    
+                    replaceStmt.executeBatch();
+                    deleteStmt.executeBatch();
+                }
+            }
+            
+            connection.commit();
+        } catch (SQLException e) {
+            connection.rollback();
+            throw e;
+        } finally {
+            connection.setAutoCommit(true);
+        }
+    }
+    
+    /**
+     * Get the statement inserting or replacing a claim row
+     * @return The SQL
+     */
+    private String getReplaceClaimSql() {
+        return "REPLACE INTO " + claimsTable + " (claim_id, uuid, world, x1, y1, z1, x2, y2, z2, marker_x, marker_y, marker_z, flags) " +
+                "VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+    }
+    
+    /**
+     * Get the statement inserting or replacing a trust row
+     * @return The SQL
+     */
+    private String getReplaceTrustSql() {
+        return "REPLACE INTO " + trustTable + " (claim_id, uuid, trust) VALUES (?, ?, ?)";
+    }
+    
+    /**
+     * Bind a claim row to the replace statement
+     * @param stmt The statement
+     * @param row The claim row
+     */
+    private static void bindClaim(PreparedStatement stmt, ClaimRow row) throws SQLException {
+        stmt.setString(1, row.claimId);
+        stmt.setString(2, row.ownerUUID);
+        stmt.setString(3, row.worldName);
+        
+        for (int i = 0; i < row.coordinates.length; i++) {
+            stmt.setInt(4 + i, row.coordinates[i]);
+        }
+        
+        stmt.setInt(13, row.flags);
+    }
+    
+    /**
+     * Bind a trust entry to the replace statement
+     * @param stmt The statement
+     * @param claimId The claim ID
+     * @param uuid The player UUID
+     * @param trust The trust level
+     */
+    private static void bindTrust(PreparedStatement stmt, String claimId, UUID uuid, ClaimTrust trust) throws SQLException {
+        stmt.setString(1, claimId);
+        stmt.setString(2, uuid.toString());
+        stmt.setString(3, trust.getKey());
+    }
+    
+    /**
+     * Stop the flush timer and write all pending changes
+     */
+    public void shutdown() {
+        if (flushTask != null) {
+            flushTask.cancel();
+        }
+        
+        flush();
+        
+        try {
+            lastWrite.get(10, TimeUnit.SECONDS);
+        } catch (Exception e) {
+            plugin.getLogger().warning("Could not save the remaining claim changes.");
+        }
+    }
+    
+    /**
+     * The values of a claim row, copied on the main thread
+     */
+    private static final class ClaimRow {
+        
+        private final String claimId;
+        private final String ownerUUID;
+        private final String worldName;
+        private final int[] coordinates;
+        private final int flags;
+        
+        private ClaimRow(Claim claim) {
+            this.claimId = claim.getId();
+            this.ownerUUID = claim.getOwnerUUID().toString();
+            this.worldName = claim.getWorldName();
+            this.coordinates = new int[] {
+                    claim.getMinX(), claim.getMinY(), claim.getMinZ(),
+                    claim.getMaxX(), claim.getMaxY(), claim.getMaxZ(),
+                    claim.getMarkerX(), claim.getMarkerY(), claim.getMarkerZ()
+            };
+            this.flags = claim.getFlags();
+        }
+    }
+    
+    /**
+     * Changes taken in one flush. Trust entries are parallel lists, a null level deletes the entry.
+     */
+    private static final class Batch {
+        
+        private final List<Claim> claims = new ArrayList<>();
+        private final List<ClaimRow> claimRows = new ArrayList<>();
+        private final List<String> deletedClaimIds = new ArrayList<>();
+        private final List<Claim> trustClaims = new ArrayList<>();
+        private final List<UUID> trustPlayers = new ArrayList<>();
+        private final List<ClaimTrust> trustLevels = new ArrayList<>();
+    }
+}
@@ -0,0 +1,161 @@
+package ch.retaxo.sumania.api.claim;
+
+import ch.retaxo.sumania.Sumania;
+import ch.retaxo.sumania.models.Claim;
+import ch.retaxo.sumania.models.ClaimTrust;
+import org.bukkit.Bukkit;
+import org.bukkit.World;
+import org.bukkit.block.Block;
+import org.bukkit.block.data.BlockData;
+import org.bukkit.entity.Player;
+import org.bukkit.scheduler.BukkitTask;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Rolls back journaled block changes a limited number of blocks per tick.
+ * Changes are undone newest first and only where the block still shows the journaled result,
+ * so later edits by other players are kept. Unloaded chunks are loaded asynchronously before continuing.
+ */
+public class ClaimRollback {
+
+    private final Sumania plugin;
+    private final UUID executorUuid;
+    private final boolean admin;
+    private final List<BlockJournal.BlockChange> changes;
+    private final int blocksPerTick;
+    
+    // Parsed block data, journals repeat the same few states
+    private final Map<String, BlockData> parsedBlockData = new HashMap<>();
+    
+    private int index;
+    private int restored;
+    private boolean waitingForChunk;
+    private BukkitTask task;
+    
+    /**
+     * Constructor
+     * @param plugin The plugin instance
+     * @param executor The player running the rollback
+     * @param admin True if claims the executor can't manage are rolled back as well
+     * @param changes The changes to undo, newest first
+     */
+    public ClaimRollback(Sumania plugin, Player executor, boolean admin, List<BlockJournal.BlockChange> changes) {
+        this.plugin = plugin;
+        this.executorUuid = executor.getUniqueId();
+        this.admin = admin;
+        this.changes = changes;
+        this.blocksPerTick = Math.max(1, plugin.getConfigManager().getConfig("config.yml")
+                .getInt("protection.journal.rollback-blocks-per-tick", 250));
+    }
+    
+    /**
+     * Start applying the rollback on the next tick
+     */
+    public void start() {
+        task = plugin.getServer().getScheduler().runTaskTimer(plugin, this::tick, 1L, 1L);
+    }
+    
+    /**
+     * Undo the next batch of changes
+     */
+    private void tick() {
+        if (waitingForChunk) {
+            return;
+        }
+        
+        for (int budget = blocksPerTick; budget > 0 && index < changes.size(); budget--) {
+            BlockJournal.BlockChange change = changes.get(index);
+            World world = Bukkit.getWorld(change.getWorldName());
+            
+            if (world == null) {
+                index++;
+                continue;
+            }
+            
+            // Don't load chunks on the main thread, wait for the async load instead
+            if (!world.isChunkLoaded(change.getX() >> 4, change.getZ() >> 4)) {
+                waitingForChunk = true;
+                world.getChunkAtAsync(change.getX() >> 4, change.getZ() >> 4)
+                        .whenComplete((chunk, throwable) -> waitingForChunk = false);
+                return;
+            }
+            
+            index++;
+            
+            if (undo(world, change)) {
+                restored++;
+            }
+        }
+        
+        if (index >= changes.size()) {
+            finish();
+        }
+    }
+    
+    /**
+     * Undo a single change
+     * @param world The world of the change
+     * @param change The change
+     * @return True if the block was restored
+     */
+    private boolean undo(World world, BlockJournal.BlockChange change) {
+        Block block = world.getBlockAt(change.getX(), change.getY(), change.getZ());
+        Claim claim = plugin.getAPI().getClaimAPI().getClaimAt(block);
+        
+        // Only inside claims the executor may manage
+        if (claim == null || (!admin && !claim.hasPermission(executorUuid, ClaimTrust.MANAGE))) {
+            return false;
+        }
+        
+        BlockData before = parse(change.getOldData());
+        BlockData after = parse(change.getNewData());
+        
+        // Keep the block if someone changed it since
+        if (before == null || after == null || block.getType() != after.getMaterial()) {
+            return false;
+        }
+        
+        block.setBlockData(before, false);
+        return true;
+    }
+    
+    /**
+     * Parse a block data string
+     * @param data The block data string
+     * @return The block data, or null if it is invalid
+     */
+    private BlockData parse(String data) {
+        return parsedBlockData.computeIfAbsent(data, key -> {
+            try {
+                return Bukkit.createBlockData(key);
+            } catch (IllegalArgumentException e) {
+                plugin.getLogger().warning("Invalid block data in block journal: " + key);
+                return null;
+            }
+        });
+    }
+    
+    /**
+     * Stop the task and report the result
+     */
+    private void finish() {
+        task.cancel();
+        
+        Player executor = Bukkit.getPlayer(executorUuid);
+        
+        if (executor != null) {
+            Map<String, String> replacements = new HashMap<>();
+            replacements.put("count", String.valueOf(restored));
+            
+            plugin.getAPI().getPlayerAPI().sendMessage(
+                    executor,
+                    "claim.rollback-finished",
+                    replacements
+            );
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package ch.retaxo.sumania.api.claim;
+
+import org.bukkit.block.Block;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Bitmap of the chunks that contain any claim, per world.
+ * Chunks are grouped into regions of 32x32 chunks, each stored as 1024 bits, so a lookup outside
+ * claimed land is a map lookup and a bit test. The last region is cached, since block events come in bursts.
+ * Only used on the main thread.
+ */
+public class ClaimedChunkMap {
+
+    private static final int REGION_SHIFT = 5;
+    private static final int REGION_MASK = (1 << REGION_SHIFT) - 1;
+    private static final int REGION_WORDS = (1 << (REGION_SHIFT * 2)) / Long.SIZE;
+    
+    // World name -> region key -> bits of the chunks in the region
+    private final Map<String, Map<Long, long[]>> regions = new HashMap<>();
+    
+    // Last region looked up, null bits if it has no claimed chunk
+    private String lastWorldName;
+    private long lastRegionKey;
+    private long[] lastBits;
+    private boolean lastValid;
+    
+    /**
+     * Check if a chunk contains any claim
+     * @param worldName The world name
+     * @param chunkX The chunk X coordinate
+     * @param chunkZ The chunk Z coordinate
+     * @return True if a claim touches the chunk
+     */
+    public boolean isClaimed(String worldName, int chunkX, int chunkZ) {
+        long regionKey = getRegionKey(chunkX >> REGION_SHIFT, chunkZ >> REGION_SHIFT);
+        long[] bits;
+        
+        // Same region as the last lookup
+        if (lastValid && regionKey == lastRegionKey && worldName.equals(lastWorldName)) {
+            bits = lastBits;
+        } else {
+            Map<Long, long[]> worldRegions = regions.get(worldName);
+            bits = worldRegions != null ? worldRegions.get(regionKey) : null;
+            
+            lastWorldName = worldName;
+            lastRegionKey = regionKey;
+            lastBits = bits;
+            lastValid = true;
+        }
+        
+        if (bits == null) {
+            return false;
+        }
+        
+        int index = getIndex(chunkX, chunkZ);
+        return (bits[index >> 6] & (1L << index)) != 0;
+    }
+    
+    /**
+     * Check if the chunk of a block contains any claim
+     * @param block The block
+     * @return True if a claim touches the chunk of the block
+     */
+    public boolean isClaimed(Block block) {
+        return isClaimed(block.getWorld().getName(), block.getX() >> 4, block.getZ() >> 4);
+    }
+    
+    /**
+     * Mark a chunk as claimed or unclaimed
+     * @param worldName The world name
+     * @param chunkX The chunk X coordinate
+     * @param chunkZ The chunk Z coordinate
+     * @param claimed True if a claim touches the chunk
+     */
+    void set(String worldName, int chunkX, int chunkZ, boolean claimed) {
+        long regionKey = getRegionKey(chunkX >> REGION_SHIFT, chunkZ >> REGION_SHIFT);
+        int index = getIndex(chunkX, chunkZ);
+        lastValid = false;
+        
+        if (claimed) {
+            long[] bits = regions.computeIfAbsent(worldName, k -> new HashMap<>())
+                    .computeIfAbsent(regionKey, k -> new long[REGION_WORDS]);
+            bits[index >> 6] |= 1L << index;
+            return;
+        }
+        
+        Map<Long, long[]> worldRegions = regions.get(worldName);
+        long[] bits = worldRegions != null ? worldRegions.get(regionKey) : null;
+        
+        if (bits == null) {
+            return;
+        }
+        
+        bits[index >> 6] &= ~(1L << index);
+        
+        // Drop regions without any claimed chunk
+        for (long word : bits) {
+            if (word != 0) {
+                return;
+            }
+        }
+        
+        worldRegions.remove(regionKey);
+        
+        if (worldRegions.isEmpty()) {
+            regions.remove(worldName);
+        }
+    }
+    
+    /**
+     * Get the bit index of a chunk inside its region
+     * @param chunkX The chunk X coordinate
+     * @param chunkZ The chunk Z coordinate
+     * @return The index
+     */
+    private static int getIndex(int chunkX, int chunkZ) {
+        return ((chunkZ & REGION_MASK) << REGION_SHIFT) | (chunkX & REGION_MASK);
+    }
+    
+    /**
+     * Pack region coordinates into a single key
+     * @param regionX The region X coordinate
+     * @param regionZ The region Z coordinate
+     * @return The region key
+     */
+    private static long getRegionKey(int regionX, int regionZ) {
+        return ((long) regionX << 32) | (regionZ & 0xFFFFFFFFL);
+    }
+}
@@ -1,17 +1,43 @@
 package ch.retaxo.sumania.api.economy;
 
 import ch.retaxo.sumania.Sumania;
+import ch.retaxo.sumania.config.ConnectionPool;
 import org.bukkit.OfflinePlayer;
+import org.bukkit.configuration.ConfigurationSection;
 import org.bukkit.configuration.file.FileConfiguration;
+import org.bukkit.scheduler.BukkitTask;
 
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
 
 /**
- * API for economy-related operations
+ * API for economy-related operations.
+ * Balances live in an in-memory {@link Ledger} in cents and are written back to data.yml in batches.
  */
 public class EconomyAPI {
 
+    private static final int JOURNAL_BATCH_SIZE = 500;
+    
     private final Sumania plugin;
+    private final Ledger ledger;
+    private BukkitTask balanceFlushTask;
+    private BukkitTask journalFlushTask;
+    
+    // Journal batches are written one after another so ids follow the order of the changes
+    private CompletableFuture<Void> lastJournalWrite = CompletableFuture.completedFuture(null);
     
     /**
      * Constructor
@@ -19,52 +45,339 @@ public class EconomyAPI {
      */
     public EconomyAPI(Sumania plugin) {
         this.plugin = plugin;
+        
+        double startingBalance = plugin.getConfigManager().getConfig("config.yml")
+                .getDouble("economy.starting-balance", 1000.0);
+        this.ledger = new Ledger(toCents(startingBalance));
+        
+        loadBalances();
+        updateJournalSchema();
+        startFlushTasks();
     }
     
     /**
-     * Get the balance of a player
-     * @param player The player
-     * @return The player's balance
+     * Load all balances from data.yml into the ledger
      */
-    public double getBalance(OfflinePlayer player) {
+    private void loadBalances() {
         FileConfiguration data = plugin.getConfigManager().getConfig("data.yml");
-        String path = "players." + player.getUniqueId() + ".balance";
-        
-        if (data.contains(path)) {
-            return data.getDouble(path);
-        } else {
-            // If the player doesn't have a balance yet, return the starting balance
-            double startingBalance = plugin.getConfigManager().getConfig("config.yml")
-                    .getDouble("economy.starting-balance", 1000.0);
+        ConfigurationSection players = data.getConfigurationSection("players");
+        
+        if (players == null) {
+            return;
+        }
+        
+        int count = 0;
+        for (String key : players.getKeys(false)) {
+            if (!players.contains(key + ".balance")) {
+                continue;
+            }
             
-            // Set the starting balance for the player
-            setBalance(player, startingBalance);
+            try {
+                ledger.load(UUID.fromString(key), toCents(players.getDouble(key + ".balance")));
+                count++;
+            } catch (IllegalArgumentException e) {
+                plugin.getLogger().warning("Invalid player UUID in data.yml: " + key);
+            }
+        }
+        
+        plugin.getLogger().info("Loaded " + count + " balances into the ledger.");
+    }
+    
+    /**
+     * Add the columns of newer versions to an existing journal table, before the first journal write
+     */
+    private void updateJournalSchema() {
+        ConnectionPool pool = plugin.getConfigManager().getConnectionPool();
+        
+        if (pool == null) {
+            return;
+        }
+        
+        String journalTable = plugin.getConfigManager().getTablePrefix() + "economy_journal";
+        
+        lastJournalWrite = pool.runAsync(connection -> {
+            try (ResultSet columns = connection.getMetaData().getColumns(null, null, journalTable, "counterparty")) {
+                if (columns.next()) {
+                    return;
+                }
+            }
             
-            return startingBalance;
+            try (Statement statement = connection.createStatement()) {
+                statement.executeUpdate("ALTER TABLE " + journalTable + " ADD COLUMN counterparty VARCHAR(36) NULL");
+                
+                // SQLite gets the index when the tables are created
+                if (plugin.getConfigManager().getDbType().equalsIgnoreCase("mysql")) {
+                    statement.executeUpdate("CREATE INDEX idx_uuid_id ON " + journalTable + " (uuid, id)");
+                }
+            }
+            
+            plugin.getLogger().info("Added the counterparty column to the economy journal.");
+        }).exceptionally(throwable -> {
+            plugin.getLogger().severe("Failed to update the economy journal table: " + throwable.getMessage());
+            return null;
+        });
+    }
+    
+    /**
+     * Start the timers writing balances and journal entries
+     */
+    private void startFlushTasks() {
+        long intervalTicks = Math.max(1, plugin.getConfigManager().getConfig("config.yml")
+                .getLong("economy.flush-interval", 5)) * 20L;
+        
+        // Balances go into data.yml, which has to be touched on the main thread
+        balanceFlushTask = plugin.getServer().getScheduler().runTaskTimer(
+                plugin,
+                this::flushBalances,
+                intervalTicks,
+                intervalTicks
+        );
+        
+        journalFlushTask = plugin.getServer().getScheduler().runTaskTimer(
+                plugin,
+                this::flushJournalAsync,
+                intervalTicks,
+                intervalTicks
+        );
+    }
+    
+    /**
+     * Stop the timers and write all pending balances and journal entries synchronously
+     */
+    public void shutdown() {
+        if (balanceFlushTask != null) {
+            balanceFlushTask.cancel();
+        }
+        
+        if (journalFlushTask != null) {
+            journalFlushTask.cancel();
+        }
+        
+        flushBalances();
+        flushJournalAsync();
+        
+        try {
+            lastJournalWrite.get(10, TimeUnit.SECONDS);
+        } catch (Exception e) {
+            plugin.getLogger().warning("Could not write the remaining economy journal entries.");
         }
     }
     
     /**
-     * Set the balance of a player
-     * @param player The player
-     * @param amount The amount to set
+     * Get the ledger holding the balances
+     * @return The ledger
      */
-    public void setBalance(OfflinePlayer player, double amount) {
-        FileConfiguration data = plugin.getConfigManager().getConfig("data.yml");
-        String path = "players." + player.getUniqueId();
+    public Ledger getLedger() {
+        return ledger;
+    }
+    
+    /**
+     * Set the listener told about every balance change, e.g. to keep leaderboards current
+     * @param balanceListener The listener receiving the account owner and the new balance in cents
+     */
+    public void setBalanceListener(BiConsumer<UUID, Long> balanceListener) {
+        ledger.setBalanceListener(balanceListener);
+    }
+    
+    /**
+     * Call an action for every loaded balance
+     * @param action The action receiving the account owner and the balance in cents
+     */
+    public void forEachBalance(BiConsumer<UUID, Long> action) {
+        ledger.forEachBalance(action);
+    }
+    
+    /**
+     * Write changed balances into data.yml. Must run on the main thread.
+     */
+    private void flushBalances() {
+        Map<UUID, Long> balances = ledger.drainDirtyBalances();
         
-        // Ensure player exists in data file
-        if (!data.contains(path + ".name")) {
-            data.set(path + ".name", player.getName());
+        if (balances.isEmpty()) {
+            return;
         }
         
-        // Set the balance
-        data.set(path + ".balance", amount);
+        FileConfiguration data = plugin.getConfigManager().getConfig("data.yml");
+        
+        for (Map.Entry<UUID, Long> entry : balances.entrySet()) {
+            String path = "players." + entry.getKey();
+            
+            // Ensure player exists in data file
+            if (!data.contains(path + ".name")) {
+                data.set(path + ".name", plugin.getAPI().getNameService().getName(entry.getKey()));
+            }
+            
+            data.set(path + ".balance", fromCents(entry.getValue()));
+        }
         
-        // Save the data file
         plugin.getConfigManager().saveConfig("data.yml");
     }
     
+    /**
+     * Write pending journal entries on the database executor, in batches after the previous write
+     */
+    private void flushJournalAsync() {
+        ConnectionPool pool = plugin.getConfigManager().getConnectionPool();
+        
+        if (pool == null) {
+            return;
+        }
+        
+        while (ledger.hasPendingJournal()) {
+            List<Ledger.JournalEntry> entries = ledger.drainJournal(JOURNAL_BATCH_SIZE);
+            
+            lastJournalWrite = lastJournalWrite
+                    .handle((result, throwable) -> null)
+                    .thenCompose(ignored -> pool.runAsync(connection -> writeJournal(connection, entries)))
+                    .exceptionally(throwable -> {
+                        plugin.getLogger().severe("Failed to write economy journal: " + throwable.getMessage());
+                        
+                        // Keep the entries for the next flush
+                        ledger.requeueJournal(entries);
+                        return null;
+                    });
+        }
+    }
+    
+    /**
+     * Insert journal entries in a single batch
+     * @param connection The database connection
+     * @param entries The journal entries
+     * @throws SQLException If the batch could not be written
+     */
+    private void writeJournal(Connection connection, List<Ledger.JournalEntry> entries) throws SQLException {
+        String sql = "INSERT INTO " + plugin.getConfigManager().getTablePrefix() + "economy_journal " +
+                "(transaction_id, uuid, counterparty, amount, balance, type, created_time) VALUES (?, ?, ?, ?, ?, ?, ?)";
+        
+        connection.setAutoCommit(false);
+        
+        try (PreparedStatement stmt = connection.prepareStatement(sql)) {
+            for (Ledger.JournalEntry entry : entries) {
+                stmt.setString(1, entry.getTransactionId().toString());
+                stmt.setString(2, entry.getUuid().toString());
+                
+                if (entry.getCounterparty() != null) {
+                    stmt.setString(3, entry.getCounterparty().toString());
+                } else {
+                    stmt.setNull(3, Types.VARCHAR);
+                }
+                
+                stmt.setLong(4, entry.getAmount());
+                stmt.setLong(5, entry.getBalance());
+                stmt.setString(6, entry.getType());
+                stmt.setTimestamp(7, new Timestamp(entry.getTime()));
+                stmt.addBatch();
+            }
+            
+            stmt.executeBatch();
+        }
+        
+        connection.commit();
+    }
+    
+    /**
+     * Read journal entries of a player, newest first. Pages are addressed by the last id seen,
+     * so the database seeks the (uuid, id) index instead of skipping rows.
+     * @param uuid The player UUID
+     * @param beforeId Only entries with a smaller id, or {@link Long#MAX_VALUE} for the newest
+     * @param limit The maximum number of entries
+     * @param callback Called on the main thread with the entries, or null if they could not be read
+     */
+    public void getHistory(UUID uuid, long beforeId, int limit, Consumer<List<Ledger.JournalEntry>> callback) {
+        ConnectionPool pool = plugin.getConfigManager().getConnectionPool();
+        
+        if (pool == null) {
+            callback.accept(null);
+            return;
+        }
+        
+        // Write what is pending first, then query after the last write
+        flushJournalAsync();
+        
+        lastJournalWrite
+                .handle((result, throwable) -> null)
+                .thenCompose(ignored -> pool.supplyAsync(connection -> queryHistory(connection, uuid, beforeId, limit)))
+                .whenComplete((entries, throwable) -> plugin.getServer().getScheduler().runTask(plugin, () -> {
+                    if (throwable != null) {
+                        plugin.getLogger().severe("Failed to read economy journal: " + throwable.getMessage());
+                        callback.accept(null);
+                        return;
+                    }
+                    
+                    callback.accept(entries);
+                }));
+    }
+    
+    /**
+     * Query a page of journal entries of a player
+     * @param connection The database connection
+     * @param uuid The player UUID
+     * @param beforeId Only entries with a smaller id
+     * @param limit The maximum number of entries
+     * @return The entries, newest first
+     * @throws SQLException If the query failed
+     */
+    private List<Ledger.JournalEntry> queryHistory(Connection connection, UUID uuid, long beforeId, int limit) throws SQLException {
+        String sql = "SELECT id, transaction_id, counterparty, amount, balance, type, created_time FROM " +
+                plugin.getConfigManager().getTablePrefix() + "economy_journal " +
+                "WHERE uuid = ? AND id < ? ORDER BY id DESC LIMIT ?";
+        List<Ledger.JournalEntry> entries = new ArrayList<>();
+        
+        try (PreparedStatement stmt = connection.prepareStatement(sql)) {
+            stmt.setString(1, uuid.toString());
+            stmt.setLong(2, beforeId);
+            stmt.setInt(3, limit);
+            
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    String counterparty = rs.getString("counterparty");
+                    Timestamp created = rs.getTimestamp("created_time");
+                    
+                    entries.add(new Ledger.JournalEntry(
+                            rs.getLong("id"),
+                            UUID.fromString(rs.getString("transaction_id")),
+                            uuid,
+                            counterparty != null ? UUID.fromString(counterparty) : null,
+                            rs.getLong("amount"),
+                            rs.getLong("balance"),
+                            rs.getString("type"),
+                            created != null ? created.getTime() : 0L
+                    ));
+                }
+            }
+        }
+        
+        return entries;
+    }
+    
+    /**
+     * Get the balance of a player
+     * @param player The player
+     * @return The player's balance
+     */
+    public double getBalance(OfflinePlayer player) {
+        return fromCents(ledger.getBalance(player.getUniqueId()));
+    }
+    
+    /**
+     * Set the balance of a player
+     * @param player The player
+     * @param amount The amount to set
+     */
+    public void setBalance(OfflinePlayer player, double amount) {
+        setBalance(player, amount, "set");
+    }
+    
+    /**
+     * Set the balance of a player
+     * @param player The player
+     * @param amount The amount to set
+     * @param type The transaction type for the journal
+     */
+    public void setBalance(OfflinePlayer player, double amount, String type) {
+        ledger.set(player.getUniqueId(), toCents(amount), type);
+    }
+    
     /**
      * Add money to a player's balance
      * @param player The player
@@ -72,27 +385,76 @@ public class EconomyAPI {
      * @return The new balance
      */
     public double deposit(OfflinePlayer player, double amount) {
-        double balance = getBalance(player);
-        double newBalance = balance + amount;
-        
-        setBalance(player, newBalance);
-        
-        return newBalance;
+        return deposit(player, amount, "deposit");
+    }
+    
+    /**
+     * Add money to a player's balance
+     * @param player The player
+     * @param amount The amount to add
+     * @param type The transaction type for the journal
+     * @return The new balance
+     */
+    public double deposit(OfflinePlayer player, double amount, String type) {
+        return fromCents(ledger.deposit(player.getUniqueId(), toCents(amount), type));
     }
     
     /**
-     * Remove money from a player's balance
+     * Add money to a player's balance that another player paid, e.g. the proceeds of a sale
+     * @param player The player
+     * @param amount The amount to add
+     * @param type The transaction type for the journal
+     * @param counterparty The player the money comes from, journaled as the counterparty
+     * @return The new balance
+     */
+    public double deposit(OfflinePlayer player, double amount, String type, UUID counterparty) {
+        return fromCents(ledger.deposit(player.getUniqueId(), toCents(amount), type, counterparty));
+    }
+    
+    /**
+     * Remove money from a player's balance, never going below zero
      * @param player The player
      * @param amount The amount to remove
      * @return The new balance
      */
     public double withdraw(OfflinePlayer player, double amount) {
-        double balance = getBalance(player);
-        double newBalance = Math.max(0, balance - amount);
-        
-        setBalance(player, newBalance);
-        
-        return newBalance;
+        return withdraw(player, amount, "withdraw");
+    }
+    
+    /**
+     * Remove money from a player's balance, never going below zero
+     * @param player The player
+     * @param amount The amount to remove
+     * @param type The transaction type for the journal
+     * @return The new balance
+     */
+    public double withdraw(OfflinePlayer player, double amount, String type) {
+        return fromCents(ledger.withdraw(player.getUniqueId(), toCents(amount), type));
+    }
+    
+    /**
+     * Remove money from a player's balance only if the player has enough
+     * @param player The player
+     * @param amount The amount to remove
+     * @param type The transaction type for the journal
+     * @return True if the money was removed
+     */
+    public boolean tryWithdraw(OfflinePlayer player, double amount, String type) {
+        return ledger.commit(new Ledger.Transaction(type).debit(player.getUniqueId(), toCents(amount)));
+    }
+    
+    /**
+     * Remove money from a player's balance only if the player has enough, e.g. to pay another player later
+     * @param player The player
+     * @param amount The amount to remove
+     * @param type The transaction type for the journal
+     * @param counterparty The player the money is meant for, journaled as the counterparty
+     * @return True if the money was removed
+     */
+    public boolean tryWithdraw(OfflinePlayer player, double amount, String type, UUID counterparty) {
+        return ledger.commit(new Ledger.Transaction(type)
+                .debit(player.getUniqueId(), toCents(amount))
+                .counterparty(player.getUniqueId(), counterparty));
     }
     
     /**
@@ -102,7 +464,7 @@ public class EconomyAPI {
      * @return True if the player has enough money
      */
     public boolean has(OfflinePlayer player, double amount) {
-        return getBalance(player) >= amount;
+        return ledger.getBalance(player.getUniqueId()) >= toCents(amount);
     }
     
     /**
@@ -113,14 +475,61 @@ public class EconomyAPI {
      * @return True if the transfer was successful
      */
     public boolean transfer(OfflinePlayer from, OfflinePlayer to, double amount) {
-        if (!has(from, amount)) {
-            return false;
-        }
-        
-        withdraw(from, amount);
-        deposit(to, amount);
+        return transfer(from, to, amount, "transfer");
+    }
+    
+    /**
+     * Atomically transfer money from one player to another
+     * @param from The player to take money from
+     * @param to The player to give money to
+     * @param amount The amount to transfer
+     * @param type The transaction type for the journal
+     * @return True if the transfer was successful
+     */
+    public boolean transfer(OfflinePlayer from, OfflinePlayer to, double amount, String type) {
+        long cents = toCents(amount);
         
-        return true;
+        return ledger.commit(new Ledger.Transaction(type)
+                .debit(from.getUniqueId(), cents)
+                .credit(to.getUniqueId(), cents)
+                .counterparty(from.getUniqueId(), to.getUniqueId())
+                .counterparty(to.getUniqueId(), from.getUniqueId()));
+    }
+    
+    /**
+     * Start a multi-leg transaction, applied with {@link #commit(Ledger.Transaction)}
+     * @param type The transaction type for the journal
+     * @return The transaction
+     */
+    public Ledger.Transaction newTransaction(String type) {
+        return new Ledger.Transaction(type);
+    }
+    
+    /**
+     * Atomically apply all legs of a transaction
+     * @param transaction The transaction
+     * @return True if every debited player had enough money
+     */
+    public boolean commit(Ledger.Transaction transaction) {
+        return ledger.commit(transaction);
+    }
+    
+    /**
+     * Convert an amount to cents
+     * @param amount The amount
+     * @return The amount in cents
+     */
+    public static long toCents(double amount) {
+        return Math.round(amount * 100.0);
+    }
+    
+    /**
+     * Convert cents to an amount
+     * @param cents The amount in cents
+     * @return The amount
+     */
+    public static double fromCents(long cents) {
+        return cents / 100.0;
     }
     
     /**
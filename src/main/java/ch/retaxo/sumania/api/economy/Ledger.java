@@ -0,0 +1,401 @@
+package ch.retaxo.sumania.api.economy;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.BiConsumer;
+
+/**
+ * In-memory ledger holding all balances in cents.
+ * Every change runs under striped per-account locks and is appended to a lock-free journal queue,
+ * which a single writer drains in batches.
+ */
+public class Ledger {
+
+    private static final int LOCK_STRIPES = 64;
+    
+    private final Map<UUID, Account> accounts = new ConcurrentHashMap<>();
+    private final Object[] locks = new Object[LOCK_STRIPES];
+    private final Set<UUID> dirtyAccounts = ConcurrentHashMap.newKeySet();
+    private final Queue<JournalEntry> journal = new ConcurrentLinkedQueue<>();
+    private final long startingBalance;
+    private volatile BiConsumer<UUID, Long> balanceListener;
+    
+    /**
+     * Constructor
+     * @param startingBalance The balance of new accounts in cents
+     */
+    public Ledger(long startingBalance) {
+        this.startingBalance = startingBalance;
+        
+        for (int i = 0; i < LOCK_STRIPES; i++) {
+            locks[i] = new Object();
+        }
+    }
+    
+    /**
+     * Load an existing balance without journaling it
+     * @param uuid The account owner
+     * @param balance The balance in cents
+     */
+    public void load(UUID uuid, long balance) {
+        accounts.put(uuid, new Account(balance));
+    }
+    
+    /**
+     * Set the listener told about every balance change, called under the account's lock
+     * @param balanceListener The listener receiving the account owner and the new balance in cents
+     */
+    public void setBalanceListener(BiConsumer<UUID, Long> balanceListener) {
+        this.balanceListener = balanceListener;
+    }
+    
+    /**
+     * Call an action for every balance
+     * @param action The action receiving the account owner and the balance in cents
+     */
+    public void forEachBalance(BiConsumer<UUID, Long> action) {
+        accounts.forEach((uuid, account) -> action.accept(uuid, account.balance));
+    }
+    
+    /**
+     * Get a balance, opening the account with the starting balance if needed
+     * @param uuid The account owner
+     * @return The balance in cents
+     */
+    public long getBalance(UUID uuid) {
+        return getAccount(uuid).balance;
+    }
+    
+    /**
+     * Set a balance
+     * @param uuid The account owner
+     * @param balance The new balance in cents
+     * @param type The transaction type for the journal
+     */
+    public void set(UUID uuid, long balance, String type) {
+        synchronized (lockFor(uuid)) {
+            Account account = getAccount(uuid);
+            long delta = balance - account.balance;
+            account.balance = balance;
+            record(UUID.randomUUID(), uuid, null, delta, balance, type);
+        }
+    }
+    
+    /**
+     * Add to a balance
+     * @param uuid The account owner
+     * @param amount The amount in cents
+     * @param type The transaction type for the journal
+     * @return The new balance in cents
+     */
+    public long deposit(UUID uuid, long amount, String type) {
+        return deposit(uuid, amount, type, null);
+    }
+    
+    /**
+     * Add to a balance
+     * @param uuid The account owner
+     * @param amount The amount in cents
+     * @param type The transaction type for the journal
+     * @param counterparty The player the money comes from, or null
+     * @return The new balance in cents
+     */
+    public long deposit(UUID uuid, long amount, String type, UUID counterparty) {
+        synchronized (lockFor(uuid)) {
+            Account account = getAccount(uuid);
+            account.balance += amount;
+            record(UUID.randomUUID(), uuid, counterparty, amount, account.balance, type);
+            return account.balance;
+        }
+    }
+    
+    /**
+     * Remove from a balance, never going below zero
+     * @param uuid The account owner
+     * @param amount The amount in cents
+     * @param type The transaction type for the journal
+     * @return The new balance in cents
+     */
+    public long withdraw(UUID uuid, long amount, String type) {
+        synchronized (lockFor(uuid)) {
+            Account account = getAccount(uuid);
+            long taken = Math.min(amount, account.balance);
+            account.balance -= taken;
+            record(UUID.randomUUID(), uuid, null, -taken, account.balance, type);
+            return account.balance;
+        }
+    }
+    
+    /**
+     * Atomically commit a transaction. Either all legs are applied or none.
+     * @param transaction The transaction
+     * @return True if every debited account had enough money
+     */
+    public boolean commit(Transaction transaction) {
+        if (transaction.legs.isEmpty()) {
+            return true;
+        }
+        
+        // Lock the stripes of all accounts in a fixed order to avoid deadlocks
+        TreeSet<Integer> stripes = new TreeSet<>();
+        for (UUID uuid : transaction.legs.keySet()) {
+            stripes.add(stripeOf(uuid));
+        }
+        
+        return commitLocked(transaction, new ArrayList<>(stripes), 0);
+    }
+    
+    /**
+     * Acquire the remaining stripe locks recursively, then apply the transaction
+     */
+    private boolean commitLocked(Transaction transaction, List<Integer> stripes, int index) {
+        if (index < stripes.size()) {
+            synchronized (locks[stripes.get(index)]) {
+                return commitLocked(transaction, stripes, index + 1);
+            }
+        }
+        
+        // Check all debits first
+        Map<UUID, Account> legAccounts = new HashMap<>();
+        for (Map.Entry<UUID, Long> leg : transaction.legs.entrySet()) {
+            Account account = getAccount(leg.getKey());
+            
+            if (account.balance + leg.getValue() < 0) {
+                return false;
+            }
+            
+            legAccounts.put(leg.getKey(), account);
+        }
+        
+        // Apply all legs
+        UUID transactionId = UUID.randomUUID();
+        for (Map.Entry<UUID, Long> leg : transaction.legs.entrySet()) {
+            Account account = legAccounts.get(leg.getKey());
+            account.balance += leg.getValue();
+            record(transactionId, leg.getKey(), transaction.counterparties.get(leg.getKey()), leg.getValue(), account.balance, transaction.type);
+        }
+        
+        return true;
+    }
+    
+    /**
+     * Take the accounts changed since the last call
+     * @return The changed balances in cents by account owner
+     */
+    public Map<UUID, Long> drainDirtyBalances() {
+        Map<UUID, Long> balances = new HashMap<>();
+        
+        for (UUID uuid : dirtyAccounts) {
+            dirtyAccounts.remove(uuid);
+            balances.put(uuid, getAccount(uuid).balance);
+        }
+        
+        return balances;
+    }
+    
+    /**
+     * Take journal entries that have not been persisted yet
+     * @param max The maximum number of entries
+     * @return The journal entries in order
+     */
+    public List<JournalEntry> drainJournal(int max) {
+        List<JournalEntry> entries = new ArrayList<>();
+        JournalEntry entry;
+        
+        while (entries.size() < max && (entry = journal.poll()) != null) {
+            entries.add(entry);
+        }
+        
+        return entries;
+    }
+    
+    /**
+     * Put journal entries back after a failed write
+     * @param entries The entries
+     */
+    public void requeueJournal(List<JournalEntry> entries) {
+        journal.addAll(entries);
+    }
+    
+    /**
+     * Check if there are journal entries waiting to be persisted
+     * @return True if the journal queue is not empty
+     */
+    public boolean hasPendingJournal() {
+        return !journal.isEmpty();
+    }
+    
+    /**
+     * Get an account, opening it with the starting balance if needed
+     */
+    private Account getAccount(UUID uuid) {
+        Account account = accounts.get(uuid);
+        
+        if (account == null) {
+            account = accounts.computeIfAbsent(uuid, k -> {
+                dirtyAccounts.add(k);
+                notifyListener(k, startingBalance);
+                return new Account(startingBalance);
+            });
+        }
+        
+        return account;
+    }
+    
+    /**
+     * Record a change in the journal and mark the account as changed
+     */
+    private void record(UUID transactionId, UUID uuid, UUID counterparty, long amount, long balance, String type) {
+        dirtyAccounts.add(uuid);
+        notifyListener(uuid, balance);
+        journal.add(new JournalEntry(0, transactionId, uuid, counterparty, amount, balance, type, System.currentTimeMillis()));
+    }
+    
+    /**
+     * Tell the balance listener about a new balance
+     */
+    private void notifyListener(UUID uuid, long balance) {
+        BiConsumer<UUID, Long> listener = balanceListener;
+        
+        if (listener != null) {
+            listener.accept(uuid, balance);
+        }
+    }
+    
+    private int stripeOf(UUID uuid) {
+        return (uuid.hashCode() & 0x7fffffff) % LOCK_STRIPES;
+    }
+    
+    private Object lockFor(UUID uuid) {
+        return locks[stripeOf(uuid)];
+    }
+    
+    /**
+     * A single account balance, guarded by its stripe lock
+     */
+    private static final class Account {
+        private volatile long balance;
+        
+        private Account(long balance) {
+            this.balance = balance;
+        }
+    }
+    
+    /**
+     * A multi-leg transaction. Debits and credits are netted per account.
+     * Legs only have a counterparty in the journal if one was named explicitly.
+     */
+    public static final class Transaction {
+        private final String type;
+        private final Map<UUID, Long> legs = new LinkedHashMap<>();
+        private final Map<UUID, UUID> counterparties = new HashMap<>();
+        
+        /**
+         * Constructor
+         * @param type The transaction type for the journal
+         */
+        public Transaction(String type) {
+            this.type = type;
+        }
+        
+        /**
+         * Take money from an account
+         * @param uuid The account owner
+         * @param amount The amount in cents
+         * @return This transaction
+         */
+        public Transaction debit(UUID uuid, long amount) {
+            legs.merge(uuid, -amount, Long::sum);
+            return this;
+        }
+        
+        /**
+         * Give money to an account
+         * @param uuid The account owner
+         * @param amount The amount in cents
+         * @return This transaction
+         */
+        public Transaction credit(UUID uuid, long amount) {
+            legs.merge(uuid, amount, Long::sum);
+            return this;
+        }
+        
+        /**
+         * Name the other side of an account's leg for the journal
+         * @param uuid The account owner
+         * @param counterparty The counterparty
+         * @return This transaction
+         */
+        public Transaction counterparty(UUID uuid, UUID counterparty) {
+            counterparties.put(uuid, counterparty);
+            return this;
+        }
+    }
+    
+    /**
+     * A journal entry for one leg of a transaction.
+     * The id is 0 until the entry was read back from the database, the counterparty is only set if the transaction named one.
+     */
+    public static final class JournalEntry {
+        private final long id;
+        private final UUID transactionId;
+        private final UUID uuid;
+        private final UUID counterparty;
+        private final long amount;
+        private final long balance;
+        private final String type;
+        private final long time;
+        
+        JournalEntry(long id, UUID transactionId, UUID uuid, UUID counterparty, long amount, long balance, String type, long time) {
+            this.id = id;
+            this.transactionId = transactionId;
+            this.uuid = uuid;
+            this.counterparty = counterparty;
+            this.amount = amount;
+            this.balance = balance;
+            this.type = type;
+            this.time = time;
+        }
+        
+        public long getId() {
+            return id;
+        }
+        
+        public UUID getTransactionId() {
+            return transactionId;
+        }
+        
+        public UUID getUuid() {
+            return uuid;
+        }
+        
+        public UUID getCounterparty() {
+            return counterparty;
+        }
+        
+        public long getAmount() {
+            return amount;
+        }
+        
+        public long getBalance() {
+            return balance;
+        }
+        
+        public String getType() {
+            return type;
+        }
+        
+        public long getTime() {
+            return time;
+        }
+    }
+}
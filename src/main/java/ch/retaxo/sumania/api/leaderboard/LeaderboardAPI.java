@@ -0,0 +1,140 @@
+package ch.retaxo.sumania.api.leaderboard;
+
+import ch.retaxo.sumania.Sumania;
+import ch.retaxo.sumania.api.economy.EconomyAPI;
+import org.bukkit.configuration.ConfigurationSection;
+import org.bukkit.configuration.file.FileConfiguration;
+
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * API for leaderboards of balances, kills and deaths.
+ * Every metric has a {@link RankIndex} that is filled once on startup and then updated on every change,
+ * so ranks and pages of the top list never scan the player data.
+ */
+public class LeaderboardAPI {
+
+    private final Sumania plugin;
+    private final Map<LeaderboardMetric, RankIndex> indexes = new EnumMap<>(LeaderboardMetric.class);
+    
+    /**
+     * Constructor
+     * @param plugin The plugin instance
+     * @param economyAPI The economy API, whose balances are ranked
+     */
+    public LeaderboardAPI(Sumania plugin, EconomyAPI economyAPI) {
+        this.plugin = plugin;
+        
+        for (LeaderboardMetric metric : LeaderboardMetric.values()) {
+            indexes.put(metric, new RankIndex());
+        }
+        
+        // Follow balance changes from now on, then add the balances loaded so far
+        economyAPI.setBalanceListener((uuid, balance) -> update(LeaderboardMetric.BALANCE, uuid, balance));
+        economyAPI.forEachBalance((uuid, balance) -> update(LeaderboardMetric.BALANCE, uuid, balance));
+        
+        loadStats();
+    }
+    
+    /**
+     * Load kills and deaths from data.yml
+     */
+    private void loadStats() {
+        FileConfiguration data = plugin.getConfigManager().getConfig("data.yml");
+        ConfigurationSection players = data.getConfigurationSection("players");
+        
+        if (players == null) {
+            return;
+        }
+        
+        for (String key : players.getKeys(false)) {
+            ConfigurationSection stats = players.getConfigurationSection(key + ".stats");
+            
+            if (stats == null) {
+                continue;
+            }
+            
+            try {
+                UUID uuid = UUID.fromString(key);
+                
+                if (stats.contains("kills")) {
+                    update(LeaderboardMetric.KILLS, uuid, stats.getInt("kills"));
+                }
+                
+                if (stats.contains("deaths")) {
+                    update(LeaderboardMetric.DEATHS, uuid, stats.getInt("deaths"));
+                }
+            } catch (IllegalArgumentException e) {
+                plugin.getLogger().warning("Invalid player UUID in data.yml: " + key);
+            }
+        }
+    }
+    
+    /**
+     * Set the value of a player for a metric
+     * @param metric The metric
+     * @param uuid The player UUID
+     * @param value The new value, balances in cents
+     */
+    public void update(LeaderboardMetric metric, UUID uuid, long value) {
+        indexes.get(metric).update(uuid, value);
+    }
+    
+    /**
+     * Get the rank of a player
+     * @param metric The metric
+     * @param uuid The player UUID
+     * @return The rank starting at 1, or 0 if the player is not ranked
+     */
+    public int getRank(LeaderboardMetric metric, UUID uuid) {
+        return indexes.get(metric).getRank(uuid);
+    }
+    
+    /**
+     * Get a page of the leaderboard
+     * @param metric The metric
+     * @param page The page, starting at 1
+     * @param pageSize The number of entries per page
+     * @return The entries of the page, balances in cents
+     */
+    public List<RankIndex.Entry> getPage(LeaderboardMetric metric, int page, int pageSize) {
+        return indexes.get(metric).getRange((Math.max(1, page) - 1) * pageSize, pageSize);
+    }
+    
+    /**
+     * Get the entry at a rank
+     * @param metric The metric
+     * @param rank The rank, starting at 1
+     * @return The entry, or null if there are fewer ranked players
+     */
+    public RankIndex.Entry getEntry(LeaderboardMetric metric, int rank) {
+        List<RankIndex.Entry> entries = indexes.get(metric).getRange(rank - 1, 1);
+        return rank < 1 || entries.isEmpty() ? null : entries.get(0);
+    }
+    
+    /**
+     * Get the number of ranked players
+     * @param metric The metric
+     * @return The number of players
+     */
+    public int getSize(LeaderboardMetric metric) {
+        return indexes.get(metric).size();
+    }
+    
+    /**
+     * Format a value of a metric for display
+     * @param metric The metric
+     * @param value The value, balances in cents
+     * @return The formatted value
+     */
+    public String formatValue(LeaderboardMetric metric, long value) {
+        if (metric == LeaderboardMetric.BALANCE) {
+            return plugin.getAPI().getEconomyAPI().format(EconomyAPI.fromCents(value));
+        }
+        
+        return String.valueOf(value);
+    }
+}
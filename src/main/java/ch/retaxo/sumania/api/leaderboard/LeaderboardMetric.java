@@ -0,0 +1,39 @@
+package ch.retaxo.sumania.api.leaderboard;
+
+/**
+ * A value players are ranked by
+ */
+public enum LeaderboardMetric {
+    BALANCE("balance"),
+    KILLS("kills"),
+    DEATHS("deaths");
+    
+    private final String key;
+    
+    LeaderboardMetric(String key) {
+        this.key = key;
+    }
+    
+    /**
+     * Get the key used in placeholders
+     * @return The key
+     */
+    public String getKey() {
+        return key;
+    }
+    
+    /**
+     * Get a metric by its key
+     * @param key The key
+     * @return The metric, or null if there is none with that key
+     */
+    public static LeaderboardMetric fromKey(String key) {
+        for (LeaderboardMetric metric : values()) {
+            if (metric.key.equalsIgnoreCase(key)) {
+                return metric;
+            }
+        }
+        
+        return null;
+    }
+}
@@ -0,0 +1,267 @@
+package ch.retaxo.sumania.api.leaderboard;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Order-statistic index of player scores, highest score first.
+ * A treap whose nodes know the size of their subtree, so updates, the rank of a player
+ * and the entry at a rank all take O(log n). Ties are ordered by UUID.
+ * Thread-safe, balances change on whichever thread commits a transaction.
+ */
+public class RankIndex {
+
+    private final Map<UUID, Long> scores = new HashMap<>();
+    private Node root;
+    
+    /**
+     * Set the score of a player
+     * @param uuid The player UUID
+     * @param score The new score
+     */
+    public synchronized void update(UUID uuid, long score) {
+        Long oldScore = scores.put(uuid, score);
+        
+        if (oldScore != null) {
+            if (oldScore == score) {
+                return;
+            }
+            
+            root = remove(root, oldScore, uuid);
+        }
+        
+        root = insert(root, new Node(uuid, score));
+    }
+    
+    /**
+     * Get the score of a player
+     * @param uuid The player UUID
+     * @return The score, or null if the player is not ranked
+     */
+    public synchronized Long getScore(UUID uuid) {
+        return scores.get(uuid);
+    }
+    
+    /**
+     * Get the rank of a player
+     * @param uuid The player UUID
+     * @return The rank starting at 1, or 0 if the player is not ranked
+     */
+    public synchronized int getRank(UUID uuid) {
+        Long score = scores.get(uuid);
+        
+        if (score == null) {
+            return 0;
+        }
+        
+        int before = 0;
+        Node node = root;
+        
+        while (node != null) {
+            int c = compare(score, uuid, node.score, node.uuid);
+            
+            if (c < 0) {
+                node = node.left;
+            } else if (c > 0) {
+                before += size(node.left) + 1;
+                node = node.right;
+            } else {
+                return before + size(node.left) + 1;
+            }
+        }
+        
+        return 0;
+    }
+    
+    /**
+     * Get a page of entries in rank order
+     * @param offset The number of entries to skip
+     * @param limit The maximum number of entries
+     * @return The entries
+     */
+    public synchronized List<Entry> getRange(int offset, int limit) {
+        List<Entry> entries = new ArrayList<>(Math.max(0, Math.min(limit, size(root) - offset)));
+        collect(root, Math.max(0, offset), limit, entries);
+        return entries;
+    }
+    
+    /**
+     * Get the number of ranked players
+     * @return The number of players
+     */
+    public synchronized int size() {
+        return size(root);
+    }
+    
+    /**
+     * Collect entries in order, skipping whole subtrees before the offset
+     */
+    private static void collect(Node node, int offset, int limit, List<Entry> entries) {
+        if (node == null || entries.size() >= limit) {
+            return;
+        }
+        
+        int leftSize = size(node.left);
+        
+        if (offset < leftSize) {
+            collect(node.left, offset, limit, entries);
+        }
+        
+        if (offset <= leftSize && entries.size() < limit) {
+            entries.add(new Entry(node.uuid, node.score));
+        }
+        
+        collect(node.right, Math.max(0, offset - leftSize - 1), limit, entries);
+    }
+    
+    private static Node insert(Node node, Node inserted) {
+        if (node == null) {
+            return inserted;
+        }
+        
+        if (compare(inserted.score, inserted.uuid, node.score, node.uuid) < 0) {
+            node.left = insert(node.left, inserted);
+            
+            if (node.left.priority > node.priority) {
+                node = rotateRight(node);
+            }
+        } else {
+            node.right = insert(node.right, inserted);
+            
+            if (node.right.priority > node.priority) {
+                node = rotateLeft(node);
+            }
+        }
+        
+        updateSize(node);
+        return node;
+    }
+    
+    private static Node remove(Node node, long score, UUID uuid) {
+        if (node == null) {
+            return null;
+        }
+        
+        int c = compare(score, uuid, node.score, node.uuid);
+        
+        if (c == 0) {
+            return merge(node.left, node.right);
+        }
+        
+        if (c < 0) {
+            node.left = remove(node.left, score, uuid);
+        } else {
+            node.right = remove(node.right, score, uuid);
+        }
+        
+        updateSize(node);
+        return node;
+    }
+    
+    /**
+     * Merge two treaps where every entry of the left one ranks before the right one
+     */
+    private static Node merge(Node left, Node right) {
+        if (left == null) {
+            return right;
+        }
+        
+        if (right == null) {
+            return left;
+        }
+        
+        if (left.priority > right.priority) {
+            left.right = merge(left.right, right);
+            updateSize(left);
+            return left;
+        }
+        
+        right.left = merge(left, right.left);
+        updateSize(right);
+        return right;
+    }
+    
+    private static Node rotateRight(Node node) {
+        Node pivot = node.left;
+        node.left = pivot.right;
+        pivot.right = node;
+        updateSize(node);
+        updateSize(pivot);
+        return pivot;
+    }
+    
+    private static Node rotateLeft(Node node) {
+        Node pivot = node.right;
+        node.right = pivot.left;
+        pivot.left = node;
+        updateSize(node);
+        updateSize(pivot);
+        return pivot;
+    }
+    
+    private static int size(Node node) {
+        return node != null ? node.size : 0;
+    }
+    
+    private static void updateSize(Node node) {
+        node.size = size(node.left) + size(node.right) + 1;
+    }
+    
+    /**
+     * Compare two entries, negative if the first one ranks higher
+     */
+    private static int compare(long scoreA, UUID uuidA, long scoreB, UUID uuidB) {
+        int c = Long.compare(scoreB, scoreA);
+        return c != 0 ? c : uuidA.compareTo(uuidB);
+    }
+    
+    /**
+     * A node of the treap
+     */
+    private static final class Node {
+        private final UUID uuid;
+        private final long score;
+        private final int priority = ThreadLocalRandom.current().nextInt();
+        private int size = 1;
+        private Node left;
+        private Node right;
+        
+        private Node(UUID uuid, long score) {
+            this.uuid = uuid;
+            this.score = score;
+        }
+    }
+    
+    /**
+     * A ranked player and their score
+     */
+    public static final class Entry {
+        private final UUID uuid;
+        private final long score;
+        
+        private Entry(UUID uuid, long score) {
+            this.uuid = uuid;
+            this.score = score;
+        }
+        
+        /**
+         * Get the player UUID
+         * @return The player UUID
+         */
+        public UUID getUuid() {
+            return uuid;
+        }
+        
+        /**
+         * Get the score
+         * @return The score
+         */
+        public long getScore() {
+            return score;
+        }
+    }
+}
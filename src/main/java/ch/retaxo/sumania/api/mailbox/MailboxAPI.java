@@ -0,0 +1,647 @@
+package ch.retaxo.sumania.api.mailbox;
+
+import ch.retaxo.sumania.Sumania;
+import ch.retaxo.sumania.api.economy.EconomyAPI;
+import ch.retaxo.sumania.config.ConnectionPool;
+import ch.retaxo.sumania.models.Auction;
+import ch.retaxo.sumania.models.MailboxEntry;
+import org.bukkit.Bukkit;
+import org.bukkit.OfflinePlayer;
+import org.bukkit.configuration.ConfigurationSection;
+import org.bukkit.configuration.file.FileConfiguration;
+import org.bukkit.entity.Player;
+import org.bukkit.inventory.ItemStack;
+import org.bukkit.scheduler.BukkitTask;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Per-player mailbox for items and money that can't be handed over directly.
+ * Deliveries to online players go straight into the inventory or balance, anything else becomes
+ * a mailbox row with the item in Paper's binary format. A player's rows are loaded when they join
+ * and kept in memory until they quit, so deliveries to offline players only insert a row.
+ * Database work runs on the connection pool executor in submission order. Claimed rows are deleted
+ * before anything is handed over, and deliveries whose insert failed are retried until they are stored.
+ * Must only be used from the main thread.
+ */
+public class MailboxAPI {
+
+    private static final long RESEND_INTERVAL_TICKS = 1200L;
+    
+    private final Sumania plugin;
+    private final String mailboxTable;
+    
+    // Entries of online players, the list exists from the join on even while the rows are still loading
+    private final Map<UUID, List<MailboxEntry>> mailboxes = new HashMap<>();
+    
+    // Entries taken out of a mailbox whose rows are being deleted
+    private final Set<MailboxEntry> claiming = new HashSet<>();
+    
+    // Deliveries whose insert failed, retried by a timer and kept in data.yml over a restart
+    private final List<MailboxEntry> unsent = new ArrayList<>();
+    
+    // Results of database work waiting for the main thread
+    private final Queue<Runnable> mainThreadTasks = new ConcurrentLinkedQueue<>();
+    
+    private CompletableFuture<Void> lastWrite = CompletableFuture.completedFuture(null);
+    private final BukkitTask resendTask;
+    
+    /**
+     * Constructor
+     * @param plugin The plugin instance
+     */
+    public MailboxAPI(Sumania plugin) {
+        this.plugin = plugin;
+        this.mailboxTable = plugin.getConfigManager().getTablePrefix() + "mailbox";
+        
+        // Queued first, so every later read and insert sees the current columns
+        updateSchema();
+        
+        // Deliveries the last shutdown could not store
+        loadUnsent();
+        resend();
+        
+        // Players that were online when the plugin was enabled
+        for (Player player : Bukkit.getOnlinePlayers()) {
+            open(player);
+        }
+        
+        resendTask = Bukkit.getScheduler().runTaskTimer(plugin, this::resend, RESEND_INTERVAL_TICKS, RESEND_INTERVAL_TICKS);
+    }
+    
+    /**
+     * Add the columns of newer versions to a mailbox table created before they existed
+     */
+    private void updateSchema() {
+        write(connection -> {
+            try (ResultSet columns = connection.getMetaData().getColumns(null, null, mailboxTable, "counterparty_uuid")) {
+                if (columns.next()) {
+                    return;
+                }
+            }
+            
+            try (Statement statement = connection.createStatement()) {
+                statement.executeUpdate("ALTER TABLE " + mailboxTable + " ADD COLUMN counterparty_uuid VARCHAR(36) NULL");
+            }
+            
+            plugin.getLogger().info("Added the counterparty column to the mailbox.");
+        }, "Failed to update the mailbox table");
+    }
+    
+    /**
+     * Load a player's mailbox when they join and tell them about waiting deliveries
+     * @param player The player
+     */
+    public void open(Player player) {
+        UUID uuid = player.getUniqueId();
+        List<MailboxEntry> entries = new ArrayList<>();
+        mailboxes.put(uuid, entries);
+        
+        // Queued after pending inserts, so every row written so far is part of the result
+        write(connection -> {
+            List<MailboxEntry> stored = new ArrayList<>();
+            
+            try (PreparedStatement statement = connection.prepareStatement(
+                    "SELECT id, item_blob, amount, source, counterparty_uuid, created_time FROM " + mailboxTable + " WHERE recipient_uuid = ? ORDER BY id")) {
+                statement.setString(1, uuid.toString());
+                
+                try (ResultSet result = statement.executeQuery()) {
+                    while (result.next()) {
+                        String counterparty = result.getString("counterparty_uuid");
+                        stored.add(new MailboxEntry(
+                                result.getInt("id"),
+                                uuid,
+                                result.getBytes("item_blob"),
+                                result.getDouble("amount"),
+                                result.getString("source"),
+                                counterparty != null ? UUID.fromString(counterparty) : null,
+                                result.getTimestamp("created_time").toInstant()
+                        ));
+                    }
+                }
+            }
+            
+            if (!stored.isEmpty() && plugin.isEnabled()) {
+                Bukkit.getScheduler().runTask(plugin, () -> addLoaded(uuid, entries, stored));
+            }
+        }, "Error loading mailbox of " + uuid);
+    }
+    
+    /**
+     * Add loaded rows in front of the deliveries made while they were loading
+     * @param uuid The player's UUID
+     * @param entries The list created on join
+     * @param stored The loaded rows
+     */
+    private void addLoaded(UUID uuid, List<MailboxEntry> entries, List<MailboxEntry> stored) {
+        // The player left or rejoined in the meantime
+        if (mailboxes.get(uuid) != entries) {
+            return;
+        }
+        
+        entries.addAll(0, stored);
+        
+        Player player = Bukkit.getPlayer(uuid);
+        if (player != null) {
+            player.sendMessage(plugin.getConfigManager().getPrefix() + "§aIn deinem Postfach liegen §e" + entries.size() +
+                    "§a Lieferung(en). Hole sie mit §e/ah mailbox§a ab.");
+        }
+    }
+    
+    /**
+     * Drop a player's mailbox from memory when they quit
+     * @param player The player
+     */
+    public void close(Player player) {
+        mailboxes.remove(player.getUniqueId());
+    }
+    
+    /**
+     * Count the deliveries waiting for an online player
+     * @param player The player
+     * @return The number of deliveries
+     */
+    public int count(Player player) {
+        List<MailboxEntry> entries = mailboxes.get(player.getUniqueId());
+        return entries != null ? entries.size() : 0;
+    }
+    
+    /**
+     * Deliver an item. Online players get what fits into their inventory, the rest waits in the mailbox.
+     * @param recipientUuid The recipient's UUID
+     * @param item The item
+     * @param source What the delivery is for, e.g. auction_purchase
+     */
+    public void deliverItem(UUID recipientUuid, ItemStack item, String source) {
+        Player recipient = Bukkit.getPlayer(recipientUuid);
+        
+        if (recipient == null) {
+            send(recipientUuid, Auction.encodeItem(item), 0, source, null);
+            return;
+        }
+        
+        Map<Integer, ItemStack> overflow = recipient.getInventory().addItem(item.clone());
+        
+        for (ItemStack notAdded : overflow.values()) {
+            send(recipientUuid, Auction.encodeItem(notAdded), 0, source, null);
+        }
+        
+        if (!overflow.isEmpty()) {
+            recipient.sendMessage(plugin.getConfigManager().getPrefix() + "§eDein Inventar ist voll, das Item liegt in deinem Postfach. Hole es mit §b/ah mailbox§e ab.");
+        }
+    }
+    
+    /**
+     * Deliver money. Online players are paid directly, offline players find it in their mailbox.
+     * @param recipientUuid The recipient's UUID
+     * @param amount The amount
+     * @param source What the payment is for, used as the journal type, e.g. auction_sale
+     * @param counterpartyUuid The player the money comes from, journaled as the counterparty
+     */
+    public void deliverMoney(UUID recipientUuid, double amount, String source, UUID counterpartyUuid) {
+        if (amount <= 0) {
+            return;
+        }
+        
+        Player recipient = Bukkit.getPlayer(recipientUuid);
+        
+        if (recipient != null) {
+            plugin.getAPI().getEconomyAPI().deposit(recipient, amount, source, counterpartyUuid);
+        } else {
+            send(recipientUuid, null, amount, source, counterpartyUuid);
+        }
+    }
+    
+    /**
+     * Put a delivery into a mailbox
+     * @param recipientUuid The recipient's UUID
+     * @param itemData The encoded item, or null for money
+     * @param amount The amount of money, 0 for items
+     * @param source What the delivery is for
+     * @param counterpartyUuid The player money comes from, or null
+     */
+    private void send(UUID recipientUuid, byte[] itemData, double amount, String source, UUID counterpartyUuid) {
+        MailboxEntry entry = new MailboxEntry(0, recipientUuid, itemData, amount, source, counterpartyUuid, Instant.now());
+        
+        List<MailboxEntry> entries = mailboxes.get(recipientUuid);
+        if (entries != null) {
+            entries.add(entry);
+        }
+        
+        insert(entry, false);
+    }
+    
+    /**
+     * Store a delivery. If the insert fails, the delivery leaves the mailbox and is retried later.
+     * @param entry The delivery
+     * @param retry True if the delivery is not in the recipient's mailbox yet
+     */
+    private void insert(MailboxEntry entry, boolean retry) {
+        UUID recipientUuid = entry.getRecipientUuid();
+        List<MailboxEntry> queuedFor = mailboxes.get(recipientUuid);
+        
+        write(connection -> {
+            try (PreparedStatement statement = connection.prepareStatement(
+                    "INSERT INTO " + mailboxTable + " (recipient_uuid, item_blob, amount, source, counterparty_uuid, created_time) VALUES (?, ?, ?, ?, ?, ?)",
+                    Statement.RETURN_GENERATED_KEYS)) {
+                statement.setString(1, recipientUuid.toString());
+                statement.setBytes(2, entry.getItemData());
+                statement.setDouble(3, entry.getAmount());
+                statement.setString(4, entry.getSource());
+                statement.setString(5, entry.getCounterpartyUuid() != null ? entry.getCounterpartyUuid().toString() : null);
+                statement.setTimestamp(6, Timestamp.from(entry.getCreatedTime()));
+                statement.executeUpdate();
+                
+                try (ResultSet keys = statement.getGeneratedKeys()) {
+                    if (keys.next()) {
+                        entry.setId(keys.getInt(1));
+                    }
+                }
+            }
+        }, "Error storing mailbox delivery for " + recipientUuid, stored -> {
+            List<MailboxEntry> entries = mailboxes.get(recipientUuid);
+            
+            if (stored) {
+                // A player who joined since then reads the row with the rest of their mailbox
+                if (retry && entries != null && entries == queuedFor) {
+                    entries.add(entry);
+                }
+                return;
+            }
+            
+            // A claim in progress hands the entry over or puts it back itself
+            if (claiming.contains(entry)) {
+                return;
+            }
+            
+            if (entries != null) {
+                entries.remove(entry);
+            }
+            unsent.add(entry);
+        });
+    }
+    
+    /**
+     * Retry the deliveries whose insert failed
+     */
+    private void resend() {
+        if (unsent.isEmpty()) {
+            return;
+        }
+        
+        List<MailboxEntry> retries = new ArrayList<>(unsent);
+        unsent.clear();
+        
+        for (MailboxEntry entry : retries) {
+            insert(entry, true);
+        }
+    }
+    
+    /**
+     * Hand over everything in a player's mailbox. Items are only taken out while the inventory has free
+     * slots, the rest stays. Nothing is handed over before the claimed rows are deleted, so a failed
+     * delete can't hand the same delivery over again on the next join.
+     * @param player The player
+     */
+    public void claimAll(Player player) {
+        UUID uuid = player.getUniqueId();
+        List<MailboxEntry> entries = mailboxes.get(uuid);
+        
+        if (entries == null || entries.isEmpty()) {
+            player.sendMessage(plugin.getConfigManager().getPrefix() + "§cDein Postfach ist leer.");
+            return;
+        }
+        
+        int freeSlots = 0;
+        for (ItemStack slot : player.getInventory().getStorageContents()) {
+            if (slot == null || slot.getType().isAir()) {
+                freeSlots++;
+            }
+        }
+        
+        List<MailboxEntry> claimed = new ArrayList<>();
+        List<ItemStack> items = new ArrayList<>();
+        
+        Iterator<MailboxEntry> iterator = entries.iterator();
+        while (iterator.hasNext()) {
+            MailboxEntry entry = iterator.next();
+            
+            if (entry.isItem()) {
+                if (freeSlots == 0) {
+                    continue;
+                }
+                
+                try {
+                    items.add(entry.getItem());
+                } catch (RuntimeException e) {
+                    plugin.getLogger().severe("Could not decode mailbox item " + entry.getId() + ": " + e.getMessage());
+                    continue;
+                }
+                
+                freeSlots--;
+            }
+            
+            claimed.add(entry);
+            iterator.remove();
+        }
+        
+        if (claimed.isEmpty()) {
+            player.sendMessage(plugin.getConfigManager().getPrefix() + "§cDein Inventar ist voll. Bitte schaffe zuerst Platz.");
+            return;
+        }
+        
+        claiming.addAll(claimed);
+        
+        // The IDs are read on the executor, after the inserts of the same entries. Entries without an ID
+        // have no row, their insert failed.
+        write(connection -> {
+            connection.setAutoCommit(false);
+            
+            try (PreparedStatement delete = connection.prepareStatement("DELETE FROM " + mailboxTable + " WHERE id = ?")) {
+                for (MailboxEntry entry : claimed) {
+                    if (entry.getId() != 0) {
+                        delete.setInt(1, entry.getId());
+                        delete.addBatch();
+                    }
+                }
+                
+                delete.executeBatch();
+            }
+            
+            connection.commit();
+        }, "Error writing claimed mailbox deliveries", deleted -> {
+            claiming.removeAll(claimed);
+            
+            if (deleted) {
+                handOver(uuid, claimed, items);
+            } else {
+                putBack(uuid, entries, claimed);
+            }
+        });
+    }
+    
+    /**
+     * Hand over claimed entries whose rows are deleted. Items that don't fit anymore go back into the mailbox.
+     * @param uuid The player's UUID
+     * @param claimed The claimed entries
+     * @param items The decoded items of the claimed entries, in the same order
+     */
+    private void handOver(UUID uuid, List<MailboxEntry> claimed, List<ItemStack> items) {
+        OfflinePlayer offlinePlayer = Bukkit.getOfflinePlayer(uuid);
+        Player player = offlinePlayer.getPlayer();
+        
+        // One deposit per source and counterparty keeps the journal readable
+        Map<String, Map<UUID, Double>> money = new LinkedHashMap<>();
+        List<String> itemSources = new ArrayList<>();
+        for (MailboxEntry entry : claimed) {
+            if (entry.isItem()) {
+                itemSources.add(entry.getSource());
+            } else {
+                money.computeIfAbsent(entry.getSource(), source -> new LinkedHashMap<>())
+                        .merge(entry.getCounterpartyUuid(), entry.getAmount(), Double::sum);
+            }
+        }
+        
+        EconomyAPI economyAPI = plugin.getAPI().getEconomyAPI();
+        double total = 0;
+        for (Map.Entry<String, Map<UUID, Double>> source : money.entrySet()) {
+            for (Map.Entry<UUID, Double> payment : source.getValue().entrySet()) {
+                economyAPI.deposit(offlinePlayer, payment.getValue(), source.getKey(), payment.getKey());
+                total += payment.getValue();
+            }
+        }
+        
+        int handedOver = 0;
+        for (int i = 0; i < items.size(); i++) {
+            Map<Integer, ItemStack> overflow = player != null ? player.getInventory().addItem(items.get(i)) : Map.of(0, items.get(i));
+            
+            for (ItemStack notAdded : overflow.values()) {
+                send(uuid, Auction.encodeItem(notAdded), 0, itemSources.get(i), null);
+            }
+            
+            if (overflow.isEmpty()) {
+                handedOver++;
+            }
+        }
+        
+        if (player == null || (handedOver == 0 && total == 0)) {
+            return;
+        }
+        
+        StringBuilder message = new StringBuilder(plugin.getConfigManager().getPrefix()).append("§aDu hast ");
+        if (handedOver > 0) {
+            message.append("§e").append(handedOver).append("§a Item(s)");
+        }
+        if (total > 0) {
+            message.append(handedOver > 0 ? " und " : "").append("§e").append(economyAPI.format(total));
+        }
+        message.append("§a aus deinem Postfach erhalten.");
+        player.sendMessage(message.toString());
+        
+        int remaining = count(player);
+        if (remaining > 0) {
+            player.sendMessage(plugin.getConfigManager().getPrefix() + "§e" + remaining + " Item(s) passen nicht mehr in dein Inventar und bleiben im Postfach.");
+        }
+    }
+    
+    /**
+     * Return claimed entries to the mailbox after their rows could not be deleted
+     * @param uuid The player's UUID
+     * @param entries The mailbox the entries were claimed from
+     * @param claimed The claimed entries
+     */
+    private void putBack(UUID uuid, List<MailboxEntry> entries, List<MailboxEntry> claimed) {
+        List<MailboxEntry> restored = new ArrayList<>();
+        
+        for (MailboxEntry entry : claimed) {
+            if (entry.getId() == 0) {
+                // Its insert failed, so it has no row to load on the next join
+                unsent.add(entry);
+            } else {
+                restored.add(entry);
+            }
+        }
+        
+        // A player who left or rejoined in the meantime loads the rows again
+        if (entries == mailboxes.get(uuid)) {
+            entries.addAll(0, restored);
+        }
+        
+        Player player = Bukkit.getPlayer(uuid);
+        if (player != null) {
+            player.sendMessage(plugin.getConfigManager().getPrefix() + "§cDein Postfach konnte nicht abgeholt werden. Bitte versuche es später erneut.");
+        }
+    }
+    
+    /**
+     * Run database work after the previous write
+     * @param task The database work
+     * @param error The message logged if it fails
+     */
+    private void write(ConnectionPool.SqlConsumer task, String error) {
+        write(task, error, null);
+    }
+    
+    /**
+     * Run database work after the previous write
+     * @param task The database work
+     * @param error The message logged if it fails
+     * @param callback Called on the main thread with true if the work succeeded, or null
+     */
+    private void write(ConnectionPool.SqlConsumer task, String error, Consumer<Boolean> callback) {
+        ConnectionPool pool = plugin.getConfigManager().getConnectionPool();
+        
+        if (pool == null) {
+            if (callback != null) {
+                callback.accept(false);
+            }
+            return;
+        }
+        
+        // The callback is queued before the write counts as done, so shutdown sees every result
+        lastWrite = lastWrite
+                .handle((result, throwable) -> null)
+                .thenCompose(ignored -> pool.runAsync(task))
+                .handle((result, throwable) -> {
+                    if (throwable != null) {
+                        plugin.getLogger().severe(error + ": " + throwable.getMessage());
+                    }
+                    
+                    if (callback != null) {
+                        runOnMainThread(() -> callback.accept(throwable == null));
+                    }
+                    return null;
+                });
+    }
+    
+    /**
+     * Run the result of database work on the main thread, or in shutdown once the plugin is disabled
+     * @param task The task
+     */
+    private void runOnMainThread(Runnable task) {
+        mainThreadTasks.add(task);
+        
+        if (plugin.isEnabled()) {
+            Bukkit.getScheduler().runTask(plugin, this::runMainThreadTasks);
+        }
+    }
+    
+    /**
+     * Run the queued results of database work
+     */
+    private void runMainThreadTasks() {
+        Runnable task;
+        while ((task = mainThreadTasks.poll()) != null) {
+            task.run();
+        }
+    }
+    
+    /**
+     * Queue the deliveries the last shutdown could not store for another insert
+     */
+    private void loadUnsent() {
+        FileConfiguration data = plugin.getConfigManager().getConfig("data.yml");
+        ConfigurationSection section = data.getConfigurationSection("mailbox-unsent");
+        
+        if (section == null) {
+            return;
+        }
+        
+        for (String key : section.getKeys(false)) {
+            ConfigurationSection delivery = section.getConfigurationSection(key);
+            
+            try {
+                String item = delivery.getString("item");
+                String counterparty = delivery.getString("counterparty");
+                unsent.add(new MailboxEntry(0,
+                        UUID.fromString(delivery.getString("recipient", "")),
+                        item != null ? Base64.getDecoder().decode(item) : null,
+                        delivery.getDouble("amount"),
+                        delivery.getString("source"),
+                        counterparty != null ? UUID.fromString(counterparty) : null,
+                        Instant.ofEpochMilli(delivery.getLong("created"))));
+            } catch (IllegalArgumentException | NullPointerException e) {
+                plugin.getLogger().severe("Could not read unsent mailbox delivery " + key + ": " + e.getMessage());
+            }
+        }
+        
+        data.set("mailbox-unsent", null);
+        plugin.getConfigManager().saveConfig("data.yml");
+    }
+    
+    /**
+     * Keep the deliveries that could not be stored in data.yml until the next start
+     */
+    private void saveUnsent() {
+        if (unsent.isEmpty()) {
+            return;
+        }
+        
+        FileConfiguration data = plugin.getConfigManager().getConfig("data.yml");
+        for (int i = 0; i < unsent.size(); i++) {
+            MailboxEntry entry = unsent.get(i);
+            String path = "mailbox-unsent." + i;
+            data.set(path + ".recipient", entry.getRecipientUuid().toString());
+            data.set(path + ".item", entry.isItem() ? Base64.getEncoder().encodeToString(entry.getItemData()) : null);
+            data.set(path + ".amount", entry.getAmount());
+            data.set(path + ".source", entry.getSource());
+            data.set(path + ".counterparty", entry.getCounterpartyUuid() != null ? entry.getCounterpartyUuid().toString() : null);
+            data.set(path + ".created", entry.getCreatedTime().toEpochMilli());
+        }
+        
+        plugin.getConfigManager().saveConfig("data.yml");
+        plugin.getLogger().warning("Kept " + unsent.size() + " mailbox deliveries that could not be stored in data.yml.");
+    }
+    
+    /**
+     * Wait for the pending writes
+     */
+    private void awaitWrites() {
+        try {
+            lastWrite.get(10, TimeUnit.SECONDS);
+        } catch (Exception e) {
+            plugin.getLogger().warning("Could not save all mailbox deliveries.");
+        }
+    }
+    
+    /**
+     * Wait for pending writes, keep what could not be stored and release the loaded mailboxes
+     */
+    public void shutdown() {
+        resendTask.cancel();
+        
+        // Results that arrived after the last tick, including claims to hand over and failed inserts
+        awaitWrites();
+        runMainThreadTasks();
+        
+        // Items of handed over claims that didn't fit went back into the mailbox
+        awaitWrites();
+        runMainThreadTasks();
+        
+        if (!claiming.isEmpty()) {
+            plugin.getLogger().severe(claiming.size() + " claimed mailbox deliveries could not be confirmed.");
+        }
+        
+        saveUnsent();
+        mailboxes.clear();
+    }
+}
@@ -0,0 +1,257 @@
+package ch.retaxo.sumania.api.player;
+
+import ch.retaxo.sumania.Sumania;
+import org.bukkit.Bukkit;
+import org.bukkit.OfflinePlayer;
+import org.bukkit.configuration.ConfigurationSection;
+import org.bukkit.configuration.file.FileConfiguration;
+import org.bukkit.entity.Player;
+
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+/**
+ * Resolves player names and UUIDs without blocking.
+ * Known players are kept in memory and persisted as players.&lt;uuid&gt;.name in data.yml.
+ * Misses are resolved on an async thread, since Bukkit may read the user cache or ask Mojang.
+ */
+public class NameService {
+
+    // How long a UUID that could not be resolved is not looked up in the background again
+    private static final long FAILED_LOOKUP_TTL_MS = 10 * 60 * 1000L;
+    
+    private final Sumania plugin;
+    
+    // Name by UUID and UUID by lower case name
+    private final Map<UUID, String> namesByUuid = new ConcurrentHashMap<>();
+    private final Map<String, UUID> uuidsByName = new ConcurrentHashMap<>();
+    
+    // UUIDs currently resolved in the background, so a miss is only looked up once
+    private final Set<UUID> pendingLookups = ConcurrentHashMap.newKeySet();
+    
+    // UUIDs that could not be resolved, with the time until which they are not looked up again
+    private final Map<UUID, Long> failedLookups = new ConcurrentHashMap<>();
+    
+    /**
+     * Constructor
+     * @param plugin The plugin instance
+     */
+    public NameService(Sumania plugin) {
+        this.plugin = plugin;
+        loadNames();
+    }
+    
+    /**
+     * Load all known names from data.yml and the players that are online
+     */
+    private void loadNames() {
+        FileConfiguration data = plugin.getConfigManager().getConfig("data.yml");
+        ConfigurationSection players = data.getConfigurationSection("players");
+        
+        if (players != null) {
+            for (String key : players.getKeys(false)) {
+                String name = players.getString(key + ".name");
+                
+                if (name == null) {
+                    continue;
+                }
+                
+                try {
+                    put(UUID.fromString(key), name);
+                } catch (IllegalArgumentException e) {
+                    plugin.getLogger().warning("Invalid player UUID in data.yml: " + key);
+                }
+            }
+        }
+        
+        // Players that were online when the plugin was enabled
+        for (Player player : Bukkit.getOnlinePlayers()) {
+            put(player.getUniqueId(), player.getName());
+        }
+        
+        plugin.getLogger().info("Loaded " + namesByUuid.size() + " player names.");
+    }
+    
+    /**
+     * Remember the name of a player that joined, persisting it if it changed. Must run on the main thread.
+     * @param player The player
+     */
+    public void remember(Player player) {
+        remember(player.getUniqueId(), player.getName());
+    }
+    
+    /**
+     * Remember the name of a player, persisting it if it changed. Must run on the main thread.
+     * @param uuid The player UUID
+     * @param name The player name
+     */
+    private void remember(UUID uuid, String name) {
+        if (name.equals(namesByUuid.get(uuid))) {
+            return;
+        }
+        
+        put(uuid, name);
+        failedLookups.remove(uuid);
+        
+        FileConfiguration data = plugin.getConfigManager().getConfig("data.yml");
+        data.set("players." + uuid + ".name", name);
+        plugin.getConfigManager().saveConfig("data.yml");
+    }
+    
+    /**
+     * Update both directions of the in-memory map
+     * @param uuid The player UUID
+     * @param name The player name
+     */
+    private void put(UUID uuid, String name) {
+        String oldName = namesByUuid.put(uuid, name);
+        
+        // Drop the old name, unless another player has taken it since
+        if (oldName != null) {
+            uuidsByName.remove(oldName.toLowerCase(Locale.ROOT), uuid);
+        }
+        
+        uuidsByName.put(name.toLowerCase(Locale.ROOT), uuid);
+    }
+    
+    /**
+     * Get the name of a player from memory. A miss is resolved in the background for later calls.
+     * @param uuid The player UUID
+     * @return The name, or null if it is not known yet
+     */
+    public String getName(UUID uuid) {
+        String name = namesByUuid.get(uuid);
+        
+        if (name == null) {
+            lookupName(uuid, null);
+        }
+        
+        return name;
+    }
+    
+    /**
+     * Get the name of a player from memory. A miss is resolved in the background for later calls.
+     * @param uuid The player UUID
+     * @param fallback The value returned if the name is not known yet
+     * @return The name, or the fallback
+     */
+    public String getName(UUID uuid, String fallback) {
+        String name = getName(uuid);
+        return name != null ? name : fallback;
+    }
+    
+    /**
+     * Get the UUID of a known player by name from memory
+     * @param name The player name, case-insensitive
+     * @return The UUID, or null if the name is not known
+     */
+    public UUID getUuid(String name) {
+        return uuidsByName.get(name.toLowerCase(Locale.ROOT));
+    }
+    
+    /**
+     * Resolve the name of a player
+     * @param uuid The player UUID
+     * @param callback Called on the main thread with the name, or null if the player is unknown; may be null
+     */
+    public void lookupName(UUID uuid, Consumer<String> callback) {
+        String name = namesByUuid.get(uuid);
+        
+        if (name != null) {
+            if (callback != null) {
+                callback.accept(name);
+            }
+            
+            return;
+        }
+        
+        // Background lookups without a callback only need to run once, and not again soon after they failed
+        if (callback == null && (isRecentlyFailed(uuid) || !pendingLookups.add(uuid))) {
+            return;
+        }
+        
+        plugin.getServer().getScheduler().runTaskAsynchronously(plugin, () -> {
+            String resolved = Bukkit.getOfflinePlayer(uuid).getName();
+            
+            plugin.getServer().getScheduler().runTask(plugin, () -> {
+                if (callback == null) {
+                    pendingLookups.remove(uuid);
+                }
+                
+                if (resolved != null) {
+                    failedLookups.remove(uuid);
+                    remember(uuid, resolved);
+                } else {
+                    failedLookups.put(uuid, System.currentTimeMillis() + FAILED_LOOKUP_TTL_MS);
+                }
+                
+                if (callback != null) {
+                    callback.accept(resolved);
+                }
+            });
+        });
+    }
+    
+    /**
+     * Check if a lookup of a player failed recently, dropping the entry once it expired
+     * @param uuid The player UUID
+     * @return True if the UUID should not be looked up again yet
+     */
+    private boolean isRecentlyFailed(UUID uuid) {
+        Long retryTime = failedLookups.get(uuid);
+        
+        if (retryTime == null) {
+            return false;
+        }
+        
+        if (System.currentTimeMillis() < retryTime) {
+            return true;
+        }
+        
+        failedLookups.remove(uuid, retryTime);
+        return false;
+    }
+    
+    /**
+     * Resolve a player by name, only returning players that have joined before
+     * @param name The player name, case-insensitive
+     * @param callback Called on the main thread with the player, or null if no such player has joined
+     */
+    public void lookupPlayer(String name, Consumer<OfflinePlayer> callback) {
+        // Online players and known names are answered right away
+        Player online = Bukkit.getPlayerExact(name);
+        if (online != null) {
+            callback.accept(online);
+            return;
+        }
+        
+        UUID uuid = getUuid(name);
+        if (uuid != null) {
+            callback.accept(Bukkit.getOfflinePlayer(uuid));
+            return;
+        }
+        
+        // Unknown name, resolve it off the main thread
+        plugin.getServer().getScheduler().runTaskAsynchronously(plugin, () -> {
+            OfflinePlayer resolved = Bukkit.getOfflinePlayer(name);
+            boolean known = resolved.hasPlayedBefore() || resolved.isOnline();
+            
+            plugin.getServer().getScheduler().runTask(plugin, () -> {
+                if (!known) {
+                    callback.accept(null);
+                    return;
+                }
+                
+                if (resolved.getName() != null) {
+                    remember(resolved.getUniqueId(), resolved.getName());
+                }
+                
+                callback.accept(resolved);
+            });
+        });
+    }
+}
@@ -1,6 +1,8 @@
 package ch.retaxo.sumania.api.player;
 
 import ch.retaxo.sumania.Sumania;
+import ch.retaxo.sumania.api.leaderboard.LeaderboardMetric;
+import ch.retaxo.sumania.models.Ban;
 import ch.retaxo.sumania.models.Home;
 import org.bukkit.Bukkit;
 import org.bukkit.Location;
@@ -9,8 +11,10 @@ import org.bukkit.command.CommandSender;
 import org.bukkit.configuration.ConfigurationSection;
 import org.bukkit.configuration.file.FileConfiguration;
 import org.bukkit.entity.Player;
+import org.bukkit.scheduler.BukkitTask;
 
 import java.text.SimpleDateFormat;
+import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
@@ -20,6 +24,7 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
 
 // PlaceholderAPI
 import me.clip.placeholderapi.PlaceholderAPI;
@@ -29,14 +34,71 @@ import me.clip.placeholderapi.PlaceholderAPI;
  */
 public class PlayerAPI {
 
+    private static final long BAN_RELOAD_INTERVAL_TICKS = 1200L;
+    
     private final Sumania plugin;
     
+    // Active bans by player UUID, kept in sync by banPlayer/unbanPlayer
+    private final Map<UUID, Ban> activeBans = new ConcurrentHashMap<>();
+    private volatile boolean banCacheLoaded;
+    
+    // Active bans from data.yml, checked while neither the ban cache nor the database is available
+    private final Map<UUID, Ban> legacyBans = new ConcurrentHashMap<>();
+    
+    // Ban changes on the main thread, a cache reload that raced one is thrown away
+    private int banChanges;
+    private boolean banReloadRunning;
+    private BukkitTask banReloadTask;
+    
+    // Sessions of online players, created on join and removed on quit
+    private final Map<UUID, PlayerSession> sessions = new ConcurrentHashMap<>();
+    
     /**
      * Constructor
      * @param plugin The plugin instance
      */
     public PlayerAPI(Sumania plugin) {
         this.plugin = plugin;
+        loadActiveBans();
+    }
+    
+    /**
+     * Get the session of an online player, creating it if needed
+     * (e.g. for players that were already online when the plugin was enabled)
+     * @param player The player
+     * @return The session
+     */
+    public PlayerSession getSession(Player player) {
+        return sessions.computeIfAbsent(player.getUniqueId(), PlayerSession::new);
+    }
+    
+    /**
+     * Get the session of a player without creating one
+     * @param uuid The player UUID
+     * @return The session, or null if the player has no session
+     */
+    public PlayerSession findSession(UUID uuid) {
+        return sessions.get(uuid);
+    }
+    
+    /**
+     * Open the session for a player that joined
+     * @param player The player
+     */
+    public void openSession(Player player) {
+        getSession(player);
+    }
+    
+    /**
+     * Close the session of a player that quit
+     * @param player The player
+     */
+    public void closeSession(Player player) {
+        PlayerSession session = sessions.remove(player.getUniqueId());
+        
+        if (session != null) {
+            session.release();
+        }
     }
     
     /**
@@ -323,6 +385,7 @@ public class PlayerAPI {
         
         // Set the kills
         data.set(path + ".stats.kills", kills);
+        updateLeaderboard(LeaderboardMetric.KILLS, player, kills);
         
         // Save the data file
         plugin.getConfigManager().saveConfig("data.yml");
@@ -368,6 +431,7 @@ public class PlayerAPI {
         
         // Set the deaths
         data.set(path + ".stats.deaths", deaths);
+        updateLeaderboard(LeaderboardMetric.DEATHS, player, deaths);
         
         // Save the data file
         plugin.getConfigManager().saveConfig("data.yml");
@@ -385,6 +449,18 @@ public class PlayerAPI {
         return deaths;
     }
     
+    /**
+     * Update the leaderboard of a stat, unless the API is still being created
+     * @param metric The metric
+     * @param player The player
+     * @param value The new value
+     */
+    private void updateLeaderboard(LeaderboardMetric metric, OfflinePlayer player, int value) {
+        if (plugin.getAPI() != null && plugin.getAPI().getLeaderboardAPI() != null) {
+            plugin.getAPI().getLeaderboardAPI().update(metric, player.getUniqueId(), value);
+        }
+    }
+    
     /**
      * Ban a player
      * @param target The player to ban
@@ -408,7 +484,8 @@ public class PlayerAPI {
                            "(uuid, reason, admin, ban_time, expiration, active) " +
                            "VALUES (?, ?, ?, ?, ?, 1)";
             
-            try (PreparedStatement stmt = plugin.getConfigManager().getDbConnection().prepareStatement(query)) {
+            try (Connection conn = plugin.getConfigManager().getDbConnection();
+                 PreparedStatement stmt = conn.prepareStatement(query)) {
                 stmt.setString(1, target.getUniqueId().toString());
                 stmt.setString(2, reason);
                 stmt.setString(3, admin);
@@ -418,6 +495,12 @@ public class PlayerAPI {
                 stmt.executeUpdate();
             }
             
+            // Update ban cache
+            Ban ban = new Ban(target.getUniqueId(), reason, admin, expiration);
+            activeBans.put(target.getUniqueId(), ban);
+            legacyBans.put(target.getUniqueId(), ban);
+            banChanges++;
+            
             // Also update legacy data.yml for backwards compatibility
             updateLegacyBanData(target, reason, admin, now, expiration);
             
@@ -468,7 +551,8 @@ public class PlayerAPI {
                            "SET active = 0, unbanned_by = ?, unbanned_time = ? " +
                            "WHERE uuid = ? AND active = 1";
             
-            try (PreparedStatement stmt = plugin.getConfigManager().getDbConnection().prepareStatement(query)) {
+            try (Connection conn = plugin.getConfigManager().getDbConnection();
+                 PreparedStatement stmt = conn.prepareStatement(query)) {
                 stmt.setString(1, admin);
                 stmt.setTimestamp(2, new java.sql.Timestamp(System.currentTimeMillis()));
                 stmt.setString(3, target.getUniqueId().toString());
@@ -476,6 +560,11 @@ public class PlayerAPI {
                 int affected = stmt.executeUpdate();
                 
                 if (affected > 0) {
+                    // Update ban cache
+                    activeBans.remove(target.getUniqueId());
+                    legacyBans.remove(target.getUniqueId());
+                    banChanges++;
+                    
                     // Also update legacy data.yml for backwards compatibility
                     updateLegacyUnbanData(target, admin);
                     
@@ -495,121 +584,201 @@ public class PlayerAPI {
     }
     
     /**
-     * Check if a player is banned
-     * @param player The player to check
-     * @return True if the player is banned
+     * Load all active bans into the ban cache. If the database is not available, the bans in data.yml
+     * are used until a reload succeeds.
      */
-    public boolean isBanned(OfflinePlayer player) {
-        try {
-            String tablePrefix = plugin.getConfigManager().getTablePrefix();
-            String query = "SELECT id, expiration FROM " + tablePrefix + "bans " +
-                           "WHERE uuid = ? AND active = 1 " +
-                           "ORDER BY ban_time DESC LIMIT 1";
+    private void loadActiveBans() {
+        try (Connection conn = plugin.getConfigManager().getDbConnection()) {
+            activeBans.putAll(queryActiveBans(conn));
+            banCacheLoaded = true;
+        } catch (SQLException e) {
+            plugin.getLogger().severe("Failed to load active bans: " + e.getMessage());
+            e.printStackTrace();
             
-            try (PreparedStatement stmt = plugin.getConfigManager().getDbConnection().prepareStatement(query)) {
-                stmt.setString(1, player.getUniqueId().toString());
+            loadLegacyBans();
+            banReloadTask = plugin.getServer().getScheduler().runTaskTimer(plugin, this::reloadActiveBans,
+                    BAN_RELOAD_INTERVAL_TICKS, BAN_RELOAD_INTERVAL_TICKS);
+        }
+    }
+    
+    /**
+     * Try to load the ban cache again off the main thread, after loading it failed
+     */
+    private void reloadActiveBans() {
+        if (banCacheLoaded) {
+            banReloadTask.cancel();
+            return;
+        }
+        
+        if (banReloadRunning) {
+            return;
+        }
+        
+        banReloadRunning = true;
+        int changes = banChanges;
+        
+        plugin.getConfigManager().getConnectionPool().supplyAsync(this::queryActiveBans).whenComplete((bans, throwable) -> {
+            if (!plugin.isEnabled()) {
+                return;
+            }
+            
+            Bukkit.getScheduler().runTask(plugin, () -> {
+                banReloadRunning = false;
                 
-                try (ResultSet rs = stmt.executeQuery()) {
-                    if (rs.next()) {
-                        // Check if ban has expired
-                        java.sql.Timestamp expiration = rs.getTimestamp("expiration");
-                        
-                        if (expiration == null) {
-                            return true; // Permanent ban
-                        }
-                        
-                        if (System.currentTimeMillis() > expiration.getTime()) {
-                            // Ban has expired, set to inactive
-                            expireActiveBan(player);
-                            return false;
-                        }
-                        
-                        return true; // Player is still banned
-                    }
+                if (throwable != null) {
+                    plugin.getLogger().warning("Failed to reload active bans: " + throwable.getMessage());
+                    return;
+                }
+                
+                // A ban or unban may have committed after the query read the table, the next reload picks it up
+                if (changes != banChanges) {
+                    return;
                 }
+                
+                activeBans.clear();
+                activeBans.putAll(bans);
+                banCacheLoaded = true;
+                legacyBans.clear();
+                banReloadTask.cancel();
+                
+                plugin.getLogger().info("Loaded " + bans.size() + " active bans.");
+            });
+        });
+    }
+    
+    /**
+     * Query all active bans
+     * @param conn The database connection
+     * @return The active bans by player UUID
+     * @throws SQLException If the bans could not be read
+     */
+    private Map<UUID, Ban> queryActiveBans(Connection conn) throws SQLException {
+        String tablePrefix = plugin.getConfigManager().getTablePrefix();
+        String query = "SELECT uuid, reason, admin, expiration FROM " + tablePrefix + "bans " +
+                       "WHERE active = 1 ORDER BY ban_time ASC";
+        Map<UUID, Ban> bans = new HashMap<>();
+        
+        try (PreparedStatement stmt = conn.prepareStatement(query);
+             ResultSet rs = stmt.executeQuery()) {
+            while (rs.next()) {
+                // Newer bans overwrite older ones of the same player
+                Ban ban = createBanFromResultSet(UUID.fromString(rs.getString("uuid")), rs);
+                bans.put(ban.getPlayerUuid(), ban);
             }
-        } catch (SQLException e) {
-            plugin.getLogger().severe("Failed to check ban status: " + e.getMessage());
-            e.printStackTrace();
-            
-            // Fall back to legacy method if database fails
-            return isLegacyBanned(player);
         }
         
-        return false;
+        return bans;
     }
     
     /**
-     * Get the ban reason for a player
-     * @param player The player to check
-     * @return The ban reason, or null if the player is not banned
+     * Get the active ban of a player.
+     * Served from the ban cache; only queries the database if the cache could not be loaded.
+     * Safe to call from async threads.
+     * @param uuid The UUID of the player
+     * @return The active ban, or null if the player is not banned
      */
-    public String getBanReason(OfflinePlayer player) {
-        if (!isBanned(player)) {
+    public Ban getActiveBan(UUID uuid) {
+        Ban ban = banCacheLoaded ? activeBans.get(uuid) : queryActiveBan(uuid);
+        
+        if (ban != null && ban.isExpired()) {
+            // Ban has expired, set to inactive
+            activeBans.remove(uuid, ban);
+            plugin.getConfigManager().getConnectionPool()
+                    .runAsync(conn -> expireActiveBan(conn, uuid))
+                    .exceptionally(e -> {
+                        plugin.getLogger().severe("Failed to expire ban: " + e.getMessage());
+                        return null;
+                    });
             return null;
         }
         
+        return ban;
+    }
+    
+    /**
+     * Query the active ban of a player with a single round-trip
+     * @param uuid The UUID of the player
+     * @return The active ban, or null if the player is not banned
+     */
+    private Ban queryActiveBan(UUID uuid) {
         try {
             String tablePrefix = plugin.getConfigManager().getTablePrefix();
-            String query = "SELECT reason FROM " + tablePrefix + "bans " +
+            String query = "SELECT reason, admin, expiration FROM " + tablePrefix + "bans " +
                            "WHERE uuid = ? AND active = 1 " +
                            "ORDER BY ban_time DESC LIMIT 1";
             
-            try (PreparedStatement stmt = plugin.getConfigManager().getDbConnection().prepareStatement(query)) {
-                stmt.setString(1, player.getUniqueId().toString());
+            try (Connection conn = plugin.getConfigManager().getDbConnection();
+                 PreparedStatement stmt = conn.prepareStatement(query)) {
+                stmt.setString(1, uuid.toString());
                 
                 try (ResultSet rs = stmt.executeQuery()) {
                     if (rs.next()) {
-                        return rs.getString("reason");
+                        return createBanFromResultSet(uuid, rs);
                     }
                 }
             }
         } catch (SQLException e) {
-            plugin.getLogger().severe("Failed to get ban reason: " + e.getMessage());
+            plugin.getLogger().severe("Failed to check ban status: " + e.getMessage());
             e.printStackTrace();
             
-            // Fall back to legacy method if database fails
-            return getLegacyBanReason(player);
+            // Fall back to the bans loaded from data.yml, the file must not be read off the main thread
+            return legacyBans.get(uuid);
         }
         
-        return "No reason specified";
+        return null;
+    }
+    
+    /**
+     * Create a ban from the current row of a ResultSet
+     * @param uuid The UUID of the banned player
+     * @param rs The ResultSet
+     * @return The ban
+     * @throws SQLException If an error occurs reading from the ResultSet
+     */
+    private Ban createBanFromResultSet(UUID uuid, ResultSet rs) throws SQLException {
+        java.sql.Timestamp expiration = rs.getTimestamp("expiration");
+        String reason = rs.getString("reason");
+        
+        return new Ban(
+                uuid,
+                reason != null ? reason : "No reason specified",
+                rs.getString("admin"),
+                expiration != null ? expiration.getTime() : -1
+        );
+    }
+    
+    /**
+     * Check if a player is banned
+     * @param player The player to check
+     * @return True if the player is banned
+     */
+    public boolean isBanned(OfflinePlayer player) {
+        return getActiveBan(player.getUniqueId()) != null;
+    }
+    
+    /**
+     * Get the ban reason for a player
+     * @param player The player to check
+     * @return The ban reason, or null if the player is not banned
+     */
+    public String getBanReason(OfflinePlayer player) {
+        Ban ban = getActiveBan(player.getUniqueId());
+        return ban != null ? ban.getReason() : null;
     }
     
     /**
      * Get the ban expiration time for a player
      * @param player The player to check
-     * @return The ban expiration time in milliseconds, or -1 if permanent
+     * @return The ban expiration time in milliseconds, -1 if permanent, or 0 if not banned
      */
     public long getBanExpiration(OfflinePlayer player) {
-        if (!isBanned(player)) {
-            return 0;
-        }
+        Ban ban = getActiveBan(player.getUniqueId());
         
-        try {
-            String tablePrefix = plugin.getConfigManager().getTablePrefix();
-            String query = "SELECT expiration FROM " + tablePrefix + "bans " +
-                           "WHERE uuid = ? AND active = 1 " +
-                           "ORDER BY ban_time DESC LIMIT 1";
-            
-            try (PreparedStatement stmt = plugin.getConfigManager().getDbConnection().prepareStatement(query)) {
-                stmt.setString(1, player.getUniqueId().toString());
-                
-                try (ResultSet rs = stmt.executeQuery()) {
-                    if (rs.next()) {
-                        java.sql.Timestamp expiration = rs.getTimestamp("expiration");
-                        return expiration != null ? expiration.getTime() : -1;
-                    }
-                }
-            }
-        } catch (SQLException e) {
-            plugin.getLogger().severe("Failed to get ban expiration: " + e.getMessage());
-            e.printStackTrace();
-            
-            // Fall back to legacy method if database fails
-            return getLegacyBanExpiration(player);
+        if (ban == null) {
+            return 0;
         }
         
-        return -1;
+        return ban.isPermanent() ? -1 : ban.getExpiration();
     }
     
     /**
@@ -628,7 +797,8 @@ public class PlayerAPI {
                            "WHERE uuid = ? " +
                            "ORDER BY ban_time DESC";
             
-            try (PreparedStatement stmt = plugin.getConfigManager().getDbConnection().prepareStatement(query)) {
+            try (Connection conn = plugin.getConfigManager().getDbConnection();
+                 PreparedStatement stmt = conn.prepareStatement(query)) {
                 stmt.setString(1, player.getUniqueId().toString());
                 
                 try (ResultSet rs = stmt.executeQuery()) {
@@ -684,7 +854,8 @@ public class PlayerAPI {
                            "WHERE uuid = ? " +
                            "ORDER BY mute_time DESC";
             
-            try (PreparedStatement stmt = plugin.getConfigManager().getDbConnection().prepareStatement(query)) {
+            try (Connection conn = plugin.getConfigManager().getDbConnection();
+                 PreparedStatement stmt = conn.prepareStatement(query)) {
                 stmt.setString(1, player.getUniqueId().toString());
                 
                 try (ResultSet rs = stmt.executeQuery()) {
@@ -723,24 +894,21 @@ public class PlayerAPI {
     
     /**
      * Mark an active ban as expired
-     * @param player The player to update
+     * @param conn The connection to use
+     * @param uuid The UUID of the player to update
+     * @throws SQLException If the update fails
      */
-    private void expireActiveBan(OfflinePlayer player) {
-        try {
-            String tablePrefix = plugin.getConfigManager().getTablePrefix();
-            String query = "UPDATE " + tablePrefix + "bans " +
-                           "SET active = 0 " +
-                           "WHERE uuid = ? AND active = 1 AND expiration IS NOT NULL AND expiration < ?";
+    private void expireActiveBan(Connection conn, UUID uuid) throws SQLException {
+        String tablePrefix = plugin.getConfigManager().getTablePrefix();
+        String query = "UPDATE " + tablePrefix + "bans " +
+                       "SET active = 0 " +
+                       "WHERE uuid = ? AND active = 1 AND expiration IS NOT NULL AND expiration < ?";
+        
+        try (PreparedStatement stmt = conn.prepareStatement(query)) {
+            stmt.setString(1, uuid.toString());
+            stmt.setTimestamp(2, new java.sql.Timestamp(System.currentTimeMillis()));
             
-            try (PreparedStatement stmt = plugin.getConfigManager().getDbConnection().prepareStatement(query)) {
-                stmt.setString(1, player.getUniqueId().toString());
-                stmt.setTimestamp(2, new java.sql.Timestamp(System.currentTimeMillis()));
-                
-                stmt.executeUpdate();
-            }
-        } catch (SQLException e) {
-            plugin.getLogger().severe("Failed to expire ban: " + e.getMessage());
-            e.printStackTrace();
+            stmt.executeUpdate();
         }
     }
     
@@ -757,7 +925,8 @@ public class PlayerAPI {
                 query = "INSERT IGNORE INTO " + tablePrefix + "players (uuid, name) VALUES (?, ?)";
             }
             
-            try (PreparedStatement stmt = plugin.getConfigManager().getDbConnection().prepareStatement(query)) {
+            try (Connection conn = plugin.getConfigManager().getDbConnection();
+                 PreparedStatement stmt = conn.prepareStatement(query)) {
                 stmt.setString(1, player.getUniqueId().toString());
                 stmt.setString(2, player.getName());
                 
@@ -814,51 +983,37 @@ public class PlayerAPI {
     }
     
     /**
-     * Legacy method to check if a player is banned
+     * Legacy method to load the active bans from data.yml
      */
-    private boolean isLegacyBanned(OfflinePlayer player) {
+    private void loadLegacyBans() {
         FileConfiguration data = plugin.getConfigManager().getConfig("data.yml");
-        String path = "players." + player.getUniqueId() + ".ban";
-        
-        if (!data.contains(path + ".active") || !data.getBoolean(path + ".active")) {
-            return false; // Player is not banned
-        }
+        ConfigurationSection players = data.getConfigurationSection("players");
         
-        // Check if ban has expired
-        long until = data.getLong(path + ".until", -1);
-        if (until == -1) {
-            return true; // Permanent ban
+        if (players == null) {
+            return;
         }
         
-        if (System.currentTimeMillis() > until) {
-            // Ban has expired, set to inactive
-            data.set(path + ".active", false);
-            data.set(path + ".expired", true);
-            plugin.getConfigManager().saveConfig("data.yml");
-            return false;
+        for (String key : players.getKeys(false)) {
+            String path = key + ".ban";
+            
+            if (!players.getBoolean(path + ".active", false)) {
+                continue; // Player is not banned
+            }
+            
+            UUID uuid;
+            try {
+                uuid = UUID.fromString(key);
+            } catch (IllegalArgumentException e) {
+                continue;
+            }
+            
+            legacyBans.put(uuid, new Ban(
+                    uuid,
+                    players.getString(path + ".reason", "No reason specified"),
+                    players.getString(path + ".admin", "Unknown"),
+                    players.getLong(path + ".until", -1)
+            ));
         }
-        
-        return true; // Player is still banned
-    }
-    
-    /**
-     * Legacy method to get a player's ban reason
-     */
-    private String getLegacyBanReason(OfflinePlayer player) {
-        FileConfiguration data = plugin.getConfigManager().getConfig("data.yml");
-        String path = "players." + player.getUniqueId() + ".ban";
-        
-        return data.getString(path + ".reason", "No reason specified");
-    }
-    
-    /**
-     * Legacy method to get a player's ban expiration
-     */
-    private long getLegacyBanExpiration(OfflinePlayer player) {
-        FileConfiguration data = plugin.getConfigManager().getConfig("data.yml");
-        String path = "players." + player.getUniqueId() + ".ban";
-        
-        return data.getLong(path + ".until", -1);
     }
     
     /**
@@ -0,0 +1,367 @@
+package ch.retaxo.sumania.api.player;
+
+import ch.retaxo.sumania.api.claim.ClaimPresenceTracker;
+import ch.retaxo.sumania.api.teleport.TeleportCause;
+import ch.retaxo.sumania.api.teleport.TeleportRequest;
+import ch.retaxo.sumania.events.player.ClaimManagementMenu;
+import org.bukkit.Location;
+import org.bukkit.OfflinePlayer;
+import org.bukkit.inventory.Inventory;
+import org.bukkit.inventory.ItemStack;
+import org.bukkit.scheduler.BukkitTask;
+
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Transient state of an online player.
+ * Created on join and dropped on quit by {@link PlayerAPI}.
+ */
+public class PlayerSession {
+
+    private final UUID playerUuid;
+    
+    // Chat, written from the async chat thread
+    private volatile long chatCooldownEnd;
+    
+    // Teleportation
+    private TeleportRequest teleportRequest;
+    private final long[] teleportCooldownEnds = new long[TeleportCause.CooldownBucket.values().length];
+    private BukkitTask teleportTask;
+    private Location teleportStartLocation;
+    
+    // Claims
+    private ClaimPresenceTracker.Cell claimCell;
+    private ClaimManagementMenu claimMenu;
+    private Inventory claimMenuInventory;
+    private int claimMenuPage;
+    private List<OfflinePlayer> claimMenuPlayers;
+    
+    // Auction creation, price and duration are -1 while unset
+    private ItemStack auctionItem;
+    private double auctionPrice = -1;
+    private int auctionDuration = -1;
+    private String auctionCategory;
+    private boolean auctionBidding;
+    
+    // Auction browsing
+    private int auctionViewingPage;
+    private String auctionViewingCategory;
+    
+    /**
+     * Constructor
+     * @param playerUuid The UUID of the player
+     */
+    public PlayerSession(UUID playerUuid) {
+        this.playerUuid = playerUuid;
+    }
+    
+    /**
+     * Release everything that must not outlive the session
+     */
+    void release() {
+        if (teleportTask != null) {
+            teleportTask.cancel();
+            teleportTask = null;
+        }
+        
+        teleportRequest = null;
+        claimMenu = null;
+        claimMenuInventory = null;
+        claimMenuPlayers = null;
+        auctionItem = null;
+    }
+    
+    /**
+     * Get the UUID of the player
+     * @return The value
+     */
+    public UUID getPlayerUuid() {
+        return playerUuid;
+    }
+    
+    /**
+     * Get the end of the chat cooldown in milliseconds
+     * @return The value
+     */
+    public long getChatCooldownEnd() {
+        return chatCooldownEnd;
+    }
+    
+    /**
+     * Set the end of the chat cooldown in milliseconds
+     * @param chatCooldownEnd The new value
+     */
+    public void setChatCooldownEnd(long chatCooldownEnd) {
+        this.chatCooldownEnd = chatCooldownEnd;
+    }
+    
+    /**
+     * Get the pending teleport request sent to this player
+     * @return The value
+     */
+    public TeleportRequest getTeleportRequest() {
+        return teleportRequest;
+    }
+    
+    /**
+     * Set the pending teleport request sent to this player
+     * @param teleportRequest The new value
+     */
+    public void setTeleportRequest(TeleportRequest teleportRequest) {
+        this.teleportRequest = teleportRequest;
+    }
+    
+    /**
+     * Get the end of a teleport cooldown in milliseconds
+     * @param bucket The cooldown bucket
+     * @return The value
+     */
+    public long getTeleportCooldownEnd(TeleportCause.CooldownBucket bucket) {
+        return teleportCooldownEnds[bucket.ordinal()];
+    }
+    
+    /**
+     * Set the end of a teleport cooldown in milliseconds
+     * @param bucket The cooldown bucket
+     * @param teleportCooldownEnd The new value
+     */
+    public void setTeleportCooldownEnd(TeleportCause.CooldownBucket bucket, long teleportCooldownEnd) {
+        teleportCooldownEnds[bucket.ordinal()] = teleportCooldownEnd;
+    }
+    
+    /**
+     * Get the pending delayed teleport
+     * @return The value
+     */
+    public BukkitTask getTeleportTask() {
+        return teleportTask;
+    }
+    
+    /**
+     * Set the pending delayed teleport
+     * @param teleportTask The new value
+     */
+    public void setTeleportTask(BukkitTask teleportTask) {
+        this.teleportTask = teleportTask;
+    }
+    
+    /**
+     * Get the location where the pending teleport was started
+     * @return The value
+     */
+    public Location getTeleportStartLocation() {
+        return teleportStartLocation;
+    }
+    
+    /**
+     * Set the location where the pending teleport was started
+     * @param teleportStartLocation The new value
+     */
+    public void setTeleportStartLocation(Location teleportStartLocation) {
+        this.teleportStartLocation = teleportStartLocation;
+    }
+    
+    /**
+     * Get the cached claim cell the player is in
+     * @return The value
+     */
+    public ClaimPresenceTracker.Cell getClaimCell() {
+        return claimCell;
+    }
+    
+    /**
+     * Set the cached claim cell the player is in
+     * @param claimCell The new value
+     */
+    public void setClaimCell(ClaimPresenceTracker.Cell claimCell) {
+        this.claimCell = claimCell;
+    }
+    
+    /**
+     * Get the claim management menu the player has open
+     * @return The value
+     */
+    public ClaimManagementMenu getClaimMenu() {
+        return claimMenu;
+    }
+    
+    /**
+     * Set the claim management menu the player has open
+     * @param claimMenu The new value
+     */
+    public void setClaimMenu(ClaimManagementMenu claimMenu) {
+        this.claimMenu = claimMenu;
+    }
+    
+    /**
+     * Get the inventory of the open claim management menu
+     * @return The value
+     */
+    public Inventory getClaimMenuInventory() {
+        return claimMenuInventory;
+    }
+    
+    /**
+     * Set the inventory of the open claim management menu
+     * @param claimMenuInventory The new value
+     */
+    public void setClaimMenuInventory(Inventory claimMenuInventory) {
+        this.claimMenuInventory = claimMenuInventory;
+    }
+    
+    /**
+     * Get the page of the claim player selection menu
+     * @return The value
+     */
+    public int getClaimMenuPage() {
+        return claimMenuPage;
+    }
+    
+    /**
+     * Set the page of the claim player selection menu
+     * @param claimMenuPage The new value
+     */
+    public void setClaimMenuPage(int claimMenuPage) {
+        this.claimMenuPage = claimMenuPage;
+    }
+    
+    /**
+     * Get the players listed in the claim player selection menu
+     * @return The value
+     */
+    public List<OfflinePlayer> getClaimMenuPlayers() {
+        return claimMenuPlayers;
+    }
+    
+    /**
+     * Set the players listed in the claim player selection menu
+     * @param claimMenuPlayers The new value
+     */
+    public void setClaimMenuPlayers(List<OfflinePlayer> claimMenuPlayers) {
+        this.claimMenuPlayers = claimMenuPlayers;
+    }
+    
+    /**
+     * Get the item of the auction being created
+     * @return The value
+     */
+    public ItemStack getAuctionItem() {
+        return auctionItem;
+    }
+    
+    /**
+     * Set the item of the auction being created
+     * @param auctionItem The new value
+     */
+    public void setAuctionItem(ItemStack auctionItem) {
+        this.auctionItem = auctionItem;
+    }
+    
+    /**
+     * Get the price of the auction being created, or -1 if not set
+     * @return The value
+     */
+    public double getAuctionPrice() {
+        return auctionPrice;
+    }
+    
+    /**
+     * Set the price of the auction being created, or -1 if not set
+     * @param auctionPrice The new value
+     */
+    public void setAuctionPrice(double auctionPrice) {
+        this.auctionPrice = auctionPrice;
+    }
+    
+    /**
+     * Get the duration in hours of the auction being created, or -1 if not set
+     * @return The value
+     */
+    public int getAuctionDuration() {
+        return auctionDuration;
+    }
+    
+    /**
+     * Set the duration in hours of the auction being created, or -1 if not set
+     * @param auctionDuration The new value
+     */
+    public void setAuctionDuration(int auctionDuration) {
+        this.auctionDuration = auctionDuration;
+    }
+    
+    /**
+     * Get the category of the auction being created
+     * @return The value
+     */
+    public String getAuctionCategory() {
+        return auctionCategory;
+    }
+    
+    /**
+     * Set the category of the auction being created
+     * @param auctionCategory The new value
+     */
+    public void setAuctionCategory(String auctionCategory) {
+        this.auctionCategory = auctionCategory;
+    }
+    
+    /**
+     * Check if the auction being created takes bids
+     * @return The value
+     */
+    public boolean isAuctionBidding() {
+        return auctionBidding;
+    }
+    
+    /**
+     * Set if the auction being created takes bids
+     * @param auctionBidding The new value
+     */
+    public void setAuctionBidding(boolean auctionBidding) {
+        this.auctionBidding = auctionBidding;
+    }
+    
+    /**
+     * Clear all auction creation state
+     */
+    public void clearAuctionCreation() {
+        auctionItem = null;
+        auctionPrice = -1;
+        auctionDuration = -1;
+        auctionCategory = null;
+        auctionBidding = false;
+    }
+    
+    /**
+     * Get the auction page the player is viewing
+     * @return The value
+     */
+    public int getAuctionViewingPage() {
+        return auctionViewingPage;
+    }
+    
+    /**
+     * Set the auction page the player is viewing
+     * @param auctionViewingPage The new value
+     */
+    public void setAuctionViewingPage(int auctionViewingPage) {
+        this.auctionViewingPage = auctionViewingPage;
+    }
+    
+    /**
+     * Get the auction category the player is viewing
+     * @return The value
+     */
+    public String getAuctionViewingCategory() {
+        return auctionViewingCategory;
+    }
+    
+    /**
+     * Set the auction category the player is viewing
+     * @param auctionViewingCategory The new value
+     */
+    public void setAuctionViewingCategory(String auctionViewingCategory) {
+        this.auctionViewingCategory = auctionViewingCategory;
+    }
+}
@@ -0,0 +1,68 @@
+package ch.retaxo.sumania.api.shop;
+
+import org.bukkit.Material;
+
+/**
+ * Immutable shop prices per material ordinal, -1 where the shop doesn't trade the material.
+ * A new snapshot is published for every price change, so readers never need a lock.
+ */
+public final class PriceSnapshot {
+
+    private final double[] buyPrices;
+    private final double[] sellPrices;
+    
+    /**
+     * Constructor, the arrays must not be modified afterwards
+     * @param buyPrices The buy prices per material ordinal
+     * @param sellPrices The sell prices per material ordinal
+     */
+    PriceSnapshot(double[] buyPrices, double[] sellPrices) {
+        this.buyPrices = buyPrices;
+        this.sellPrices = sellPrices;
+    }
+    
+    /**
+     * Get the price of buying one item
+     * @param material The material
+     * @return The price, or -1 if the shop doesn't sell the material
+     */
+    public double getBuyPrice(Material material) {
+        return buyPrices[material.ordinal()];
+    }
+    
+    /**
+     * Get the price paid for selling one item
+     * @param material The material
+     * @return The price, or -1 if the shop doesn't buy the material
+     */
+    public double getSellPrice(Material material) {
+        return sellPrices[material.ordinal()];
+    }
+    
+    /**
+     * Check if the shop trades a material
+     * @param ordinal The material ordinal
+     * @return True if the material can be bought or sold
+     */
+    boolean isTraded(int ordinal) {
+        return buyPrices[ordinal] >= 0 || sellPrices[ordinal] >= 0;
+    }
+    
+    /**
+     * Get the buy price by material ordinal
+     * @param ordinal The material ordinal
+     * @return The price, or -1
+     */
+    double buyPrice(int ordinal) {
+        return buyPrices[ordinal];
+    }
+    
+    /**
+     * Get the sell price by material ordinal
+     * @param ordinal The material ordinal
+     * @return The price, or -1
+     */
+    double sellPrice(int ordinal) {
+        return sellPrices[ordinal];
+    }
+}
@@ -0,0 +1,291 @@
+package ch.retaxo.sumania.api.shop;
+
+import ch.retaxo.sumania.Sumania;
+import org.bukkit.Material;
+import org.bukkit.configuration.ConfigurationSection;
+import org.bukkit.entity.Player;
+import org.bukkit.inventory.ItemStack;
+import org.bukkit.inventory.PlayerInventory;
+
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * API for the admin shop.
+ * Prices are read from an immutable {@link PriceSnapshot}, either the configured prices or the latest
+ * supply and demand prices of {@link ShopPricing}. Bulk trades count the inventory in one pass
+ * and settle in a single economy mutation, whatever the quantity.
+ */
+public class ShopAPI {
+
+    private static final Material[] MATERIALS = Material.values();
+    
+    private final Sumania plugin;
+    private final ShopPricing pricing;
+    
+    /**
+     * Constructor
+     * @param plugin The plugin instance
+     */
+    public ShopAPI(Sumania plugin) {
+        this.plugin = plugin;
+        this.pricing = new ShopPricing(plugin, readConfiguredPrices());
+    }
+    
+    /**
+     * Reload the configured prices from config.yml
+     */
+    public void loadPrices() {
+        pricing.setBasePrices(readConfiguredPrices());
+    }
+    
+    /**
+     * Build the price tables from the shop categories in config.yml
+     * @return The configured prices
+     */
+    private PriceSnapshot readConfiguredPrices() {
+        double[] buy = new double[MATERIALS.length];
+        double[] sell = new double[MATERIALS.length];
+        Arrays.fill(buy, -1);
+        Arrays.fill(sell, -1);
+        
+        ConfigurationSection categories = plugin.getConfigManager().getConfig("config.yml")
+                .getConfigurationSection("shop.categories");
+        
+        if (categories != null) {
+            for (String categoryId : categories.getKeys(false)) {
+                for (Map<?, ?> itemMap : categories.getMapList(categoryId + ".items")) {
+                    Material material = Material.getMaterial(String.valueOf(itemMap.get("item")));
+                    
+                    if (material == null) {
+                        plugin.getLogger().warning("Invalid shop item in category " + categoryId + ": " + itemMap.get("item"));
+                        continue;
+                    }
+                    
+                    buy[material.ordinal()] = price(itemMap.get("buy-price"));
+                    sell[material.ordinal()] = price(itemMap.get("sell-price"));
+                }
+            }
+        }
+        
+        return new PriceSnapshot(buy, sell);
+    }
+    
+    /**
+     * Read a price from a shop item entry
+     * @param value The configured value
+     * @return The price, or -1 if it is missing
+     */
+    private static double price(Object value) {
+        return value instanceof Number ? ((Number) value).doubleValue() : -1;
+    }
+    
+    /**
+     * Get the current prices. Read them once per action so all amounts of it agree.
+     * @return The price snapshot
+     */
+    public PriceSnapshot getPrices() {
+        return pricing.getSnapshot();
+    }
+    
+    /**
+     * Get the dynamic pricing engine
+     * @return The pricing engine
+     */
+    public ShopPricing getPricing() {
+        return pricing;
+    }
+    
+    /**
+     * Get the price of buying one item
+     * @param material The material
+     * @return The price, or -1 if the shop doesn't sell the material
+     */
+    public double getBuyPrice(Material material) {
+        return getPrices().getBuyPrice(material);
+    }
+    
+    /**
+     * Get the price paid for selling one item
+     * @param material The material
+     * @return The price, or -1 if the shop doesn't buy the material
+     */
+    public double getSellPrice(Material material) {
+        return getPrices().getSellPrice(material);
+    }
+    
+    /**
+     * Buy items, paying for all of them at once. Items that don't fit are dropped.
+     * @param player The player
+     * @param material The material
+     * @param amount The number of items
+     * @return The money paid, or -1 if the player couldn't pay for the items
+     */
+    public double buy(Player player, Material material, int amount) {
+        double price = getBuyPrice(material);
+        
+        if (price < 0 || amount <= 0) {
+            return -1;
+        }
+        
+        double total = price * amount;
+        
+        if (!plugin.getAPI().getEconomyAPI().tryWithdraw(player, total, "shop_buy")) {
+            return -1;
+        }
+        
+        pricing.recordBuy(material, amount);
+        
+        // Bukkit splits the stack to the maximum stack size
+        Map<Integer, ItemStack> notAdded = player.getInventory().addItem(new ItemStack(material, amount));
+        
+        for (ItemStack notAddedItem : notAdded.values()) {
+            player.getWorld().dropItem(player.getLocation(), notAddedItem);
+        }
+        
+        return total;
+    }
+    
+    /**
+     * Sell items of one material
+     * @param player The player
+     * @param material The material
+     * @param maxAmount The maximum number of items to sell
+     * @return The number of items sold and the money received
+     */
+    public SellResult sell(Player player, Material material, int maxAmount) {
+        double price = getSellPrice(material);
+        
+        if (price < 0 || maxAmount <= 0) {
+            return new SellResult(0, 0);
+        }
+        
+        PlayerInventory inventory = player.getInventory();
+        ItemStack[] contents = inventory.getStorageContents();
+        int sold = 0;
+        
+        for (int slot = 0; slot < contents.length && sold < maxAmount; slot++) {
+            ItemStack item = contents[slot];
+            
+            if (!isPlain(item) || item.getType() != material) {
+                continue;
+            }
+            
+            int taken = Math.min(item.getAmount(), maxAmount - sold);
+            sold += taken;
+            contents[slot] = take(item, taken);
+        }
+        
+        if (sold > 0) {
+            inventory.setStorageContents(contents);
+            plugin.getAPI().getEconomyAPI().deposit(player, price * sold, "shop_sell");
+            pricing.recordSell(material, sold);
+        }
+        
+        return new SellResult(sold, price * sold);
+    }
+    
+    /**
+     * Sell every item in the inventory the shop buys
+     * @param player The player
+     * @return The number of items sold and the money received
+     */
+    public SellResult sellAll(Player player) {
+        PriceSnapshot prices = getPrices();
+        PlayerInventory inventory = player.getInventory();
+        ItemStack[] contents = inventory.getStorageContents();
+        int sold = 0;
+        double total = 0;
+        
+        for (int slot = 0; slot < contents.length; slot++) {
+            ItemStack item = contents[slot];
+            
+            double price = isPlain(item) ? prices.getSellPrice(item.getType()) : -1;
+            
+            if (price < 0) {
+                continue;
+            }
+            
+            sold += item.getAmount();
+            total += price * item.getAmount();
+            pricing.recordSell(item.getType(), item.getAmount());
+            contents[slot] = null;
+        }
+        
+        if (sold > 0) {
+            inventory.setStorageContents(contents);
+            plugin.getAPI().getEconomyAPI().deposit(player, total, "shop_sell");
+        }
+        
+        return new SellResult(sold, total);
+    }
+    
+    /**
+     * Stop the pricing task and save the trade volumes
+     */
+    public void shutdown() {
+        pricing.shutdown();
+    }
+    
+    /**
+     * Format a shop price without decimals when it has none
+     * @param price The price
+     * @return The formatted price
+     */
+    public String formatPrice(double price) {
+        return price == Math.rint(price) ? String.format("%.0f", price) : String.format("%.2f", price);
+    }
+    
+    /**
+     * Check if an item is a plain stack the shop trades, without a name, enchantments or damage
+     * @param item The item, may be null
+     * @return True if the item is plain
+     */
+    private static boolean isPlain(ItemStack item) {
+        return item != null && !item.getType().isAir() && !item.hasItemMeta();
+    }
+    
+    /**
+     * Remove items from a stack
+     * @param item The stack
+     * @param amount The number of items to remove
+     * @return The remaining stack, or null if it is empty
+     */
+    private static ItemStack take(ItemStack item, int amount) {
+        if (amount >= item.getAmount()) {
+            return null;
+        }
+        
+        item.setAmount(item.getAmount() - amount);
+        return item;
+    }
+    
+    /**
+     * The outcome of selling items
+     */
+    public static final class SellResult {
+        private final int amount;
+        private final double total;
+        
+        private SellResult(int amount, double total) {
+            this.amount = amount;
+            this.total = total;
+        }
+        
+        /**
+         * Get the number of items sold
+         * @return The value
+         */
+        public int getAmount() {
+            return amount;
+        }
+        
+        /**
+         * Get the money received
+         * @return The value
+         */
+        public double getTotal() {
+            return total;
+        }
+    }
+}
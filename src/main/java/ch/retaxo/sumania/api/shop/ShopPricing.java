@@ -0,0 +1,303 @@
+package ch.retaxo.sumania.api.shop;
+
+import ch.retaxo.sumania.Sumania;
+import ch.retaxo.sumania.config.ConnectionPool;
+import org.bukkit.Material;
+import org.bukkit.configuration.file.FileConfiguration;
+import org.bukkit.scheduler.BukkitTask;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Supply and demand pricing for the shop.
+ * Trades add to lock-free counters per material ordinal. A background task folds them into
+ * exponentially decaying volumes, derives new prices from the base prices and publishes them
+ * as an immutable {@link PriceSnapshot}. The volumes are saved periodically so prices survive restarts.
+ */
+public class ShopPricing {
+
+    private static final Material[] MATERIALS = Material.values();
+    
+    private final Sumania plugin;
+    private final boolean enabled;
+    private final long updateIntervalSeconds;
+    private final double decayPerUpdate;
+    private final double sensitivity;
+    private final double liquidity;
+    private final double minFactor;
+    private final double maxFactor;
+    private final int saveEvery;
+    private final String pricesTable;
+    
+    // Traded amounts since the last update, written by trades
+    private final AtomicLongArray pendingBought = new AtomicLongArray(MATERIALS.length);
+    private final AtomicLongArray pendingSold = new AtomicLongArray(MATERIALS.length);
+    
+    // Decayed volumes, only touched while holding this object's lock
+    private final double[] demand = new double[MATERIALS.length];
+    private final double[] supply = new double[MATERIALS.length];
+    
+    private volatile PriceSnapshot basePrices;
+    private volatile PriceSnapshot snapshot;
+    private int updatesSinceSave;
+    private CompletableFuture<Void> lastWrite = CompletableFuture.completedFuture(null);
+    private BukkitTask updateTask;
+    
+    /**
+     * Constructor
+     * @param plugin The plugin instance
+     * @param basePrices The configured prices
+     */
+    public ShopPricing(Sumania plugin, PriceSnapshot basePrices) {
+        this.plugin = plugin;
+        this.basePrices = basePrices;
+        this.snapshot = basePrices;
+        
+        FileConfiguration config = plugin.getConfigManager().getConfig("config.yml");
+        this.enabled = config.getBoolean("shop.dynamic-pricing.enabled", false);
+        this.updateIntervalSeconds = Math.max(1, config.getLong("shop.dynamic-pricing.update-interval", 60));
+        this.sensitivity = config.getDouble("shop.dynamic-pricing.sensitivity", 0.5);
+        this.liquidity = Math.max(1.0, config.getDouble("shop.dynamic-pricing.liquidity", 1000.0));
+        this.minFactor = config.getDouble("shop.dynamic-pricing.min-factor", 0.25);
+        this.maxFactor = config.getDouble("shop.dynamic-pricing.max-factor", 4.0);
+        this.saveEvery = Math.max(1, config.getInt("shop.dynamic-pricing.save-every", 5));
+        this.pricesTable = plugin.getConfigManager().getTablePrefix() + "shop_prices";
+        
+        // Volumes halve once per half-life
+        double halfLifeSeconds = Math.max(1.0, config.getDouble("shop.dynamic-pricing.half-life", 360.0) * 60.0);
+        this.decayPerUpdate = Math.pow(0.5, updateIntervalSeconds / halfLifeSeconds);
+        
+        if (enabled) {
+            loadVolumes();
+            
+            long intervalTicks = updateIntervalSeconds * 20L;
+            updateTask = plugin.getServer().getScheduler().runTaskTimerAsynchronously(
+                    plugin,
+                    this::update,
+                    intervalTicks,
+                    intervalTicks
+            );
+        }
+    }
+    
+    /**
+     * Check if dynamic pricing is enabled
+     * @return True if prices follow supply and demand
+     */
+    public boolean isEnabled() {
+        return enabled;
+    }
+    
+    /**
+     * Get the current prices
+     * @return The latest snapshot
+     */
+    public PriceSnapshot getSnapshot() {
+        return snapshot;
+    }
+    
+    /**
+     * Replace the configured prices, e.g. after a reload
+     * @param basePrices The configured prices
+     */
+    public void setBasePrices(PriceSnapshot basePrices) {
+        this.basePrices = basePrices;
+        
+        if (enabled) {
+            plugin.getServer().getScheduler().runTaskAsynchronously(plugin, this::publish);
+        } else {
+            snapshot = basePrices;
+        }
+    }
+    
+    /**
+     * Count items bought from the shop
+     * @param material The material
+     * @param amount The number of items
+     */
+    public void recordBuy(Material material, int amount) {
+        if (enabled) {
+            pendingBought.addAndGet(material.ordinal(), amount);
+        }
+    }
+    
+    /**
+     * Count items sold to the shop
+     * @param material The material
+     * @param amount The number of items
+     */
+    public void recordSell(Material material, int amount) {
+        if (enabled) {
+            pendingSold.addAndGet(material.ordinal(), amount);
+        }
+    }
+    
+    /**
+     * Fold the pending trades into the volumes and publish new prices
+     */
+    private synchronized void update() {
+        for (int i = 0; i < MATERIALS.length; i++) {
+            demand[i] = demand[i] * decayPerUpdate + pendingBought.getAndSet(i, 0);
+            supply[i] = supply[i] * decayPerUpdate + pendingSold.getAndSet(i, 0);
+        }
+        
+        publish();
+        
+        if (++updatesSinceSave >= saveEvery) {
+            updatesSinceSave = 0;
+            saveVolumes();
+        }
+    }
+    
+    /**
+     * Derive prices from the base prices and the volumes and publish them
+     */
+    private synchronized void publish() {
+        PriceSnapshot base = basePrices;
+        double[] buy = new double[MATERIALS.length];
+        double[] sell = new double[MATERIALS.length];
+        
+        for (int i = 0; i < MATERIALS.length; i++) {
+            if (!base.isTraded(i)) {
+                buy[i] = -1;
+                sell[i] = -1;
+                continue;
+            }
+            
+            // More buying than selling raises the price, the liquidity dampens small volumes
+            double pressure = (demand[i] - supply[i]) / (demand[i] + supply[i] + liquidity);
+            double factor = Math.max(minFactor, Math.min(maxFactor, 1.0 + sensitivity * pressure));
+            
+            buy[i] = base.buyPrice(i) < 0 ? -1 : Math.round(base.buyPrice(i) * factor * 100.0) / 100.0;
+            sell[i] = base.sellPrice(i) < 0 ? -1 : Math.round(base.sellPrice(i) * factor * 100.0) / 100.0;
+        }
+        
+        snapshot = new PriceSnapshot(buy, sell);
+    }
+    
+    /**
+     * Load the saved volumes on the database executor and publish the resulting prices
+     */
+    private void loadVolumes() {
+        ConnectionPool pool = plugin.getConfigManager().getConnectionPool();
+        
+        if (pool == null) {
+            return;
+        }
+        
+        lastWrite = pool.runAsync(connection -> {
+            try (PreparedStatement stmt = connection.prepareStatement(
+                    "SELECT material, demand, supply FROM " + pricesTable);
+                 ResultSet rs = stmt.executeQuery()) {
+                
+                synchronized (this) {
+                    while (rs.next()) {
+                        Material material = Material.getMaterial(rs.getString("material"));
+                        
+                        if (material != null) {
+                            demand[material.ordinal()] = rs.getDouble("demand");
+                            supply[material.ordinal()] = rs.getDouble("supply");
+                        }
+                    }
+                    
+                    publish();
+                }
+            }
+        }).exceptionally(throwable -> {
+            plugin.getLogger().severe("Failed to load shop prices: " + throwable.getMessage());
+            return null;
+        });
+    }
+    
+    /**
+     * Write the volumes of all traded materials after the previous write. Must hold the lock.
+     */
+    private void saveVolumes() {
+        ConnectionPool pool = plugin.getConfigManager().getConnectionPool();
+        
+        if (pool == null) {
+            return;
+        }
+        
+        PriceSnapshot base = basePrices;
+        double[] demandCopy = demand.clone();
+        double[] supplyCopy = supply.clone();
+        
+        lastWrite = lastWrite
+                .handle((result, throwable) -> null)
+                .thenCompose(ignored -> pool.runAsync(connection -> writeVolumes(connection, base, demandCopy, supplyCopy)))
+                .exceptionally(throwable -> {
+                    plugin.getLogger().severe("Failed to save shop prices: " + throwable.getMessage());
+                    return null;
+                });
+    }
+    
+    /**
+     * Replace the saved volumes in a single batch
+     * @param connection The database connection
+     * @param base The prices telling which materials are traded
+     * @param demand The demand volumes
+     * @param supply The supply volumes
+     * @throws SQLException If the batch could not be written
+     */
+    private void writeVolumes(Connection connection, PriceSnapshot base, double[] demand, double[] supply) throws SQLException {
+        Timestamp now = new Timestamp(System.currentTimeMillis());
+        
+        connection.setAutoCommit(false);
+        
+        try (PreparedStatement stmt = connection.prepareStatement(
+                "REPLACE INTO " + pricesTable + " (material, demand, supply, updated_time) VALUES (?, ?, ?, ?)")) {
+            for (int i = 0; i < MATERIALS.length; i++) {
+                if (!base.isTraded(i)) {
+                    continue;
+                }
+                
+                stmt.setString(1, MATERIALS[i].name());
+                stmt.setDouble(2, demand[i]);
+                stmt.setDouble(3, supply[i]);
+                stmt.setTimestamp(4, now);
+                stmt.addBatch();
+            }
+            
+            stmt.executeBatch();
+        }
+        
+        connection.commit();
+    }
+    
+    /**
+     * Stop the update task and save the volumes including pending trades
+     */
+    public void shutdown() {
+        if (!enabled) {
+            return;
+        }
+        
+        if (updateTask != null) {
+            updateTask.cancel();
+        }
+        
+        synchronized (this) {
+            // Fold in the last trades without decaying
+            for (int i = 0; i < MATERIALS.length; i++) {
+                demand[i] += pendingBought.getAndSet(i, 0);
+                supply[i] += pendingSold.getAndSet(i, 0);
+            }
+            
+            saveVolumes();
+        }
+        
+        try {
+            lastWrite.get(10, TimeUnit.SECONDS);
+        } catch (Exception e) {
+            plugin.getLogger().warning("Could not save the shop prices.");
+        }
+    }
+}
@@ -0,0 +1,354 @@
+package ch.retaxo.sumania.api.teleport;
+
+import ch.retaxo.sumania.Sumania;
+import ch.retaxo.sumania.models.SMPWorld;
+import org.bukkit.HeightMap;
+import org.bukkit.Location;
+import org.bukkit.Material;
+import org.bukkit.World;
+import org.bukkit.WorldBorder;
+import org.bukkit.block.Block;
+import org.bukkit.block.BlockFace;
+import org.bukkit.configuration.file.FileConfiguration;
+import org.bukkit.entity.Player;
+import org.bukkit.scheduler.BukkitTask;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Consumer;
+
+/**
+ * API for random teleports in the SMP world.
+ * Chunks are loaded with Paper's async chunk loading and a pool of safe locations is kept warm per world,
+ * so /rtp usually teleports right away without loading chunks on the main thread.
+ * All state is only touched on the main thread, where Paper completes the chunk futures.
+ */
+public class RandomTeleportAPI {
+
+    // Ground the player must never be placed on
+    private static final Set<Material> UNSAFE_GROUND = EnumSet.of(
+            Material.LAVA,
+            Material.WATER,
+            Material.MAGMA_BLOCK,
+            Material.CACTUS,
+            Material.CAMPFIRE,
+            Material.SOUL_CAMPFIRE,
+            Material.FIRE,
+            Material.SOUL_FIRE,
+            Material.POWDER_SNOW,
+            Material.SWEET_BERRY_BUSH,
+            Material.POINTED_DRIPSTONE
+    );
+    
+    // Distance kept from the world border
+    private static final int BORDER_MARGIN = 16;
+    
+    private final Sumania plugin;
+    private final Map<String, Deque<Location>> locationPools = new HashMap<>();
+    private int searchesInFlight;
+    private BukkitTask refillTask;
+    
+    /**
+     * Constructor
+     * @param plugin The plugin instance
+     */
+    public RandomTeleportAPI(Sumania plugin) {
+        this.plugin = plugin;
+        
+        // Refill the location pool in the background
+        refillTask = plugin.getServer().getScheduler().runTaskTimer(plugin, this::refillPool, 100L, 40L);
+    }
+    
+    /**
+     * Randomly teleport a player inside the SMP world
+     * @param player The player
+     */
+    public void randomTeleport(Player player) {
+        SMPWorld smpWorld = plugin.getAPI().getSMPWorldAPI().getActiveSMPWorld();
+        World world = smpWorld != null ? smpWorld.getWorld() : null;
+        
+        if (world == null) {
+            plugin.getAPI().getPlayerAPI().sendMessage(player, "smp.rtp-failed");
+            return;
+        }
+        
+        // Use a pre-searched location if there is one
+        Location location = takePooledLocation(world);
+        
+        if (location != null) {
+            teleport(player, location);
+            return;
+        }
+        
+        // Pool is empty, search a location for this player
+        plugin.getAPI().getPlayerAPI().sendMessage(player, "smp.searching-location");
+        
+        search(world, smpWorld, getMaxAttempts(), found -> {
+            if (!player.isOnline()) {
+                releaseLocation(found);
+                return;
+            }
+            
+            if (found == null) {
+                plugin.getAPI().getPlayerAPI().sendMessage(player, "smp.no-safe-location");
+                return;
+            }
+            
+            teleport(player, found);
+        });
+    }
+    
+    /**
+     * Teleport a player to a safe location found for them
+     * @param player The player
+     * @param location The safe location
+     */
+    private void teleport(Player player, Location location) {
+        boolean success = plugin.getAPI().getTeleportAPI().teleport(player, location, TeleportCause.RTP);
+        releaseLocation(location);
+        
+        if (success) {
+            plugin.getAPI().getPlayerAPI().sendMessage(player, "smp.rtp-success");
+        }
+    }
+    
+    /**
+     * Take a pooled location that is still safe
+     * @param world The world
+     * @return The location, or null if the pool has none
+     */
+    private Location takePooledLocation(World world) {
+        Deque<Location> pool = locationPools.get(world.getName());
+        
+        if (pool == null) {
+            return null;
+        }
+        
+        Location location;
+        while ((location = pool.pollFirst()) != null) {
+            // Blocks may have changed since the location was found, the chunk is still loaded
+            if (isSafe(location)) {
+                return location;
+            }
+            
+            releaseLocation(location);
+        }
+        
+        return null;
+    }
+    
+    /**
+     * Start searches until the pool of the active SMP world is full
+     */
+    private void refillPool() {
+        SMPWorld smpWorld = plugin.getAPI().getSMPWorldAPI().getActiveSMPWorld();
+        World world = smpWorld != null ? smpWorld.getWorld() : null;
+        
+        // Drop pools of worlds that are no longer the SMP world
+        Iterator<Map.Entry<String, Deque<Location>>> iterator = locationPools.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<String, Deque<Location>> entry = iterator.next();
+            
+            if (world == null || !entry.getKey().equals(world.getName())) {
+                entry.getValue().forEach(this::releaseLocation);
+                iterator.remove();
+            }
+        }
+        
+        if (world == null) {
+            return;
+        }
+        
+        FileConfiguration config = plugin.getConfigManager().getConfig("config.yml");
+        int poolSize = config.getInt("smp.rtp-pool-size", 10);
+        int maxConcurrentSearches = Math.max(1, config.getInt("smp.rtp-concurrent-searches", 2));
+        Deque<Location> pool = locationPools.computeIfAbsent(world.getName(), k -> new ArrayDeque<>());
+        
+        while (searchesInFlight < maxConcurrentSearches && pool.size() + searchesInFlight < poolSize) {
+            searchesInFlight++;
+            
+            search(world, smpWorld, getMaxAttempts(), found -> {
+                searchesInFlight--;
+                
+                if (found == null) {
+                    return;
+                }
+                
+                // The SMP world may have changed while searching
+                Deque<Location> currentPool = locationPools.get(found.getWorld().getName());
+                if (currentPool == null || currentPool.size() >= poolSize) {
+                    releaseLocation(found);
+                    return;
+                }
+                
+                currentPool.addLast(found);
+            });
+        }
+    }
+    
+    /**
+     * Search a safe location, loading each candidate chunk asynchronously
+     * @param world The world
+     * @param smpWorld The SMP world settings
+     * @param attemptsLeft The number of candidates left to try
+     * @param callback Called on the main thread with the location, or null if none was found
+     */
+    private void search(World world, SMPWorld smpWorld, int attemptsLeft, Consumer<Location> callback) {
+        if (attemptsLeft <= 0) {
+            callback.accept(null);
+            return;
+        }
+        
+        int[] candidate = randomCoordinates(world, smpWorld);
+        int x = candidate[0];
+        int z = candidate[1];
+        
+        world.getChunkAtAsync(x >> 4, z >> 4).whenComplete((chunk, throwable) -> {
+            // The chunk can finish loading after shutdown, tickets can't be added for a disabled plugin
+            if (!plugin.isEnabled()) {
+                return;
+            }
+            
+            if (throwable != null || chunk == null) {
+                search(world, smpWorld, attemptsLeft - 1, callback);
+                return;
+            }
+            
+            Location location = findSafeLocation(world, x, z);
+            
+            if (location == null) {
+                search(world, smpWorld, attemptsLeft - 1, callback);
+                return;
+            }
+            
+            // Keep the chunk loaded until the location is used
+            chunk.addPluginChunkTicket(plugin);
+            callback.accept(location);
+        });
+    }
+    
+    /**
+     * Pick random coordinates between the configured ranges around the spawn, inside the world border
+     * @param world The world
+     * @param smpWorld The SMP world settings
+     * @return The block x and z coordinates
+     */
+    private int[] randomCoordinates(World world, SMPWorld smpWorld) {
+        FileConfiguration config = plugin.getConfigManager().getConfig("config.yml");
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        
+        Location center = smpWorld.getSpawnPoint() != null ? smpWorld.getSpawnPoint() : world.getSpawnLocation();
+        double minRange = Math.max(0, config.getDouble("smp.min-teleport-range", 1000));
+        double maxRange = Math.max(minRange + 1, config.getDouble("smp.max-teleport-range", 8000));
+        
+        // Uniform over the ring between the minimum and maximum range
+        double angle = random.nextDouble(Math.PI * 2);
+        double radius = Math.sqrt(random.nextDouble(minRange * minRange, maxRange * maxRange));
+        double x = center.getX() + Math.cos(angle) * radius;
+        double z = center.getZ() + Math.sin(angle) * radius;
+        
+        // Clamp into the world border, using the smaller of the configured and the actual border
+        WorldBorder border = world.getWorldBorder();
+        double borderSize = border.getSize();
+        if (smpWorld.getBorderSize() > 0) {
+            borderSize = Math.min(borderSize, smpWorld.getBorderSize());
+        }
+        
+        double half = Math.max(0, borderSize / 2 - BORDER_MARGIN);
+        x = Math.max(border.getCenter().getX() - half, Math.min(border.getCenter().getX() + half, x));
+        z = Math.max(border.getCenter().getZ() - half, Math.min(border.getCenter().getZ() + half, z));
+        
+        return new int[] {(int) Math.floor(x), (int) Math.floor(z)};
+    }
+    
+    /**
+     * Find a safe surface location in a loaded chunk
+     * @param world The world
+     * @param x The block x coordinate
+     * @param z The block z coordinate
+     * @return The location, or null if the surface is not safe
+     */
+    private Location findSafeLocation(World world, int x, int z) {
+        // The highest block of the nether is its bedrock roof
+        if (world.getEnvironment() == World.Environment.NETHER) {
+            return null;
+        }
+        
+        Block ground = world.getHighestBlockAt(x, z, HeightMap.MOTION_BLOCKING_NO_LEAVES);
+        Location location = new Location(world, x + 0.5, ground.getY() + 1, z + 0.5);
+        
+        return isSafe(location) ? location : null;
+    }
+    
+    /**
+     * Check if a player can stand at a location
+     * @param location The location of the player's feet
+     * @return True if the location is safe
+     */
+    private boolean isSafe(Location location) {
+        World world = location.getWorld();
+        
+        if (world == null || !world.isChunkLoaded(location.getBlockX() >> 4, location.getBlockZ() >> 4)) {
+            return false;
+        }
+        
+        Block feet = location.getBlock();
+        Block head = feet.getRelative(BlockFace.UP);
+        Block ground = feet.getRelative(BlockFace.DOWN);
+        
+        return ground.getType().isSolid()
+                && !UNSAFE_GROUND.contains(ground.getType())
+                && feet.getType().isAir()
+                && head.getType().isAir()
+                && world.getWorldBorder().isInside(location);
+    }
+    
+    /**
+     * Release the chunk ticket held for a location
+     * @param location The location, may be null
+     */
+    private void releaseLocation(Location location) {
+        if (location == null || location.getWorld() == null) {
+            return;
+        }
+        
+        // Works on the coordinates, so a chunk another release already let unload is not loaded again
+        location.getWorld().removePluginChunkTicket(location.getBlockX() >> 4, location.getBlockZ() >> 4, plugin);
+    }
+    
+    /**
+     * Get the number of candidates tried per search
+     * @return The number of attempts
+     */
+    private int getMaxAttempts() {
+        return Math.max(1, plugin.getConfigManager().getConfig("config.yml").getInt("smp.rtp-max-attempts", 10));
+    }
+    
+    /**
+     * Drop all pooled locations, e.g. before the SMP world is reset
+     */
+    public void clearPool() {
+        for (Deque<Location> pool : locationPools.values()) {
+            pool.forEach(this::releaseLocation);
+        }
+        
+        locationPools.clear();
+    }
+    
+    /**
+     * Stop refilling the pool and release all chunk tickets
+     */
+    public void shutdown() {
+        if (refillTask != null) {
+            refillTask.cancel();
+        }
+        
+        clearPool();
+    }
+}
@@ -1,6 +1,7 @@
 package ch.retaxo.sumania.api.teleport;
 
 import ch.retaxo.sumania.Sumania;
+import ch.retaxo.sumania.api.player.PlayerSession;
 import org.bukkit.Bukkit;
 import org.bukkit.Location;
 import org.bukkit.Material;
@@ -20,7 +21,6 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.UUID;
 
 /**
  * API for teleportation-related operations
@@ -28,10 +28,6 @@ import java.util.UUID;
 public class TeleportAPI {
 
     private final Sumania plugin;
-    private final Map<UUID, TeleportRequest> teleportRequests = new HashMap<>();
-    private final Map<UUID, Long> teleportCooldowns = new HashMap<>();
-    private final Map<UUID, BukkitTask> teleportTasks = new HashMap<>();
-    private final Map<UUID, Location> lastLocations = new HashMap<>();
     
     /**
      * Constructor
@@ -48,6 +44,17 @@ public class TeleportAPI {
      * @return True if the teleport was initiated successfully
      */
     public boolean teleport(Player player, Location location) {
+        return teleport(player, location, TeleportCause.COMMAND);
+    }
+    
+    /**
+     * Teleport a player to a location, handling delay, cooldown and messages as declared by the cause
+     * @param player The player to teleport
+     * @param location The location to teleport to
+     * @param cause The reason for the teleport
+     * @return True if the teleport was initiated successfully
+     */
+    public boolean teleport(Player player, Location location, TeleportCause cause) {
         FileConfiguration config = plugin.getConfigManager().getConfig("config.yml");
         
         // Check if teleportation is enabled
@@ -56,32 +63,47 @@ public class TeleportAPI {
         }
         
         // Check if player is in cooldown
-        if (isInCooldown(player)) {
+        TeleportCause.CooldownBucket bucket = cause.getCooldownBucket();
+        if (isInCooldown(player, bucket)) {
             Map<String, String> replacements = new HashMap<>();
-            replacements.put("seconds", String.valueOf(getCooldownTimeLeft(player)));
+            replacements.put("seconds", String.valueOf(getCooldownTimeLeft(player, bucket)));
             
             plugin.getAPI().getPlayerAPI().sendMessage(
                     player,
-                    "teleport.teleport-cooldown",
+                    bucket.getMessageKey(),
                     replacements
             );
             
             return false;
         }
         
-        // Get teleport delay - for RTP we'll override this to be instant
+        // Get teleport delay
         int delay = 0;
-        // Only use configured delay for non-RTP teleports (check the stack trace)
-        boolean isRandomTeleport = Thread.currentThread().getStackTrace()[2].getClassName().contains("RandomTeleport");
-        if (!isRandomTeleport) {
+        if (cause.getDelayPolicy() == TeleportCause.DelayPolicy.CONFIGURED) {
             delay = config.getInt("teleportation.delay", 5);
         }
         
+        boolean sendMessages = cause.getMessagePolicy() == TeleportCause.MessagePolicy.ALL;
+        PlayerSession session = plugin.getAPI().getPlayerAPI().getSession(player);
+        
+        // Cancel any existing teleport task
+        if (session.getTeleportTask() != null) {
+            session.getTeleportTask().cancel();
+            session.setTeleportTask(null);
+        }
+        
+        // Teleport right away without scheduling a task
+        if (delay <= 0) {
+            player.teleport(location);
+            completeTeleport(player, session, bucket, sendMessages);
+            return true;
+        }
+        
         // Store player's last location for movement check
-        lastLocations.put(player.getUniqueId(), player.getLocation());
+        session.setTeleportStartLocation(player.getLocation());
         
-        // Send teleporting message if delay > 0 and it's not a random teleport
-        if (delay > 0 && !isRandomTeleport) {
+        // Send teleporting message
+        if (sendMessages) {
             Map<String, String> replacements = new HashMap<>();
             replacements.put("seconds", String.valueOf(delay));
             
@@ -92,78 +114,89 @@ public class TeleportAPI {
             );
         }
         
-        // Cancel any existing teleport task
-        if (teleportTasks.containsKey(player.getUniqueId())) {
-            teleportTasks.get(player.getUniqueId()).cancel();
-        }
-        
         // Create teleport task
         BukkitTask task = new BukkitRunnable() {
             @Override
             public void run() {
                 player.teleport(location);
-                
-                // Send success message only for non-RTP teleports
-                if (!isRandomTeleport) {
-                    plugin.getAPI().getPlayerAPI().sendMessage(
-                            player,
-                            "teleport.teleport-success"
-                    );
-                }
-                
-                // Set cooldown
-                setCooldown(player);
-                
-                // Remove task and last location
-                teleportTasks.remove(player.getUniqueId());
-                lastLocations.remove(player.getUniqueId());
+                completeTeleport(player, session, bucket, sendMessages);
             }
         }.runTaskLater(plugin, delay * 20L);
         
         // Store task
-        teleportTasks.put(player.getUniqueId(), task);
+        session.setTeleportTask(task);
         
         return true;
     }
-
+    
+    /**
+     * Finish a teleport: success message, cooldown and session cleanup
+     * @param player The teleported player
+     * @param session The player's session
+     * @param bucket The cooldown bucket to start
+     * @param sendMessages Whether to send the success message
+     */
+    private void completeTeleport(Player player, PlayerSession session, TeleportCause.CooldownBucket bucket, boolean sendMessages) {
+        if (sendMessages) {
+            plugin.getAPI().getPlayerAPI().sendMessage(
+                    player,
+                    "teleport.teleport-success"
+            );
+        }
+        
+        // Set cooldown
+        setCooldown(player, bucket);
+        
+        // Remove task and last location
+        session.setTeleportTask(null);
+        session.setTeleportStartLocation(null);
+    }
     
     /**
      * Set a teleport cooldown for a player
      * @param player The player
+     * @param bucket The cooldown bucket
      */
-    private void setCooldown(Player player) {
+    private void setCooldown(Player player, TeleportCause.CooldownBucket bucket) {
+        if (bucket.getConfigPath() == null) {
+            return;
+        }
+        
         FileConfiguration config = plugin.getConfigManager().getConfig("config.yml");
-        int cooldown = config.getInt("teleportation.cooldown", 60);
+        int cooldown = config.getInt(bucket.getConfigPath(), bucket.getDefaultSeconds());
         
         if (cooldown > 0) {
-            teleportCooldowns.put(player.getUniqueId(), System.currentTimeMillis() + (cooldown * 1000L));
+            plugin.getAPI().getPlayerAPI().getSession(player)
+                    .setTeleportCooldownEnd(bucket, System.currentTimeMillis() + (cooldown * 1000L));
         }
     }
     
     /**
      * Check if a player is in teleport cooldown
      * @param player The player
+     * @param bucket The cooldown bucket
      * @return True if the player is in cooldown
      */
-    private boolean isInCooldown(Player player) {
-        if (!teleportCooldowns.containsKey(player.getUniqueId())) {
+    public boolean isInCooldown(Player player, TeleportCause.CooldownBucket bucket) {
+        if (bucket.getConfigPath() == null) {
             return false;
         }
         
-        return System.currentTimeMillis() < teleportCooldowns.get(player.getUniqueId());
+        if (bucket.getBypassPermission() != null && player.hasPermission(bucket.getBypassPermission())) {
+            return false;
+        }
+        
+        return System.currentTimeMillis() < plugin.getAPI().getPlayerAPI().getSession(player).getTeleportCooldownEnd(bucket);
     }
     
     /**
      * Get the time left on a player's cooldown
      * @param player The player
+     * @param bucket The cooldown bucket
      * @return The time left in seconds
      */
-    private int getCooldownTimeLeft(Player player) {
-        if (!teleportCooldowns.containsKey(player.getUniqueId())) {
-            return 0;
-        }
-        
-        long timeLeft = teleportCooldowns.get(player.getUniqueId()) - System.currentTimeMillis();
+    public int getCooldownTimeLeft(Player player, TeleportCause.CooldownBucket bucket) {
+        long timeLeft = plugin.getAPI().getPlayerAPI().getSession(player).getTeleportCooldownEnd(bucket) - System.currentTimeMillis();
         return Math.max(0, (int) (timeLeft / 1000));
     }
     
@@ -177,7 +210,8 @@ public class TeleportAPI {
     public boolean createTeleportRequest(Player from, Player to, TeleportRequestType type) {
         // Create teleport request
         TeleportRequest request = new TeleportRequest(from.getUniqueId(), to.getUniqueId(), type);
-        teleportRequests.put(to.getUniqueId(), request);
+        PlayerSession targetSession = plugin.getAPI().getPlayerAPI().getSession(to);
+        targetSession.setTeleportRequest(request);
         
         // Send request messages
         Map<String, String> replacements = new HashMap<>();
@@ -200,9 +234,8 @@ public class TeleportAPI {
         
         // Expire request after 60 seconds
         Bukkit.getScheduler().runTaskLater(plugin, () -> {
-            if (teleportRequests.containsKey(to.getUniqueId()) &&
-                    teleportRequests.get(to.getUniqueId()).equals(request)) {
-                teleportRequests.remove(to.getUniqueId());
+            if (request.equals(targetSession.getTeleportRequest())) {
+                targetSession.setTeleportRequest(null);
             }
         }, 1200L);
         
@@ -215,9 +248,10 @@ public class TeleportAPI {
      * @return True if the request was accepted successfully
      */
     public boolean acceptTeleportRequest(Player player) {
-        UUID playerUUID = player.getUniqueId();
+        PlayerSession session = plugin.getAPI().getPlayerAPI().getSession(player);
+        TeleportRequest request = session.getTeleportRequest();
         
-        if (!teleportRequests.containsKey(playerUUID)) {
+        if (request == null) {
             plugin.getAPI().getPlayerAPI().sendMessage(
                     player,
                     "teleport.teleport-no-requests"
@@ -226,11 +260,10 @@ public class TeleportAPI {
             return false;
         }
         
-        TeleportRequest request = teleportRequests.get(playerUUID);
         Player requester = Bukkit.getPlayer(request.getFromUUID());
         
         if (requester == null || !requester.isOnline()) {
-            teleportRequests.remove(playerUUID);
+            session.setTeleportRequest(null);
             return false;
         }
         
@@ -246,13 +279,13 @@ public class TeleportAPI {
         
         // Perform teleport based on request type
         if (request.getType() == TeleportRequestType.TO_PLAYER) {
-            teleport(requester, player.getLocation());
+            teleport(requester, player.getLocation(), TeleportCause.TPA);
         } else if (request.getType() == TeleportRequestType.FROM_PLAYER) {
-            teleport(player, requester.getLocation());
+            teleport(player, requester.getLocation(), TeleportCause.TPA);
         }
         
         // Remove request
-        teleportRequests.remove(playerUUID);
+        session.setTeleportRequest(null);
         
         return true;
     }
@@ -263,9 +296,10 @@ public class TeleportAPI {
      * @return True if the request was denied successfully
      */
     public boolean denyTeleportRequest(Player player) {
-        UUID playerUUID = player.getUniqueId();
+        PlayerSession session = plugin.getAPI().getPlayerAPI().getSession(player);
+        TeleportRequest request = session.getTeleportRequest();
         
-        if (!teleportRequests.containsKey(playerUUID)) {
+        if (request == null) {
             plugin.getAPI().getPlayerAPI().sendMessage(
                     player,
                     "teleport.teleport-no-requests"
@@ -274,7 +308,6 @@ public class TeleportAPI {
             return false;
         }
         
-        TeleportRequest request = teleportRequests.get(playerUUID);
         Player requester = Bukkit.getPlayer(request.getFromUUID());
         
         if (requester != null && requester.isOnline()) {
@@ -290,7 +323,7 @@ public class TeleportAPI {
         }
         
         // Remove request
-        teleportRequests.remove(playerUUID);
+        session.setTeleportRequest(null);
         
         return true;
     }
@@ -616,7 +649,7 @@ public class TeleportAPI {
                         );
                         
                         // Teleport player
-                        teleport(player, warpLocation);
+                        teleport(player, warpLocation, TeleportCause.WARP);
                     }
                 }
                 // Ignore clicks on decorative items
@@ -0,0 +1,149 @@
+package ch.retaxo.sumania.api.teleport;
+
+/**
+ * The reason for a teleport, declaring how {@link TeleportAPI} handles delay, cooldown and messages
+ */
+public enum TeleportCause {
+    /**
+     * Teleport by command, e.g. /tp
+     */
+    COMMAND(DelayPolicy.CONFIGURED, CooldownBucket.TELEPORT, MessagePolicy.ALL),
+    
+    /**
+     * Teleport to a home
+     */
+    HOME(DelayPolicy.CONFIGURED, CooldownBucket.TELEPORT, MessagePolicy.ALL),
+    
+    /**
+     * Teleport to a warp
+     */
+    WARP(DelayPolicy.CONFIGURED, CooldownBucket.TELEPORT, MessagePolicy.ALL),
+    
+    /**
+     * Teleport after an accepted teleport request
+     */
+    TPA(DelayPolicy.CONFIGURED, CooldownBucket.TELEPORT, MessagePolicy.ALL),
+    
+    /**
+     * Teleport to a claim
+     */
+    CLAIM(DelayPolicy.CONFIGURED, CooldownBucket.TELEPORT, MessagePolicy.ALL),
+    
+    /**
+     * Teleport into or out of the SMP world
+     */
+    SMP(DelayPolicy.CONFIGURED, CooldownBucket.TELEPORT, MessagePolicy.ALL),
+    
+    /**
+     * Random teleport, the caller sends its own messages
+     */
+    RTP(DelayPolicy.INSTANT, CooldownBucket.RTP, MessagePolicy.SILENT),
+    
+    /**
+     * Players moved out of the SMP world before it is reset
+     */
+    SMP_RESET(DelayPolicy.INSTANT, CooldownBucket.NONE, MessagePolicy.SILENT);
+    
+    /**
+     * Whether the teleport waits for the configured delay
+     */
+    public enum DelayPolicy {
+        CONFIGURED,
+        INSTANT
+    }
+    
+    /**
+     * Cooldowns checked and set by a teleport
+     */
+    public enum CooldownBucket {
+        NONE(null, 0, null, null),
+        TELEPORT("teleportation.cooldown", 60, "teleport.teleport-cooldown", null),
+        RTP("smp.rtp-cooldown", 60, "smp.rtp-cooldown", "sumania.rtp.bypass.cooldown");
+        
+        private final String configPath;
+        private final int defaultSeconds;
+        private final String messageKey;
+        private final String bypassPermission;
+        
+        CooldownBucket(String configPath, int defaultSeconds, String messageKey, String bypassPermission) {
+            this.configPath = configPath;
+            this.defaultSeconds = defaultSeconds;
+            this.messageKey = messageKey;
+            this.bypassPermission = bypassPermission;
+        }
+        
+        /**
+         * Get the config path of the cooldown in seconds
+         * @return The config path, or null for no cooldown
+         */
+        public String getConfigPath() {
+            return configPath;
+        }
+        
+        /**
+         * Get the cooldown used when the config has no value
+         * @return The cooldown in seconds
+         */
+        public int getDefaultSeconds() {
+            return defaultSeconds;
+        }
+        
+        /**
+         * Get the message sent while the cooldown is active
+         * @return The message key
+         */
+        public String getMessageKey() {
+            return messageKey;
+        }
+        
+        /**
+         * Get the permission to ignore the cooldown
+         * @return The permission, or null if it can't be bypassed
+         */
+        public String getBypassPermission() {
+            return bypassPermission;
+        }
+    }
+    
+    /**
+     * Whether the teleport sends its own delay and success messages
+     */
+    public enum MessagePolicy {
+        ALL,
+        SILENT
+    }
+    
+    private final DelayPolicy delayPolicy;
+    private final CooldownBucket cooldownBucket;
+    private final MessagePolicy messagePolicy;
+    
+    TeleportCause(DelayPolicy delayPolicy, CooldownBucket cooldownBucket, MessagePolicy messagePolicy) {
+        this.delayPolicy = delayPolicy;
+        this.cooldownBucket = cooldownBucket;
+        this.messagePolicy = messagePolicy;
+    }
+    
+    /**
+     * Get the delay policy
+     * @return The delay policy
+     */
+    public DelayPolicy getDelayPolicy() {
+        return delayPolicy;
+    }
+    
+    /**
+     * Get the cooldown bucket
+     * @return The cooldown bucket
+     */
+    public CooldownBucket getCooldownBucket() {
+        return cooldownBucket;
+    }
+    
+    /**
+     * Get the message policy
+     * @return The message policy
+     */
+    public MessagePolicy getMessagePolicy() {
+        return messagePolicy;
+    }
+}
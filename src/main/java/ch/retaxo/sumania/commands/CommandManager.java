@@ -8,8 +8,10 @@ import ch.retaxo.sumania.commands.chat.ChatCommand;
 import ch.retaxo.sumania.commands.claim.ClaimCommand;
 import ch.retaxo.sumania.commands.discord.DiscordCommand;
 import ch.retaxo.sumania.commands.economy.BalanceCommand;
+import ch.retaxo.sumania.commands.economy.BaltopCommand;
 import ch.retaxo.sumania.commands.economy.PayCommand;
 import ch.retaxo.sumania.commands.rewards.RewardsCommand;
+import ch.retaxo.sumania.commands.shop.SellCommand;
 import ch.retaxo.sumania.commands.shop.ShopCommand;
 import ch.retaxo.sumania.commands.smp.SMPCommand;
 import ch.retaxo.sumania.commands.teleport.*;
@@ -48,6 +50,7 @@ public class CommandManager {
             registerCommand("bal", balanceCommand);
             registerCommand("eco", balanceCommand);
             registerCommand("pay", new PayCommand(plugin));
+            registerCommand("baltop", new BaltopCommand(plugin));
         }
         
         // Register teleport commands if enabled
@@ -82,6 +85,7 @@ public class CommandManager {
         // Register shop commands if enabled
         if (config.getBoolean("commands.shop", true)) {
             registerCommand("shop", new ShopCommand(plugin));
+            registerCommand("sell", new SellCommand(plugin));
         }
         
         // Register auction commands if enabled
@@ -112,6 +116,9 @@ public class CommandManager {
             if (plugin.getCommand("smp") != null) {
                 plugin.getCommand("smp").setTabCompleter(smpCommand);
             }
+            
+            // Register random teleport command
+            registerCommand("rtp", new RandomTeleportCommand(plugin));
         }
         
         // Register claim commands if claims are enabled
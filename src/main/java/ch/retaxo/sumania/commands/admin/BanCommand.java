@@ -81,23 +81,25 @@ public class BanCommand implements CommandExecutor, TabCompleter {
         }
         
         String targetName = args[0];
-        OfflinePlayer target = Bukkit.getOfflinePlayer(targetName);
         
-        // Check if player exists
-        if (!target.hasPlayedBefore() && !target.isOnline()) {
-            sender.sendMessage("§cPlayer not found: " + targetName);
-            return true;
-        }
-        
-        // Build ban reason
-        StringBuilder reasonBuilder = new StringBuilder();
-        for (int i = 1; i < args.length; i++) {
-            reasonBuilder.append(args[i]).append(" ");
-        }
-        String reason = reasonBuilder.toString().trim();
-        
-        // Ban the player
-        plugin.getAPI().getPlayerAPI().banPlayer(target, reason, adminName, -1);
+        // Resolve the target without blocking, unknown names are looked up asynchronously
+        plugin.getAPI().getNameService().lookupPlayer(targetName, target -> {
+            // Check if player exists
+            if (target == null) {
+                sender.sendMessage("§cPlayer not found: " + targetName);
+                return;
+            }
+            
+            // Build ban reason
+            StringBuilder reasonBuilder = new StringBuilder();
+            for (int i = 1; i < args.length; i++) {
+                reasonBuilder.append(args[i]).append(" ");
+            }
+            String reason = reasonBuilder.toString().trim();
+            
+            // Ban the player
+            plugin.getAPI().getPlayerAPI().banPlayer(target, reason, adminName, -1);
+        });
         
         return true;
     }
@@ -113,33 +115,35 @@ public class BanCommand implements CommandExecutor, TabCompleter {
         }
         
         String targetName = args[0];
-        OfflinePlayer target = Bukkit.getOfflinePlayer(targetName);
-        
-        // Check if player exists
-        if (!target.hasPlayedBefore() && !target.isOnline()) {
-            sender.sendMessage("§cPlayer not found: " + targetName);
-            return true;
-        }
-        
-        // Parse duration
-        String durationStr = args[1];
-        long duration = parseDuration(durationStr);
-        
-        if (duration <= 0) {
-            sender.sendMessage("§cInvalid duration format: " + durationStr);
-            sender.sendMessage("§cUse format like: 1d2h3m (days, hours, minutes)");
-            return true;
-        }
         
-        // Build ban reason
-        StringBuilder reasonBuilder = new StringBuilder();
-        for (int i = 2; i < args.length; i++) {
-            reasonBuilder.append(args[i]).append(" ");
-        }
-        String reason = reasonBuilder.toString().trim();
-        
-        // Ban the player
-        plugin.getAPI().getPlayerAPI().banPlayer(target, reason, adminName, duration);
+        // Resolve the target without blocking, unknown names are looked up asynchronously
+        plugin.getAPI().getNameService().lookupPlayer(targetName, target -> {
+            // Check if player exists
+            if (target == null) {
+                sender.sendMessage("§cPlayer not found: " + targetName);
+                return;
+            }
+            
+            // Parse duration
+            String durationStr = args[1];
+            long duration = parseDuration(durationStr);
+            
+            if (duration <= 0) {
+                sender.sendMessage("§cInvalid duration format: " + durationStr);
+                sender.sendMessage("§cUse format like: 1d2h3m (days, hours, minutes)");
+                return;
+            }
+            
+            // Build ban reason
+            StringBuilder reasonBuilder = new StringBuilder();
+            for (int i = 2; i < args.length; i++) {
+                reasonBuilder.append(args[i]).append(" ");
+            }
+            String reason = reasonBuilder.toString().trim();
+            
+            // Ban the player
+            plugin.getAPI().getPlayerAPI().banPlayer(target, reason, adminName, duration);
+        });
         
         return true;
     }
@@ -154,22 +158,24 @@ public class BanCommand implements CommandExecutor, TabCompleter {
         }
         
         String targetName = args[0];
-        OfflinePlayer target = Bukkit.getOfflinePlayer(targetName);
-        
-        // Check if player exists
-        if (!target.hasPlayedBefore()) {
-            sender.sendMessage("§cPlayer not found: " + targetName);
-            return true;
-        }
         
-        // Check if player is banned
-        if (!plugin.getAPI().getPlayerAPI().isBanned(target)) {
-            sender.sendMessage("§cPlayer is not banned: " + targetName);
-            return true;
-        }
-        
-        // Unban the player
-        plugin.getAPI().getPlayerAPI().unbanPlayer(target, adminName);
+        // Resolve the target without blocking, unknown names are looked up asynchronously
+        plugin.getAPI().getNameService().lookupPlayer(targetName, target -> {
+            // Check if player exists
+            if (target == null) {
+                sender.sendMessage("§cPlayer not found: " + targetName);
+                return;
+            }
+            
+            // Check if player is banned
+            if (!plugin.getAPI().getPlayerAPI().isBanned(target)) {
+                sender.sendMessage("§cPlayer is not banned: " + targetName);
+                return;
+            }
+            
+            // Unban the player
+            plugin.getAPI().getPlayerAPI().unbanPlayer(target, adminName);
+        });
         
         return true;
     }
@@ -184,24 +190,26 @@ public class BanCommand implements CommandExecutor, TabCompleter {
         }
         
         String targetName = args[0];
-        OfflinePlayer target = Bukkit.getOfflinePlayer(targetName);
         
-        // Check if player exists
-        if (!target.hasPlayedBefore() && !target.isOnline()) {
-            sender.sendMessage("§cPlayer not found: " + targetName);
-            return true;
-        }
+        // Resolve the target without blocking, unknown names are looked up asynchronously
+        plugin.getAPI().getNameService().lookupPlayer(targetName, target -> {
+            // Check if player exists
+            if (target == null) {
+                sender.sendMessage("§cPlayer not found: " + targetName);
+                return;
+            }
 
 
-        sender.sendMessage("§8-----------------------------------");
-        
-        // Only use fancy components if sender is a player
-        if (sender instanceof Player) {
-            Player player = (Player) sender;
-            sendFancyLookup(player, target);
-        } else {
-            sendPlainLookup(sender, target);
-        }
+            sender.sendMessage("§8-----------------------------------");
+            
+            // Only use fancy components if sender is a player
+            if (sender instanceof Player) {
+                Player player = (Player) sender;
+                sendFancyLookup(player, target);
+            } else {
+                sendPlainLookup(sender, target);
+            }
+        });
         
         return true;
     }
@@ -429,34 +437,36 @@ public class BanCommand implements CommandExecutor, TabCompleter {
         }
         
         String targetName = args[0];
-        OfflinePlayer target = Bukkit.getOfflinePlayer(targetName);
-        
-        // Check if player exists
-        if (!target.hasPlayedBefore() && !target.isOnline()) {
-            sender.sendMessage("§cPlayer not found: " + targetName);
-            return true;
-        }
-        
-        // Get ban history
-        List<Map<String, Object>> banHistory = plugin.getAPI().getPlayerAPI().getBanHistory(target);
-        
-        // Send ban history
-        sender.sendMessage("§6=== Ban History for §e" + target.getName() + " §6===");
-        
-        if (banHistory.isEmpty()) {
-            sender.sendMessage("§7No ban history found.");
-            return true;
-        }
-        
-        SimpleDateFormat dateFormat = new SimpleDateFormat("dd.MM.yyyy HH:mm:ss");
         
-        // Only use fancy components if sender is a player
-        if (sender instanceof Player) {
-            Player player = (Player) sender;
-            sendFancyBanHistory(player, target, banHistory, dateFormat);
-        } else {
-            sendPlainBanHistory(sender, target, banHistory, dateFormat);
-        }
+        // Resolve the target without blocking, unknown names are looked up asynchronously
+        plugin.getAPI().getNameService().lookupPlayer(targetName, target -> {
+            // Check if player exists
+            if (target == null) {
+                sender.sendMessage("§cPlayer not found: " + targetName);
+                return;
+            }
+            
+            // Get ban history
+            List<Map<String, Object>> banHistory = plugin.getAPI().getPlayerAPI().getBanHistory(target);
+            
+            // Send ban history
+            sender.sendMessage("§6=== Ban History for §e" + target.getName() + " §6===");
+            
+            if (banHistory.isEmpty()) {
+                sender.sendMessage("§7No ban history found.");
+                return;
+            }
+            
+            SimpleDateFormat dateFormat = new SimpleDateFormat("dd.MM.yyyy HH:mm:ss");
+            
+            // Only use fancy components if sender is a player
+            if (sender instanceof Player) {
+                Player player = (Player) sender;
+                sendFancyBanHistory(player, target, banHistory, dateFormat);
+            } else {
+                sendPlainBanHistory(sender, target, banHistory, dateFormat);
+            }
+        });
         
         return true;
     }
@@ -471,34 +481,36 @@ public class BanCommand implements CommandExecutor, TabCompleter {
         }
         
         String targetName = args[0];
-        OfflinePlayer target = Bukkit.getOfflinePlayer(targetName);
-        
-        // Check if player exists
-        if (!target.hasPlayedBefore() && !target.isOnline()) {
-            sender.sendMessage("§cPlayer not found: " + targetName);
-            return true;
-        }
-        
-        // Get mute history
-        List<Map<String, Object>> muteHistory = plugin.getAPI().getPlayerAPI().getMuteHistory(target);
-        
-        // Send mute history
-        sender.sendMessage("§6=== Mute History for §e" + target.getName() + " §6===");
-        
-        if (muteHistory.isEmpty()) {
-            sender.sendMessage("§7No mute history found.");
-            return true;
-        }
-        
-        SimpleDateFormat dateFormat = new SimpleDateFormat("dd.MM.yyyy HH:mm:ss");
         
-        // Only use fancy components if sender is a player
-        if (sender instanceof Player) {
-            Player player = (Player) sender;
-            sendFancyMuteHistory(player, target, muteHistory, dateFormat);
-        } else {
-            sendPlainMuteHistory(sender, target, muteHistory, dateFormat);
-        }
+        // Resolve the target without blocking, unknown names are looked up asynchronously
+        plugin.getAPI().getNameService().lookupPlayer(targetName, target -> {
+            // Check if player exists
+            if (target == null) {
+                sender.sendMessage("§cPlayer not found: " + targetName);
+                return;
+            }
+            
+            // Get mute history
+            List<Map<String, Object>> muteHistory = plugin.getAPI().getPlayerAPI().getMuteHistory(target);
+            
+            // Send mute history
+            sender.sendMessage("§6=== Mute History for §e" + target.getName() + " §6===");
+            
+            if (muteHistory.isEmpty()) {
+                sender.sendMessage("§7No mute history found.");
+                return;
+            }
+            
+            SimpleDateFormat dateFormat = new SimpleDateFormat("dd.MM.yyyy HH:mm:ss");
+            
+            // Only use fancy components if sender is a player
+            if (sender instanceof Player) {
+                Player player = (Player) sender;
+                sendFancyMuteHistory(player, target, muteHistory, dateFormat);
+            } else {
+                sendPlainMuteHistory(sender, target, muteHistory, dateFormat);
+            }
+        });
         
         return true;
     }
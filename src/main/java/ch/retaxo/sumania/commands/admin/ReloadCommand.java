@@ -46,6 +46,7 @@ public class ReloadCommand implements CommandExecutor {
             
             // Reload configuration
             plugin.getConfigManager().reloadAllConfigs();
+            plugin.getAPI().getShopAPI().loadPrices();
             
             if (sender instanceof Player) {
                 plugin.getAPI().getPlayerAPI().sendMessage(
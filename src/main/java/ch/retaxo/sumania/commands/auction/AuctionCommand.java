@@ -2,6 +2,7 @@ package ch.retaxo.sumania.commands.auction;
 
 import ch.retaxo.sumania.Sumania;
 import ch.retaxo.sumania.api.auction.AuctionAPI;
+import ch.retaxo.sumania.api.player.PlayerSession;
 import ch.retaxo.sumania.models.Auction;
 import org.bukkit.Bukkit;
 import org.bukkit.Material;
@@ -38,13 +39,6 @@ public class AuctionCommand implements CommandExecutor, TabCompleter, Listener {
     private final AuctionAPI auctionAPI;
     private final AuctionMenuHandler menuHandler;
     
-    private final Map<UUID, ItemStack> creatingAuction = new HashMap<>();
-    private final Map<UUID, Double> settingPrice = new HashMap<>();
-    private final Map<UUID, Integer> settingDuration = new HashMap<>();
-    private final Map<UUID, String> settingCategory = new HashMap<>();
-    private final Map<UUID, Integer> viewingPage = new HashMap<>();
-    private final Map<UUID, String> viewingCategory = new HashMap<>();
-    
     // NamespacedKeys for persistent data
     private final NamespacedKey auctionIdKey;
     private final NamespacedKey menuActionKey;
@@ -112,6 +106,13 @@ public class AuctionCommand implements CommandExecutor, TabCompleter, Listener {
                 case "cancel":
                     handleCancelCommand(player, args);
                     return true;
+                case "bid":
+                    handleBidCommand(player, args);
+                    return true;
+                case "mailbox":
+                case "postfach":
+                    plugin.getAPI().getMailboxAPI().claimAll(player);
+                    return true;
                 case "my":
                 case "view":
                     menuHandler.openPlayerAuctionsMenu(player);
@@ -148,7 +149,9 @@ public class AuctionCommand implements CommandExecutor, TabCompleter, Listener {
         player.sendMessage("§b/ah §8- §7Öffnet das Auktionshaus");
         player.sendMessage("§b/ah sell §8- §7Verkaufe das Item in deiner Hand");
         player.sendMessage("§b/ah cancel <id> §8- §7Bricht eine deiner Auktionen ab");
+        player.sendMessage("§b/ah bid <id> <Betrag> §8- §7Bietet auf eine Versteigerung");
         player.sendMessage("§b/ah my §8- §7Zeigt deine aktiven Auktionen");
+        player.sendMessage("§b/ah mailbox §8- §7Holt alle Lieferungen aus deinem Postfach ab");
         player.sendMessage("§b/ah category §8- §7Zeigt alle Kategorien");
         player.sendMessage("§b/ah help §8- §7Zeigt diese Hilfe an");
         player.sendMessage("§8§m--------------------------------------------------------");
@@ -161,7 +164,7 @@ public class AuctionCommand implements CommandExecutor, TabCompleter, Listener {
      */
     private void handleSellCommand(Player player, String[] args) {
         // Check if player is already in the process of creating an auction
-        if (creatingAuction.containsKey(player.getUniqueId())) {
+        if (isCreatingAuction(player)) {
             player.sendMessage(plugin.getConfigManager().getPrefix() + "§cDu bist bereits dabei, eine Auktion zu erstellen.");
             return;
         }
@@ -174,7 +177,7 @@ public class AuctionCommand implements CommandExecutor, TabCompleter, Listener {
         }
         
         // Store item for auction creation
-        creatingAuction.put(player.getUniqueId(), item.clone());
+        getSession(player).setAuctionItem(item.clone());
         
         // Open price selection menu
         menuHandler.openCreateAuctionMenu(player, item);
@@ -225,13 +228,45 @@ public class AuctionCommand implements CommandExecutor, TabCompleter, Listener {
         }
     }
 
+    /**
+     * Handle the bid command
+     * @param player The player
+     * @param args The command arguments
+     */
+    private void handleBidCommand(Player player, String[] args) {
+        if (args.length < 3) {
+            player.sendMessage(plugin.getConfigManager().getPrefix() + "§cVerwendung: /ah bid <id> <Betrag>");
+            return;
+        }
+        
+        int auctionId;
+        double amount;
+        
+        try {
+            auctionId = Integer.parseInt(args[1]);
+            amount = Double.parseDouble(args[2]);
+        } catch (NumberFormatException e) {
+            player.sendMessage(plugin.getConfigManager().getPrefix() + "§cBitte gib eine gültige Auktions-ID und einen gültigen Betrag an.");
+            return;
+        }
+        
+        Auction auction = auctionAPI.getAuction(auctionId);
+        
+        if (auction == null) {
+            player.sendMessage(plugin.getConfigManager().getPrefix() + "§cAuktion mit ID " + auctionId + " nicht gefunden.");
+            return;
+        }
+        
+        auctionAPI.placeBid(auction, player, amount);
+    }
+
     @Override
     public List<String> onTabComplete(CommandSender sender, Command command, String alias, String[] args) {
         List<String> completions = new ArrayList<>();
         
         if (args.length == 1) {
             // First argument - subcommands
-            List<String> subCommands = Arrays.asList("help", "sell", "cancel", "my", "view", "category", "search");
+            List<String> subCommands = Arrays.asList("help", "sell", "cancel", "bid", "mailbox", "my", "view", "category", "search");
             for (String subCommand : subCommands) {
                 if (subCommand.startsWith(args[0].toLowerCase())) {
                     completions.add(subCommand);
@@ -335,7 +370,7 @@ public class AuctionCommand implements CommandExecutor, TabCompleter, Listener {
      * @return True if the player is creating an auction
      */
     public boolean isCreatingAuction(Player player) {
-        return creatingAuction.containsKey(player.getUniqueId());
+        return getSession(player).getAuctionItem() != null;
     }
     
     /**
@@ -344,7 +379,7 @@ public class AuctionCommand implements CommandExecutor, TabCompleter, Listener {
      * @return The item, or null if not creating an auction
      */
     public ItemStack getCreatingAuctionItem(Player player) {
-        return creatingAuction.get(player.getUniqueId());
+        return getSession(player).getAuctionItem();
     }
     
     /**
@@ -353,7 +388,7 @@ public class AuctionCommand implements CommandExecutor, TabCompleter, Listener {
      * @param price The price
      */
     public void setAuctionPrice(Player player, double price) {
-        settingPrice.put(player.getUniqueId(), price);
+        getSession(player).setAuctionPrice(price);
     }
     
     /**
@@ -362,7 +397,7 @@ public class AuctionCommand implements CommandExecutor, TabCompleter, Listener {
      * @return The price, or -1 if not set
      */
     public double getAuctionPrice(Player player) {
-        return settingPrice.getOrDefault(player.getUniqueId(), -1.0);
+        return getSession(player).getAuctionPrice();
     }
     
     /**
@@ -371,7 +406,7 @@ public class AuctionCommand implements CommandExecutor, TabCompleter, Listener {
      * @param duration The duration in hours
      */
     public void setAuctionDuration(Player player, int duration) {
-        settingDuration.put(player.getUniqueId(), duration);
+        getSession(player).setAuctionDuration(duration);
     }
     
     /**
@@ -380,7 +415,7 @@ public class AuctionCommand implements CommandExecutor, TabCompleter, Listener {
      * @return The duration in hours, or -1 if not set
      */
     public int getAuctionDuration(Player player) {
-        return settingDuration.getOrDefault(player.getUniqueId(), -1);
+        return getSession(player).getAuctionDuration();
     }
     
     /**
@@ -389,7 +424,7 @@ public class AuctionCommand implements CommandExecutor, TabCompleter, Listener {
      * @param category The category
      */
     public void setAuctionCategory(Player player, String category) {
-        settingCategory.put(player.getUniqueId(), category);
+        getSession(player).setAuctionCategory(category);
     }
     
     /**
@@ -398,7 +433,25 @@ public class AuctionCommand implements CommandExecutor, TabCompleter, Listener {
      * @return The category, or null if not set
      */
     public String getAuctionCategory(Player player) {
-        return settingCategory.get(player.getUniqueId());
+        return getSession(player).getAuctionCategory();
+    }
+    
+    /**
+     * Set if the auction being created takes bids
+     * @param player The player
+     * @param bidding True to sell to the highest bidder
+     */
+    public void setAuctionBidding(Player player, boolean bidding) {
+        getSession(player).setAuctionBidding(bidding);
+    }
+    
+    /**
+     * Check if the auction being created takes bids
+     * @param player The player
+     * @return True if the auction sells to the highest bidder
+     */
+    public boolean isAuctionBidding(Player player) {
+        return getSession(player).isAuctionBidding();
     }
     
     /**
@@ -407,50 +460,51 @@ public class AuctionCommand implements CommandExecutor, TabCompleter, Listener {
      */
     public void completeAuctionCreation(Player player) {
         try {
-            UUID playerId = player.getUniqueId();
+            PlayerSession session = getSession(player);
             
             // Validate auction parameters
-            if (!creatingAuction.containsKey(playerId)) {
+            if (session.getAuctionItem() == null) {
                 player.sendMessage(plugin.getConfigManager().getPrefix() + "§cFehler: Kein Item für die Auktion gefunden.");
                 return;
             }
             
-            if (!settingPrice.containsKey(playerId)) {
+            if (session.getAuctionPrice() == -1) {
                 player.sendMessage(plugin.getConfigManager().getPrefix() + "§cFehler: Kein Preis für die Auktion festgelegt.");
                 return;
             }
             
-            if (!settingDuration.containsKey(playerId)) {
+            if (session.getAuctionDuration() == -1) {
                 player.sendMessage(plugin.getConfigManager().getPrefix() + "§cFehler: Keine Dauer für die Auktion festgelegt.");
                 return;
             }
             
-            ItemStack item = creatingAuction.get(playerId);
-            double price = settingPrice.get(playerId);
-            int duration = settingDuration.get(playerId);
-            String category = settingCategory.get(playerId);
+            ItemStack item = session.getAuctionItem();
+            double price = session.getAuctionPrice();
+            int duration = session.getAuctionDuration();
+            String category = session.getAuctionCategory();
+            boolean bidding = session.isAuctionBidding();
             
             // Validate values
             if (item == null || item.getType() == Material.AIR) {
                 player.sendMessage(plugin.getConfigManager().getPrefix() + "§cFehler: Ungültiges Item für die Auktion.");
-                clearAuctionCreationData(playerId);
+                session.clearAuctionCreation();
                 return;
             }
             
             if (price <= 0) {
                 player.sendMessage(plugin.getConfigManager().getPrefix() + "§cFehler: Ungültiger Preis für die Auktion.");
-                clearAuctionCreationData(playerId);
+                session.clearAuctionCreation();
                 return;
             }
             
             if (duration <= 0) {
                 player.sendMessage(plugin.getConfigManager().getPrefix() + "§cFehler: Ungültige Dauer für die Auktion.");
-                clearAuctionCreationData(playerId);
+                session.clearAuctionCreation();
                 return;
             }
             
             // Create the auction
-            int auctionId = auctionAPI.createAuction(player, item, price, duration, category);
+            int auctionId = auctionAPI.createAuction(player, item, price, duration, category, bidding);
             
             if (auctionId != -1) {
                 player.sendMessage(plugin.getConfigManager().getPrefix() + "§aAuktion erfolgreich erstellt! ID: " + auctionId);
@@ -460,14 +514,14 @@ public class AuctionCommand implements CommandExecutor, TabCompleter, Listener {
             }
             
             // Clear creation data
-            clearAuctionCreationData(playerId);
+            session.clearAuctionCreation();
         } catch (Exception e) {
             plugin.getLogger().severe("Error completing auction creation: " + e.getMessage());
             e.printStackTrace();
             player.sendMessage(plugin.getConfigManager().getPrefix() + "§cEs ist ein Fehler aufgetreten. Bitte versuche es erneut.");
             
             // Make sure to clean up
-            clearAuctionCreationData(player.getUniqueId());
+            getSession(player).clearAuctionCreation();
         }
     }
     
@@ -476,25 +530,21 @@ public class AuctionCommand implements CommandExecutor, TabCompleter, Listener {
      * @param player The player
      */
     public void cancelAuctionCreation(Player player) {
-        UUID playerId = player.getUniqueId();
-        
-        if (creatingAuction.containsKey(playerId)) {
+        if (isCreatingAuction(player)) {
             player.sendMessage(plugin.getConfigManager().getPrefix() + "§cAuktion abgebrochen.");
         }
         
         // Clear creation data
-        clearAuctionCreationData(playerId);
+        getSession(player).clearAuctionCreation();
     }
     
     /**
-     * Clear auction creation data for a player
-     * @param playerId The player UUID
+     * Get the session holding a player's auction state
+     * @param player The player
+     * @return The session
      */
-    private void clearAuctionCreationData(UUID playerId) {
-        creatingAuction.remove(playerId);
-        settingPrice.remove(playerId);
-        settingDuration.remove(playerId);
-        settingCategory.remove(playerId);
+    private PlayerSession getSession(Player player) {
+        return plugin.getAPI().getPlayerAPI().getSession(player);
     }
     
     /**
@@ -503,7 +553,7 @@ public class AuctionCommand implements CommandExecutor, TabCompleter, Listener {
      * @param page The page
      */
     public void setViewingPage(Player player, int page) {
-        viewingPage.put(player.getUniqueId(), page);
+        getSession(player).setAuctionViewingPage(page);
     }
     
     /**
@@ -512,7 +562,7 @@ public class AuctionCommand implements CommandExecutor, TabCompleter, Listener {
      * @return The page, or 0 if not set
      */
     public int getViewingPage(Player player) {
-        return viewingPage.getOrDefault(player.getUniqueId(), 0);
+        return getSession(player).getAuctionViewingPage();
     }
     
     /**
@@ -521,7 +571,7 @@ public class AuctionCommand implements CommandExecutor, TabCompleter, Listener {
      * @param category The category
      */
     public void setViewingCategory(Player player, String category) {
-        viewingCategory.put(player.getUniqueId(), category);
+        getSession(player).setAuctionViewingCategory(category);
     }
     
     /**
@@ -530,7 +580,7 @@ public class AuctionCommand implements CommandExecutor, TabCompleter, Listener {
      * @return The category, or null if not set
      */
     public String getViewingCategory(Player player) {
-        return viewingCategory.get(player.getUniqueId());
+        return getSession(player).getAuctionViewingCategory();
     }
     
     /**
@@ -538,8 +588,8 @@ public class AuctionCommand implements CommandExecutor, TabCompleter, Listener {
      * @param player The player
      */
     public void clearViewingData(Player player) {
-        UUID playerId = player.getUniqueId();
-        viewingPage.remove(playerId);
-        viewingCategory.remove(playerId);
+        PlayerSession session = getSession(player);
+        session.setAuctionViewingPage(0);
+        session.setAuctionViewingCategory(null);
     }
 }
\ No newline at end of file
@@ -0,0 +1,138 @@
+package ch.retaxo.sumania.commands.auction;
+
+import ch.retaxo.sumania.models.Auction;
+import org.bukkit.inventory.ItemStack;
+import org.bukkit.inventory.meta.ItemMeta;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.WeakHashMap;
+import java.util.function.Function;
+
+/**
+ * Display items of auctions, rendered once and shared by every player browsing the auction house.
+ * An item is rendered again when the auction's status, bids, version or seller name changed.
+ * Otherwise only the remaining time line is replaced, at most once per refresh interval.
+ * Entries are held weakly by auction, so they go away with the auctions they show.
+ * Must only be used from the main thread.
+ */
+class AuctionDisplayCache {
+
+    private final Function<Auction, Render> renderer;
+    private final Function<Auction, String> timeLine;
+    private final long refreshMillis;
+    private final Map<Auction, Entry> entries = new WeakHashMap<>();
+    
+    /**
+     * Constructor
+     * @param renderer Renders the display item of an auction
+     * @param timeLine Formats the remaining time line of an auction
+     * @param refreshMillis How long a remaining time line is shown before it is refreshed
+     */
+    AuctionDisplayCache(Function<Auction, Render> renderer, Function<Auction, String> timeLine, long refreshMillis) {
+        this.renderer = renderer;
+        this.timeLine = timeLine;
+        this.refreshMillis = refreshMillis;
+    }
+    
+    /**
+     * Get the display item of an auction. The item is shared and must not be modified.
+     * @param auction The auction
+     * @return The display item
+     */
+    ItemStack get(Auction auction) {
+        long now = System.currentTimeMillis();
+        Entry entry = entries.get(auction);
+        
+        if (entry == null || !entry.matches(auction)) {
+            Render render = renderer.apply(auction);
+            entry = new Entry(auction, render.item, render.timeLineIndex, now);
+            entries.put(auction, entry);
+            return entry.item;
+        }
+        
+        if (entry.timeLineIndex >= 0 && now - entry.renderedTime >= refreshMillis) {
+            entry.item = replaceLine(entry.item, entry.timeLineIndex, timeLine.apply(auction));
+            entry.renderedTime = now;
+        }
+        
+        return entry.item;
+    }
+    
+    /**
+     * Copy an item with one lore line replaced
+     * @param item The item
+     * @param index The index of the lore line
+     * @param line The new line
+     * @return The copy
+     */
+    private static ItemStack replaceLine(ItemStack item, int index, String line) {
+        ItemStack copy = item.clone();
+        ItemMeta meta = copy.getItemMeta();
+        List<String> lore = meta.getLore();
+        
+        if (lore == null || index >= lore.size()) {
+            return item;
+        }
+        
+        lore.set(index, line);
+        meta.setLore(lore);
+        copy.setItemMeta(meta);
+        return copy;
+    }
+    
+    /**
+     * A rendered display item
+     */
+    static final class Render {
+        private final ItemStack item;
+        private final int timeLineIndex;
+        
+        /**
+         * Constructor
+         * @param item The display item
+         * @param timeLineIndex The lore index of the remaining time line, -1 if it has none
+         */
+        Render(ItemStack item, int timeLineIndex) {
+            this.item = item;
+            this.timeLineIndex = timeLineIndex;
+        }
+    }
+    
+    /**
+     * A cached display item with the auction state it was rendered from
+     */
+    private static final class Entry {
+        private final Auction.Status status;
+        private final Auction.BidState bidState;
+        private final int version;
+        private final String sellerName;
+        private final int timeLineIndex;
+        private ItemStack item;
+        private long renderedTime;
+        
+        private Entry(Auction auction, ItemStack item, int timeLineIndex, long renderedTime) {
+            this.status = auction.getStatus();
+            this.bidState = auction.getBidState();
+            this.version = auction.getVersion();
+            this.sellerName = auction.getSellerName();
+            this.timeLineIndex = timeLineIndex;
+            this.item = item;
+            this.renderedTime = renderedTime;
+        }
+        
+        /**
+         * Check if the auction still looks like when the item was rendered.
+         * Bids replace the bid state, so comparing references is enough.
+         * @param auction The auction
+         * @return True if the item is still valid
+         */
+        private boolean matches(Auction auction) {
+            return status == auction.getStatus()
+                    && bidState == auction.getBidState()
+                    && version == auction.getVersion()
+                    && Objects.equals(sellerName, auction.getSellerName());
+        }
+    }
+}
@@ -2,6 +2,7 @@ package ch.retaxo.sumania.commands.auction;
 
 import ch.retaxo.sumania.Sumania;
 import ch.retaxo.sumania.api.auction.AuctionAPI;
+import ch.retaxo.sumania.api.auction.AuctionBook;
 import ch.retaxo.sumania.models.Auction;
 import org.bukkit.Bukkit;
 import org.bukkit.ChatColor;
@@ -43,6 +44,9 @@ public class AuctionMenuHandler implements Listener {
     // Price format
     private final DecimalFormat priceFormat = new DecimalFormat("#,##0.00");
     
+    // Auction items shared by all viewers
+    private final AuctionDisplayCache displayCache;
+    
     // Color codes from config
     private String primaryColor;
     private String secondaryColor;
@@ -91,6 +95,9 @@ public class AuctionMenuHandler implements Listener {
         
         // Load settings from config
         loadSettings();
+        
+        long timeRefreshSeconds = Math.max(1, plugin.getConfigManager().getConfig("config.yml").getLong("auction.time-refresh-seconds", 10));
+        displayCache = new AuctionDisplayCache(this::renderAuctionItem, this::formatRemainingTime, timeRefreshSeconds * 1000L);
     }
     
     /**
@@ -163,14 +170,14 @@ public class AuctionMenuHandler implements Listener {
      * @param page The page to display
      */
     public void openMainMenu(Player player, int page) {
-        // Get all auctions
-        List<Auction> recentAuctions = auctionAPI.getActiveAuctions();
+        // Count all active auctions
+        int auctionCount = auctionAPI.countActiveAuctions(null);
         
         // Calculate available item slots per page
         int availableSlots = (mainMenuRows - 2) * 7;
         
         // Calculate pages
-        int totalPages = (int) Math.ceil((double) recentAuctions.size() / availableSlots);
+        int totalPages = (int) Math.ceil((double) auctionCount / availableSlots);
         if (totalPages == 0) totalPages = 1;
         if (page < 0) page = 0;
         if (page >= totalPages) page = totalPages - 1;
@@ -229,11 +236,25 @@ public class AuctionMenuHandler implements Listener {
         categories = setMenuAction(categories, "categories");
         menu.setItem(6, categories);
         
-        // Add auctions for current page
-        int start = page * availableSlots;
-        int end = Math.min(start + availableSlots, recentAuctions.size());
+        int deliveries = plugin.getAPI().getMailboxAPI().count(player);
+        ItemStack mailbox = createMenuItem(Material.CHEST, 
+                highlightColor + "Postfach", 
+                Arrays.asList(
+                    primaryColor + "Gekaufte, ersteigerte und",
+                    primaryColor + "zurückgegebene Items.",
+                    "",
+                    primaryColor + "Lieferungen: " + highlightColor + deliveries,
+                    "",
+                    secondaryColor + "» " + primaryColor + "Klicke, um alles abzuholen"
+                ));
+        mailbox = setMenuAction(mailbox, "claim_mailbox");
+        menu.setItem(8, mailbox);
+        
+        // Get the auctions for the current page only
+        List<Auction> pageAuctions = auctionAPI.getActiveAuctionPage(
+                null, AuctionBook.Sort.END_TIME, page * availableSlots, availableSlots);
         
-        if (recentAuctions.isEmpty()) {
+        if (pageAuctions.isEmpty()) {
             // No auctions available
             ItemStack noAuctions = createMenuItem(Material.BARRIER, 
                     warningColor + "Keine Auktionen", 
@@ -245,8 +266,7 @@ public class AuctionMenuHandler implements Listener {
         } else {
             // Display auctions for current page
             int slot = 0;
-            for (int i = start; i < end; i++) {
-                Auction auction = recentAuctions.get(i);
+            for (Auction auction : pageAuctions) {
                 ItemStack auctionItem = createAuctionItem(auction);
                 
                 // Calculate position - start with slot 10 in the first row
@@ -631,7 +651,10 @@ public class AuctionMenuHandler implements Listener {
             if (!lore.isEmpty()) {
                 lore.add("");
             }
-            lore.add(priceColor + "Preis: " + priceFormat.format(price) + " " + plugin.getAPI().getEconomyAPI().getCurrencyName());
+            AuctionCommand auctionCommand = (AuctionCommand) plugin.getCommandManager().getCommand("ah");
+            boolean bidding = auctionCommand.isAuctionBidding(player);
+            
+            lore.add(priceColor + (bidding ? "Startgebot: " : "Preis: ") + priceFormat.format(price) + " " + plugin.getAPI().getEconomyAPI().getCurrencyName());
             lore.add(timeColor + "Dauer: " + duration + " Stunden");
             if (category != null && !category.equals("null")) {
                 lore.add(secondaryColor + "Kategorie: " + ChatColor.WHITE + category);
@@ -669,6 +692,17 @@ public class AuctionMenuHandler implements Listener {
             confirm = setMenuAction(confirm, "confirm_auction");
             menu.setItem(11, confirm);
             
+            // Add sale type toggle
+            ItemStack saleType = createMenuItem(bidding ? Material.GOLDEN_HOE : Material.EMERALD, 
+                    highlightColor + "Verkaufsart: " + (bidding ? "Versteigerung" : "Sofortkauf"), 
+                    Arrays.asList(
+                        primaryColor + (bidding ? "Das Item geht an das höchste Gebot." : "Das Item wird zum festen Preis verkauft."),
+                        "",
+                        secondaryColor + "» " + primaryColor + "Klicke, um die Verkaufsart zu wechseln"
+                    ));
+            saleType = setMenuAction(saleType, "toggle_bidding");
+            menu.setItem(4, saleType);
+            
             // Add back to category button
             ItemStack backToCategory = createMenuItem(Material.ARROW, 
                     highlightColor + "Kategorie ändern", 
@@ -835,28 +869,25 @@ public class AuctionMenuHandler implements Listener {
      * @param category The category
      */
     public void openCategoryMenu(Player player, String category) {
-        // Get category auctions
-        List<Auction> auctions = auctionAPI.getAuctionsByCategory(category);
-        
         // Store current page and category
         AuctionCommand auctionCommand = (AuctionCommand) plugin.getCommandManager().getCommand("ah");
         auctionCommand.setViewingPage(player, 0);
         auctionCommand.setViewingCategory(player, category);
         
         // Open the category menu page
-        openCategoryMenuPage(player, category, auctions, 0);
+        openCategoryMenuPage(player, category, 0);
     }
     
     /**
      * Open a category menu page
      * @param player The player
      * @param category The category
-     * @param auctions The auctions in the category
      * @param page The page number
      */
-    public void openCategoryMenuPage(Player player, String category, List<Auction> auctions, int page) {
+    public void openCategoryMenuPage(Player player, String category, int page) {
         // Calculate pages
-        int totalPages = (int) Math.ceil((double) auctions.size() / itemsPerPage);
+        int auctionCount = auctionAPI.countActiveAuctions(category);
+        int totalPages = (int) Math.ceil((double) auctionCount / itemsPerPage);
         if (totalPages == 0) totalPages = 1;
         if (page < 0) page = 0;
         if (page >= totalPages) page = totalPages - 1;
@@ -872,7 +903,7 @@ public class AuctionMenuHandler implements Listener {
             menu.setItem(i, createMenuItem(borderItem, " ", null));
         }
         
-        if (auctions.isEmpty()) {
+        if (auctionCount == 0) {
             // No auctions in this category
             ItemStack noAuctions = createMenuItem(Material.BARRIER, 
                     warningColor + "Keine Auktionen", 
@@ -882,15 +913,14 @@ public class AuctionMenuHandler implements Listener {
                     ));
             menu.setItem(22, noAuctions);
         } else {
-            // Calculate start and end indices for this page
-            int start = page * itemsPerPage;
-            int end = Math.min(start + itemsPerPage, auctions.size());
+            // Get the auctions for this page only
+            List<Auction> pageAuctions = auctionAPI.getActiveAuctionPage(
+                    category, AuctionBook.Sort.END_TIME, page * itemsPerPage, itemsPerPage);
             
             // Add auctions
             int slot = 9;
             
-            for (int i = start; i < end; i++) {
-                Auction auction = auctions.get(i);
+            for (Auction auction : pageAuctions) {
                 ItemStack auctionItem = createAuctionItem(auction);
                 menu.setItem(slot, auctionItem);
                 
@@ -1118,10 +1148,19 @@ public class AuctionMenuHandler implements Listener {
     /**
      * Create an item for an auction
      * @param auction The auction
-     * @return The created item
+     * @return The created item, shared with other viewers
      */
     public ItemStack createAuctionItem(Auction auction) {
-        ItemStack item = auction.getItem().clone();
+        return displayCache.get(auction);
+    }
+    
+    /**
+     * Render the item for an auction
+     * @param auction The auction
+     * @return The rendered item and the position of its remaining time line
+     */
+    private AuctionDisplayCache.Render renderAuctionItem(Auction auction) {
+        ItemStack item = auction.getDisplayItem();
         ItemMeta meta = item.getItemMeta();
         List<String> lore = meta.getLore();
         if (lore == null) {
@@ -1133,13 +1172,15 @@ public class AuctionMenuHandler implements Listener {
             lore.add("");
         }
         
-        lore.add(priceColor + "Preis: " + priceFormat.format(auction.getPrice()) + " " + plugin.getAPI().getEconomyAPI().getCurrencyName());
+        addPriceLore(lore, auction);
         lore.add(sellerColor + "Verkäufer: " + auction.getSellerName());
         
+        int timeLineIndex = -1;
         if (auction.isActive()) {
-            lore.add(timeColor + "Verbleibend: " + auction.getFormattedRemainingTime());
+            timeLineIndex = lore.size();
+            lore.add(formatRemainingTime(auction));
         } else if (auction.getStatus() == Auction.Status.SOLD) {
-            lore.add(highlightColor + "Status: " + ChatColor.GREEN + "Verkauft");
+            lore.add(highlightColor + "Status: " + ChatColor.GREEN + (auction.isBidding() ? "Versteigert" : "Verkauft"));
             lore.add(sellerColor + "Käufer: " + auction.getBuyerName());
         } else if (auction.getStatus() == Auction.Status.EXPIRED) {
             lore.add(highlightColor + "Status: " + ChatColor.RED + "Abgelaufen");
@@ -1151,7 +1192,7 @@ public class AuctionMenuHandler implements Listener {
         lore.add(highlightColor + "Auktions-ID: " + auction.getId());
         
         if (auction.isActive()) {
-            lore.add(secondaryColor + "» " + primaryColor + "Klicke, um diese Auktion zu kaufen");
+            lore.add(secondaryColor + "» " + primaryColor + (auction.isBidding() ? "Klicke, um auf diese Auktion zu bieten" : "Klicke, um diese Auktion zu kaufen"));
         }
         
         meta.setLore(lore);
@@ -1165,7 +1206,16 @@ public class AuctionMenuHandler implements Listener {
             item = setMenuAction(item, "buy_auction");
         }
         
-        return item;
+        return new AuctionDisplayCache.Render(item, timeLineIndex);
+    }
+    
+    /**
+     * Format the remaining time line of an auction item
+     * @param auction The auction
+     * @return The lore line
+     */
+    private String formatRemainingTime(Auction auction) {
+        return timeColor + "Verbleibend: " + auction.getFormattedRemainingTime();
     }
     
     /**
@@ -1174,7 +1224,7 @@ public class AuctionMenuHandler implements Listener {
      * @return The created item
      */
     public ItemStack createPlayerAuctionItem(Auction auction) {
-        ItemStack item = auction.getItem().clone();
+        ItemStack item = auction.getDisplayItem();
         ItemMeta meta = item.getItemMeta();
         List<String> lore = meta.getLore();
         if (lore == null) {
@@ -1186,19 +1236,17 @@ public class AuctionMenuHandler implements Listener {
             lore.add("");
         }
         
-        lore.add(priceColor + "Preis: " + priceFormat.format(auction.getPrice()) + " " + plugin.getAPI().getEconomyAPI().getCurrencyName());
+        addPriceLore(lore, auction);
         
         if (auction.isActive()) {
             lore.add(timeColor + "Verbleibend: " + auction.getFormattedRemainingTime());
             lore.add("");
             lore.add(secondaryColor + "» " + primaryColor + "Klicke, um diese Auktion abzubrechen");
         } else if (auction.getStatus() == Auction.Status.SOLD) {
-            lore.add(highlightColor + "Status: " + ChatColor.GREEN + "Verkauft");
+            lore.add(highlightColor + "Status: " + ChatColor.GREEN + (auction.isBidding() ? "Versteigert" : "Verkauft"));
             lore.add(sellerColor + "Käufer: " + auction.getBuyerName());
         } else if (auction.getStatus() == Auction.Status.EXPIRED) {
             lore.add(highlightColor + "Status: " + ChatColor.RED + "Abgelaufen");
-            lore.add("");
-            lore.add(secondaryColor + "» " + primaryColor + "Klicke, um das Item zurückzufordern");
         } else if (auction.getStatus() == Auction.Status.CANCELLED) {
             lore.add(highlightColor + "Status: " + ChatColor.RED + "Abgebrochen");
         }
@@ -1215,14 +1263,72 @@ public class AuctionMenuHandler implements Listener {
         if (auction.isActive()) {
             // Add menu action for active auctions
             item = setMenuAction(item, "cancel_player_auction");
-        } else if (auction.getStatus() == Auction.Status.EXPIRED) {
-            // Add menu action for expired auctions
-            item = setMenuAction(item, "claim_expired_auction");
         }
         
         return item;
     }
     
+    /**
+     * Add the price lines of an auction to its lore
+     * @param lore The lore
+     * @param auction The auction
+     */
+    private void addPriceLore(List<String> lore, Auction auction) {
+        String currency = plugin.getAPI().getEconomyAPI().getCurrencyName();
+        
+        if (!auction.isBidding()) {
+            lore.add(priceColor + "Preis: " + priceFormat.format(auction.getPrice()) + " " + currency);
+            return;
+        }
+        
+        Auction.BidState state = auction.getBidState();
+        
+        if (state.getBidder() == null) {
+            lore.add(priceColor + "Startgebot: " + priceFormat.format(auction.getPrice()) + " " + currency);
+        } else {
+            lore.add(priceColor + "Höchstgebot: " + priceFormat.format(auction.getHighestBid()) + " " + currency);
+            lore.add(sellerColor + "Höchstbietender: " + plugin.getAPI().getNameService().getName(state.getBidder(), "Unknown"));
+        }
+    }
+    
+    /**
+     * Buy an auction from the confirmation menu, the result arrives once the purchase is settled
+     * @param player The buyer
+     * @param auction The auction
+     */
+    private void purchaseAuction(Player player, Auction auction) {
+        auctionAPI.purchaseAuction(auction, player, success -> {
+            if (!player.isOnline()) {
+                return;
+            }
+            
+            if (success) {
+                player.closeInventory();
+                player.sendMessage(plugin.getConfigManager().getPrefix() + highlightColor + "Du hast die Auktion erfolgreich gekauft!");
+                // Return to main menu after successful purchase
+                Bukkit.getScheduler().runTaskLater(plugin, () -> {
+                    openMainMenu(player);
+                }, 2L);
+            } else {
+                player.sendMessage(plugin.getConfigManager().getPrefix() + warningColor + "Du konntest die Auktion nicht kaufen. Überprüfe, ob du genug Geld hast und ob dein Inventar nicht voll ist.");
+            }
+        });
+    }
+    
+    /**
+     * Place the lowest accepted bid from the confirmation menu
+     * @param player The bidder
+     * @param auction The auction
+     */
+    private void placeMinimumBid(Player player, Auction auction) {
+        if (auctionAPI.placeBid(auction, player, auctionAPI.getMinimumBid(auction))) {
+            player.closeInventory();
+            Bukkit.getScheduler().runTaskLater(plugin, () -> {
+                openMainMenu(player);
+            }, 2L);
+        }
+    }
+    
     /**
      * Open a custom price input menu
      * @param player The player
@@ -1506,15 +1612,10 @@ public class AuctionMenuHandler implements Listener {
                             
                             // Force the auction purchase immediately
                             event.setCancelled(true);
-                            if (auctionAPI.purchaseAuction(auction, player)) {
-                                player.closeInventory();
-                                player.sendMessage(plugin.getConfigManager().getPrefix() + highlightColor + "Du hast die Auktion erfolgreich gekauft!");
-                                // Return to main menu after successful purchase
-                                Bukkit.getScheduler().runTaskLater(plugin, () -> {
-                                    openMainMenu(player);
-                                }, 2L);
+                            if (auction.isBidding()) {
+                                placeMinimumBid(player, auction);
                             } else {
-                                player.sendMessage(plugin.getConfigManager().getPrefix() + warningColor + "Du konntest die Auktion nicht kaufen. Überprüfe, ob du genug Geld hast und ob dein Inventar nicht voll ist.");
+                                purchaseAuction(player, auction);
                             }
                             return;
                         } else {
@@ -1631,15 +1732,10 @@ public class AuctionMenuHandler implements Listener {
                             if (auction != null && auction.isActive()) {
                                 // Add debug to see if we're getting here
                                 plugin.getLogger().info("Player " + player.getName() + " attempting to purchase auction " + confirmAuctionId);
-                                if (auctionAPI.purchaseAuction(auction, player)) {
-                                    player.closeInventory();
-                                    player.sendMessage(plugin.getConfigManager().getPrefix() + highlightColor + "Du hast die Auktion erfolgreich gekauft!");
-                                    // Return to main menu after successful purchase
-                                    Bukkit.getScheduler().runTaskLater(plugin, () -> {
-                                        openMainMenu(player);
-                                    }, 2L);
+                                if (auction.isBidding()) {
+                                    placeMinimumBid(player, auction);
                                 } else {
-                                    player.sendMessage(plugin.getConfigManager().getPrefix() + warningColor + "Du konntest die Auktion nicht kaufen. Überprüfe, ob du genug Geld hast und ob dein Inventar nicht voll ist.");
+                                    purchaseAuction(player, auction);
                                 }
                             } else {
                                 player.sendMessage(plugin.getConfigManager().getPrefix() + warningColor + "Diese Auktion ist nicht mehr verfügbar.");
@@ -1692,31 +1788,10 @@ public class AuctionMenuHandler implements Listener {
                         }
                     }
                     break;
-                case "claim_expired_auction":
-                    // Claim an expired auction
-                    int expiredAuctionId = getAuctionId(clickedItem);
-                    if (expiredAuctionId != -1) {
-                        Auction auction = auctionAPI.getAuction(expiredAuctionId);
-                        if (auction != null && auction.getStatus() == Auction.Status.EXPIRED) {
-                            if (auctionAPI.claimExpiredAuction(auction, player)) {
-                                player.closeInventory();
-                                player.sendMessage(plugin.getConfigManager().getPrefix() + highlightColor + "Du hast das Item erfolgreich zurückgefordert!");
-                                // Reopen player auctions menu after a delay
-                                Bukkit.getScheduler().runTaskLater(plugin, () -> {
-                                    openPlayerAuctionsMenu(player);
-                                }, 2L);
-                            } else {
-                                player.sendMessage(plugin.getConfigManager().getPrefix() + warningColor + "Du konntest das Item nicht zurückfordern. Überprüfe, ob dein Inventar nicht voll ist.");
-                            }
-                        } else {
-                            player.sendMessage(plugin.getConfigManager().getPrefix() + warningColor + "Diese Auktion ist nicht mehr verfügbar.");
-                            player.closeInventory();
-                            // Refresh view after a short delay
-                            Bukkit.getScheduler().runTaskLater(plugin, () -> {
-                                openPlayerAuctionsMenu(player);
-                            }, 2L);
-                        }
-                    }
+                case "claim_mailbox":
+                    // Hand over everything in the mailbox
+                    plugin.getAPI().getMailboxAPI().claimAll(player);
+                    openMainMenu(player);
                     break;
                 case "set_price":
                     // Set the price for an auction
@@ -1858,6 +1933,18 @@ public class AuctionMenuHandler implements Listener {
                         }, 2L);
                     }
                     break;
+                case "toggle_bidding":
+                    // Switch between a fixed price and bidding
+                    auctionCommand.setAuctionBidding(player, !auctionCommand.isAuctionBidding(player));
+                    
+                    // Reopen the confirm menu with slight delay to prevent GUI issues
+                    Bukkit.getScheduler().runTaskLater(plugin, () -> {
+                        openConfirmMenu(player, auctionCommand.getCreatingAuctionItem(player), 
+                                auctionCommand.getAuctionPrice(player), 
+                                auctionCommand.getAuctionDuration(player), 
+                                auctionCommand.getAuctionCategory(player));
+                    }, 2L);
+                    break;
                 case "confirm_auction":
                     // Confirm auction creation with slight delay to prevent issues
                     Bukkit.getScheduler().runTaskLater(plugin, () -> {
@@ -1941,8 +2028,7 @@ public class AuctionMenuHandler implements Listener {
                             if (currentCategory != null) {
                                 auctionCommand.setViewingPage(player, nextPage);
                                 Bukkit.getScheduler().runTaskLater(plugin, () -> {
-                                    openCategoryMenuPage(player, currentCategory, 
-                                            auctionAPI.getAuctionsByCategory(currentCategory), nextPage);
+                                    openCategoryMenuPage(player, currentCategory, nextPage);
                                 }, 2L);
                             }
                         } catch (NumberFormatException e) {
@@ -1961,8 +2047,7 @@ public class AuctionMenuHandler implements Listener {
                             if (currentCategory != null) {
                                 auctionCommand.setViewingPage(player, prevPage);
                                 Bukkit.getScheduler().runTaskLater(plugin, () -> {
-                                    openCategoryMenuPage(player, currentCategory, 
-                                            auctionAPI.getAuctionsByCategory(currentCategory), prevPage);
+                                    openCategoryMenuPage(player, currentCategory, prevPage);
                                 }, 2L);
                             }
                         } catch (NumberFormatException e) {
@@ -2017,7 +2102,7 @@ public class AuctionMenuHandler implements Listener {
             // Border entfernt
             
             // Create a display item with auction details
-            ItemStack auctionItem = auction.getItem().clone();
+            ItemStack auctionItem = auction.getDisplayItem();
             ItemMeta meta = auctionItem.getItemMeta();
             List<String> lore = meta.getLore();
             if (lore == null) {
@@ -2029,7 +2114,7 @@ public class AuctionMenuHandler implements Listener {
                 lore.add("");
             }
             
-            lore.add(priceColor + "Preis: " + priceFormat.format(auction.getPrice()) + " " + plugin.getAPI().getEconomyAPI().getCurrencyName());
+            addPriceLore(lore, auction);
             lore.add(sellerColor + "Verkäufer: " + auction.getSellerName());
             lore.add(timeColor + "Verbleibend: " + auction.getFormattedRemainingTime());
             lore.add("");
@@ -2053,6 +2138,17 @@ public class AuctionMenuHandler implements Listener {
                 secondaryColor + "» " + primaryColor + "Klicke, um den Kauf zu bestätigen"
             );
             
+            // Bidding auctions offer the lowest accepted bid, other amounts go through /ah bid
+            if (auction.isBidding()) {
+                confirmItemName = highlightColor + "Bieten";
+                confirmItemLore = Arrays.asList(
+                    primaryColor + "Biete " + priceColor + priceFormat.format(auctionAPI.getMinimumBid(auction)) + " " + plugin.getAPI().getEconomyAPI().getCurrencyName() + primaryColor + ".",
+                    primaryColor + "Eigener Betrag: " + highlightColor + "/ah bid " + auction.getId() + " <Betrag>",
+                    "",
+                    secondaryColor + "» " + primaryColor + "Klicke, um das Gebot abzugeben"
+                );
+            }
+            
             // Create the confirm item with minimal processing
             ItemStack confirm = new ItemStack(confirmItemMaterial);
             ItemMeta confirmMeta = confirm.getItemMeta();
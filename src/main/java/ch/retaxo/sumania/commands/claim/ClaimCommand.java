@@ -2,8 +2,9 @@ package ch.retaxo.sumania.commands.claim;
 
 import ch.retaxo.sumania.Sumania;
 import ch.retaxo.sumania.models.Claim;
+import ch.retaxo.sumania.models.ClaimFlag;
+import ch.retaxo.sumania.models.ClaimTrust;
 import org.bukkit.Bukkit;
-import org.bukkit.OfflinePlayer;
 import org.bukkit.command.Command;
 import org.bukkit.command.CommandExecutor;
 import org.bukkit.command.CommandSender;
@@ -16,6 +17,7 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 
 /**
@@ -69,7 +71,7 @@ public class ClaimCommand implements CommandExecutor, TabCompleter {
                 
             case "trust":
                 if (args.length >= 2) {
-                    trustPlayer(player, args[1]);
+                    trustPlayer(player, args[1], args.length >= 3 ? args[2] : ClaimTrust.BUILD.getKey());
                 } else {
                     plugin.getAPI().getPlayerAPI().sendMessage(player, "claim.trust-usage");
                 }
@@ -83,6 +85,18 @@ public class ClaimCommand implements CommandExecutor, TabCompleter {
                 }
                 break;
                 
+            case "flag":
+                setClaimFlag(player, args);
+                break;
+                
+            case "rollback":
+                if (args.length >= 3) {
+                    rollback(player, args[1], args[2]);
+                } else {
+                    plugin.getAPI().getPlayerAPI().sendMessage(player, "claim.rollback-usage");
+                }
+                break;
+                
             case "delete":
                 if (args.length >= 2) {
                     deleteClaim(player, args[1]);
@@ -110,8 +124,10 @@ public class ClaimCommand implements CommandExecutor, TabCompleter {
                 "§a/claim buy §8- §7Kaufe einen Grundstücks-Marker",
                 "§a/claim list §8- §7Zeige eine Liste deiner Grundstücke",
                 "§a/claim info [ID] §8- §7Zeige Informationen über ein Grundstück",
-                "§a/claim trust <Spieler> §8- §7Füge einen vertrauten Spieler zu deinem Grundstück hinzu",
+                "§a/claim trust <Spieler> [access|container|build|manage] §8- §7Füge einen vertrauten Spieler zu deinem Grundstück hinzu",
                 "§a/claim untrust <Spieler> §8- §7Entferne einen vertrauten Spieler von deinem Grundstück",
+                "§a/claim flag [Flag] [an|aus] §8- §7Zeige oder ändere die Flags deines Grundstücks",
+                "§a/claim rollback <Spieler> <Zeit> §8- §7Setze die Änderungen eines Spielers auf deinen Grundstücken zurück",
                 "§a/claim delete <ID> §8- §7Lösche ein Grundstück"
         };
         
@@ -191,8 +207,7 @@ public class ClaimCommand implements CommandExecutor, TabCompleter {
         }
         
         // Get owner name
-        OfflinePlayer owner = Bukkit.getOfflinePlayer(claim.getOwnerUUID());
-        String ownerName = owner.getName() != null ? owner.getName() : "Unbekannt";
+        String ownerName = plugin.getAPI().getNameService().getName(claim.getOwnerUUID(), "Unbekannt");
         
         // Display claim info
         player.sendMessage("§8§l----- §7Grundstück: §a" + claim.getId().substring(0, 8) + " §8§l-----");
@@ -210,14 +225,25 @@ public class ClaimCommand implements CommandExecutor, TabCompleter {
         } else {
             player.sendMessage("§7Vertraute Spieler: §f" + String.join(", ", trustedPlayers));
         }
+        
+        // Display flags
+        player.sendMessage("§7Flags: " + formatFlags(claim));
     }
     
     /**
      * Trust a player on a claim
      * @param player The player trusting another player
      * @param targetName The name of the player to trust
+     * @param trustKey The trust level
      */
-    private void trustPlayer(Player player, String targetName) {
+    private void trustPlayer(Player player, String targetName, String trustKey) {
+        ClaimTrust trust = ClaimTrust.fromKey(trustKey);
+        
+        if (trust == null) {
+            plugin.getAPI().getPlayerAPI().sendMessage(player, "claim.invalid-trust-level");
+            return;
+        }
+        
         // Get claim at player's location
         Claim claim = plugin.getAPI().getClaimAPI().getClaimAt(player.getLocation());
         
@@ -226,40 +252,42 @@ public class ClaimCommand implements CommandExecutor, TabCompleter {
             return;
         }
         
-        // Check if player is the owner
-        if (!claim.getOwnerUUID().equals(player.getUniqueId())) {
+        // Check if player is the owner or a manager
+        if (!claim.hasPermission(player.getUniqueId(), ClaimTrust.MANAGE)) {
             plugin.getAPI().getPlayerAPI().sendMessage(player, "claim.not-owner");
             return;
         }
         
         // Find target player
-        OfflinePlayer targetPlayer = Bukkit.getOfflinePlayer(targetName);
-        
-        if (targetPlayer.getUniqueId().equals(player.getUniqueId())) {
-            plugin.getAPI().getPlayerAPI().sendMessage(player, "claim.cannot-trust-self");
-            return;
-        }
-        
-        // Add trusted player
-        if (plugin.getAPI().getClaimAPI().addTrustedPlayer(claim, targetPlayer)) {
-            Map<String, String> replacements = new HashMap<>();
-            replacements.put("player", targetName);
+        plugin.getAPI().getNameService().lookupPlayer(targetName, targetPlayer -> {
+            if (targetPlayer == null) {
+                sendPlayerNotFound(player, targetName);
+                return;
+            }
             
-            plugin.getAPI().getPlayerAPI().sendMessage(
-                    player,
-                    "claim.trusted-added",
-                    replacements
-            );
-        } else {
+            if (targetPlayer.getUniqueId().equals(player.getUniqueId())) {
+                plugin.getAPI().getPlayerAPI().sendMessage(player, "claim.cannot-trust-self");
+                return;
+            }
+            
+            // Add trusted player
             Map<String, String> replacements = new HashMap<>();
             replacements.put("player", targetName);
             
-            plugin.getAPI().getPlayerAPI().sendMessage(
-                    player,
-                    "claim.already-trusted",
-                    replacements
-            );
-        }
+            if (plugin.getAPI().getClaimAPI().addTrustedPlayer(claim, targetPlayer, trust)) {
+                plugin.getAPI().getPlayerAPI().sendMessage(
+                        player,
+                        "claim.trusted-added",
+                        replacements
+                );
+            } else {
+                plugin.getAPI().getPlayerAPI().sendMessage(
+                        player,
+                        "claim.already-trusted",
+                        replacements
+                );
+            }
+        });
     }
     
     /**
@@ -276,35 +304,129 @@ public class ClaimCommand implements CommandExecutor, TabCompleter {
             return;
         }
         
-        // Check if player is the owner
-        if (!claim.getOwnerUUID().equals(player.getUniqueId())) {
+        // Check if player is the owner or a manager
+        if (!claim.hasPermission(player.getUniqueId(), ClaimTrust.MANAGE)) {
             plugin.getAPI().getPlayerAPI().sendMessage(player, "claim.not-owner");
             return;
         }
         
         // Find target player
-        OfflinePlayer targetPlayer = Bukkit.getOfflinePlayer(targetName);
-        
-        // Remove trusted player
-        if (plugin.getAPI().getClaimAPI().removeTrustedPlayer(claim, targetPlayer)) {
+        plugin.getAPI().getNameService().lookupPlayer(targetName, targetPlayer -> {
+            if (targetPlayer == null) {
+                sendPlayerNotFound(player, targetName);
+                return;
+            }
+            
+            // Remove trusted player
             Map<String, String> replacements = new HashMap<>();
             replacements.put("player", targetName);
             
-            plugin.getAPI().getPlayerAPI().sendMessage(
-                    player,
-                    "claim.trusted-removed",
-                    replacements
-            );
+            if (plugin.getAPI().getClaimAPI().removeTrustedPlayer(claim, targetPlayer)) {
+                plugin.getAPI().getPlayerAPI().sendMessage(
+                        player,
+                        "claim.trusted-removed",
+                        replacements
+                );
+            } else {
+                plugin.getAPI().getPlayerAPI().sendMessage(
+                        player,
+                        "claim.not-trusted",
+                        replacements
+                );
+            }
+        });
+    }
+    
+    /**
+     * Show or change the flags of the claim the player stands in
+     * @param player The player
+     * @param args The command arguments
+     */
+    private void setClaimFlag(Player player, String[] args) {
+        Claim claim = plugin.getAPI().getClaimAPI().getClaimAt(player.getLocation());
+        
+        if (claim == null) {
+            plugin.getAPI().getPlayerAPI().sendMessage(player, "claim.no-claim-here");
+            return;
+        }
+        
+        // Without arguments, list the flags
+        if (args.length < 2) {
+            player.sendMessage("§7Flags: " + formatFlags(claim));
+            return;
+        }
+        
+        if (!claim.hasPermission(player.getUniqueId(), ClaimTrust.MANAGE)) {
+            plugin.getAPI().getPlayerAPI().sendMessage(player, "claim.not-owner");
+            return;
+        }
+        
+        ClaimFlag flag = ClaimFlag.fromKey(args[1]);
+        
+        if (flag == null) {
+            plugin.getAPI().getPlayerAPI().sendMessage(player, "claim.invalid-flag");
+            return;
+        }
+        
+        // Without a value, toggle the flag
+        boolean value;
+        if (args.length < 3) {
+            value = !claim.hasFlag(flag);
+        } else if (args[2].equalsIgnoreCase("an") || args[2].equalsIgnoreCase("on") || args[2].equalsIgnoreCase("true")) {
+            value = true;
+        } else if (args[2].equalsIgnoreCase("aus") || args[2].equalsIgnoreCase("off") || args[2].equalsIgnoreCase("false")) {
+            value = false;
         } else {
-            Map<String, String> replacements = new HashMap<>();
-            replacements.put("player", targetName);
+            plugin.getAPI().getPlayerAPI().sendMessage(player, "claim.flag-usage");
+            return;
+        }
+        
+        plugin.getAPI().getClaimAPI().setFlag(claim, flag, value);
+        
+        Map<String, String> replacements = new HashMap<>();
+        replacements.put("flag", flag.getKey());
+        replacements.put("value", value ? "an" : "aus");
+        
+        plugin.getAPI().getPlayerAPI().sendMessage(
+                player,
+                "claim.flag-set",
+                replacements
+        );
+    }
+    
+    /**
+     * Format the flags of a claim, set flags in green and cleared flags in red
+     * @param claim The claim
+     * @return The formatted flags
+     */
+    private String formatFlags(Claim claim) {
+        StringBuilder builder = new StringBuilder();
+        
+        for (ClaimFlag flag : ClaimFlag.values()) {
+            if (builder.length() > 0) {
+                builder.append("§7, ");
+            }
             
-            plugin.getAPI().getPlayerAPI().sendMessage(
-                    player,
-                    "claim.not-trusted",
-                    replacements
-            );
+            builder.append(claim.hasFlag(flag) ? "§a" : "§c").append(flag.getKey());
         }
+        
+        return builder.toString();
+    }
+    
+    /**
+     * Tell a player that a player name is unknown
+     * @param player The player
+     * @param targetName The unknown player name
+     */
+    private void sendPlayerNotFound(Player player, String targetName) {
+        Map<String, String> replacements = new HashMap<>();
+        replacements.put("player", targetName);
+        
+        plugin.getAPI().getPlayerAPI().sendMessage(
+                player,
+                "general.player-not-found",
+                replacements
+        );
     }
     
     /**
@@ -357,6 +479,98 @@ public class ClaimCommand implements CommandExecutor, TabCompleter {
         return null;
     }
     
+    /**
+     * Roll back the block changes of a player in the claims the executor manages
+     * @param player The player running the rollback
+     * @param targetName The name of the player whose changes are undone
+     * @param timeStr How far back to roll back (e.g. 30m, 2h, 1d)
+     */
+    private void rollback(Player player, String targetName, String timeStr) {
+        if (!plugin.getAPI().getClaimAPI().getBlockJournal().isEnabled()) {
+            plugin.getAPI().getPlayerAPI().sendMessage(player, "claim.rollback-disabled");
+            return;
+        }
+        
+        long duration = parseDuration(timeStr);
+        
+        if (duration <= 0) {
+            plugin.getAPI().getPlayerAPI().sendMessage(player, "claim.rollback-invalid-time");
+            return;
+        }
+        
+        // Only claim managers and admins can roll back
+        boolean admin = player.hasPermission("sumania.claim.admin");
+        if (!admin && plugin.getAPI().getClaimAPI().getClaimsByPlayer(player).isEmpty()) {
+            plugin.getAPI().getPlayerAPI().sendMessage(player, "claim.no-claims");
+            return;
+        }
+        
+        long since = System.currentTimeMillis() - duration;
+        
+        plugin.getAPI().getNameService().lookupPlayer(targetName, targetPlayer -> {
+            if (targetPlayer == null) {
+                sendPlayerNotFound(player, targetName);
+                return;
+            }
+            
+            Map<String, String> replacements = new HashMap<>();
+            replacements.put("player", targetName);
+            replacements.put("time", timeStr);
+            
+            plugin.getAPI().getPlayerAPI().sendMessage(player, "claim.rollback-started", replacements);
+            plugin.getAPI().getClaimAPI().rollback(player, targetPlayer, since);
+        });
+    }
+    
+    /**
+     * Parse a duration string into milliseconds
+     * @param durationStr The duration string (e.g. 1d2h3m)
+     * @return The duration in milliseconds, 0 if it is invalid
+     */
+    private long parseDuration(String durationStr) {
+        long duration = 0;
+        long number = -1;
+        
+        for (int i = 0; i < durationStr.length(); i++) {
+            char c = durationStr.charAt(i);
+            
+            if (Character.isDigit(c)) {
+                number = (number < 0 ? 0 : number * 10) + (c - '0');
+                continue;
+            }
+            
+            if (number < 0) {
+                return 0;
+            }
+            
+            switch (Character.toLowerCase(c)) {
+                case 'd':
+                    duration += TimeUnit.DAYS.toMillis(number);
+                    break;
+                case 'h':
+                    duration += TimeUnit.HOURS.toMillis(number);
+                    break;
+                case 'm':
+                    duration += TimeUnit.MINUTES.toMillis(number);
+                    break;
+                case 's':
+                    duration += TimeUnit.SECONDS.toMillis(number);
+                    break;
+                default:
+                    return 0;
+            }
+            
+            number = -1;
+        }
+        
+        // A trailing number without unit counts as minutes
+        if (number >= 0) {
+            duration += TimeUnit.MINUTES.toMillis(number);
+        }
+        
+        return duration;
+    }
+    
     @Override
     public List<String> onTabComplete(CommandSender sender, Command command, String alias, String[] args) {
         if (!(sender instanceof Player)) {
@@ -366,7 +580,7 @@ public class ClaimCommand implements CommandExecutor, TabCompleter {
         Player player = (Player) sender;
         
         if (args.length == 1) {
-            return Arrays.asList("buy", "list", "info", "trust", "untrust", "delete");
+            return Arrays.asList("buy", "list", "info", "trust", "untrust", "flag", "rollback", "delete");
         } else if (args.length == 2) {
             String subCommand = args[0].toLowerCase();
             
@@ -375,11 +589,27 @@ public class ClaimCommand implements CommandExecutor, TabCompleter {
                 return plugin.getAPI().getClaimAPI().getClaimsByPlayer(player).stream()
                         .map(claim -> claim.getId().substring(0, 8))
                         .collect(Collectors.toList());
-            } else if (subCommand.equals("trust") || subCommand.equals("untrust")) {
+            } else if (subCommand.equals("trust") || subCommand.equals("untrust") || subCommand.equals("rollback")) {
                 // Return list of online players
                 return Bukkit.getOnlinePlayers().stream()
                         .map(Player::getName)
                         .collect(Collectors.toList());
+            } else if (subCommand.equals("flag")) {
+                return Arrays.stream(ClaimFlag.values())
+                        .map(ClaimFlag::getKey)
+                        .collect(Collectors.toList());
+            }
+        } else if (args.length == 3) {
+            String subCommand = args[0].toLowerCase();
+            
+            if (subCommand.equals("trust")) {
+                return Arrays.stream(ClaimTrust.values())
+                        .map(ClaimTrust::getKey)
+                        .collect(Collectors.toList());
+            } else if (subCommand.equals("flag")) {
+                return Arrays.asList("an", "aus");
+            } else if (subCommand.equals("rollback")) {
+                return Arrays.asList("30m", "1h", "1d");
             }
         }
         
@@ -94,8 +94,7 @@ public class DiscordCommand implements CommandExecutor {
      * @return True if the info was shown successfully
      */
     private boolean showDiscordInfo(Player player) {
-        try {
-            Connection conn = plugin.getConfigManager().getDbConnection();
+        try (Connection conn = plugin.getConfigManager().getDbConnection()) {
             String tablePrefix = plugin.getConfigManager().getTablePrefix();
             
             // Check if player is linked
@@ -148,8 +147,7 @@ public class DiscordCommand implements CommandExecutor {
      * @return True if the code was generated successfully
      */
     private boolean generateLinkCode(Player player) {
-        try {
-            Connection conn = plugin.getConfigManager().getDbConnection();
+        try (Connection conn = plugin.getConfigManager().getDbConnection()) {
             String tablePrefix = plugin.getConfigManager().getTablePrefix();
             
             // Check if player is already linked
@@ -212,8 +210,7 @@ public class DiscordCommand implements CommandExecutor {
      * @return True if the account was unlinked successfully
      */
     private boolean unlinkDiscord(Player player) {
-        try {
-            Connection conn = plugin.getConfigManager().getDbConnection();
+        try (Connection conn = plugin.getConfigManager().getDbConnection()) {
             String tablePrefix = plugin.getConfigManager().getTablePrefix();
             
             // Check if player is linked
@@ -286,8 +283,7 @@ public class DiscordCommand implements CommandExecutor {
             if (entry.getValue().equals(code)) {
                 String uuid = entry.getKey();
                 
-                try {
-                    Connection conn = plugin.getConfigManager().getDbConnection();
+                try (Connection conn = plugin.getConfigManager().getDbConnection()) {
                     String tablePrefix = plugin.getConfigManager().getTablePrefix();
                     
                     // Insert or update link
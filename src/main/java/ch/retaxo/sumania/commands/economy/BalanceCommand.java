@@ -1,13 +1,16 @@
 package ch.retaxo.sumania.commands.economy;
 
 import ch.retaxo.sumania.Sumania;
-import org.bukkit.Bukkit;
+import ch.retaxo.sumania.api.economy.EconomyAPI;
+import ch.retaxo.sumania.api.economy.Ledger;
 import org.bukkit.OfflinePlayer;
 import org.bukkit.command.Command;
 import org.bukkit.command.CommandExecutor;
 import org.bukkit.command.CommandSender;
 import org.bukkit.entity.Player;
 
+import java.text.SimpleDateFormat;
+import java.util.Date;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -16,6 +19,8 @@ import java.util.Map;
  */
 public class BalanceCommand implements CommandExecutor {
 
+    private static final int HISTORY_PAGE_SIZE = 10;
+    
     private final Sumania plugin;
     
     /**
@@ -94,40 +99,24 @@ public class BalanceCommand implements CommandExecutor {
             }
             
             String targetName = args[0];
-            OfflinePlayer target = Bukkit.getOfflinePlayer(targetName);
             
-            if (!target.hasPlayedBefore() && !target.isOnline()) {
-                Map<String, String> replacements = new HashMap<>();
-                replacements.put("player", targetName);
-                
-                plugin.getAPI().getPlayerAPI().sendMessage(
-                        player,
-                        "general.player-not-found",
-                        replacements
-                );
+            // Resolve the target without blocking, unknown names are looked up asynchronously
+            plugin.getAPI().getNameService().lookupPlayer(targetName, target -> {
+                if (target == null) {
+                    Map<String, String> replacements = new HashMap<>();
+                    replacements.put("player", targetName);
+                    
+                    plugin.getAPI().getPlayerAPI().sendMessage(
+                            player,
+                            "general.player-not-found",
+                            replacements
+                    );
+                    
+                    return;
+                }
                 
-                return true;
-            }
-            
-            double balance = plugin.getAPI().getEconomyAPI().getBalance(target);
-            String formatted = plugin.getAPI().getEconomyAPI().format(balance);
-            String currencyName = plugin.getAPI().getEconomyAPI().getCurrencyName();
-            
-            Map<String, String> replacements = new HashMap<>();
-            replacements.put("player", target.getName());
-            replacements.put("balance", formatted);
-            replacements.put("currency", currencyName);
-            
-            if (target.isOnline()) {
-                replacements.put("player_obj", "true");
-                replacements.put("player_name", target.getName());
-            }
-            
-            plugin.getAPI().getPlayerAPI().sendMessage(
-                    player,
-                    "economy.balance-other",
-                    replacements
-            );
+                showBalance(player, target);
+            });
             
             return true;
         }
@@ -145,6 +134,33 @@ public class BalanceCommand implements CommandExecutor {
         return true;
     }
     
+    /**
+     * Show the balance of another player
+     * @param player The player asking
+     * @param target The player whose balance is shown
+     */
+    private void showBalance(Player player, OfflinePlayer target) {
+        double balance = plugin.getAPI().getEconomyAPI().getBalance(target);
+        String formatted = plugin.getAPI().getEconomyAPI().format(balance);
+        String currencyName = plugin.getAPI().getEconomyAPI().getCurrencyName();
+        
+        Map<String, String> replacements = new HashMap<>();
+        replacements.put("player", target.getName());
+        replacements.put("balance", formatted);
+        replacements.put("currency", currencyName);
+        
+        if (target.isOnline()) {
+            replacements.put("player_obj", "true");
+            replacements.put("player_name", target.getName());
+        }
+        
+        plugin.getAPI().getPlayerAPI().sendMessage(
+                player,
+                "economy.balance-other",
+                replacements
+        );
+    }
+    
     /**
      * Handle /eco admin commands
      */
@@ -156,25 +172,41 @@ public class BalanceCommand implements CommandExecutor {
         
         String action = args[0].toLowerCase();
         String targetName = args[1];
-        OfflinePlayer target = Bukkit.getOfflinePlayer(targetName);
         
-        if (!target.hasPlayedBefore() && !target.isOnline()) {
-            sendPrefixedMessage(sender, "§cPlayer not found: " + targetName);
-            return true;
-        }
+        // Resolve the target without blocking, unknown names are looked up asynchronously
+        plugin.getAPI().getNameService().lookupPlayer(targetName, target -> {
+            if (target == null) {
+                sendPrefixedMessage(sender, "§cPlayer not found: " + targetName);
+                return;
+            }
+            
+            handleEcoAction(sender, action, target, args);
+        });
         
+        return true;
+    }
+    
+    /**
+     * Handle an /eco action on a resolved player
+     */
+    private void handleEcoAction(CommandSender sender, String action, OfflinePlayer target, String[] args) {
         if (action.equals("get")) {
             // Get player's balance
             double balance = plugin.getAPI().getEconomyAPI().getBalance(target);
             String formatted = plugin.getAPI().getEconomyAPI().format(balance);
             sendPrefixedMessage(sender, "§aBalance of §e" + target.getName() + "§a: " + formatted);
-            return true;
+            return;
+        }
+        
+        if (action.equals("history")) {
+            handleHistory(sender, target, args);
+            return;
         }
         
         // Actions requiring amount
         if (args.length < 3) {
             showEcoUsage(sender);
-            return true;
+            return;
         }
         
         double amount;
@@ -182,11 +214,11 @@ public class BalanceCommand implements CommandExecutor {
             amount = Double.parseDouble(args[2]);
             if (amount < 0) {
                 sendPrefixedMessage(sender, "§cAmount must be positive.");
-                return true;
+                return;
             }
         } catch (NumberFormatException e) {
             sendPrefixedMessage(sender, "§cInvalid amount: " + args[2]);
-            return true;
+            return;
         }
         
         String formatted = plugin.getAPI().getEconomyAPI().format(amount);
@@ -194,20 +226,20 @@ public class BalanceCommand implements CommandExecutor {
         
         switch (action) {
             case "set":
-                plugin.getAPI().getEconomyAPI().setBalance(target, amount);
+                plugin.getAPI().getEconomyAPI().setBalance(target, amount, "admin_set");
                 sendPrefixedMessage(sender, "§aSet balance of §e" + target.getName() + "§a to " + formatted);
                 break;
                 
             case "add":
             case "give":
-                newBalance = plugin.getAPI().getEconomyAPI().deposit(target, amount);
+                newBalance = plugin.getAPI().getEconomyAPI().deposit(target, amount, "admin_add");
                 sendPrefixedMessage(sender, "§aAdded " + formatted + " to §e" + target.getName() + 
                         "§a's balance. New balance: §e" + plugin.getAPI().getEconomyAPI().format(newBalance));
                 break;
                 
             case "remove":
             case "take":
-                newBalance = plugin.getAPI().getEconomyAPI().withdraw(target, amount);
+                newBalance = plugin.getAPI().getEconomyAPI().withdraw(target, amount, "admin_remove");
                 sendPrefixedMessage(sender, "§aRemoved " + formatted + " from §e" + target.getName() + 
                         "§a's balance. New balance: §e" + plugin.getAPI().getEconomyAPI().format(newBalance));
                 break;
@@ -215,8 +247,64 @@ public class BalanceCommand implements CommandExecutor {
             default:
                 showEcoUsage(sender);
         }
+    }
+    
+    /**
+     * Show a page of the transaction journal of a player.
+     * The optional third argument is the id to continue below, printed at the end of the previous page.
+     */
+    private void handleHistory(CommandSender sender, OfflinePlayer target, String[] args) {
+        long beforeId = Long.MAX_VALUE;
         
-        return true;
+        if (args.length >= 3) {
+            try {
+                beforeId = Long.parseLong(args[2]);
+            } catch (NumberFormatException e) {
+                sendPrefixedMessage(sender, "§cInvalid entry id: " + args[2]);
+                return;
+            }
+        }
+        
+        boolean firstPage = beforeId == Long.MAX_VALUE;
+        
+        plugin.getAPI().getEconomyAPI().getHistory(target.getUniqueId(), beforeId, HISTORY_PAGE_SIZE, entries -> {
+            if (entries == null) {
+                sendPrefixedMessage(sender, "§cThe transaction history could not be loaded.");
+                return;
+            }
+            
+            if (entries.isEmpty()) {
+                sendPrefixedMessage(sender, firstPage
+                        ? "§e" + target.getName() + "§a has no transactions."
+                        : "§aNo older transactions.");
+                return;
+            }
+            
+            EconomyAPI economyAPI = plugin.getAPI().getEconomyAPI();
+            SimpleDateFormat dateFormat = new SimpleDateFormat("dd.MM.yyyy HH:mm");
+            
+            sendPrefixedMessage(sender, "§eTransactions of " + target.getName() + ":");
+            
+            for (Ledger.JournalEntry entry : entries) {
+                String amount = economyAPI.format(EconomyAPI.fromCents(Math.abs(entry.getAmount())));
+                String line = "§7#" + entry.getId() + " " + dateFormat.format(new Date(entry.getTime())) +
+                        " §f" + entry.getType() + " " +
+                        (entry.getAmount() < 0 ? "§c-" : "§a+") + amount +
+                        " §7= " + economyAPI.format(EconomyAPI.fromCents(entry.getBalance()));
+                
+                if (entry.getCounterparty() != null) {
+                    line += " §7(" + plugin.getAPI().getNameService().getName(entry.getCounterparty(), "Unknown") + ")";
+                }
+                
+                sender.sendMessage(line);
+            }
+            
+            // A full page may have more entries below its last id
+            if (entries.size() == HISTORY_PAGE_SIZE) {
+                long lastId = entries.get(entries.size() - 1).getId();
+                sendPrefixedMessage(sender, "§7Older entries: §f/eco history " + target.getName() + " " + lastId);
+            }
+        });
     }
     
     /**
@@ -228,6 +316,7 @@ public class BalanceCommand implements CommandExecutor {
         sendPrefixedMessage(sender, "§f/eco set <player> <amount> §7- Set a player's balance");
         sendPrefixedMessage(sender, "§f/eco add <player> <amount> §7- Add to a player's balance");
         sendPrefixedMessage(sender, "§f/eco remove <player> <amount> §7- Remove from a player's balance");
+        sendPrefixedMessage(sender, "§f/eco history <player> [id] §7- Show a player's transactions");
     }
     
     /**
@@ -0,0 +1,88 @@
+package ch.retaxo.sumania.commands.economy;
+
+import ch.retaxo.sumania.Sumania;
+import ch.retaxo.sumania.api.leaderboard.LeaderboardAPI;
+import ch.retaxo.sumania.api.leaderboard.LeaderboardMetric;
+import ch.retaxo.sumania.api.leaderboard.RankIndex;
+import org.bukkit.command.Command;
+import org.bukkit.command.CommandExecutor;
+import org.bukkit.command.CommandSender;
+import org.bukkit.entity.Player;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Command to show the richest players, read from the balance leaderboard
+ */
+public class BaltopCommand implements CommandExecutor {
+
+    private static final int PAGE_SIZE = 10;
+    
+    private final Sumania plugin;
+    
+    /**
+     * Constructor
+     * @param plugin The plugin instance
+     */
+    public BaltopCommand(Sumania plugin) {
+        this.plugin = plugin;
+    }
+    
+    @Override
+    public boolean onCommand(CommandSender sender, Command command, String label, String[] args) {
+        LeaderboardAPI leaderboardAPI = plugin.getAPI().getLeaderboardAPI();
+        int page = 1;
+        
+        if (args.length > 0) {
+            try {
+                page = Integer.parseInt(args[0]);
+            } catch (NumberFormatException e) {
+                sender.sendMessage("§cUngültige Seite: " + args[0]);
+                return true;
+            }
+        }
+        
+        int pages = Math.max(1, (leaderboardAPI.getSize(LeaderboardMetric.BALANCE) + PAGE_SIZE - 1) / PAGE_SIZE);
+        page = Math.max(1, Math.min(page, pages));
+        
+        List<RankIndex.Entry> entries = leaderboardAPI.getPage(LeaderboardMetric.BALANCE, page, PAGE_SIZE);
+        
+        if (entries.isEmpty()) {
+            plugin.getAPI().getPlayerAPI().sendMessage(sender, "economy.baltop-empty", null);
+            return true;
+        }
+        
+        Map<String, String> replacements = new HashMap<>();
+        replacements.put("page", String.valueOf(page));
+        replacements.put("pages", String.valueOf(pages));
+        plugin.getAPI().getPlayerAPI().sendMessage(sender, "economy.baltop-header", replacements);
+        
+        // Ranks of the page follow from its offset
+        int rank = (page - 1) * PAGE_SIZE;
+        for (RankIndex.Entry entry : entries) {
+            rank++;
+            
+            Map<String, String> entryReplacements = new HashMap<>();
+            entryReplacements.put("rank", String.valueOf(rank));
+            entryReplacements.put("player", plugin.getAPI().getNameService().getName(entry.getUuid(), "Unknown"));
+            entryReplacements.put("balance", leaderboardAPI.formatValue(LeaderboardMetric.BALANCE, entry.getScore()));
+            entryReplacements.put("currency", plugin.getAPI().getEconomyAPI().getCurrencyName());
+            plugin.getAPI().getPlayerAPI().sendMessage(sender, "economy.baltop-entry", entryReplacements);
+        }
+        
+        // Show the own rank
+        if (sender instanceof Player) {
+            int ownRank = leaderboardAPI.getRank(LeaderboardMetric.BALANCE, ((Player) sender).getUniqueId());
+            
+            if (ownRank > 0) {
+                Map<String, String> rankReplacements = new HashMap<>();
+                rankReplacements.put("rank", String.valueOf(ownRank));
+                plugin.getAPI().getPlayerAPI().sendMessage(sender, "economy.baltop-own-rank", rankReplacements);
+            }
+        }
+        
+        return true;
+    }
+}
@@ -1,7 +1,6 @@
 package ch.retaxo.sumania.commands.economy;
 
 import ch.retaxo.sumania.Sumania;
-import org.bukkit.Bukkit;
 import org.bukkit.OfflinePlayer;
 import org.bukkit.command.Command;
 import org.bukkit.command.CommandExecutor;
@@ -50,21 +49,6 @@ public class PayCommand implements CommandExecutor {
         }
         
         String targetName = args[0];
-        OfflinePlayer target = Bukkit.getOfflinePlayer(targetName);
-        
-        if (!target.hasPlayedBefore() && !target.isOnline()) {
-            Map<String, String> replacements = new HashMap<>();
-            replacements.put("player", targetName);
-            
-            plugin.getAPI().getPlayerAPI().sendMessage(
-                    player,
-                    "general.player-not-found",
-                    replacements
-            );
-            
-            return true;
-        }
-        
         double amount;
         
         try {
@@ -95,20 +79,45 @@ public class PayCommand implements CommandExecutor {
             return true;
         }
         
-        // Check if player has enough money
-        if (!plugin.getAPI().getEconomyAPI().has(player, amount)) {
+        // Resolve the target without blocking, unknown names are looked up asynchronously
+        plugin.getAPI().getNameService().lookupPlayer(targetName, target -> {
+            if (target == null) {
+                Map<String, String> replacements = new HashMap<>();
+                replacements.put("player", targetName);
+                
+                plugin.getAPI().getPlayerAPI().sendMessage(
+                        player,
+                        "general.player-not-found",
+                        replacements
+                );
+                
+                return;
+            }
+            
+            pay(player, target, amount);
+        });
+        
+        return true;
+    }
+    
+    /**
+     * Pay a resolved player
+     * @param player The paying player
+     * @param target The player receiving the money
+     * @param amount The amount to pay
+     */
+    private void pay(Player player, OfflinePlayer target, double amount) {
+        // Transfer money, fails atomically if the player doesn't have enough
+        if (!plugin.getAPI().getEconomyAPI().transfer(player, target, amount, "pay")) {
             plugin.getAPI().getPlayerAPI().sendMessage(
                     player,
                     "economy.not-enough-money",
                     null
             );
             
-            return true;
+            return;
         }
         
-        // Transfer money
-        plugin.getAPI().getEconomyAPI().transfer(player, target, amount);
-        
         // Send messages
         String formatted = plugin.getAPI().getEconomyAPI().format(amount);
         String currencyName = plugin.getAPI().getEconomyAPI().getCurrencyName();
@@ -138,7 +147,5 @@ public class PayCommand implements CommandExecutor {
                     replacements
             );
         }
-        
-        return true;
     }
 }
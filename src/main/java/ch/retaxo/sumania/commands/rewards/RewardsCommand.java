@@ -135,8 +135,7 @@ public class RewardsCommand implements CommandExecutor {
      * @return True if the info was shown successfully
      */
     private boolean showRewardsInfo(Player player) {
-        try {
-            Connection conn = plugin.getConfigManager().getDbConnection();
+        try (Connection conn = plugin.getConfigManager().getDbConnection()) {
             String tablePrefix = plugin.getConfigManager().getTablePrefix();
             
             // Get player rewards info
@@ -278,8 +277,7 @@ public class RewardsCommand implements CommandExecutor {
      * @return True if the reward was claimed successfully
      */
     public boolean claimDailyReward(Player player) {
-        try {
-            Connection conn = plugin.getConfigManager().getDbConnection();
+        try (Connection conn = plugin.getConfigManager().getDbConnection()) {
             String tablePrefix = plugin.getConfigManager().getTablePrefix();
             
             // Check if daily reward is available
@@ -437,8 +435,7 @@ public class RewardsCommand implements CommandExecutor {
      * @return True if the reward was claimed successfully
      */
     public boolean claimWeeklyReward(Player player) {
-        try {
-            Connection conn = plugin.getConfigManager().getDbConnection();
+        try (Connection conn = plugin.getConfigManager().getDbConnection()) {
             String tablePrefix = plugin.getConfigManager().getTablePrefix();
             
             // Check if weekly reward is available
@@ -512,7 +509,7 @@ public class RewardsCommand implements CommandExecutor {
                     FileConfiguration config = plugin.getConfigManager().getConfig("config.yml");
                     double rewardAmount = config.getDouble("rewards.weekly.amount", 500.0);
                     
-                    plugin.getAPI().getEconomyAPI().deposit(player, rewardAmount);
+                    plugin.getAPI().getEconomyAPI().deposit(player, rewardAmount, "rewards_weekly");
                     
                     // Send confirmation
                     Map<String, String> replacements = new HashMap<>();
@@ -548,8 +545,7 @@ public class RewardsCommand implements CommandExecutor {
      * @return True if the reward was claimed successfully
      */
     public boolean claimMonthlyReward(Player player) {
-        try {
-            Connection conn = plugin.getConfigManager().getDbConnection();
+        try (Connection conn = plugin.getConfigManager().getDbConnection()) {
             String tablePrefix = plugin.getConfigManager().getTablePrefix();
             
             // Check if monthly reward is available
@@ -623,7 +619,7 @@ public class RewardsCommand implements CommandExecutor {
                     FileConfiguration config = plugin.getConfigManager().getConfig("config.yml");
                     double rewardAmount = config.getDouble("rewards.monthly.amount", 2000.0);
                     
-                    plugin.getAPI().getEconomyAPI().deposit(player, rewardAmount);
+                    plugin.getAPI().getEconomyAPI().deposit(player, rewardAmount, "rewards_monthly");
                     
                     // Send confirmation
                     Map<String, String> replacements = new HashMap<>();
@@ -59,8 +59,7 @@ public class RewardsMenuHandler implements Listener {
         }
         
         // Try to get player rewards info from database
-        try {
-            Connection conn = plugin.getConfigManager().getDbConnection();
+        try (Connection conn = plugin.getConfigManager().getDbConnection()) {
             String tablePrefix = plugin.getConfigManager().getTablePrefix();
             
             // Get player rewards info
@@ -0,0 +1,119 @@
+package ch.retaxo.sumania.commands.shop;
+
+import ch.retaxo.sumania.Sumania;
+import ch.retaxo.sumania.api.shop.ShopAPI;
+import org.bukkit.Material;
+import org.bukkit.command.Command;
+import org.bukkit.command.CommandExecutor;
+import org.bukkit.command.CommandSender;
+import org.bukkit.entity.Player;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Command to sell items to the shop without opening the menu
+ */
+public class SellCommand implements CommandExecutor {
+
+    private final Sumania plugin;
+    
+    /**
+     * Constructor
+     * @param plugin The plugin instance
+     */
+    public SellCommand(Sumania plugin) {
+        this.plugin = plugin;
+    }
+    
+    @Override
+    public boolean onCommand(CommandSender sender, Command command, String label, String[] args) {
+        // Check if shop is enabled
+        if (!plugin.getConfigManager().getConfig("config.yml").getBoolean("shop.enabled", true)) {
+            plugin.getAPI().getPlayerAPI().sendMessage(sender, "general.feature-disabled", null);
+            return true;
+        }
+        
+        // Check if command is run by a player
+        if (!(sender instanceof Player)) {
+            sender.sendMessage("§cDieser Befehl kann nur von Spielern verwendet werden.");
+            return true;
+        }
+        
+        Player player = (Player) sender;
+        
+        if (!player.hasPermission("sumania.shop")) {
+            plugin.getAPI().getPlayerAPI().sendMessage(player, "general.no-permission", null);
+            return true;
+        }
+        
+        if (args.length == 0) {
+            plugin.getAPI().getPlayerAPI().sendMessage(player, "shop.sell-usage", null);
+            return true;
+        }
+        
+        switch (args[0].toLowerCase()) {
+            case "hand":
+                sellHand(player);
+                break;
+            case "all":
+            case "alles":
+                sellAll(player);
+                break;
+            default:
+                plugin.getAPI().getPlayerAPI().sendMessage(player, "shop.sell-usage", null);
+        }
+        
+        return true;
+    }
+    
+    /**
+     * Sell every item of the material held in the main hand
+     * @param player The player
+     */
+    private void sellHand(Player player) {
+        ShopAPI shopAPI = plugin.getAPI().getShopAPI();
+        Material material = player.getInventory().getItemInMainHand().getType();
+        
+        if (material.isAir() || shopAPI.getSellPrice(material) < 0) {
+            plugin.getAPI().getPlayerAPI().sendMessage(player, "shop.not-sellable", null);
+            return;
+        }
+        
+        ShopAPI.SellResult result = shopAPI.sell(player, material, Integer.MAX_VALUE);
+        
+        if (result.getAmount() == 0) {
+            plugin.getAPI().getPlayerAPI().sendMessage(player, "shop.not-enough-items", null);
+            return;
+        }
+        
+        Map<String, String> replacements = new HashMap<>();
+        replacements.put("amount", String.valueOf(result.getAmount()));
+        replacements.put("item", material.name().replace("_", " "));
+        replacements.put("price", shopAPI.formatPrice(result.getTotal()));
+        replacements.put("currency", plugin.getAPI().getEconomyAPI().getCurrencySymbol());
+        
+        plugin.getAPI().getPlayerAPI().sendMessage(player, "shop.item-sold", replacements);
+    }
+    
+    /**
+     * Sell every item in the inventory the shop buys
+     * @param player The player
+     */
+    private void sellAll(Player player) {
+        ShopAPI shopAPI = plugin.getAPI().getShopAPI();
+        ShopAPI.SellResult result = shopAPI.sellAll(player);
+        
+        if (result.getAmount() == 0) {
+            plugin.getAPI().getPlayerAPI().sendMessage(player, "shop.nothing-to-sell", null);
+            return;
+        }
+        
+        Map<String, String> replacements = new HashMap<>();
+        replacements.put("amount", String.valueOf(result.getAmount()));
+        replacements.put("price", shopAPI.formatPrice(result.getTotal()));
+        replacements.put("currency", plugin.getAPI().getEconomyAPI().getCurrencySymbol());
+        
+        plugin.getAPI().getPlayerAPI().sendMessage(player, "shop.all-sold", replacements);
+    }
+}
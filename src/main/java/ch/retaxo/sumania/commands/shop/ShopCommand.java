@@ -1,6 +1,8 @@
 package ch.retaxo.sumania.commands.shop;
 
 import ch.retaxo.sumania.Sumania;
+import ch.retaxo.sumania.api.shop.PriceSnapshot;
+import ch.retaxo.sumania.api.shop.ShopAPI;
 import org.bukkit.Bukkit;
 import org.bukkit.Material;
 import org.bukkit.command.Command;
@@ -11,7 +13,6 @@ import org.bukkit.configuration.file.FileConfiguration;
 import org.bukkit.entity.Player;
 import org.bukkit.event.EventHandler;
 import org.bukkit.event.Listener;
-import org.bukkit.event.inventory.ClickType;
 import org.bukkit.event.inventory.InventoryClickEvent;
 import org.bukkit.inventory.Inventory;
 import org.bukkit.inventory.ItemStack;
@@ -139,6 +140,7 @@ public class ShopCommand implements CommandExecutor, Listener {
         bannerLore.add("");
         bannerLore.add("§a§lLinksklick§7: Kaufen");
         bannerLore.add("§c§lRechtsklick§7: Verkaufen");
+        bannerLore.add("§7Mit §fShift §7einen ganzen Stack");
         bannerLore.add("");
         bannerLore.add("§7Guthaben: §e" + plugin.getAPI().getEconomyAPI().format(plugin.getAPI().getEconomyAPI().getBalance(player)));
         
@@ -297,6 +299,8 @@ public class ShopCommand implements CommandExecutor, Listener {
         infoLore.add("");
         infoLore.add("§a§lLinksklick§7: Kaufen");
         infoLore.add("§c§lRechtsklick§7: Verkaufen");
+        infoLore.add("§7Mit §fShift §7einen ganzen Stack");
+        infoLore.add("§c§lQ§7: Alle dieser Sorte verkaufen");
         infoLore.add("");
         infoLore.add("§7Guthaben: §e" + plugin.getAPI().getEconomyAPI().format(plugin.getAPI().getEconomyAPI().getBalance(player)));
         
@@ -314,6 +318,10 @@ public class ShopCommand implements CommandExecutor, Listener {
         backButton.setItemMeta(backMeta);
         menu.setItem(0, backButton);
         
+        // Read the prices once, they may change in the background
+        ShopAPI shopAPI = plugin.getAPI().getShopAPI();
+        PriceSnapshot prices = shopAPI.getPrices();
+        
         // Calculate grid layout for items
         int totalItems = items.size();
         int availableSlots = rows * 9 - 9; // Reserve top row for navigation
@@ -324,12 +332,14 @@ public class ShopCommand implements CommandExecutor, Listener {
             Map<?, ?> itemMap = items.get(i);
             
             // Get item data
-            String itemName = (String) itemMap.get("item");
-            double buyPrice = ((Number) itemMap.get("buy-price")).doubleValue();
-            double sellPrice = ((Number) itemMap.get("sell-price")).doubleValue();
+            Material material = Material.getMaterial(String.valueOf(itemMap.get("item")));
+            
+            if (material == null) {
+                continue;
+            }
             
             // Create shop item
-            ItemStack item = createShopItem(itemName, buyPrice, sellPrice);
+            ItemStack item = createShopItem(shopAPI, material, prices.getBuyPrice(material), prices.getSellPrice(material));
             
             // Calculate position
             int row = (i / 7) + 1; // Start from row 1 (after header)
@@ -347,19 +357,19 @@ public class ShopCommand implements CommandExecutor, Listener {
     
     /**
      * Create a shop item
-     * @param itemName The item name
+     * @param shopAPI The shop API
+     * @param material The material
      * @param buyPrice The buy price
      * @param sellPrice The sell price
      * @return The shop item
      */
-    private ItemStack createShopItem(String itemName, double buyPrice, double sellPrice) {
+    private ItemStack createShopItem(ShopAPI shopAPI, Material material, double buyPrice, double sellPrice) {
         FileConfiguration messages = plugin.getConfigManager().getConfig("messages.yml");
         FileConfiguration config = plugin.getConfigManager().getConfig("config.yml");
         String currencySymbol = config.getString("economy.currency-symbol", "$");
         String currencyName = config.getString("economy.currency-name", "Coins");
         
         // Create item
-        Material material = Material.valueOf(itemName);
         ItemStack item = new ItemStack(material);
         ItemMeta meta = item.getItemMeta();
         
@@ -377,14 +387,14 @@ public class ShopCommand implements CommandExecutor, Listener {
         // Add buy price with color based on affordability
         String buyPriceFormat = "§a▶ §7Kaufen: §e%price% %currency%";
         String buyPriceText = buyPriceFormat
-                .replace("%price%", String.format("%.0f", buyPrice))
+                .replace("%price%", shopAPI.formatPrice(buyPrice))
                 .replace("%currency%", currencySymbol);
         lore.add(buyPriceText);
         
         // Add sell price with highlight
         String sellPriceFormat = "§c◀ §7Verkaufen: §e%price% %currency%";
         String sellPriceText = sellPriceFormat
-                .replace("%price%", String.format("%.0f", sellPrice))
+                .replace("%price%", shopAPI.formatPrice(sellPrice))
                 .replace("%currency%", currencySymbol);
         lore.add(sellPriceText);
         
@@ -394,6 +404,7 @@ public class ShopCommand implements CommandExecutor, Listener {
         // Add click instructions with colors
         lore.add("§a▶ §fLinksklick §7zum Kaufen");
         lore.add("§c◀ §fRechtsklick §7zum Verkaufen");
+        lore.add("§7Shift: §f" + material.getMaxStackSize() + " Stück §7· Q: §falle verkaufen");
         
         // Add price difference info if buy/sell has a difference
         if (buyPrice > sellPrice) {
@@ -468,27 +479,34 @@ public class ShopCommand implements CommandExecutor, Listener {
                 if (meta.getPersistentDataContainer().has(itemKey, PersistentDataType.STRING)) {
                     String itemData = meta.getPersistentDataContainer().get(itemKey, PersistentDataType.STRING);
                     
-                    if (itemData != null) {
-                        // Parse item data
-                        String[] parts = itemData.split(":");
-                        String itemName = parts[0];
-                        double buyPrice = Double.parseDouble(parts[1]);
-                        double sellPrice = Double.parseDouble(parts[2]);
-                        
-                        // Handle click
-                        if (event.getClick() == ClickType.LEFT) {
-                            // Buy item
-                            buyItem(player, itemName, buyPrice);
-                            
-                            // Update balance display in menu after purchase
-                            updateBalanceDisplay(player, event.getInventory());
-                        } else if (event.getClick() == ClickType.RIGHT) {
-                            // Sell item
-                            sellItem(player, itemName, sellPrice);
-                            
-                            // Update balance display in menu after sale
-                            updateBalanceDisplay(player, event.getInventory());
+                    // Prices come from the shop API, the item only names the material
+                    Material material = itemData != null ? Material.getMaterial(itemData.substring(0, itemData.indexOf(':'))) : null;
+                    
+                    if (material != null) {
+                        // Handle click, shift trades a whole stack and Q sells every item of the material
+                        switch (event.getClick()) {
+                            case LEFT:
+                                buyItem(player, material, 1);
+                                break;
+                            case SHIFT_LEFT:
+                                buyItem(player, material, material.getMaxStackSize());
+                                break;
+                            case RIGHT:
+                                sellItem(player, material, 1);
+                                break;
+                            case SHIFT_RIGHT:
+                                sellItem(player, material, material.getMaxStackSize());
+                                break;
+                            case DROP:
+                            case CONTROL_DROP:
+                                sellItem(player, material, Integer.MAX_VALUE);
+                                break;
+                            default:
+                                return;
                         }
+                        
+                        // Update balance display in menu after the trade
+                        updateBalanceDisplay(player, event.getInventory());
                     }
                 }
             }
@@ -521,17 +539,16 @@ public class ShopCommand implements CommandExecutor, Listener {
     }
     
     /**
-     * Buy an item
-     * @param player The player buying the item
-     * @param itemName The item name
-     * @param price The item price
+     * Buy items, paying for all of them at once
+     * @param player The player buying the items
+     * @param material The material
+     * @param amount The number of items
      */
-    private void buyItem(Player player, String itemName, double price) {
-        FileConfiguration config = plugin.getConfigManager().getConfig("config.yml");
-        String currencySymbol = config.getString("economy.currency-symbol", "$");
+    private void buyItem(Player player, Material material, int amount) {
+        ShopAPI shopAPI = plugin.getAPI().getShopAPI();
+        double paid = shopAPI.buy(player, material, amount);
         
-        // Check if player has enough money
-        if (plugin.getAPI().getEconomyAPI().getBalance(player) < price) {
+        if (paid < 0) {
             plugin.getAPI().getPlayerAPI().sendMessage(
                     player,
                     "shop.not-enough-money",
@@ -541,29 +558,12 @@ public class ShopCommand implements CommandExecutor, Listener {
             return;
         }
         
-        // Create item
-        Material material = Material.valueOf(itemName);
-        ItemStack item = new ItemStack(material);
-        
-        // Add item to player's inventory
-        Map<Integer, ItemStack> notAdded = player.getInventory().addItem(item);
-        
-        if (!notAdded.isEmpty()) {
-            // Drop items that couldn't be added
-            for (ItemStack notAddedItem : notAdded.values()) {
-                player.getWorld().dropItem(player.getLocation(), notAddedItem);
-            }
-        }
-        
-        // Withdraw money
-        plugin.getAPI().getEconomyAPI().withdraw(player, price);
-        
         // Send confirmation
         Map<String, String> replacements = new HashMap<>();
-        replacements.put("amount", "1");
+        replacements.put("amount", String.valueOf(amount));
         replacements.put("item", material.name().replace("_", " "));
-        replacements.put("price", String.format("%.0f", price));
-        replacements.put("currency", currencySymbol);
+        replacements.put("price", shopAPI.formatPrice(paid));
+        replacements.put("currency", plugin.getAPI().getEconomyAPI().getCurrencySymbol());
         
         plugin.getAPI().getPlayerAPI().sendMessage(
                 player,
@@ -573,21 +573,16 @@ public class ShopCommand implements CommandExecutor, Listener {
     }
     
     /**
-     * Sell an item
-     * @param player The player selling the item
-     * @param itemName The item name
-     * @param price The item price
+     * Sell items, receiving the money for all of them at once
+     * @param player The player selling the items
+     * @param material The material
+     * @param maxAmount The maximum number of items
      */
-    private void sellItem(Player player, String itemName, double price) {
-        FileConfiguration config = plugin.getConfigManager().getConfig("config.yml");
-        String currencySymbol = config.getString("economy.currency-symbol", "$");
-        
-        // Create item
-        Material material = Material.valueOf(itemName);
-        ItemStack item = new ItemStack(material);
+    private void sellItem(Player player, Material material, int maxAmount) {
+        ShopAPI shopAPI = plugin.getAPI().getShopAPI();
+        ShopAPI.SellResult result = shopAPI.sell(player, material, maxAmount);
         
-        // Check if player has the item
-        if (!player.getInventory().containsAtLeast(item, 1)) {
+        if (result.getAmount() == 0) {
             plugin.getAPI().getPlayerAPI().sendMessage(
                     player,
                     "shop.not-enough-items",
@@ -597,18 +592,12 @@ public class ShopCommand implements CommandExecutor, Listener {
             return;
         }
         
-        // Remove item from player's inventory
-        player.getInventory().removeItem(item);
-        
-        // Deposit money
-        plugin.getAPI().getEconomyAPI().deposit(player, price);
-        
         // Send confirmation
         Map<String, String> replacements = new HashMap<>();
-        replacements.put("amount", "1");
+        replacements.put("amount", String.valueOf(result.getAmount()));
         replacements.put("item", material.name().replace("_", " "));
-        replacements.put("price", String.format("%.0f", price));
-        replacements.put("currency", currencySymbol);
+        replacements.put("price", shopAPI.formatPrice(result.getTotal()));
+        replacements.put("currency", plugin.getAPI().getEconomyAPI().getCurrencySymbol());
         
         plugin.getAPI().getPlayerAPI().sendMessage(
                 player,
@@ -616,4 +605,4 @@ public class ShopCommand implements CommandExecutor, Listener {
                 replacements
         );
     }
-}
\ No newline at end of file
+}
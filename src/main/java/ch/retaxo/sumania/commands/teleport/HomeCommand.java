@@ -1,6 +1,7 @@
 package ch.retaxo.sumania.commands.teleport;
 
 import ch.retaxo.sumania.Sumania;
+import ch.retaxo.sumania.api.teleport.TeleportCause;
 import ch.retaxo.sumania.models.Home;
 import org.bukkit.command.Command;
 import org.bukkit.command.CommandExecutor;
@@ -152,7 +153,7 @@ public class HomeCommand implements CommandExecutor {
         );
         
         // Teleport player
-        plugin.getAPI().getTeleportAPI().teleport(player, home.getLocation());
+        plugin.getAPI().getTeleportAPI().teleport(player, home.getLocation(), TeleportCause.HOME);
     }
     
     /**
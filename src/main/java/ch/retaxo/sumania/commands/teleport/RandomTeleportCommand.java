@@ -0,0 +1,76 @@
+package ch.retaxo.sumania.commands.teleport;
+
+import ch.retaxo.sumania.Sumania;
+import ch.retaxo.sumania.api.teleport.TeleportCause;
+import ch.retaxo.sumania.models.SMPWorld;
+import org.bukkit.command.Command;
+import org.bukkit.command.CommandExecutor;
+import org.bukkit.command.CommandSender;
+import org.bukkit.entity.Player;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Command to randomly teleport in the SMP world
+ */
+public class RandomTeleportCommand implements CommandExecutor {
+
+    private final Sumania plugin;
+    
+    /**
+     * Constructor
+     * @param plugin The plugin instance
+     */
+    public RandomTeleportCommand(Sumania plugin) {
+        this.plugin = plugin;
+    }
+    
+    @Override
+    public boolean onCommand(CommandSender sender, Command command, String label, String[] args) {
+        if (!(sender instanceof Player)) {
+            sender.sendMessage("§cDieser Befehl kann nur von Spielern verwendet werden.");
+            return true;
+        }
+        
+        Player player = (Player) sender;
+        
+        if (!player.hasPermission("sumania.rtp")) {
+            plugin.getAPI().getPlayerAPI().sendMessage(
+                    player,
+                    "general.no-permission",
+                    null
+            );
+            
+            return true;
+        }
+        
+        SMPWorld smpWorld = plugin.getAPI().getSMPWorldAPI().getActiveSMPWorld();
+        
+        if (smpWorld == null || !smpWorld.isEnabled() || !smpWorld.exists()) {
+            plugin.getAPI().getPlayerAPI().sendMessage(player, "smp.rtp-failed");
+            return true;
+        }
+        
+        // Outside of the SMP world, /rtp brings the player to the SMP spawn
+        if (!player.getWorld().getName().equals(smpWorld.getWorldName())) {
+            plugin.getAPI().getSMPWorldAPI().teleportToSMP(player);
+            return true;
+        }
+        
+        // Check the cooldown before searching a location
+        if (plugin.getAPI().getTeleportAPI().isInCooldown(player, TeleportCause.CooldownBucket.RTP)) {
+            Map<String, String> replacements = new HashMap<>();
+            replacements.put("seconds", String.valueOf(
+                    plugin.getAPI().getTeleportAPI().getCooldownTimeLeft(player, TeleportCause.CooldownBucket.RTP)));
+            plugin.getAPI().getPlayerAPI().sendMessage(player, "smp.rtp-cooldown", replacements);
+            
+            return true;
+        }
+        
+        // Teleport to a random location
+        plugin.getAPI().getRandomTeleportAPI().randomTeleport(player);
+        
+        return true;
+    }
+}
@@ -1,6 +1,7 @@
 package ch.retaxo.sumania.commands.teleport;
 
 import ch.retaxo.sumania.Sumania;
+import ch.retaxo.sumania.api.teleport.TeleportCause;
 import ch.retaxo.sumania.api.teleport.TeleportRequestType;
 import org.bukkit.Bukkit;
 import org.bukkit.Location;
@@ -107,7 +108,7 @@ public class TeleportCommand implements CommandExecutor {
             }
             
             // Teleport player
-            plugin.getAPI().getTeleportAPI().teleport(player, target.getLocation());
+            plugin.getAPI().getTeleportAPI().teleport(player, target.getLocation(), TeleportCause.COMMAND);
             
             return true;
         } else if (args.length == 2) {
@@ -164,7 +165,7 @@ public class TeleportCommand implements CommandExecutor {
             }
             
             // Teleport player
-            plugin.getAPI().getTeleportAPI().teleport(player1, player2.getLocation());
+            plugin.getAPI().getTeleportAPI().teleport(player1, player2.getLocation(), TeleportCause.COMMAND);
             
             return true;
         }
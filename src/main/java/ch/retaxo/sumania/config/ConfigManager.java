@@ -3,15 +3,24 @@ package ch.retaxo.sumania.config;
 import org.bukkit.configuration.file.FileConfiguration;
 import org.bukkit.configuration.file.YamlConfiguration;
 import org.bukkit.plugin.java.JavaPlugin;
+import org.bukkit.scheduler.BukkitTask;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.PreparedStatement;
 import java.sql.SQLException;
+import java.sql.Statement;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class ConfigManager {
 
@@ -19,10 +28,19 @@ public class ConfigManager {
     private final Map<String, FileConfiguration> configs;
     private final Map<String, File> configFiles;
     
+    // Write-behind state: configs with unsaved changes and the last snapshot written per file
+    private final Set<String> dirtyConfigs = ConcurrentHashMap.newKeySet();
+    private final Map<String, Long> writtenSnapshots = new ConcurrentHashMap<>();
+    private final Map<String, Long> snapshotCounters = new HashMap<>();
+    private BukkitTask autoSaveTask;
+    
+    // Configs that are saved write-behind instead of synchronously
+    private static final Set<String> WRITE_BEHIND_CONFIGS = Set.of("data.yml");
+    
     // Main config keys
     private String prefix;
     private boolean debugMode;
-    private Connection dbConnection;
+    private ConnectionPool connectionPool;
     private String dbType;
     private String tablePrefix;
     
@@ -54,6 +72,23 @@ public class ConfigManager {
         
         // Setup database connection
         setupDatabase();
+        
+        // Start write-behind flushing of data files
+        startAutoSave();
+    }
+    
+    /**
+     * Start the periodic flush of dirty write-behind configs
+     */
+    private void startAutoSave() {
+        long intervalTicks = Math.max(1, getConfig("config.yml").getLong("storage.save-interval", 30)) * 20L;
+        
+        autoSaveTask = plugin.getServer().getScheduler().runTaskTimer(
+                plugin,
+                this::flushDirtyConfigsAsync,
+                intervalTicks,
+                intervalTicks
+        );
     }
     
     /**
@@ -96,40 +131,53 @@ public class ConfigManager {
     }
     
     /**
-     * Setup database connection
+     * Setup database connection pool
      */
     private void setupDatabase() {
         FileConfiguration config = getConfig("config.yml");
         boolean autoCreateTables = config.getBoolean("database.auto-create-tables", true);
+        long connectionTimeout = config.getLong("database.pool.connection-timeout", 5000);
         
-        try {
-            if (dbType.equalsIgnoreCase("mysql")) {
-                // MySQL connection
-                String host = config.getString("database.mysql.host", "localhost");
-                int port = config.getInt("database.mysql.port", 3306);
-                String database = config.getString("database.mysql.database", "sumania");
-                String username = config.getString("database.mysql.username", "root");
-                String password = config.getString("database.mysql.password", "password");
-                boolean useSSL = config.getBoolean("database.mysql.use-ssl", false);
-                
-                String url = "jdbc:mysql://" + host + ":" + port + "/" + database + "?useSSL=" + useSSL;
-                
-                try {
-                    Class.forName("com.mysql.cj.jdbc.Driver");
-                    dbConnection = DriverManager.getConnection(url, username, password);
-                    plugin.getLogger().info("Connected to MySQL database!");
-                } catch (ClassNotFoundException e) {
-                    plugin.getLogger().severe("MySQL driver not found. Falling back to SQLite...");
-                    setupSQLiteDatabase();
-                }
-            } else {
-                // SQLite connection
-                setupSQLiteDatabase();
+        int poolSize = config.getInt("database.pool.max-size", 10);
+        ConnectionPool.ConnectionFactory factory = null;
+        
+        if (dbType.equalsIgnoreCase("mysql")) {
+            // MySQL connection
+            String host = config.getString("database.mysql.host", "localhost");
+            int port = config.getInt("database.mysql.port", 3306);
+            String database = config.getString("database.mysql.database", "sumania");
+            String username = config.getString("database.mysql.username", "root");
+            String password = config.getString("database.mysql.password", "password");
+            boolean useSSL = config.getBoolean("database.mysql.use-ssl", false);
+            
+            String url = "jdbc:mysql://" + host + ":" + port + "/" + database + "?useSSL=" + useSSL;
+            
+            try {
+                Class.forName("com.mysql.cj.jdbc.Driver");
+                factory = () -> DriverManager.getConnection(url, username, password);
+                plugin.getLogger().info("Using MySQL database!");
+            } catch (ClassNotFoundException e) {
+                plugin.getLogger().severe("MySQL driver not found. Falling back to SQLite...");
+                dbType = "sqlite";
             }
+        }
+        
+        if (factory == null) {
+            // SQLite connection
+            factory = createSQLiteFactory();
+            
+            // SQLite serializes writers anyway, a few connections are enough for concurrent reads
+            poolSize = Math.min(poolSize, 4);
+        }
+        
+        connectionPool = new ConnectionPool(plugin, factory, poolSize, connectionTimeout);
+        
+        try (Connection connection = connectionPool.getConnection()) {
+            plugin.getLogger().info("Connected to " + dbType + " database! (pool size " + poolSize + ")");
             
             // Create tables if needed
-            if (autoCreateTables && dbConnection != null) {
-                createTables();
+            if (autoCreateTables) {
+                createTables(connection);
             }
         } catch (SQLException e) {
             plugin.getLogger().severe("Failed to connect to database: " + e.getMessage());
@@ -138,20 +186,31 @@ public class ConfigManager {
     }
     
     /**
-     * Setup SQLite database connection
+     * Create the factory for SQLite connections
+     * @return The connection factory
      */
-    private void setupSQLiteDatabase() throws SQLException {
+    private ConnectionPool.ConnectionFactory createSQLiteFactory() {
         File databaseFile = new File(plugin.getDataFolder(), "sumania.db");
         String url = "jdbc:sqlite:" + databaseFile.getAbsolutePath();
         
-        dbConnection = DriverManager.getConnection(url);
-        plugin.getLogger().info("Connected to SQLite database!");
+        return () -> {
+            Connection connection = DriverManager.getConnection(url);
+            
+            // Let readers and the writer work side by side and wait on locks instead of failing
+            try (Statement statement = connection.createStatement()) {
+                statement.execute("PRAGMA journal_mode=WAL");
+                statement.execute("PRAGMA busy_timeout=5000");
+            }
+            
+            return connection;
+        };
     }
     
     /**
      * Create database tables
+     * @param dbConnection The connection to use
      */
-    private void createTables() throws SQLException {
+    private void createTables(Connection dbConnection) throws SQLException {
         // Players table
         String playersTable = "CREATE TABLE IF NOT EXISTS " + tablePrefix + "players (" +
                 "uuid VARCHAR(36) PRIMARY KEY, " +
@@ -197,7 +256,20 @@ public class ConfigManager {
                 "z1 INTEGER NOT NULL, " +
                 "x2 INTEGER NOT NULL, " +
                 "y2 INTEGER NOT NULL, " +
-                "z2 INTEGER NOT NULL" +
+                "z2 INTEGER NOT NULL, " +
+                "claim_id VARCHAR(36) NULL UNIQUE, " +
+                "marker_x INTEGER NOT NULL DEFAULT 0, " +
+                "marker_y INTEGER NOT NULL DEFAULT 0, " +
+                "marker_z INTEGER NOT NULL DEFAULT 0, " +
+                "flags INTEGER NOT NULL DEFAULT 0" +
+                ")";
+        
+        // Claim trust table, one row per trusted player
+        String claimTrustTable = "CREATE TABLE IF NOT EXISTS " + tablePrefix + "claim_trust (" +
+                "claim_id VARCHAR(36) NOT NULL, " +
+                "uuid VARCHAR(36) NOT NULL, " +
+                "trust VARCHAR(16) NOT NULL, " +
+                "PRIMARY KEY (claim_id, uuid)" +
                 ")";
         
         // Discord links table
@@ -259,40 +331,141 @@ public class ConfigManager {
                 "id INTEGER PRIMARY KEY " + (dbType.equalsIgnoreCase("mysql") ? "AUTO_INCREMENT" : "AUTOINCREMENT") + ", " +
                 "seller_uuid VARCHAR(36) NOT NULL, " +
                 "buyer_uuid VARCHAR(36) NULL, " +
-                "item_data TEXT NOT NULL, " +
+                "item_data TEXT NULL, " + // Legacy Base64 item format, migrated to item_blob
+                "item_blob " + (dbType.equalsIgnoreCase("mysql") ? "MEDIUMBLOB" : "BLOB") + " NULL, " +
                 "price DOUBLE NOT NULL, " +
                 "created_time TIMESTAMP DEFAULT CURRENT_TIMESTAMP, " +
                 "end_time TIMESTAMP NOT NULL, " +
                 "status VARCHAR(20) NOT NULL DEFAULT 'ACTIVE', " + // ACTIVE, SOLD, EXPIRED, CANCELLED
                 "category VARCHAR(32) NULL, " +
+                "auction_type VARCHAR(10) NOT NULL DEFAULT 'FIXED', " + // FIXED, BID
+                "current_bid DOUBLE NULL, " +
+                "bidder_uuid VARCHAR(36) NULL, " +
+                "version INTEGER NOT NULL DEFAULT 0, " + // Bumped on every status change
                 (dbType.equalsIgnoreCase("mysql") ? "INDEX idx_seller (seller_uuid), " : "") +
                 (dbType.equalsIgnoreCase("mysql") ? "INDEX idx_buyer (buyer_uuid), " : "") +
                 (dbType.equalsIgnoreCase("mysql") ? "INDEX idx_status (status), " : "") +
                 (dbType.equalsIgnoreCase("mysql") ? "INDEX idx_end_time (end_time)" : "") +
                 ")";
         
+        // Auction bids table, one row per accepted bid
+        String auctionBidsTable = "CREATE TABLE IF NOT EXISTS " + tablePrefix + "auction_bids (" +
+                "id INTEGER PRIMARY KEY " + (dbType.equalsIgnoreCase("mysql") ? "AUTO_INCREMENT" : "AUTOINCREMENT") + ", " +
+                "auction_id INTEGER NOT NULL, " +
+                "bidder_uuid VARCHAR(36) NOT NULL, " +
+                "amount DOUBLE NOT NULL, " +
+                "created_time TIMESTAMP NOT NULL" +
+                (dbType.equalsIgnoreCase("mysql") ? ", INDEX idx_auction (auction_id)" : "") +
+                ")";
+        
+        // Mailbox table, one row per item or money delivery waiting for its recipient
+        String mailboxTable = "CREATE TABLE IF NOT EXISTS " + tablePrefix + "mailbox (" +
+                "id INTEGER PRIMARY KEY " + (dbType.equalsIgnoreCase("mysql") ? "AUTO_INCREMENT" : "AUTOINCREMENT") + ", " +
+                "recipient_uuid VARCHAR(36) NOT NULL, " +
+                "item_blob " + (dbType.equalsIgnoreCase("mysql") ? "MEDIUMBLOB" : "BLOB") + " NULL, " +
+                "amount DOUBLE NOT NULL DEFAULT 0, " +
+                "source VARCHAR(32) NOT NULL, " +
+                "counterparty_uuid VARCHAR(36) NULL, " +
+                "created_time TIMESTAMP NOT NULL" +
+                (dbType.equalsIgnoreCase("mysql") ? ", INDEX idx_recipient (recipient_uuid)" : "") +
+                ")";
+        
+        // Economy journal table, amounts in cents
+        String economyJournalTable = "CREATE TABLE IF NOT EXISTS " + tablePrefix + "economy_journal (" +
+                "id INTEGER PRIMARY KEY " + (dbType.equalsIgnoreCase("mysql") ? "AUTO_INCREMENT" : "AUTOINCREMENT") + ", " +
+                "transaction_id VARCHAR(36) NOT NULL, " +
+                "uuid VARCHAR(36) NOT NULL, " +
+                "counterparty VARCHAR(36), " +
+                "amount BIGINT NOT NULL, " +
+                "balance BIGINT NOT NULL, " +
+                "type VARCHAR(32) NOT NULL, " +
+                "created_time TIMESTAMP DEFAULT CURRENT_TIMESTAMP" +
+                (dbType.equalsIgnoreCase("mysql") ? ", INDEX idx_uuid_id (uuid, id)" : "") +
+                ")";
+        
+        // Claim block journal table, used for rollbacks
+        String claimBlockJournalTable = "CREATE TABLE IF NOT EXISTS " + tablePrefix + "claim_block_journal (" +
+                "id INTEGER PRIMARY KEY " + (dbType.equalsIgnoreCase("mysql") ? "AUTO_INCREMENT" : "AUTOINCREMENT") + ", " +
+                "world VARCHAR(64) NOT NULL, " +
+                "x INTEGER NOT NULL, " +
+                "y INTEGER NOT NULL, " +
+                "z INTEGER NOT NULL, " +
+                "actor VARCHAR(36) NOT NULL, " +
+                "old_data TEXT NOT NULL, " +
+                "new_data TEXT NOT NULL, " +
+                "created_time TIMESTAMP NOT NULL" +
+                (dbType.equalsIgnoreCase("mysql") ? ", INDEX idx_actor_time (actor, created_time)" : "") +
+                ")";
+        
+        // Shop trade volumes for dynamic prices
+        String shopPricesTable = "CREATE TABLE IF NOT EXISTS " + tablePrefix + "shop_prices (" +
+                "material VARCHAR(64) PRIMARY KEY, " +
+                "demand DOUBLE NOT NULL, " +
+                "supply DOUBLE NOT NULL, " +
+                "updated_time TIMESTAMP NOT NULL" +
+                ")";
+        
         // Execute all queries
         try (PreparedStatement playersStmt = dbConnection.prepareStatement(playersTable);
              PreparedStatement homesStmt = dbConnection.prepareStatement(homesTable);
              PreparedStatement warpsStmt = dbConnection.prepareStatement(warpsTable);
              PreparedStatement claimsStmt = dbConnection.prepareStatement(claimsTable);
+             PreparedStatement claimTrustStmt = dbConnection.prepareStatement(claimTrustTable);
              PreparedStatement discordStmt = dbConnection.prepareStatement(discordTable);
              PreparedStatement lotteryStmt = dbConnection.prepareStatement(lotteryTable);
              PreparedStatement rewardsStmt = dbConnection.prepareStatement(rewardsTable);
              PreparedStatement bansStmt = dbConnection.prepareStatement(bansTable);
              PreparedStatement mutesStmt = dbConnection.prepareStatement(mutesTable);
-             PreparedStatement auctionsStmt = dbConnection.prepareStatement(auctionsTable)) {
+             PreparedStatement auctionsStmt = dbConnection.prepareStatement(auctionsTable);
+             PreparedStatement auctionBidsStmt = dbConnection.prepareStatement(auctionBidsTable);
+             PreparedStatement mailboxStmt = dbConnection.prepareStatement(mailboxTable);
+             PreparedStatement economyJournalStmt = dbConnection.prepareStatement(economyJournalTable);
+             PreparedStatement claimBlockJournalStmt = dbConnection.prepareStatement(claimBlockJournalTable);
+             PreparedStatement shopPricesStmt = dbConnection.prepareStatement(shopPricesTable)) {
             
             playersStmt.executeUpdate();
             homesStmt.executeUpdate();
             warpsStmt.executeUpdate();
             claimsStmt.executeUpdate();
+            claimTrustStmt.executeUpdate();
             discordStmt.executeUpdate();
             lotteryStmt.executeUpdate();
             rewardsStmt.executeUpdate();
             bansStmt.executeUpdate();
             mutesStmt.executeUpdate();
             auctionsStmt.executeUpdate();
+            auctionBidsStmt.executeUpdate();
+            mailboxStmt.executeUpdate();
+            economyJournalStmt.executeUpdate();
+            claimBlockJournalStmt.executeUpdate();
+            shopPricesStmt.executeUpdate();
+            
+            // SQLite has no inline indexes
+            if (!dbType.equalsIgnoreCase("mysql")) {
+                try (PreparedStatement indexStmt = dbConnection.prepareStatement(
+                        "CREATE INDEX IF NOT EXISTS idx_" + tablePrefix + "claim_block_journal_actor_time ON " +
+                        tablePrefix + "claim_block_journal (actor, created_time)")) {
+                    indexStmt.executeUpdate();
+                }
+                
+                try (PreparedStatement indexStmt = dbConnection.prepareStatement(
+                        "CREATE INDEX IF NOT EXISTS idx_" + tablePrefix + "economy_journal_uuid_id ON " +
+                        tablePrefix + "economy_journal (uuid, id)")) {
+                    indexStmt.executeUpdate();
+                }
+                
+                try (PreparedStatement indexStmt = dbConnection.prepareStatement(
+                        "CREATE INDEX IF NOT EXISTS idx_" + tablePrefix + "auction_bids_auction ON " +
+                        tablePrefix + "auction_bids (auction_id)")) {
+                    indexStmt.executeUpdate();
+                }
+                
+                try (PreparedStatement indexStmt = dbConnection.prepareStatement(
+                        "CREATE INDEX IF NOT EXISTS idx_" + tablePrefix + "mailbox_recipient ON " +
+                        tablePrefix + "mailbox (recipient_uuid)")) {
+                    indexStmt.executeUpdate();
+                }
+            }
             
             plugin.getLogger().info("Database tables created or verified!");
         }
@@ -308,27 +481,135 @@ public class ConfigManager {
     }
     
     /**
-     * Save a configuration file
+     * Save a configuration file.
+     * Write-behind configs (data.yml) are only marked dirty and flushed in batches.
      * @param configName The name of the config file
      */
     public void saveConfig(String configName) {
+        if (WRITE_BEHIND_CONFIGS.contains(configName)) {
+            markDirty(configName);
+            return;
+        }
+        
+        flushConfig(configName);
+    }
+    
+    /**
+     * Mark a configuration file as having unsaved changes
+     * @param configName The name of the config file
+     */
+    public void markDirty(String configName) {
+        dirtyConfigs.add(configName);
+    }
+    
+    /**
+     * Flush all dirty configs. The YAML snapshot is taken on the calling (main) thread,
+     * the file write happens asynchronously.
+     */
+    private void flushDirtyConfigsAsync() {
+        for (String configName : WRITE_BEHIND_CONFIGS) {
+            if (!dirtyConfigs.remove(configName)) {
+                continue;
+            }
+            
+            File file = configFiles.get(configName);
+            String content = configs.get(configName).saveToString();
+            long snapshot = nextSnapshot(configName);
+            
+            plugin.getServer().getScheduler().runTaskAsynchronously(plugin, () -> {
+                if (!writeAtomically(configName, file, content, snapshot)) {
+                    // Keep the changes pending for the next flush
+                    markDirty(configName);
+                }
+            });
+        }
+    }
+    
+    /**
+     * Save a configuration file synchronously. Waits for a write-behind flush still writing the file.
+     * @param configName The name of the config file
+     * @return True if the file was written
+     */
+    private boolean flushConfig(String configName) {
         File file = configFiles.get(configName);
         FileConfiguration config = configs.get(configName);
         
+        dirtyConfigs.remove(configName);
+        
+        if (!writeAtomically(configName, file, config.saveToString(), nextSnapshot(configName))) {
+            markDirty(configName);
+            return false;
+        }
+        
+        return true;
+    }
+    
+    /**
+     * Check if a config has changes that are not on disk yet, either unsaved or in a write-behind flush still running
+     * @param configName The name of the config file
+     * @return True if the file is behind the config
+     */
+    private boolean hasPendingWrites(String configName) {
+        return dirtyConfigs.contains(configName)
+                || snapshotCounters.getOrDefault(configName, 0L) > writtenSnapshots.getOrDefault(configName, 0L);
+    }
+    
+    /**
+     * Get the next snapshot number for a config
+     * @param configName The name of the config file
+     * @return The snapshot number
+     */
+    private long nextSnapshot(String configName) {
+        return snapshotCounters.merge(configName, 1L, Long::sum);
+    }
+    
+    /**
+     * Write a config to a temporary file and move it over the target, so a crash
+     * mid-write can never leave a truncated file behind
+     * @param configName The name of the config file
+     * @param file The target file
+     * @param content The serialized config
+     * @param snapshot The snapshot number of the content
+     * @return True if the file was written (or a newer snapshot already was)
+     */
+    private synchronized boolean writeAtomically(String configName, File file, String content, long snapshot) {
+        // Never overwrite a newer snapshot with an older one
+        if (writtenSnapshots.getOrDefault(configName, 0L) >= snapshot) {
+            return true;
+        }
+        
+        Path target = file.toPath();
+        Path temp = target.resolveSibling(file.getName() + ".tmp");
+        
         try {
-            config.save(file);
+            Files.writeString(temp, content, StandardCharsets.UTF_8);
+            
+            try {
+                Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+            }
+            
+            writtenSnapshots.put(configName, snapshot);
+            return true;
         } catch (IOException e) {
             plugin.getLogger().severe("Could not save config file " + configName);
             e.printStackTrace();
+            return false;
         }
     }
     
     /**
-     * Save all configuration files
+     * Save all configuration files synchronously, including pending write-behind changes
      */
     public void saveAllConfigs() {
+        if (autoSaveTask != null) {
+            autoSaveTask.cancel();
+            autoSaveTask = null;
+        }
+        
         for (String configName : configs.keySet()) {
-            saveConfig(configName);
+            flushConfig(configName);
         }
     }
     
@@ -337,6 +618,12 @@ public class ConfigManager {
      * @param configName The name of the config file
      */
     public void reloadConfig(String configName) {
+        // Do not lose pending changes of write-behind configs, the file may still be behind a flush that is running
+        if (hasPendingWrites(configName) && !flushConfig(configName)) {
+            plugin.getLogger().warning("Not reloading " + configName + ", its pending changes could not be saved.");
+            return;
+        }
+        
         File file = configFiles.get(configName);
         configs.put(configName, YamlConfiguration.loadConfiguration(file));
         loadConfigValues();
@@ -368,11 +655,25 @@ public class ConfigManager {
     }
     
     /**
-     * Get the database connection
+     * Borrow a database connection from the pool.
+     * The connection must be closed after use, which returns it to the pool.
      * @return The database connection
+     * @throws SQLException If no connection is available
      */
-    public Connection getDbConnection() {
-        return dbConnection;
+    public Connection getDbConnection() throws SQLException {
+        if (connectionPool == null) {
+            throw new SQLException("Database is not initialized");
+        }
+        
+        return connectionPool.getConnection();
+    }
+    
+    /**
+     * Get the database connection pool, used to run database work asynchronously
+     * @return The connection pool
+     */
+    public ConnectionPool getConnectionPool() {
+        return connectionPool;
     }
     
     /**
@@ -392,17 +693,12 @@ public class ConfigManager {
     }
     
     /**
-     * Close the database connection
+     * Close the database connection pool
      */
     public void closeDbConnection() {
-        if (dbConnection != null) {
-            try {
-                dbConnection.close();
-                plugin.getLogger().info("Database connection closed.");
-            } catch (SQLException e) {
-                plugin.getLogger().severe("Error closing database connection: " + e.getMessage());
-                e.printStackTrace();
-            }
+        if (connectionPool != null) {
+            connectionPool.close();
+            plugin.getLogger().info("Database connection closed.");
         }
     }
 }
@@ -0,0 +1,307 @@
+package ch.retaxo.sumania.config;
+
+import org.bukkit.plugin.java.JavaPlugin;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Bounded pool of database connections with a dedicated executor for database work.
+ * Connections handed out by the pool must be closed by the caller, which returns them to the pool.
+ */
+public class ConnectionPool {
+
+    /**
+     * Factory for new physical connections
+     */
+    @FunctionalInterface
+    public interface ConnectionFactory {
+        Connection create() throws SQLException;
+    }
+
+    /**
+     * Database work that produces a result
+     * @param <T> The result type
+     */
+    @FunctionalInterface
+    public interface SqlFunction<T> {
+        T apply(Connection connection) throws SQLException;
+    }
+
+    /**
+     * Database work without a result
+     */
+    @FunctionalInterface
+    public interface SqlConsumer {
+        void accept(Connection connection) throws SQLException;
+    }
+
+    private static final int VALIDATION_TIMEOUT_SECONDS = 2;
+
+    private final JavaPlugin plugin;
+    private final ConnectionFactory factory;
+    private final LinkedBlockingDeque<Connection> idleConnections;
+    private final Semaphore permits;
+    private final long connectionTimeoutMs;
+    private final ExecutorService executor;
+    private volatile boolean closed;
+
+    /**
+     * Constructor
+     * @param plugin The plugin instance
+     * @param factory The factory for new physical connections
+     * @param maxSize The maximum number of connections
+     * @param connectionTimeoutMs How long to wait for a free connection in milliseconds
+     */
+    public ConnectionPool(JavaPlugin plugin, ConnectionFactory factory, int maxSize, long connectionTimeoutMs) {
+        this.plugin = plugin;
+        this.factory = factory;
+        this.idleConnections = new LinkedBlockingDeque<>();
+        this.permits = new Semaphore(Math.max(1, maxSize), true);
+        this.connectionTimeoutMs = connectionTimeoutMs;
+
+        AtomicInteger threadCounter = new AtomicInteger();
+        this.executor = Executors.newFixedThreadPool(Math.max(1, maxSize), runnable -> {
+            Thread thread = new Thread(runnable, "Sumania-DB-" + threadCounter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Borrow a connection from the pool. Closing the returned connection gives it back to the pool.
+     * @return A validated connection
+     * @throws SQLException If no connection could be obtained in time
+     */
+    public Connection getConnection() throws SQLException {
+        if (closed) {
+            throw new SQLException("Connection pool is closed");
+        }
+
+        try {
+            if (!permits.tryAcquire(connectionTimeoutMs, TimeUnit.MILLISECONDS)) {
+                throw new SQLException("Timed out waiting for a database connection");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for a database connection", e);
+        }
+
+        try {
+            return wrap(takeValidConnection());
+        } catch (SQLException | RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Take an idle connection that is still alive, or open a new one
+     * @return A physical connection
+     * @throws SQLException If a new connection could not be opened
+     */
+    private Connection takeValidConnection() throws SQLException {
+        Connection connection;
+
+        while ((connection = idleConnections.pollFirst()) != null) {
+            if (isValid(connection)) {
+                return connection;
+            }
+
+            // Stale connection (e.g. MySQL wait_timeout), drop it and try the next one
+            closeQuietly(connection);
+        }
+
+        return factory.create();
+    }
+
+    /**
+     * Check if a physical connection is still usable
+     * @param connection The connection
+     * @return True if the connection is valid
+     */
+    private boolean isValid(Connection connection) {
+        try {
+            return !connection.isClosed() && connection.isValid(VALIDATION_TIMEOUT_SECONDS);
+        } catch (SQLException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Give a physical connection back to the pool
+     * @param connection The connection
+     * @param statements The statements opened while it was borrowed
+     */
+    private void release(Connection connection, List<Statement> statements) {
+        try {
+            // Close statements the caller left open
+            for (Statement statement : statements) {
+                try {
+                    statement.close();
+                } catch (SQLException ignored) {
+                }
+            }
+
+            // Reset transaction state for the next borrower
+            try {
+                if (!connection.getAutoCommit()) {
+                    connection.rollback();
+                    connection.setAutoCommit(true);
+                }
+            } catch (SQLException e) {
+                closeQuietly(connection);
+                return;
+            }
+
+            if (closed) {
+                closeQuietly(connection);
+            } else {
+                idleConnections.offerFirst(connection);
+            }
+        } finally {
+            permits.release();
+        }
+    }
+
+    /**
+     * Wrap a physical connection so that close() returns it to the pool
+     * @param connection The physical connection
+     * @return The pooled connection
+     */
+    private Connection wrap(Connection connection) {
+        List<Statement> statements = new ArrayList<>();
+
+        InvocationHandler handler = new InvocationHandler() {
+            private boolean returned;
+
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                String name = method.getName();
+
+                if (name.equals("close")) {
+                    if (!returned) {
+                        returned = true;
+                        release(connection, statements);
+                    }
+                    return null;
+                }
+
+                if (name.equals("isClosed")) {
+                    return returned || connection.isClosed();
+                }
+
+                if (returned) {
+                    throw new SQLException("Connection has already been returned to the pool");
+                }
+
+                try {
+                    Object result = method.invoke(connection, args);
+
+                    // Track statements so they can be closed when the connection is returned
+                    if (result instanceof Statement) {
+                        statements.add((Statement) result);
+                    }
+
+                    return result;
+                } catch (InvocationTargetException e) {
+                    throw e.getCause();
+                }
+            }
+        };
+
+        return (Connection) Proxy.newProxyInstance(
+                ConnectionPool.class.getClassLoader(),
+                new Class<?>[] {Connection.class},
+                handler
+        );
+    }
+
+    /**
+     * Run database work on the database executor
+     * @param task The work to run with a pooled connection
+     * @param <T> The result type
+     * @return A future completing with the result
+     */
+    public <T> CompletableFuture<T> supplyAsync(SqlFunction<T> task) {
+        return CompletableFuture.supplyAsync(() -> {
+            try (Connection connection = getConnection()) {
+                return task.apply(connection);
+            } catch (SQLException e) {
+                throw new CompletionException(e);
+            }
+        }, executor);
+    }
+
+    /**
+     * Run database work without a result on the database executor
+     * @param task The work to run with a pooled connection
+     * @return A future completing when the work is done
+     */
+    public CompletableFuture<Void> runAsync(SqlConsumer task) {
+        return supplyAsync(connection -> {
+            task.accept(connection);
+            return null;
+        });
+    }
+
+    /**
+     * Get the executor used for database work
+     * @return The executor
+     */
+    public ExecutorService getExecutor() {
+        return executor;
+    }
+
+    /**
+     * Close the pool, waiting briefly for queued database work.
+     * The executor stops accepting new work first, tasks it already accepted can still borrow connections.
+     */
+    public void close() {
+        executor.shutdown();
+
+        try {
+            if (!executor.awaitTermination(10, TimeUnit.SECONDS)) {
+                plugin.getLogger().warning("Database tasks did not finish in time, forcing shutdown.");
+                executor.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+
+        // Connections still borrowed by tasks that outlived the wait are closed when they are returned
+        closed = true;
+
+        Connection connection;
+        while ((connection = idleConnections.pollFirst()) != null) {
+            closeQuietly(connection);
+        }
+    }
+
+    /**
+     * Close a physical connection, ignoring errors
+     * @param connection The connection
+     */
+    private void closeQuietly(Connection connection) {
+        try {
+            connection.close();
+        } catch (SQLException ignored) {
+        }
+    }
+}
@@ -3,6 +3,8 @@ package ch.retaxo.sumania.events;
 import ch.retaxo.sumania.Sumania;
 import ch.retaxo.sumania.events.player.*;
 import ch.retaxo.sumania.events.protection.BlockProtectionListener;
+import ch.retaxo.sumania.events.protection.ClaimFlagListener;
+import ch.retaxo.sumania.events.protection.WorldProtectionListener;
 import org.bukkit.Bukkit;
 import org.bukkit.event.Listener;
 import org.bukkit.plugin.PluginManager;
@@ -37,5 +39,10 @@ public class EventManager {
         
         // Register protection event listeners
         pm.registerEvents(new BlockProtectionListener(plugin), plugin);
+        pm.registerEvents(new ClaimFlagListener(plugin), plugin);
+        pm.registerEvents(new WorldProtectionListener(plugin), plugin);
+        
+        // Register claim presence tracking
+        pm.registerEvents(plugin.getAPI().getClaimAPI().getPresenceTracker(), plugin);
     }
 }
@@ -0,0 +1,70 @@
+package ch.retaxo.sumania.events.claim;
+
+import ch.retaxo.sumania.models.Claim;
+import org.bukkit.entity.Player;
+import org.bukkit.event.Cancellable;
+import org.bukkit.event.HandlerList;
+import org.bukkit.event.player.PlayerEvent;
+
+/**
+ * Called when a player enters a claim. Cancelling it cancels the move.
+ */
+public class ClaimEnterEvent extends PlayerEvent implements Cancellable {
+
+    private static final HandlerList HANDLERS = new HandlerList();
+    
+    private final Claim claim;
+    private final Claim previousClaim;
+    private boolean cancelled;
+    
+    /**
+     * Constructor
+     * @param player The player
+     * @param claim The claim that was entered
+     * @param previousClaim The claim the player came from, or null if outside of any claim
+     */
+    public ClaimEnterEvent(Player player, Claim claim, Claim previousClaim) {
+        super(player);
+        this.claim = claim;
+        this.previousClaim = previousClaim;
+    }
+    
+    /**
+     * Get the claim that was entered
+     * @return The claim
+     */
+    public Claim getClaim() {
+        return claim;
+    }
+    
+    /**
+     * Get the claim the player came from
+     * @return The claim, or null if the player was outside of any claim
+     */
+    public Claim getPreviousClaim() {
+        return previousClaim;
+    }
+    
+    @Override
+    public boolean isCancelled() {
+        return cancelled;
+    }
+    
+    @Override
+    public void setCancelled(boolean cancelled) {
+        this.cancelled = cancelled;
+    }
+    
+    @Override
+    public HandlerList getHandlers() {
+        return HANDLERS;
+    }
+    
+    /**
+     * Get the handler list
+     * @return The handler list
+     */
+    public static HandlerList getHandlerList() {
+        return HANDLERS;
+    }
+}
@@ -0,0 +1,59 @@
+package ch.retaxo.sumania.events.claim;
+
+import ch.retaxo.sumania.models.Claim;
+import org.bukkit.entity.Player;
+import org.bukkit.event.HandlerList;
+import org.bukkit.event.player.PlayerEvent;
+
+/**
+ * Called when a player leaves a claim.
+ * When moving straight into another claim, it follows the {@link ClaimEnterEvent} of that claim.
+ */
+public class ClaimLeaveEvent extends PlayerEvent {
+
+    private static final HandlerList HANDLERS = new HandlerList();
+    
+    private final Claim claim;
+    private final Claim nextClaim;
+    
+    /**
+     * Constructor
+     * @param player The player
+     * @param claim The claim that was left, may already be deleted
+     * @param nextClaim The claim the player moved into, or null if outside of any claim
+     */
+    public ClaimLeaveEvent(Player player, Claim claim, Claim nextClaim) {
+        super(player);
+        this.claim = claim;
+        this.nextClaim = nextClaim;
+    }
+    
+    /**
+     * Get the claim that was left
+     * @return The claim
+     */
+    public Claim getClaim() {
+        return claim;
+    }
+    
+    /**
+     * Get the claim the player moved into
+     * @return The claim, or null if the player is now outside of any claim
+     */
+    public Claim getNextClaim() {
+        return nextClaim;
+    }
+    
+    @Override
+    public HandlerList getHandlers() {
+        return HANDLERS;
+    }
+    
+    /**
+     * Get the handler list
+     * @return The handler list
+     */
+    public static HandlerList getHandlerList() {
+        return HANDLERS;
+    }
+}
@@ -1,12 +1,15 @@
 package ch.retaxo.sumania.events.player;
 
 import ch.retaxo.sumania.Sumania;
+import ch.retaxo.sumania.api.player.PlayerSession;
+import ch.retaxo.sumania.api.teleport.TeleportCause;
 import ch.retaxo.sumania.models.Claim;
 import org.bukkit.Bukkit;
 import org.bukkit.Material;
 import org.bukkit.OfflinePlayer;
 import org.bukkit.entity.Player;
 import org.bukkit.event.EventHandler;
+import org.bukkit.event.HandlerList;
 import org.bukkit.event.Listener;
 import org.bukkit.event.inventory.InventoryClickEvent;
 import org.bukkit.event.inventory.InventoryCloseEvent;
@@ -29,7 +32,6 @@ public class ClaimManagementMenu implements Listener {
 
     private final Sumania plugin;
     private final Claim claim;
-    private final Map<UUID, Inventory> openInventories = new HashMap<>();
     
     // Menu items
     private static final int INFO_SLOT = 4;
@@ -41,8 +43,6 @@ public class ClaimManagementMenu implements Listener {
     
     // Add/Remove trusted player menus
     private static final int TRUSTED_PLAYERS_PER_PAGE = 36;
-    private final Map<UUID, Integer> playerMenuPages = new HashMap<>();
-    private final Map<UUID, List<OfflinePlayer>> playerMenuPlayers = new HashMap<>();
     
     /**
      * Constructor
@@ -67,11 +67,11 @@ public class ClaimManagementMenu implements Listener {
         // Create menu items
         createMainMenuItems(inventory);
         
+        // Store open inventory before opening, so closing the previous view keeps the menu state
+        setOpenInventory(player, inventory);
+        
         // Open inventory
         player.openInventory(inventory);
-        
-        // Store open inventory
-        openInventories.put(player.getUniqueId(), inventory);
     }
     
     /**
@@ -95,8 +95,7 @@ public class ClaimManagementMenu implements Listener {
         ItemStack infoItem = new ItemStack(Material.EMERALD_BLOCK);
         ItemMeta infoMeta = infoItem.getItemMeta();
         if (infoMeta != null) {
-            OfflinePlayer owner = Bukkit.getOfflinePlayer(claim.getOwnerUUID());
-            String ownerName = owner.getName() != null ? owner.getName() : "Unbekannt";
+            String ownerName = plugin.getAPI().getNameService().getName(claim.getOwnerUUID(), "Unbekannt");
             
             infoMeta.setDisplayName("§a§lGrundstück: §r§7" + claim.getId().substring(0, 8));
             
@@ -201,17 +200,18 @@ public class ClaimManagementMenu implements Listener {
         onlinePlayers.removeIf(p -> p.getUniqueId().equals(claim.getOwnerUUID()) || claim.isTrusted(p.getUniqueId()));
         
         // Store players for menu
-        playerMenuPlayers.put(player.getUniqueId(), new ArrayList<>(onlinePlayers));
-        playerMenuPages.put(player.getUniqueId(), 0);
+        PlayerSession session = plugin.getAPI().getPlayerAPI().getSession(player);
+        session.setClaimMenuPlayers(new ArrayList<>(onlinePlayers));
+        session.setClaimMenuPage(0);
         
         // Fill menu
         updatePlayerSelectionMenu(player, inventory, 0);
         
+        // Store open inventory before opening, so closing the previous view keeps the menu state
+        setOpenInventory(player, inventory);
+        
         // Open inventory
         player.openInventory(inventory);
-        
-        // Store open inventory
-        openInventories.put(player.getUniqueId(), inventory);
     }
     
     /**
@@ -228,17 +228,35 @@ public class ClaimManagementMenu implements Listener {
         }
         
         // Store players for menu
-        playerMenuPlayers.put(player.getUniqueId(), trustedPlayers);
-        playerMenuPages.put(player.getUniqueId(), 0);
+        PlayerSession session = plugin.getAPI().getPlayerAPI().getSession(player);
+        session.setClaimMenuPlayers(trustedPlayers);
+        session.setClaimMenuPage(0);
         
         // Fill menu
         updatePlayerSelectionMenu(player, inventory, 0);
         
+        // Store open inventory before opening, so closing the previous view keeps the menu state
+        setOpenInventory(player, inventory);
+        
         // Open inventory
         player.openInventory(inventory);
+    }
+    
+    /**
+     * Remember this menu and its inventory in the player's session
+     * @param player The player
+     * @param inventory The inventory being opened
+     */
+    private void setOpenInventory(Player player, Inventory inventory) {
+        PlayerSession session = plugin.getAPI().getPlayerAPI().getSession(player);
+        
+        // A previous menu of another claim won't see its close event anymore
+        if (session.getClaimMenu() != null && session.getClaimMenu() != this) {
+            HandlerList.unregisterAll(session.getClaimMenu());
+        }
         
-        // Store open inventory
-        openInventories.put(player.getUniqueId(), inventory);
+        session.setClaimMenu(this);
+        session.setClaimMenuInventory(inventory);
     }
     
     /**
@@ -252,7 +270,8 @@ public class ClaimManagementMenu implements Listener {
         inventory.clear();
         
         // Get players for this menu
-        List<OfflinePlayer> players = playerMenuPlayers.get(player.getUniqueId());
+        PlayerSession session = plugin.getAPI().getPlayerAPI().getSession(player);
+        List<OfflinePlayer> players = session.getClaimMenuPlayers();
         
         if (players == null || players.isEmpty()) {
             // No players available
@@ -281,7 +300,7 @@ public class ClaimManagementMenu implements Listener {
         
         // Ensure page is valid
         page = Math.max(0, Math.min(page, totalPages - 1));
-        playerMenuPages.put(player.getUniqueId(), page);
+        session.setClaimMenuPage(page);
         
         // Add player heads
         int startIndex = page * TRUSTED_PLAYERS_PER_PAGE;
@@ -296,7 +315,7 @@ public class ClaimManagementMenu implements Listener {
             
             if (meta != null) {
                 meta.setOwningPlayer(offlinePlayer);
-                meta.setDisplayName("§a§l" + (offlinePlayer.getName() != null ? offlinePlayer.getName() : "Unbekannt"));
+                meta.setDisplayName("§a§l" + plugin.getAPI().getNameService().getName(offlinePlayer.getUniqueId(), "Unbekannt"));
                 
                 List<String> lore = new ArrayList<>();
                 lore.add("§7Klicke, um diesen Spieler " + (player.getOpenInventory().getTitle().contains("hinzufügen") ? "hinzuzufügen" : "zu entfernen"));
@@ -352,10 +371,10 @@ public class ClaimManagementMenu implements Listener {
         }
         
         Player player = (Player) event.getWhoClicked();
-        UUID playerUUID = player.getUniqueId();
+        PlayerSession session = plugin.getAPI().getPlayerAPI().findSession(player.getUniqueId());
         
         // Check if this is one of our inventories
-        if (!openInventories.containsKey(playerUUID)) {
+        if (session == null || session.getClaimMenu() != this) {
             return;
         }
         
@@ -435,7 +454,7 @@ public class ClaimManagementMenu implements Listener {
         // Check if this is a navigation button
         if (slot == 48) {
             // Previous page
-            int page = playerMenuPages.getOrDefault(player.getUniqueId(), 0);
+            int page = plugin.getAPI().getPlayerAPI().getSession(player).getClaimMenuPage();
             if (page > 0) {
                 updatePlayerSelectionMenu(player, player.getOpenInventory().getTopInventory(), page - 1);
             }
@@ -444,16 +463,16 @@ public class ClaimManagementMenu implements Listener {
             open(player);
         } else if (slot == 50) {
             // Next page
-            int page = playerMenuPages.getOrDefault(player.getUniqueId(), 0);
-            List<OfflinePlayer> players = playerMenuPlayers.get(player.getUniqueId());
+            int page = plugin.getAPI().getPlayerAPI().getSession(player).getClaimMenuPage();
+            List<OfflinePlayer> players = plugin.getAPI().getPlayerAPI().getSession(player).getClaimMenuPlayers();
             int totalPages = (int) Math.ceil(players.size() / (double) TRUSTED_PLAYERS_PER_PAGE);
             if (page < totalPages - 1) {
                 updatePlayerSelectionMenu(player, player.getOpenInventory().getTopInventory(), page + 1);
             }
         } else if (slot < TRUSTED_PLAYERS_PER_PAGE) {
             // Player selection
-            List<OfflinePlayer> players = playerMenuPlayers.get(player.getUniqueId());
-            int page = playerMenuPages.getOrDefault(player.getUniqueId(), 0);
+            List<OfflinePlayer> players = plugin.getAPI().getPlayerAPI().getSession(player).getClaimMenuPlayers();
+            int page = plugin.getAPI().getPlayerAPI().getSession(player).getClaimMenuPage();
             int index = page * TRUSTED_PLAYERS_PER_PAGE + slot;
             
             if (players != null && index < players.size()) {
@@ -464,7 +483,7 @@ public class ClaimManagementMenu implements Listener {
                     player.closeInventory();
                     
                     Map<String, String> replacements = new HashMap<>();
-                    replacements.put("player", selectedPlayer.getName() != null ? selectedPlayer.getName() : "Unbekannt");
+                    replacements.put("player", plugin.getAPI().getNameService().getName(selectedPlayer.getUniqueId(), "Unbekannt"));
                     
                     plugin.getAPI().getPlayerAPI().sendMessage(
                             player,
@@ -485,7 +504,7 @@ public class ClaimManagementMenu implements Listener {
         // Check if this is a navigation button
         if (slot == 48) {
             // Previous page
-            int page = playerMenuPages.getOrDefault(player.getUniqueId(), 0);
+            int page = plugin.getAPI().getPlayerAPI().getSession(player).getClaimMenuPage();
             if (page > 0) {
                 updatePlayerSelectionMenu(player, player.getOpenInventory().getTopInventory(), page - 1);
             }
@@ -494,16 +513,16 @@ public class ClaimManagementMenu implements Listener {
             open(player);
         } else if (slot == 50) {
             // Next page
-            int page = playerMenuPages.getOrDefault(player.getUniqueId(), 0);
-            List<OfflinePlayer> players = playerMenuPlayers.get(player.getUniqueId());
+            int page = plugin.getAPI().getPlayerAPI().getSession(player).getClaimMenuPage();
+            List<OfflinePlayer> players = plugin.getAPI().getPlayerAPI().getSession(player).getClaimMenuPlayers();
             int totalPages = (int) Math.ceil(players.size() / (double) TRUSTED_PLAYERS_PER_PAGE);
             if (page < totalPages - 1) {
                 updatePlayerSelectionMenu(player, player.getOpenInventory().getTopInventory(), page + 1);
             }
         } else if (slot < TRUSTED_PLAYERS_PER_PAGE) {
             // Player selection
-            List<OfflinePlayer> players = playerMenuPlayers.get(player.getUniqueId());
-            int page = playerMenuPages.getOrDefault(player.getUniqueId(), 0);
+            List<OfflinePlayer> players = plugin.getAPI().getPlayerAPI().getSession(player).getClaimMenuPlayers();
+            int page = plugin.getAPI().getPlayerAPI().getSession(player).getClaimMenuPage();
             int index = page * TRUSTED_PLAYERS_PER_PAGE + slot;
             
             if (players != null && index < players.size()) {
@@ -514,7 +533,7 @@ public class ClaimManagementMenu implements Listener {
                     player.closeInventory();
                     
                     Map<String, String> replacements = new HashMap<>();
-                    replacements.put("player", selectedPlayer.getName() != null ? selectedPlayer.getName() : "Unbekannt");
+                    replacements.put("player", plugin.getAPI().getNameService().getName(selectedPlayer.getUniqueId(), "Unbekannt"));
                     
                     plugin.getAPI().getPlayerAPI().sendMessage(
                             player,
@@ -537,13 +556,21 @@ public class ClaimManagementMenu implements Listener {
         }
         
         Player player = (Player) event.getPlayer();
+        PlayerSession session = plugin.getAPI().getPlayerAPI().findSession(player.getUniqueId());
         
-        // Remove open inventory
-        openInventories.remove(player.getUniqueId());
+        // Ignore views replaced by another view of this menu
+        if (session == null || session.getClaimMenu() != this || session.getClaimMenuInventory() != event.getInventory()) {
+            return;
+        }
         
         // Clear player menu data
-        playerMenuPages.remove(player.getUniqueId());
-        playerMenuPlayers.remove(player.getUniqueId());
+        session.setClaimMenu(null);
+        session.setClaimMenuInventory(null);
+        session.setClaimMenuPage(0);
+        session.setClaimMenuPlayers(null);
+        
+        // The menu is created per use, stop listening once it is closed
+        HandlerList.unregisterAll(this);
     }
     
     /**
@@ -568,7 +595,7 @@ public class ClaimManagementMenu implements Listener {
         );
         
         // Teleport the player
-        plugin.getAPI().getTeleportAPI().teleport(player, location);
+        plugin.getAPI().getTeleportAPI().teleport(player, location, TeleportCause.CLAIM);
         
         // Send success message
         plugin.getAPI().getPlayerAPI().sendMessage(player, "claim.teleported");
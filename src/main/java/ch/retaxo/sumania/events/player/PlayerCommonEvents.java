@@ -1,7 +1,6 @@
 package ch.retaxo.sumania.events.player;
 
 import ch.retaxo.sumania.Sumania;
-import ch.retaxo.sumania.api.player.PlayerAPI;
 import org.bukkit.OfflinePlayer;
 import org.bukkit.event.EventHandler;
 import org.bukkit.event.Listener;
@@ -25,9 +24,7 @@ public class PlayerCommonEvents implements Listener {
     public void onPlayerDeath(PlayerDeathEvent event) {
         event.setDeathMessage(null);
         OfflinePlayer player = event.getEntity();
-        PlayerAPI playerAPI = new PlayerAPI(Sumania.getInstance());
-        int currentDeaths = playerAPI.getDeaths(player);
-        plugin.getAPI().getPlayerAPI().setDeaths(player, currentDeaths + 1);
+        plugin.getAPI().getPlayerAPI().incrementDeaths(player);
     }
 
 
@@ -36,10 +33,7 @@ public class PlayerCommonEvents implements Listener {
         if (event.getEntity().getKiller() != null) {
             event.setDeathMessage(null);
             OfflinePlayer killer = event.getEntity().getKiller();
-            PlayerAPI playerAPI = new PlayerAPI(Sumania.getInstance());
-
-            int currentKills = playerAPI.getKills(killer);
-            plugin.getAPI().getPlayerAPI().setKills(killer, currentKills + 1);
+            plugin.getAPI().getPlayerAPI().incrementKills(killer);
         }
     }
 
@@ -1,13 +1,13 @@
 package ch.retaxo.sumania.events.player;
 
 import ch.retaxo.sumania.Sumania;
+import ch.retaxo.sumania.models.Ban;
 import org.bukkit.entity.Player;
 import org.bukkit.event.EventHandler;
 import org.bukkit.event.EventPriority;
 import org.bukkit.event.Listener;
+import org.bukkit.event.player.AsyncPlayerPreLoginEvent;
 import org.bukkit.event.player.PlayerJoinEvent;
-import org.bukkit.event.player.PlayerLoginEvent;
-import org.bukkit.event.player.PlayerLoginEvent.Result;
 import org.bukkit.event.player.PlayerQuitEvent;
 
 /**
@@ -26,28 +26,24 @@ public class PlayerConnectionListener implements Listener {
     }
     
     /**
-     * Handle player login event (before they join the server)
+     * Handle async pre-login event (before they join the server, off the main thread)
      * @param event The event
      */
     @EventHandler(priority = EventPriority.HIGHEST)
-    public void onPlayerLogin(PlayerLoginEvent event) {
-        Player player = event.getPlayer();
-        
+    public void onAsyncPlayerPreLogin(AsyncPlayerPreLoginEvent event) {
         // Check if player is banned
-        if (plugin.getAPI().getPlayerAPI().isBanned(player)) {
-            String reason = plugin.getAPI().getPlayerAPI().getBanReason(player);
-            long expiration = plugin.getAPI().getPlayerAPI().getBanExpiration(player);
-            
-            // Get admin who banned the player
-            String banPath = "players." + player.getUniqueId() + ".ban";
-            String admin = plugin.getConfigManager().getConfig("data.yml")
-                    .getString(banPath + ".admin", "Unknown");
-            
+        Ban ban = plugin.getAPI().getPlayerAPI().getActiveBan(event.getUniqueId());
+        
+        if (ban != null) {
             // Format ban message
-            String banMessage = plugin.getAPI().getPlayerAPI().formatBanMessage(reason, admin, expiration);
+            String banMessage = plugin.getAPI().getPlayerAPI().formatBanMessage(
+                    ban.getReason(),
+                    ban.getAdmin() != null ? ban.getAdmin() : "Unknown",
+                    ban.isPermanent() ? -1 : ban.getExpiration()
+            );
             
             // Disallow login
-            event.disallow(Result.KICK_BANNED, banMessage);
+            event.disallow(AsyncPlayerPreLoginEvent.Result.KICK_BANNED, banMessage);
         }
     }
     
@@ -59,6 +55,10 @@ public class PlayerConnectionListener implements Listener {
     public void onPlayerJoin(PlayerJoinEvent event) {
         Player player = event.getPlayer();
         
+        // Start the player's session
+        plugin.getAPI().getPlayerAPI().openSession(player);
+        plugin.getAPI().getNameService().remember(player);
+        
         // Set custom join message if enabled
         if (plugin.getConfigManager().getConfig("config.yml").getBoolean("chat.format-enabled", true)) {
             event.setJoinMessage(null);
@@ -71,8 +71,11 @@ public class PlayerConnectionListener implements Listener {
             double startingBalance = plugin.getConfigManager().getConfig("config.yml")
                     .getDouble("economy.starting-balance", 1000.0);
             
-            plugin.getAPI().getEconomyAPI().setBalance(player, startingBalance);
+            plugin.getAPI().getEconomyAPI().setBalance(player, startingBalance, "starting_balance");
         }
+        
+        // Load deliveries that arrived while offline
+        plugin.getAPI().getMailboxAPI().open(player);
     }
     
     /**
@@ -89,4 +92,14 @@ public class PlayerConnectionListener implements Listener {
             plugin.getAPI().getChatAPI().broadcast("§8[§c-§8] §7" + player.getName() + " left the server.");
         }
     }
+    
+    /**
+     * Drop the player's session after all other quit handlers have run
+     * @param event The event
+     */
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onPlayerQuitSession(PlayerQuitEvent event) {
+        plugin.getAPI().getPlayerAPI().closeSession(event.getPlayer());
+        plugin.getAPI().getMailboxAPI().close(event.getPlayer());
+    }
 }
@@ -1,8 +1,10 @@
 package ch.retaxo.sumania.events.player;
 
 import ch.retaxo.sumania.Sumania;
+import ch.retaxo.sumania.events.claim.ClaimEnterEvent;
+import ch.retaxo.sumania.events.claim.ClaimLeaveEvent;
 import ch.retaxo.sumania.models.Claim;
-import org.bukkit.Location;
+import ch.retaxo.sumania.models.ClaimTrust;
 import org.bukkit.Material;
 import org.bukkit.block.Block;
 import org.bukkit.entity.Player;
@@ -12,13 +14,11 @@ import org.bukkit.event.Listener;
 import org.bukkit.event.block.Action;
 import org.bukkit.event.block.BlockPlaceEvent;
 import org.bukkit.event.player.PlayerInteractEvent;
-import org.bukkit.event.player.PlayerMoveEvent;
 import org.bukkit.inventory.EquipmentSlot;
 import org.bukkit.inventory.ItemStack;
 
 import java.util.HashMap;
 import java.util.Map;
-import java.util.UUID;
 
 /**
  * Listener for player interact events
@@ -26,7 +26,6 @@ import java.util.UUID;
 public class PlayerInteractListener implements Listener {
 
     private final Sumania plugin;
-    private final Map<UUID, String> lastClaimIds = new HashMap<>();
     
     /**
      * Constructor
@@ -56,8 +55,8 @@ public class PlayerInteractListener implements Listener {
             Claim claim = plugin.getAPI().getClaimAPI().getClaimByMarker(clickedBlock.getLocation());
             
             if (claim != null) {
-                // Check if player is the owner or trusted
-                if (claim.getOwnerUUID().equals(player.getUniqueId()) || claim.isTrusted(player.getUniqueId())) {
+                // Check if player is the owner or a manager
+                if (claim.hasPermission(player.getUniqueId(), ClaimTrust.MANAGE)) {
                     // Open claim management menu
                     openClaimManagementMenu(player, claim);
                     event.setCancelled(true);
@@ -89,66 +88,46 @@ public class PlayerInteractListener implements Listener {
     }
     
     /**
-     * Handle player move event for claim notifications
+     * Notify a player entering a claim
+     * @param event The event
+     */
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onClaimEnter(ClaimEnterEvent event) {
+        String ownerName = plugin.getAPI().getNameService().getName(event.getClaim().getOwnerUUID(), "Unknown");
+        
+        // Send enter message
+        Map<String, String> replacements = new HashMap<>();
+        replacements.put("player", ownerName);
+        
+        plugin.getAPI().getPlayerAPI().sendMessage(
+                event.getPlayer(),
+                "claim.claim-enter",
+                replacements
+        );
+    }
+    
+    /**
+     * Notify a player leaving a claim
      * @param event The event
      */
     @EventHandler
-    public void onPlayerMove(PlayerMoveEvent event) {
-        // Skip if only looking around
-        if (event.getFrom().getBlockX() == event.getTo().getBlockX() &&
-                event.getFrom().getBlockY() == event.getTo().getBlockY() &&
-                event.getFrom().getBlockZ() == event.getTo().getBlockZ()) {
+    public void onClaimLeave(ClaimLeaveEvent event) {
+        // Moving straight into another claim only shows the enter message
+        if (event.getNextClaim() != null) {
             return;
         }
         
-        Player player = event.getPlayer();
-        Location location = event.getTo();
-        Claim claim = plugin.getAPI().getClaimAPI().getClaimAt(location);
-        
-        // Get UUID of current claim owner, or null if no claim
-        String currentClaimId = claim != null ? claim.getId() : null;
-        
-        // Get UUID of last claim owner, or null if no claim
-        String lastClaimId = lastClaimIds.get(player.getUniqueId());
+        String ownerName = plugin.getAPI().getNameService().getName(event.getClaim().getOwnerUUID(), "Unknown");
         
-        // If entering a new claim
-        if (currentClaimId != null && !currentClaimId.equals(lastClaimId)) {
-            // Get claim owner name
-            UUID ownerUUID = claim.getOwnerUUID();
-            String ownerName = plugin.getServer().getOfflinePlayer(ownerUUID).getName();
-            
-            // Send enter message
-            Map<String, String> replacements = new HashMap<>();
-            replacements.put("player", ownerName != null ? ownerName : "Unknown");
-            
-            plugin.getAPI().getPlayerAPI().sendMessage(
-                    player,
-                    "claim.claim-enter",
-                    replacements
-            );
-        }
-        // If leaving a claim
-        else if (lastClaimId != null && !lastClaimId.equals(currentClaimId)) {
-            // Send leave message
-            Claim lastClaim = lastClaimId != null ? plugin.getAPI().getClaimAPI().getClaimById(lastClaimId) : null;
-            
-            if (lastClaim != null) {
-                UUID ownerUUID = lastClaim.getOwnerUUID();
-                String ownerName = plugin.getServer().getOfflinePlayer(ownerUUID).getName();
-                
-                Map<String, String> replacements = new HashMap<>();
-                replacements.put("player", ownerName != null ? ownerName : "Unknown");
-                
-                plugin.getAPI().getPlayerAPI().sendMessage(
-                        player,
-                        "claim.claim-leave",
-                        replacements
-                );
-            }
-        }
+        // Send leave message
+        Map<String, String> replacements = new HashMap<>();
+        replacements.put("player", ownerName);
         
-        // Update last claim
-        lastClaimIds.put(player.getUniqueId(), currentClaimId);
+        plugin.getAPI().getPlayerAPI().sendMessage(
+                event.getPlayer(),
+                "claim.claim-leave",
+                replacements
+        );
     }
     
     /**
@@ -2,8 +2,11 @@ package ch.retaxo.sumania.events.protection;
 
 import ch.retaxo.sumania.Sumania;
 import org.bukkit.Location;
+import org.bukkit.Material;
+import org.bukkit.block.data.BlockData;
 import org.bukkit.entity.Player;
 import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
 import org.bukkit.event.Listener;
 import org.bukkit.event.block.BlockBreakEvent;
 import org.bukkit.event.block.BlockPlaceEvent;
@@ -16,6 +19,9 @@ import java.util.Map;
  */
 public class BlockProtectionListener implements Listener {
 
+    // What a broken block turns into, shared by all journal records
+    private static final BlockData AIR = Material.AIR.createBlockData();
+    
     private final Sumania plugin;
     
     /**
@@ -45,13 +51,14 @@ public class BlockProtectionListener implements Listener {
             event.setCancelled(true);
             
             // Get claim at location
-            String ownerName = plugin.getServer().getOfflinePlayer(
-                    plugin.getAPI().getClaimAPI().getClaimAt(location).getOwnerUUID()
-            ).getName();
+            String ownerName = plugin.getAPI().getNameService().getName(
+                    plugin.getAPI().getClaimAPI().getClaimAt(location).getOwnerUUID(),
+                    "Unknown"
+            );
             
             // Send message
             Map<String, String> replacements = new HashMap<>();
-            replacements.put("player", ownerName != null ? ownerName : "Unknown");
+            replacements.put("player", ownerName);
             
             plugin.getAPI().getPlayerAPI().sendMessage(
                     player,
@@ -80,13 +87,14 @@ public class BlockProtectionListener implements Listener {
             event.setCancelled(true);
             
             // Get claim at location
-            String ownerName = plugin.getServer().getOfflinePlayer(
-                    plugin.getAPI().getClaimAPI().getClaimAt(location).getOwnerUUID()
-            ).getName();
+            String ownerName = plugin.getAPI().getNameService().getName(
+                    plugin.getAPI().getClaimAPI().getClaimAt(location).getOwnerUUID(),
+                    "Unknown"
+            );
             
             // Send message
             Map<String, String> replacements = new HashMap<>();
-            replacements.put("player", ownerName != null ? ownerName : "Unknown");
+            replacements.put("player", ownerName);
             
             plugin.getAPI().getPlayerAPI().sendMessage(
                     player,
@@ -95,4 +103,41 @@ public class BlockProtectionListener implements Listener {
             );
         }
     }
+    
+    /**
+     * Record block breaks that went through in the block journal
+     * @param event The event
+     */
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onBlockBreakMonitor(BlockBreakEvent event) {
+        // Only claimed chunks are journaled, skip the block data everywhere else
+        if (!plugin.getAPI().getClaimAPI().getClaimedChunks().isClaimed(event.getBlock())) {
+            return;
+        }
+        
+        plugin.getAPI().getClaimAPI().recordBlockChange(
+                event.getPlayer(),
+                event.getBlock(),
+                event.getBlock().getBlockData(),
+                AIR
+        );
+    }
+    
+    /**
+     * Record block placements that went through in the block journal
+     * @param event The event
+     */
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onBlockPlaceMonitor(BlockPlaceEvent event) {
+        if (!plugin.getAPI().getClaimAPI().getClaimedChunks().isClaimed(event.getBlock())) {
+            return;
+        }
+        
+        plugin.getAPI().getClaimAPI().recordBlockChange(
+                event.getPlayer(),
+                event.getBlock(),
+                event.getBlockReplacedState().getBlockData(),
+                event.getBlockPlaced().getBlockData()
+        );
+    }
 }
@@ -0,0 +1,210 @@
+package ch.retaxo.sumania.events.protection;
+
+import ch.retaxo.sumania.Sumania;
+import ch.retaxo.sumania.events.claim.ClaimEnterEvent;
+import ch.retaxo.sumania.models.Claim;
+import ch.retaxo.sumania.models.ClaimFlag;
+import ch.retaxo.sumania.models.ClaimTrust;
+import org.bukkit.Material;
+import org.bukkit.block.Block;
+import org.bukkit.entity.Entity;
+import org.bukkit.entity.FallingBlock;
+import org.bukkit.entity.Player;
+import org.bukkit.entity.Projectile;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
+import org.bukkit.event.Listener;
+import org.bukkit.event.block.Action;
+import org.bukkit.event.entity.EntityChangeBlockEvent;
+import org.bukkit.event.entity.EntityDamageByEntityEvent;
+import org.bukkit.event.player.PlayerInteractEvent;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Listener enforcing claim flags and trust levels
+ */
+public class ClaimFlagListener implements Listener {
+
+    // Permission needed to use a block, by material ordinal, null if anyone may use it
+    private static final ClaimTrust[] INTERACT_PERMISSIONS = new ClaimTrust[Material.values().length];
+    
+    static {
+        for (Material material : Material.values()) {
+            if (material.isLegacy() || !material.isBlock() || !material.isInteractable()) {
+                continue;
+            }
+            
+            INTERACT_PERMISSIONS[material.ordinal()] = isContainer(material) ? ClaimTrust.CONTAINER : ClaimTrust.ACCESS;
+        }
+    }
+    
+    private final Sumania plugin;
+    
+    /**
+     * Constructor
+     * @param plugin The plugin instance
+     */
+    public ClaimFlagListener(Sumania plugin) {
+        this.plugin = plugin;
+    }
+    
+    /**
+     * Check if claim protection is enabled
+     * @return True if claims are enabled
+     */
+    private boolean isEnabled() {
+        return plugin.getConfigManager().getConfig("config.yml").getBoolean("protection.claims-enabled", true);
+    }
+    
+    /**
+     * Check if a block material holds an inventory
+     * @param material The material
+     * @return True if the material is a container
+     */
+    private static boolean isContainer(Material material) {
+        String name = material.name();
+        
+        return name.endsWith("CHEST")
+                || name.endsWith("SHULKER_BOX")
+                || name.endsWith("FURNACE")
+                || name.equals("BARREL")
+                || name.equals("SMOKER")
+                || name.equals("HOPPER")
+                || name.equals("DROPPER")
+                || name.equals("DISPENSER")
+                || name.equals("CRAFTER")
+                || name.equals("BREWING_STAND")
+                || name.equals("CHISELED_BOOKSHELF")
+                || name.equals("DECORATED_POT")
+                || name.equals("LECTERN")
+                || name.equals("JUKEBOX");
+    }
+    
+    /**
+     * Handle player interact event for containers and redstone components
+     * @param event The event
+     */
+    @EventHandler(priority = EventPriority.HIGH, ignoreCancelled = true)
+    public void onPlayerInteract(PlayerInteractEvent event) {
+        Block block = event.getClickedBlock();
+        
+        if (!isEnabled() || block == null || (event.getAction() != Action.RIGHT_CLICK_BLOCK && event.getAction() != Action.PHYSICAL)) {
+            return;
+        }
+        
+        ClaimTrust required = INTERACT_PERMISSIONS[block.getType().ordinal()];
+        
+        if (required == null) {
+            return;
+        }
+        
+        Claim claim = plugin.getAPI().getClaimAPI().getClaimAt(block.getLocation());
+        Player player = event.getPlayer();
+        
+        if (claim == null || claim.hasPermission(player.getUniqueId(), required)) {
+            return;
+        }
+        
+        event.setCancelled(true);
+        
+        // Pressure plates and tripwires are stepped on all the time, deny them silently
+        if (event.getAction() == Action.RIGHT_CLICK_BLOCK) {
+            Map<String, String> replacements = new HashMap<>();
+            replacements.put("player", plugin.getAPI().getNameService().getName(claim.getOwnerUUID(), "Unknown"));
+            
+            plugin.getAPI().getPlayerAPI().sendMessage(
+                    player,
+                    "claim.cannot-interact",
+                    replacements
+            );
+        }
+    }
+    
+    /**
+     * Handle entity damage event for PvP in claims
+     * @param event The event
+     */
+    @EventHandler(priority = EventPriority.HIGH, ignoreCancelled = true)
+    public void onEntityDamageByEntity(EntityDamageByEntityEvent event) {
+        if (!isEnabled() || !(event.getEntity() instanceof Player)) {
+            return;
+        }
+        
+        Player attacker = getAttackingPlayer(event.getDamager());
+        
+        if (attacker == null || attacker == event.getEntity()) {
+            return;
+        }
+        
+        // Both the victim and the attacker must stand where PvP is allowed
+        if (plugin.getAPI().getClaimAPI().isAllowed(event.getEntity().getLocation(), ClaimFlag.PVP)
+                && plugin.getAPI().getClaimAPI().isAllowed(attacker.getLocation(), ClaimFlag.PVP)) {
+            return;
+        }
+        
+        event.setCancelled(true);
+        plugin.getAPI().getPlayerAPI().sendMessage(attacker, "claim.pvp-disabled");
+    }
+    
+    /**
+     * Get the player behind a damaging entity
+     * @param damager The damaging entity
+     * @return The player, or null if no player caused the damage
+     */
+    private Player getAttackingPlayer(Entity damager) {
+        if (damager instanceof Player) {
+            return (Player) damager;
+        }
+        
+        if (damager instanceof Projectile && ((Projectile) damager).getShooter() instanceof Player) {
+            return (Player) ((Projectile) damager).getShooter();
+        }
+        
+        return null;
+    }
+    
+    /**
+     * Handle entity change block event for mob griefing
+     * @param event The event
+     */
+    @EventHandler(priority = EventPriority.HIGH, ignoreCancelled = true)
+    public void onEntityChangeBlock(EntityChangeBlockEvent event) {
+        Entity entity = event.getEntity();
+        
+        // Players are handled by the build checks, falling sand and gravel is not griefing
+        if (!isEnabled() || entity instanceof Player || entity instanceof FallingBlock) {
+            return;
+        }
+        
+        if (!plugin.getAPI().getClaimAPI().isAllowed(event.getBlock().getLocation(), ClaimFlag.MOB_GRIEFING)) {
+            event.setCancelled(true);
+        }
+    }
+    
+    /**
+     * Handle claim enter event for the entry flag
+     * @param event The event
+     */
+    @EventHandler(priority = EventPriority.HIGH, ignoreCancelled = true)
+    public void onClaimEnter(ClaimEnterEvent event) {
+        Player player = event.getPlayer();
+        Claim claim = event.getClaim();
+        
+        if (!isEnabled() || claim.canEnter(player.getUniqueId())) {
+            return;
+        }
+        
+        event.setCancelled(true);
+        
+        Map<String, String> replacements = new HashMap<>();
+        replacements.put("player", plugin.getAPI().getNameService().getName(claim.getOwnerUUID(), "Unknown"));
+        
+        plugin.getAPI().getPlayerAPI().sendMessage(
+                player,
+                "claim.cannot-enter",
+                replacements
+        );
+    }
+}
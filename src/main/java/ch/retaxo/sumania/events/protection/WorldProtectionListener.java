@@ -0,0 +1,269 @@
+package ch.retaxo.sumania.events.protection;
+
+import ch.retaxo.sumania.Sumania;
+import ch.retaxo.sumania.api.claim.ClaimAPI;
+import ch.retaxo.sumania.api.claim.ClaimedChunkMap;
+import ch.retaxo.sumania.models.Claim;
+import ch.retaxo.sumania.models.ClaimFlag;
+import ch.retaxo.sumania.models.ClaimTrust;
+import org.bukkit.block.Block;
+import org.bukkit.block.BlockFace;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
+import org.bukkit.event.Listener;
+import org.bukkit.event.block.BlockBurnEvent;
+import org.bukkit.event.block.BlockExplodeEvent;
+import org.bukkit.event.block.BlockFromToEvent;
+import org.bukkit.event.block.BlockIgniteEvent;
+import org.bukkit.event.block.BlockPistonExtendEvent;
+import org.bukkit.event.block.BlockPistonRetractEvent;
+import org.bukkit.event.block.BlockSpreadEvent;
+import org.bukkit.event.entity.EntityExplodeEvent;
+
+import java.util.List;
+
+/**
+ * Listener protecting claims from explosions, pistons, flowing fluids and fire.
+ * These events fire far more often than player edits, so every handler first asks the
+ * claimed chunk bitmap and returns before any claim lookup when no claimed chunk is involved.
+ */
+public class WorldProtectionListener implements Listener {
+
+    private final Sumania plugin;
+    
+    /**
+     * Constructor
+     * @param plugin The plugin instance
+     */
+    public WorldProtectionListener(Sumania plugin) {
+        this.plugin = plugin;
+    }
+    
+    /**
+     * Check if claim protection is enabled
+     * @return True if claims are enabled
+     */
+    private boolean isEnabled() {
+        return plugin.getConfigManager().getConfig("config.yml").getBoolean("protection.claims-enabled", true);
+    }
+    
+    /**
+     * Handle entity explode event, e.g. TNT and creepers
+     * @param event The event
+     */
+    @EventHandler(priority = EventPriority.HIGH, ignoreCancelled = true)
+    public void onEntityExplode(EntityExplodeEvent event) {
+        filterExplosion(event.blockList());
+    }
+    
+    /**
+     * Handle block explode event, e.g. beds and respawn anchors
+     * @param event The event
+     */
+    @EventHandler(priority = EventPriority.HIGH, ignoreCancelled = true)
+    public void onBlockExplode(BlockExplodeEvent event) {
+        filterExplosion(event.blockList());
+    }
+    
+    /**
+     * Remove all blocks in claims that don't allow explosions from an explosion, in one pass
+     * @param blocks The blocks destroyed by the explosion
+     */
+    private void filterExplosion(List<Block> blocks) {
+        if (blocks.isEmpty()) {
+            return;
+        }
+        
+        ClaimAPI claimAPI = plugin.getAPI().getClaimAPI();
+        ClaimedChunkMap claimedChunks = claimAPI.getClaimedChunks();
+        
+        // Most explosions are far from any claim
+        boolean touchesClaim = false;
+        for (Block block : blocks) {
+            if (claimedChunks.isClaimed(block)) {
+                touchesClaim = true;
+                break;
+            }
+        }
+        
+        if (!touchesClaim || !isEnabled()) {
+            return;
+        }
+        
+        blocks.removeIf(block -> {
+            if (!claimedChunks.isClaimed(block)) {
+                return false;
+            }
+            
+            Claim claim = claimAPI.getClaimAt(block);
+            return claim != null && !claim.hasFlag(ClaimFlag.EXPLOSIONS);
+        });
+    }
+    
+    /**
+     * Handle piston extend event
+     * @param event The event
+     */
+    @EventHandler(priority = EventPriority.HIGH, ignoreCancelled = true)
+    public void onPistonExtend(BlockPistonExtendEvent event) {
+        // The piston head moves into the block in front of the piston as well
+        if (!canMove(event.getBlock(), event.getBlocks(), event.getDirection(), event.getBlock().getRelative(event.getDirection()))) {
+            event.setCancelled(true);
+        }
+    }
+    
+    /**
+     * Handle piston retract event
+     * @param event The event
+     */
+    @EventHandler(priority = EventPriority.HIGH, ignoreCancelled = true)
+    public void onPistonRetract(BlockPistonRetractEvent event) {
+        if (!canMove(event.getBlock(), event.getBlocks(), event.getDirection(), null)) {
+            event.setCancelled(true);
+        }
+    }
+    
+    /**
+     * Check if a piston may move blocks. Blocks may only be taken from or moved into
+     * unclaimed land or the claim of the piston itself.
+     * @param piston The piston block
+     * @param blocks The blocks moved by the piston
+     * @param direction The direction the blocks move in
+     * @param head The block the piston head moves into, or null
+     * @return True if the piston may move the blocks
+     */
+    private boolean canMove(Block piston, List<Block> blocks, BlockFace direction, Block head) {
+        ClaimAPI claimAPI = plugin.getAPI().getClaimAPI();
+        ClaimedChunkMap claimedChunks = claimAPI.getClaimedChunks();
+        
+        // Skip pistons that touch no claimed chunk
+        boolean touchesClaim = claimedChunks.isClaimed(piston) || (head != null && claimedChunks.isClaimed(head));
+        for (int i = 0; i < blocks.size() && !touchesClaim; i++) {
+            Block block = blocks.get(i);
+            touchesClaim = claimedChunks.isClaimed(block) || claimedChunks.isClaimed(block.getRelative(direction));
+        }
+        
+        if (!touchesClaim || !isEnabled()) {
+            return true;
+        }
+        
+        Claim pistonClaim = claimAPI.getClaimAt(piston);
+        
+        if (head != null && !isSameOrUnclaimed(claimAPI.getClaimAt(head), pistonClaim)) {
+            return false;
+        }
+        
+        for (Block block : blocks) {
+            if (!isSameOrUnclaimed(claimAPI.getClaimAt(block), pistonClaim)
+                    || !isSameOrUnclaimed(claimAPI.getClaimAt(block.getRelative(direction)), pistonClaim)) {
+                return false;
+            }
+        }
+        
+        return true;
+    }
+    
+    /**
+     * Check if a claim is either no claim or the given claim
+     * @param claim The claim to check, may be null
+     * @param sourceClaim The claim of the source, may be null
+     * @return True if the claim is null or the source claim
+     */
+    private static boolean isSameOrUnclaimed(Claim claim, Claim sourceClaim) {
+        return claim == null || claim == sourceClaim;
+    }
+    
+    /**
+     * Handle block from to event, e.g. flowing lava and water
+     * @param event The event
+     */
+    @EventHandler(priority = EventPriority.HIGH, ignoreCancelled = true)
+    public void onBlockFromTo(BlockFromToEvent event) {
+        Block to = event.getToBlock();
+        ClaimAPI claimAPI = plugin.getAPI().getClaimAPI();
+        
+        // Fluids flowing outside claimed chunks are by far the most common case
+        if (!claimAPI.getClaimedChunks().isClaimed(to) || !isEnabled()) {
+            return;
+        }
+        
+        Claim toClaim = claimAPI.getClaimAt(to);
+        
+        // Fluids may only flow into a claim from inside the same claim
+        if (toClaim != null && toClaim != claimAPI.getClaimAt(event.getBlock())) {
+            event.setCancelled(true);
+        }
+    }
+    
+    /**
+     * Handle block spread event for fire
+     * @param event The event
+     */
+    @EventHandler(priority = EventPriority.HIGH, ignoreCancelled = true)
+    public void onBlockSpread(BlockSpreadEvent event) {
+        // Grass, mycelium, vines and sculk spread far more often than fire, so they leave before the claim lookup
+        if (!event.getSource().getType().name().endsWith("FIRE")) {
+            return;
+        }
+        
+        if (!isFireSpreadAllowed(event.getBlock())) {
+            event.setCancelled(true);
+        }
+    }
+    
+    /**
+     * Handle block burn event
+     * @param event The event
+     */
+    @EventHandler(priority = EventPriority.HIGH, ignoreCancelled = true)
+    public void onBlockBurn(BlockBurnEvent event) {
+        if (!isFireSpreadAllowed(event.getBlock())) {
+            event.setCancelled(true);
+        }
+    }
+    
+    /**
+     * Handle block ignite event
+     * @param event The event
+     */
+    @EventHandler(priority = EventPriority.HIGH, ignoreCancelled = true)
+    public void onBlockIgnite(BlockIgniteEvent event) {
+        Block block = event.getBlock();
+        ClaimAPI claimAPI = plugin.getAPI().getClaimAPI();
+        
+        if (!claimAPI.getClaimedChunks().isClaimed(block) || !isEnabled()) {
+            return;
+        }
+        
+        Claim claim = claimAPI.getClaimAt(block);
+        
+        if (claim == null) {
+            return;
+        }
+        
+        // Players lighting fires need build trust, everything else the fire spread flag
+        if (event.getPlayer() != null) {
+            if (!claim.hasPermission(event.getPlayer().getUniqueId(), ClaimTrust.BUILD)) {
+                event.setCancelled(true);
+            }
+        } else if (!claim.hasFlag(ClaimFlag.FIRE_SPREAD)) {
+            event.setCancelled(true);
+        }
+    }
+    
+    /**
+     * Check if fire may spread to or burn a block
+     * @param block The block
+     * @return True if the block is not in a claim or the claim allows fire spread
+     */
+    private boolean isFireSpreadAllowed(Block block) {
+        ClaimAPI claimAPI = plugin.getAPI().getClaimAPI();
+        
+        if (!claimAPI.getClaimedChunks().isClaimed(block) || !isEnabled()) {
+            return true;
+        }
+        
+        Claim claim = claimAPI.getClaimAt(block);
+        return claim == null || claim.hasFlag(ClaimFlag.FIRE_SPREAD);
+    }
+}
@@ -1,15 +1,14 @@
 package ch.retaxo.sumania.models;
 
+import ch.retaxo.sumania.Sumania;
 import org.bukkit.Bukkit;
-import org.bukkit.OfflinePlayer;
+import org.bukkit.Material;
 import org.bukkit.entity.Player;
 import org.bukkit.inventory.ItemStack;
 import org.bukkit.util.io.BukkitObjectInputStream;
-import org.bukkit.util.io.BukkitObjectOutputStream;
 import org.yaml.snakeyaml.external.biz.base64Coder.Base64Coder;
 
 import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.time.Instant;
 import java.time.LocalDateTime;
@@ -17,6 +16,8 @@ import java.time.ZoneId;
 import java.time.format.DateTimeFormatter;
 import java.time.temporal.ChronoUnit;
 import java.util.UUID;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * Represents an auction in the auction house
@@ -27,19 +28,32 @@ public class Auction {
     public enum Status {
         ACTIVE,
         SOLD,
-        EXPIRED,
-        CANCELLED
+        EXPIRED, // Legacy: ended before items were returned through the mailbox, moved there on load
+        CANCELLED,
+        WON // Legacy: won before items were delivered through the mailbox, moved there on load
+    }
+    
+    // Auction type
+    public enum Type {
+        FIXED,
+        BID
     }
 
     private final int id;
     private final UUID sellerUuid;
     private UUID buyerUuid;
-    private final ItemStack item;
+    private ItemStack item;
+    private byte[] itemData;
+    private boolean itemDecodeFailed;
     private final double price;
     private final Instant createdTime;
     private final Instant endTime;
     private Status status;
     private final String category;
+    private Type type = Type.FIXED;
+    private final AtomicReference<BidState> bidState = new AtomicReference<>();
+    private int version;
+    private final AtomicBoolean purchasePending = new AtomicBoolean();
 
     /**
      * Constructor for a new auction
@@ -89,6 +103,31 @@ public class Auction {
         this.category = category;
     }
 
+    /**
+     * Constructor for an auction loaded from storage. The item is decoded lazily on first use.
+     * @param id The auction ID
+     * @param sellerUuid The seller's UUID
+     * @param buyerUuid The buyer's UUID, or null if not sold
+     * @param itemData The encoded item
+     * @param price The price of the auction
+     * @param createdTime The time the auction was created
+     * @param endTime The time the auction ends
+     * @param status The auction status
+     * @param category The auction category
+     */
+    public Auction(int id, UUID sellerUuid, UUID buyerUuid, byte[] itemData, double price,
+                  Instant createdTime, Instant endTime, Status status, String category) {
+        this.id = id;
+        this.sellerUuid = sellerUuid;
+        this.buyerUuid = buyerUuid;
+        this.itemData = itemData;
+        this.price = price;
+        this.createdTime = createdTime;
+        this.endTime = endTime;
+        this.status = status;
+        this.category = category;
+    }
+
     /**
      * Get the auction ID
      * @return The auction ID
@@ -118,8 +157,7 @@ public class Auction {
      * @return The seller's name
      */
     public String getSellerName() {
-        OfflinePlayer player = Bukkit.getOfflinePlayer(sellerUuid);
-        return player.getName() != null ? player.getName() : "Unknown";
+        return Sumania.getInstance().getAPI().getNameService().getName(sellerUuid, "Unknown");
     }
 
     /**
@@ -144,8 +182,7 @@ public class Auction {
      */
     public String getBuyerName() {
         if (buyerUuid == null) return null;
-        OfflinePlayer player = Bukkit.getOfflinePlayer(buyerUuid);
-        return player.getName() != null ? player.getName() : "Unknown";
+        return Sumania.getInstance().getAPI().getNameService().getName(buyerUuid, "Unknown");
     }
     
     /**
@@ -157,12 +194,42 @@ public class Auction {
     }
 
     /**
-     * Get the item being auctioned
-     * @return The item being auctioned
+     * Get the item being auctioned, decoding it on first access
+     * @return The item being auctioned, or null if it could not be decoded
      */
-    public ItemStack getItem() {
+    public synchronized ItemStack getItem() {
+        if (item == null && itemData != null && !itemDecodeFailed) {
+            try {
+                item = decodeItem(itemData);
+            } catch (RuntimeException e) {
+                itemDecodeFailed = true;
+                Bukkit.getLogger().severe("Could not decode item of auction " + id + ": " + e.getMessage());
+            }
+        }
+        
         return item;
     }
+    
+    /**
+     * Get a copy of the item for display, with a placeholder if the item could not be decoded
+     * @return A copy of the item
+     */
+    public ItemStack getDisplayItem() {
+        ItemStack auctionItem = getItem();
+        return auctionItem != null ? auctionItem.clone() : new ItemStack(Material.BARRIER);
+    }
+    
+    /**
+     * Get the encoded item, encoding it on first access
+     * @return The encoded item
+     */
+    public synchronized byte[] getItemData() {
+        if (itemData == null && item != null) {
+            itemData = encodeItem(item);
+        }
+        
+        return itemData;
+    }
 
     /**
      * Get the price of the auction
@@ -204,6 +271,45 @@ public class Auction {
         this.status = status;
     }
     
+    /**
+     * Get the row version the auction was last read or written at
+     * @return The row version
+     */
+    public int getVersion() {
+        return version;
+    }
+    
+    /**
+     * Set the row version
+     * @param version The row version
+     */
+    public void setVersion(int version) {
+        this.version = version;
+    }
+    
+    /**
+     * Mark a purchase of this auction as in progress
+     * @return True if no other purchase was in progress
+     */
+    public boolean beginPurchase() {
+        return purchasePending.compareAndSet(false, true);
+    }
+    
+    /**
+     * Check if a purchase of this auction is in progress
+     * @return True if a purchase is in progress
+     */
+    public boolean isPurchasePending() {
+        return purchasePending.get();
+    }
+    
+    /**
+     * Mark the purchase in progress as finished
+     */
+    public void endPurchase() {
+        purchasePending.set(false);
+    }
+    
     /**
      * Get the auction category
      * @return The auction category
@@ -212,6 +318,69 @@ public class Auction {
         return category;
     }
     
+    /**
+     * Get the auction type
+     * @return The auction type
+     */
+    public Type getType() {
+        return type;
+    }
+    
+    /**
+     * Check if the auction takes bids instead of a fixed price
+     * @return True if the auction takes bids
+     */
+    public boolean isBidding() {
+        return type == Type.BID;
+    }
+    
+    /**
+     * Turn the auction into a bidding auction. The price is the starting bid.
+     * @param highestBid The highest bid in cents, 0 if there is none
+     * @param highestBidder The highest bidder, or null if there is none
+     * @param closingTime The time bidding closes
+     */
+    public void setBidding(long highestBid, UUID highestBidder, Instant closingTime) {
+        this.type = Type.BID;
+        this.bidState.set(new BidState(highestBid, highestBidder, closingTime, false));
+    }
+    
+    /**
+     * Get the bid state of a bidding auction
+     * @return The bid state, or null for fixed-price auctions
+     */
+    public BidState getBidState() {
+        return bidState.get();
+    }
+    
+    /**
+     * Replace the bid state if nobody else changed it in the meantime
+     * @param expected The state the change is based on
+     * @param next The new state
+     * @return True if the state was replaced
+     */
+    public boolean compareAndSetBidState(BidState expected, BidState next) {
+        return bidState.compareAndSet(expected, next);
+    }
+    
+    /**
+     * Get the highest bid
+     * @return The highest bid, or 0 if there is none
+     */
+    public double getHighestBid() {
+        BidState state = bidState.get();
+        return state != null ? state.getAmount() / 100.0 : 0;
+    }
+    
+    /**
+     * Get the time the auction closes, later than the end time if bids extended it
+     * @return The closing time
+     */
+    public Instant getClosingTime() {
+        BidState state = bidState.get();
+        return state != null ? state.getEndTime() : endTime;
+    }
+    
     /**
      * Check if the auction is active
      * @return True if the auction is active
@@ -225,7 +394,7 @@ public class Auction {
      * @return True if the auction is expired
      */
     public boolean isExpired() {
-        return status == Status.EXPIRED || (status == Status.ACTIVE && Instant.now().isAfter(endTime));
+        return status == Status.EXPIRED || (status == Status.ACTIVE && Instant.now().isAfter(getClosingTime()));
     }
     
     /**
@@ -235,7 +404,7 @@ public class Auction {
     public long getRemainingTime() {
         if (!isActive()) return 0;
         
-        long remaining = Instant.now().until(endTime, ChronoUnit.MILLIS);
+        long remaining = Instant.now().until(getClosingTime(), ChronoUnit.MILLIS);
         return Math.max(0, remaining);
     }
     
@@ -284,22 +453,25 @@ public class Auction {
     }
     
     /**
-     * Serialize an ItemStack to a Base64 string
-     * @param item The ItemStack to serialize
-     * @return The serialized ItemStack as a Base64 string
-     * @throws IOException If an error occurs during serialization
+     * Encode an ItemStack to Paper's compact binary item format
+     * @param item The ItemStack to encode
+     * @return The encoded ItemStack
      */
-    public static String serializeItemStack(ItemStack item) throws IOException {
-        try (ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
-             BukkitObjectOutputStream dataOutput = new BukkitObjectOutputStream(outputStream)) {
-            
-            dataOutput.writeObject(item);
-            return Base64Coder.encodeLines(outputStream.toByteArray());
-        }
+    public static byte[] encodeItem(ItemStack item) {
+        return item.serializeAsBytes();
     }
     
     /**
-     * Deserialize an ItemStack from a Base64 string
+     * Decode an ItemStack from Paper's compact binary item format
+     * @param data The encoded ItemStack
+     * @return The decoded ItemStack
+     */
+    public static ItemStack decodeItem(byte[] data) {
+        return ItemStack.deserializeBytes(data);
+    }
+    
+    /**
+     * Deserialize an ItemStack from the legacy Base64 object stream format
      * @param data The Base64 string to deserialize
      * @return The deserialized ItemStack
      * @throws IOException If an error occurs during deserialization
@@ -312,4 +484,68 @@ public class Auction {
             return (ItemStack) dataInput.readObject();
         }
     }
+    
+    /**
+     * Immutable bid state of a bidding auction, replaced as a whole on every bid
+     */
+    public static final class BidState {
+        private final long amount;
+        private final UUID bidder;
+        private final Instant endTime;
+        private final boolean closed;
+        
+        /**
+         * Constructor
+         * @param amount The highest bid in cents, 0 if there is none
+         * @param bidder The highest bidder, or null if there is none
+         * @param endTime The time bidding closes
+         * @param closed True once bidding is closed for good
+         */
+        public BidState(long amount, UUID bidder, Instant endTime, boolean closed) {
+            this.amount = amount;
+            this.bidder = bidder;
+            this.endTime = endTime;
+            this.closed = closed;
+        }
+        
+        /**
+         * Get the highest bid in cents
+         * @return The value
+         */
+        public long getAmount() {
+            return amount;
+        }
+        
+        /**
+         * Get the highest bidder
+         * @return The value, or null if there is none
+         */
+        public UUID getBidder() {
+            return bidder;
+        }
+        
+        /**
+         * Get the time bidding closes
+         * @return The value
+         */
+        public Instant getEndTime() {
+            return endTime;
+        }
+        
+        /**
+         * Check if bidding is closed
+         * @return The value
+         */
+        public boolean isClosed() {
+            return closed;
+        }
+        
+        /**
+         * Get the same state with bidding closed
+         * @return The closed state
+         */
+        public BidState close() {
+            return new BidState(amount, bidder, endTime, true);
+        }
+    }
 }
\ No newline at end of file
@@ -0,0 +1,76 @@
+package ch.retaxo.sumania.models;
+
+import java.util.UUID;
+
+/**
+ * Represents an active player ban
+ */
+public class Ban {
+
+    private final UUID playerUuid;
+    private final String reason;
+    private final String admin;
+    private final long expiration;
+
+    /**
+     * Constructor
+     * @param playerUuid The UUID of the banned player
+     * @param reason The reason for the ban
+     * @param admin The admin who issued the ban
+     * @param expiration The expiration time in milliseconds, or -1 for permanent
+     */
+    public Ban(UUID playerUuid, String reason, String admin, long expiration) {
+        this.playerUuid = playerUuid;
+        this.reason = reason;
+        this.admin = admin;
+        this.expiration = expiration;
+    }
+
+    /**
+     * Get the UUID of the banned player
+     * @return The UUID
+     */
+    public UUID getPlayerUuid() {
+        return playerUuid;
+    }
+
+    /**
+     * Get the reason for the ban
+     * @return The reason
+     */
+    public String getReason() {
+        return reason;
+    }
+
+    /**
+     * Get the admin who issued the ban
+     * @return The admin name
+     */
+    public String getAdmin() {
+        return admin;
+    }
+
+    /**
+     * Get the expiration time
+     * @return The expiration time in milliseconds, or -1 for permanent
+     */
+    public long getExpiration() {
+        return expiration;
+    }
+
+    /**
+     * Check if the ban is permanent
+     * @return True if the ban is permanent
+     */
+    public boolean isPermanent() {
+        return expiration <= 0;
+    }
+
+    /**
+     * Check if the ban has expired
+     * @return True if the ban has expired
+     */
+    public boolean isExpired() {
+        return !isPermanent() && System.currentTimeMillis() > expiration;
+    }
+}
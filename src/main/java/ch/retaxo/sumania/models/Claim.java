@@ -1,6 +1,9 @@
 package ch.retaxo.sumania.models;
 
-import java.util.List;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
 
 /**
@@ -13,9 +16,13 @@ public class Claim {
     private final String worldName;
     private final int minX, minY, minZ;
     private final int maxX, maxY, maxZ;
-    private final List<UUID> trustedPlayers;
+    private final Map<UUID, ClaimTrust> trustedPlayers;
     private final int markerX, markerY, markerZ;
     
+    // Flag bits, and the permission bits they grant to everyone
+    private int flags;
+    private int publicPermissions;
+    
     /**
      * Constructor
      * @param id The unique ID of the claim
@@ -30,10 +37,11 @@ public class Claim {
      * @param markerX The X coordinate of the marker block
      * @param markerY The Y coordinate of the marker block
      * @param markerZ The Z coordinate of the marker block
-     * @param trustedPlayers A list of UUIDs of players who are trusted in the claim
+     * @param trustedPlayers The trust levels of players who are trusted in the claim
+     * @param flags The flag bits of the claim
      */
     public Claim(String id, UUID ownerUUID, String worldName, int minX, int minY, int minZ, int maxX, int maxY, int maxZ, 
-                int markerX, int markerY, int markerZ, List<UUID> trustedPlayers) {
+                int markerX, int markerY, int markerZ, Map<UUID, ClaimTrust> trustedPlayers, int flags) {
         this.id = id;
         this.ownerUUID = ownerUUID;
         this.worldName = worldName;
@@ -46,7 +54,8 @@ public class Claim {
         this.markerX = markerX;
         this.markerY = markerY;
         this.markerZ = markerZ;
-        this.trustedPlayers = trustedPlayers;
+        this.trustedPlayers = new HashMap<>(trustedPlayers);
+        setFlags(flags);
     }
     
     /**
@@ -146,30 +155,38 @@ public class Claim {
     }
     
     /**
-     * Get a list of UUIDs of players who are trusted in the claim
-     * @return The list of trusted players
+     * Get the trusted players
+     * @return The UUIDs of all trusted players
+     */
+    public Set<UUID> getTrustedPlayers() {
+        return Collections.unmodifiableSet(trustedPlayers.keySet());
+    }
+    
+    /**
+     * Get the trust level of a player
+     * @param playerUUID The UUID of the player
+     * @return The trust level, or null if the player is not trusted
      */
-    public List<UUID> getTrustedPlayers() {
-        return trustedPlayers;
+    public ClaimTrust getTrust(UUID playerUUID) {
+        return trustedPlayers.get(playerUUID);
     }
     
     /**
-     * Check if a player is trusted in the claim
+     * Check if a player is trusted in the claim at any level
      * @param playerUUID The UUID of the player to check
      * @return True if the player is trusted
      */
     public boolean isTrusted(UUID playerUUID) {
-        return trustedPlayers.contains(playerUUID);
+        return trustedPlayers.containsKey(playerUUID);
     }
     
     /**
-     * Add a trusted player to the claim
-     * @param playerUUID The UUID of the player to add
+     * Trust a player, replacing their previous trust level
+     * @param playerUUID The UUID of the player to trust
+     * @param trust The trust level
      */
-    public void addTrustedPlayer(UUID playerUUID) {
-        if (!trustedPlayers.contains(playerUUID)) {
-            trustedPlayers.add(playerUUID);
-        }
+    public void setTrust(UUID playerUUID, ClaimTrust trust) {
+        trustedPlayers.put(playerUUID, trust);
     }
     
     /**
@@ -180,6 +197,86 @@ public class Claim {
         trustedPlayers.remove(playerUUID);
     }
     
+    /**
+     * Get the permission bits of a player, see {@link ClaimTrust#getMask()}
+     * @param playerUUID The UUID of the player
+     * @return The permission bits
+     */
+    public int getPermissions(UUID playerUUID) {
+        if (ownerUUID.equals(playerUUID)) {
+            return ClaimTrust.ALL;
+        }
+        
+        ClaimTrust trust = trustedPlayers.get(playerUUID);
+        return trust != null ? trust.getGrantedMask() | publicPermissions : publicPermissions;
+    }
+    
+    /**
+     * Check if a player has a permission in the claim
+     * @param playerUUID The UUID of the player
+     * @param permission The required trust level
+     * @return True if the player has the permission
+     */
+    public boolean hasPermission(UUID playerUUID, ClaimTrust permission) {
+        return (getPermissions(playerUUID) & permission.getMask()) != 0;
+    }
+    
+    /**
+     * Check if a player may enter the claim
+     * @param playerUUID The UUID of the player
+     * @return True if the claim allows entry or the player is the owner or trusted
+     */
+    public boolean canEnter(UUID playerUUID) {
+        return (flags & ClaimFlag.ENTRY.getMask()) != 0
+                || ownerUUID.equals(playerUUID)
+                || trustedPlayers.containsKey(playerUUID);
+    }
+    
+    /**
+     * Get the flag bits, see {@link ClaimFlag#getMask()}
+     * @return The flag bits
+     */
+    public int getFlags() {
+        return flags;
+    }
+    
+    /**
+     * Set all flag bits
+     * @param flags The flag bits
+     */
+    public void setFlags(int flags) {
+        this.flags = flags;
+        
+        // Precompile what the flags allow everyone to do
+        int permissions = 0;
+        if ((flags & ClaimFlag.REDSTONE.getMask()) != 0) {
+            permissions |= ClaimTrust.ACCESS.getMask();
+        }
+        if ((flags & ClaimFlag.CONTAINER_ACCESS.getMask()) != 0) {
+            permissions |= ClaimTrust.CONTAINER.getMask();
+        }
+        
+        this.publicPermissions = permissions;
+    }
+    
+    /**
+     * Check if a flag is set
+     * @param flag The flag
+     * @return True if the flag is set
+     */
+    public boolean hasFlag(ClaimFlag flag) {
+        return (flags & flag.getMask()) != 0;
+    }
+    
+    /**
+     * Set or clear a flag
+     * @param flag The flag
+     * @param value True to set the flag
+     */
+    public void setFlag(ClaimFlag flag, boolean value) {
+        setFlags(value ? flags | flag.getMask() : flags & ~flag.getMask());
+    }
+    
     /**
      * Check if a point is within the claim
      * @param x The X coordinate
@@ -0,0 +1,91 @@
+package ch.retaxo.sumania.models;
+
+/**
+ * Flags of a claim, stored together as a bitmask.
+ * A set flag allows the action for everyone, not only for trusted players.
+ */
+public enum ClaimFlag {
+    /**
+     * Players can damage each other
+     */
+    PVP("pvp", false),
+    
+    /**
+     * Explosions can destroy blocks
+     */
+    EXPLOSIONS("explosions", false),
+    
+    /**
+     * Fire can spread and burn blocks
+     */
+    FIRE_SPREAD("fire-spread", false),
+    
+    /**
+     * Mobs can change blocks, e.g. endermen or creepers
+     */
+    MOB_GRIEFING("mob-griefing", false),
+    
+    /**
+     * Everyone can open containers
+     */
+    CONTAINER_ACCESS("container-access", false),
+    
+    /**
+     * Everyone can use buttons, levers, doors and other redstone components
+     */
+    REDSTONE("redstone", false),
+    
+    /**
+     * Everyone can enter the claim
+     */
+    ENTRY("entry", true);
+    
+    private final String key;
+    private final boolean defaultValue;
+    private final int mask;
+    
+    ClaimFlag(String key, boolean defaultValue) {
+        this.key = key;
+        this.defaultValue = defaultValue;
+        this.mask = 1 << ordinal();
+    }
+    
+    /**
+     * Get the key used in commands and the config
+     * @return The key
+     */
+    public String getKey() {
+        return key;
+    }
+    
+    /**
+     * Get the value used when the config has none
+     * @return The default value
+     */
+    public boolean getDefaultValue() {
+        return defaultValue;
+    }
+    
+    /**
+     * Get the bit of this flag
+     * @return The mask
+     */
+    public int getMask() {
+        return mask;
+    }
+    
+    /**
+     * Get a flag by its key
+     * @param key The key, case-insensitive
+     * @return The flag, or null if there is none
+     */
+    public static ClaimFlag fromKey(String key) {
+        for (ClaimFlag flag : values()) {
+            if (flag.key.equalsIgnoreCase(key)) {
+                return flag;
+            }
+        }
+        
+        return null;
+    }
+}
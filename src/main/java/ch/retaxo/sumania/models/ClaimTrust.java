@@ -0,0 +1,80 @@
+package ch.retaxo.sumania.models;
+
+/**
+ * Trust levels of a claim. Each level has its own permission bit and grants every lower level.
+ */
+public enum ClaimTrust {
+    /**
+     * Use buttons, levers, doors and other redstone components
+     */
+    ACCESS("access"),
+    
+    /**
+     * Open containers
+     */
+    CONTAINER("container"),
+    
+    /**
+     * Break and place blocks
+     */
+    BUILD("build"),
+    
+    /**
+     * Manage trusted players and flags
+     */
+    MANAGE("manage");
+    
+    /**
+     * All permission bits, granted to the owner
+     */
+    public static final int ALL = (1 << values().length) - 1;
+    
+    private final String key;
+    private final int mask;
+    private final int grantedMask;
+    
+    ClaimTrust(String key) {
+        this.key = key;
+        this.mask = 1 << ordinal();
+        this.grantedMask = (1 << (ordinal() + 1)) - 1;
+    }
+    
+    /**
+     * Get the key used in commands and the data file
+     * @return The key
+     */
+    public String getKey() {
+        return key;
+    }
+    
+    /**
+     * Get the permission bit of this level
+     * @return The mask
+     */
+    public int getMask() {
+        return mask;
+    }
+    
+    /**
+     * Get the permission bits granted by this level, including all lower levels
+     * @return The mask
+     */
+    public int getGrantedMask() {
+        return grantedMask;
+    }
+    
+    /**
+     * Get a trust level by its key
+     * @param key The key, case-insensitive
+     * @return The trust level, or null if there is none
+     */
+    public static ClaimTrust fromKey(String key) {
+        for (ClaimTrust trust : values()) {
+            if (trust.key.equalsIgnoreCase(key)) {
+                return trust;
+            }
+        }
+        
+        return null;
+    }
+}
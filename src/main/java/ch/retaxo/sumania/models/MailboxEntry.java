@@ -0,0 +1,128 @@
+package ch.retaxo.sumania.models;
+
+import org.bukkit.inventory.ItemStack;
+
+import java.time.Instant;
+import java.util.UUID;
+
+/**
+ * Represents an item or an amount of money waiting in a player's mailbox
+ */
+public class MailboxEntry {
+
+    private volatile int id;
+    private final UUID recipientUuid;
+    private byte[] itemData;
+    private final double amount;
+    private final String source;
+    private final UUID counterpartyUuid;
+    private final Instant createdTime;
+    
+    /**
+     * Constructor
+     * @param id The entry ID, 0 until it was stored
+     * @param recipientUuid The recipient's UUID
+     * @param itemData The encoded item, or null for money
+     * @param amount The amount of money, 0 for items
+     * @param source What the delivery is for, e.g. auction_sale
+     * @param counterpartyUuid The player money comes from, or null
+     * @param createdTime The time the entry was created
+     */
+    public MailboxEntry(int id, UUID recipientUuid, byte[] itemData, double amount, String source, UUID counterpartyUuid, Instant createdTime) {
+        this.id = id;
+        this.recipientUuid = recipientUuid;
+        this.itemData = itemData;
+        this.amount = amount;
+        this.source = source;
+        this.counterpartyUuid = counterpartyUuid;
+        this.createdTime = createdTime;
+    }
+    
+    /**
+     * Get the entry ID
+     * @return The entry ID, 0 until it was stored
+     */
+    public int getId() {
+        return id;
+    }
+    
+    /**
+     * Set the entry ID once it was stored
+     * @param id The entry ID
+     */
+    public void setId(int id) {
+        this.id = id;
+    }
+    
+    /**
+     * Get the recipient's UUID
+     * @return The recipient's UUID
+     */
+    public UUID getRecipientUuid() {
+        return recipientUuid;
+    }
+    
+    /**
+     * Check if the entry holds an item
+     * @return True for items, false for money
+     */
+    public boolean isItem() {
+        return itemData != null;
+    }
+    
+    /**
+     * Get the encoded item
+     * @return The encoded item, or null for money
+     */
+    public byte[] getItemData() {
+        return itemData;
+    }
+    
+    /**
+     * Decode the item
+     * @return The item, or null for money
+     */
+    public ItemStack getItem() {
+        return itemData != null ? Auction.decodeItem(itemData) : null;
+    }
+    
+    /**
+     * Replace the item, e.g. with the part that didn't fit into the inventory
+     * @param item The item
+     */
+    public void setItem(ItemStack item) {
+        this.itemData = Auction.encodeItem(item);
+    }
+    
+    /**
+     * Get the amount of money
+     * @return The amount, 0 for items
+     */
+    public double getAmount() {
+        return amount;
+    }
+    
+    /**
+     * Get what the delivery is for
+     * @return The source, e.g. auction_sale
+     */
+    public String getSource() {
+        return source;
+    }
+    
+    /**
+     * Get the player money comes from, journaled as the counterparty when it is paid out
+     * @return The counterparty's UUID, or null
+     */
+    public UUID getCounterpartyUuid() {
+        return counterpartyUuid;
+    }
+    
+    /**
+     * Get the time the entry was created
+     * @return The time the entry was created
+     */
+    public Instant getCreatedTime() {
+        return createdTime;
+    }
+}
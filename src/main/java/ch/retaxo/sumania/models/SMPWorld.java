@@ -11,6 +11,7 @@ public class SMPWorld {
     
     private String worldName;
     private Location spawnPoint;
+    private int borderSize;
     private boolean enabled;
     
     /**
@@ -21,6 +22,7 @@ public class SMPWorld {
         this.worldName = worldName;
         World world = Bukkit.getWorld(worldName);
         this.spawnPoint = world != null ? world.getSpawnLocation() : null;
+        this.borderSize = world != null ? (int) world.getWorldBorder().getSize() : 0;
         this.enabled = true;
     }
     
@@ -34,6 +36,7 @@ public class SMPWorld {
     public SMPWorld(String worldName, Location spawnPoint, int borderSize, boolean enabled) {
         this.worldName = worldName;
         this.spawnPoint = spawnPoint;
+        this.borderSize = borderSize;
         this.enabled = enabled;
     }
     
@@ -77,6 +80,14 @@ public class SMPWorld {
         this.spawnPoint = spawnPoint;
     }
 
+    /**
+     * Get the world border size
+     * @return The world border size (diameter in blocks)
+     */
+    public int getBorderSize() {
+        return borderSize;
+    }
+    
     /**
      * Check if the SMP world is enabled
      * @return True if the SMP world is enabled
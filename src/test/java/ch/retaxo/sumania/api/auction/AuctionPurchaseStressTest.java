@@ -0,0 +1,363 @@
+package ch.retaxo.sumania.api.auction;
+
+import ch.retaxo.sumania.api.economy.Ledger;
+import ch.retaxo.sumania.config.ConnectionPool;
+import ch.retaxo.sumania.models.Auction;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Stress test for the auction purchase pipeline: hundreds of buyers race for the same auction through
+ * {@link PurchasePipeline}, which reserves the price, claims the row with the versioned conditional update
+ * and settles or refunds every purchase on a single thread standing in for the main thread.
+ * Runs against SQLite with the plugin's settings, or against the JDBC URL in the system property
+ * sumania.test.jdbc-url (e.g. a MySQL test database).
+ */
+class AuctionPurchaseStressTest {
+
+    private static final int BUYERS = 500;
+    private static final int THREADS = 64;
+    private static final int AUCTION_ID = 1;
+    private static final long PRICE = 10_000;
+    private static final long STARTING_BALANCE = 50_000;
+    private static final String TABLE = "stress_auctions";
+    
+    @TempDir
+    Path tempDir;
+    
+    private ConnectionPool pool;
+    private ExecutorService mainThread;
+    private Ledger ledger;
+    private UUID seller;
+    private RecordingSettler settler;
+    
+    @BeforeEach
+    void setUp() throws SQLException {
+        String url = System.getProperty("sumania.test.jdbc-url", "jdbc:sqlite:" + tempDir.resolve("stress.db"));
+        boolean sqlite = url.startsWith("jdbc:sqlite:");
+        
+        pool = new ConnectionPool(null, () -> {
+            Connection connection = DriverManager.getConnection(url);
+            
+            // The same settings the plugin uses for SQLite
+            if (sqlite) {
+                try (Statement statement = connection.createStatement()) {
+                    statement.execute("PRAGMA journal_mode=WAL");
+                    statement.execute("PRAGMA busy_timeout=5000");
+                }
+            }
+            
+            return connection;
+        }, sqlite ? 4 : 10, 30_000);
+        
+        try (Connection connection = pool.getConnection();
+             Statement statement = connection.createStatement()) {
+            statement.executeUpdate("DROP TABLE IF EXISTS " + TABLE);
+            statement.executeUpdate("CREATE TABLE " + TABLE + " (id INTEGER PRIMARY KEY, status VARCHAR(10) NOT NULL, " +
+                    "buyer_uuid VARCHAR(36) NULL, version INTEGER NOT NULL DEFAULT 0)");
+            statement.executeUpdate("INSERT INTO " + TABLE + " (id, status, version) VALUES (" + AUCTION_ID + ", 'ACTIVE', 0)");
+        }
+        
+        mainThread = Executors.newSingleThreadExecutor();
+        ledger = new Ledger(STARTING_BALANCE);
+        seller = UUID.randomUUID();
+        settler = new RecordingSettler();
+    }
+    
+    @AfterEach
+    void tearDown() {
+        mainThread.shutdownNow();
+        pool.close();
+    }
+    
+    @Test
+    void concurrentBuyersSellTheAuctionOnce() throws Exception {
+        PurchasePipeline purchases = pipeline(TABLE, mainThread);
+        List<UUID> buyers = new ArrayList<>();
+        for (int i = 0; i < BUYERS; i++) {
+            buyers.add(UUID.randomUUID());
+        }
+        
+        AtomicInteger successful = new AtomicInteger();
+        CountDownLatch start = new CountDownLatch(1);
+        CountDownLatch settled = new CountDownLatch(BUYERS);
+        ExecutorService clients = Executors.newFixedThreadPool(THREADS);
+        List<Future<?>> results = new ArrayList<>();
+        
+        for (UUID buyer : buyers) {
+            results.add(clients.submit(() -> {
+                start.await();
+                
+                // Every buyer saw the auction at version 0, as a stale cached auction would show it
+                Auction auction = newAuction();
+                assertTrue(auction.beginPurchase());
+                
+                boolean started = purchases.purchase(auction, buyer, PRICE, success -> {
+                    if (success) {
+                        successful.incrementAndGet();
+                    }
+                    settled.countDown();
+                });
+                
+                assertTrue(started);
+                return null;
+            }));
+        }
+        
+        start.countDown();
+        for (Future<?> result : results) {
+            result.get(60, TimeUnit.SECONDS);
+        }
+        clients.shutdown();
+        
+        assertTrue(settled.await(60, TimeUnit.SECONDS));
+        
+        // Exactly one buyer won the row, everybody else was refunded and nothing was held
+        assertEquals(1, successful.get());
+        assertEquals(1, settler.sold.size());
+        assertEquals(BUYERS - 1, settler.refunded.size());
+        assertEquals(0, settler.held.size());
+        
+        PurchasePipeline.Purchase sale = settler.sold.get(0);
+        UUID winner = sale.buyerUuid;
+        assertEquals(Auction.Status.SOLD, sale.auction.getStatus());
+        assertEquals(winner, sale.auction.getBuyerUuid());
+        assertFalse(sale.auction.isPurchasePending());
+        assertRow(Auction.Status.SOLD, winner, 1);
+        
+        // The seller was paid once, the winner paid once and everybody else got their money back
+        assertEquals(STARTING_BALANCE + PRICE, ledger.getBalance(seller));
+        for (UUID buyer : buyers) {
+            assertEquals(buyer.equals(winner) ? STARTING_BALANCE - PRICE : STARTING_BALANCE, ledger.getBalance(buyer));
+        }
+        
+        // The purchase and the sale name each other in the journal
+        int saleLegs = 0;
+        int refundLegs = 0;
+        for (Ledger.JournalEntry entry : ledger.drainJournal(Integer.MAX_VALUE)) {
+            if (entry.getType().equals("auction_sale")) {
+                assertEquals(winner, entry.getCounterparty());
+                saleLegs++;
+            } else if (entry.getType().equals("auction_purchase")) {
+                assertEquals(seller, entry.getCounterparty());
+            } else if (entry.getType().equals("auction_purchase_refund")) {
+                refundLegs++;
+            }
+        }
+        assertEquals(1, saleLegs);
+        assertEquals(BUYERS - 1, refundLegs);
+    }
+    
+    @Test
+    void concurrentBuyersOfOneAuctionObjectArePassedOneAtATime() throws Exception {
+        Auction auction = newAuction();
+        
+        AtomicInteger passed = new AtomicInteger();
+        CountDownLatch start = new CountDownLatch(1);
+        ExecutorService clients = Executors.newFixedThreadPool(THREADS);
+        List<Future<?>> results = new ArrayList<>();
+        
+        for (int i = 0; i < BUYERS; i++) {
+            results.add(clients.submit(() -> {
+                start.await();
+                
+                if (auction.beginPurchase()) {
+                    passed.incrementAndGet();
+                }
+                
+                return null;
+            }));
+        }
+        
+        start.countDown();
+        for (Future<?> result : results) {
+            result.get(60, TimeUnit.SECONDS);
+        }
+        clients.shutdown();
+        
+        // Until the first purchase ends, every other buyer is turned away without a query
+        assertEquals(1, passed.get());
+        assertTrue(auction.isPurchasePending());
+    }
+    
+    @Test
+    void buyerWhoCantPayStartsNothing() throws Exception {
+        PurchasePipeline purchases = pipeline(TABLE, mainThread);
+        UUID buyer = UUID.randomUUID();
+        ledger.load(buyer, PRICE - 1);
+        
+        assertFalse(purchases.purchase(newAuction(), buyer, PRICE, success -> {}));
+        
+        assertEquals(PRICE - 1, ledger.getBalance(buyer));
+        assertRow(Auction.Status.ACTIVE, null, 0);
+    }
+    
+    @Test
+    void failedClaimIsHeldAndRefundedFromTheUnchangedRow() throws Exception {
+        // The claim fails because the table is missing, so it can't tell whether the update committed
+        PurchasePipeline purchases = pipeline("missing_auctions", mainThread);
+        UUID buyer = UUID.randomUUID();
+        Auction auction = newAuction();
+        assertTrue(auction.beginPurchase());
+        
+        CountDownLatch settled = new CountDownLatch(1);
+        AtomicInteger successful = new AtomicInteger();
+        purchases.purchase(auction, buyer, PRICE, success -> {
+            if (success) {
+                successful.incrementAndGet();
+            }
+            settled.countDown();
+        });
+        assertTrue(settled.await(10, TimeUnit.SECONDS));
+        
+        // The price stays reserved and the auction blocked
+        assertEquals(0, successful.get());
+        assertEquals(1, settler.held.size());
+        assertEquals(STARTING_BALANCE - PRICE, ledger.getBalance(buyer));
+        assertTrue(auction.isPurchasePending());
+        
+        // At the next start the row is still active, so the held price goes back to the buyer
+        PurchasePipeline.Purchase held = settler.held.get(0);
+        PurchasePipeline restarted = pipeline(TABLE, mainThread);
+        Auction loaded = newAuction();
+        PurchasePipeline.Purchase resumed = restarted.resume(loaded, buyer, held.price, held.version);
+        assertTrue(loaded.isPurchasePending());
+        
+        assertFalse(onMainThread(() -> restarted.settleResumed(resumed)));
+        assertEquals(STARTING_BALANCE, ledger.getBalance(buyer));
+        assertEquals(STARTING_BALANCE, ledger.getBalance(seller));
+        assertEquals(1, settler.refunded.size());
+        assertFalse(loaded.isPurchasePending());
+    }
+    
+    @Test
+    void heldPurchaseWhoseUpdateCommittedIsSold() throws Exception {
+        UUID buyer = UUID.randomUUID();
+        ledger.commit(new Ledger.Transaction("auction_purchase").debit(buyer, PRICE).counterparty(buyer, seller));
+        
+        // The update committed although the claim reported an error
+        try (Connection connection = pool.getConnection()) {
+            assertTrue(PurchasePipeline.claimRow(connection, TABLE, AUCTION_ID, buyer, 0));
+        }
+        
+        Auction loaded = newAuction();
+        loaded.setStatus(Auction.Status.SOLD);
+        loaded.setBuyerUuid(buyer);
+        loaded.setVersion(1);
+        
+        PurchasePipeline purchases = pipeline(TABLE, mainThread);
+        PurchasePipeline.Purchase resumed = purchases.resume(loaded, buyer, PRICE, 1);
+        
+        assertTrue(onMainThread(() -> purchases.settleResumed(resumed)));
+        assertEquals(1, settler.sold.size());
+        assertEquals(STARTING_BALANCE - PRICE, ledger.getBalance(buyer));
+        assertEquals(STARTING_BALANCE + PRICE, ledger.getBalance(seller));
+        assertFalse(loaded.isPurchasePending());
+    }
+    
+    @Test
+    void shutdownSettlesPurchasesWhoseSettlementNeverRan() throws Exception {
+        // Settlements scheduled after the plugin was disabled never run
+        Executor disabled = task -> {};
+        PurchasePipeline purchases = pipeline(TABLE, disabled);
+        UUID buyer = UUID.randomUUID();
+        Auction auction = newAuction();
+        assertTrue(auction.beginPurchase());
+        
+        AtomicInteger successful = new AtomicInteger();
+        assertTrue(purchases.purchase(auction, buyer, PRICE, success -> {
+            if (success) {
+                successful.incrementAndGet();
+            }
+        }));
+        
+        purchases.shutdown();
+        purchases.shutdown();
+        
+        // Settled exactly once, although shutdown ran twice
+        assertEquals(1, successful.get());
+        assertEquals(1, settler.sold.size());
+        assertEquals(STARTING_BALANCE + PRICE, ledger.getBalance(seller));
+        assertEquals(STARTING_BALANCE - PRICE, ledger.getBalance(buyer));
+        assertRow(Auction.Status.SOLD, buyer, 1);
+    }
+    
+    private PurchasePipeline pipeline(String table, Executor settlements) {
+        return new PurchasePipeline(ledger, pool, table, settlements, settler, Logger.getLogger(getClass().getName()));
+    }
+    
+    private Auction newAuction() {
+        return new Auction(AUCTION_ID, seller, null, PRICE / 100.0,
+                Instant.now(), Instant.now().plusSeconds(3600), Auction.Status.ACTIVE, "misc");
+    }
+    
+    private <T> T onMainThread(Callable<T> task) throws Exception {
+        return mainThread.submit(task).get(10, TimeUnit.SECONDS);
+    }
+    
+    private void assertRow(Auction.Status status, UUID buyer, int version) throws SQLException {
+        try (Connection connection = pool.getConnection();
+             PreparedStatement statement = connection.prepareStatement("SELECT status, buyer_uuid, version FROM " + TABLE + " WHERE id = ?")) {
+            statement.setInt(1, AUCTION_ID);
+            
+            try (ResultSet result = statement.executeQuery()) {
+                assertTrue(result.next());
+                assertEquals(status.name(), result.getString("status"));
+                assertEquals(buyer != null ? buyer.toString() : null, result.getString("buyer_uuid"));
+                assertEquals(version, result.getInt("version"));
+            }
+        }
+    }
+    
+    /**
+     * Pays the seller like the mailbox does for an online seller and records every settlement
+     */
+    private final class RecordingSettler implements PurchasePipeline.Settler {
+        private final List<PurchasePipeline.Purchase> sold = new ArrayList<>();
+        private final List<PurchasePipeline.Purchase> refunded = new ArrayList<>();
+        private final List<PurchasePipeline.Purchase> held = new ArrayList<>();
+        
+        @Override
+        public void sold(PurchasePipeline.Purchase purchase) {
+            ledger.deposit(purchase.auction.getSellerUuid(), purchase.price, "auction_sale", purchase.buyerUuid);
+            sold.add(purchase);
+        }
+        
+        @Override
+        public void refunded(PurchasePipeline.Purchase purchase) {
+            refunded.add(purchase);
+        }
+        
+        @Override
+        public void held(PurchasePipeline.Purchase purchase) {
+            held.add(purchase);
+        }
+    }
+}